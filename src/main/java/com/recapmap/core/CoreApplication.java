@@ -26,6 +26,9 @@ public class CoreApplication {
 		try {
 			SpringApplication.run(CoreApplication.class, args);
 			logger.info("=== RecapMap Core Application Started Successfully ===");
+		} catch (SpringApplication.AbandonedRunException e) {
+			// AOT processing and CDS training runs (spring.context.exit=onRefresh) stop here on purpose
+			throw e;
 		} catch (Exception e) {
 			logger.error("=== Failed to start RecapMap Core Application ===", e);
 			throw e;
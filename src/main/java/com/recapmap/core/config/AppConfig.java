@@ -13,6 +13,7 @@ public class AppConfig {
     private String testImagePath = "D:/workspace_recapmap/core-suite-server-files/test-image.png"; // Updated path
     // Add more config fields as needed
     private int simpleExtractionThreads = 6; // Default to 4 threads for safety, can be adjusted
+    private String simpleExtractionMode = "hybrid"; // "hybrid" (text-first plus figure crops), "text-first" (text layer for born-digital pages) or "vision" (every page)
     private String n8nWebhookUrl = "https://wasanch.app.n8n.cloud/webhook/e80476e1-dedc-4c8f-8da7-abd7d0a4a1e3"; // Placeholder for n8n webhook URL
     private String n8nWebhookUsername = "core_n8n_user_test";
     private String n8nWebhookPassword = "68aa35if-81zf-4arb-yc1c-f974a9acfd95";    
@@ -47,6 +48,15 @@ public class AppConfig {
         }
     }
 
+    public String getSimpleExtractionMode() {
+        return simpleExtractionMode;
+    }
+    public void setSimpleExtractionMode(String simpleExtractionMode) {
+        if ("hybrid".equals(simpleExtractionMode) || "text-first".equals(simpleExtractionMode) || "vision".equals(simpleExtractionMode)) {
+            this.simpleExtractionMode = simpleExtractionMode;
+        }
+    }
+
     public String getN8nWebhookUrl() {
         return n8nWebhookUrl;
     }
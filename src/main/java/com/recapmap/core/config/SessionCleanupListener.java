@@ -0,0 +1,27 @@
+package com.recapmap.core.config;
+
+import org.springframework.stereotype.Component;
+
+import com.recapmap.core.service.PdfService;
+
+import jakarta.servlet.http.HttpSessionEvent;
+import jakarta.servlet.http.HttpSessionListener;
+
+/**
+ * Drops a session's in-memory state (document list, render tenant, progress events and streams)
+ * when the session is invalidated or expires.
+ */
+@Component
+public class SessionCleanupListener implements HttpSessionListener {
+
+    private final PdfService pdfService;
+
+    public SessionCleanupListener(PdfService pdfService) {
+        this.pdfService = pdfService;
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent event) {
+        pdfService.clearSession(event.getSession().getId());
+    }
+}
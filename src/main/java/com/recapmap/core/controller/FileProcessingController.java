@@ -1,7 +1,15 @@
 package com.recapmap.core.controller;
 
 import com.recapmap.core.data.PdfSourceDataSource;
+import com.recapmap.core.service.ChunkedUploadService;
+import com.recapmap.core.service.ConversionSettings;
+import com.recapmap.core.service.DocumentStoreService;
+import com.recapmap.core.service.PageImageEncoders;
+import com.recapmap.core.service.PagePyramid;
 import com.recapmap.core.service.PdfService;
+import com.recapmap.core.service.ProgressEventService;
+import com.recapmap.core.service.RetentionService;
+import com.recapmap.core.service.VisionImageSizer;
 import com.recapmap.core.data.ExtractionConfig;
 import com.recapmap.core.service.ExtractionPipelineService;
 import com.recapmap.core.config.AppConfig;
@@ -9,18 +17,23 @@ import com.recapmap.core.service.MongoDbService;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.io.InputStream;
 import java.util.*;
+import java.util.function.UnaryOperator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -30,12 +43,26 @@ import com.fasterxml.jackson.core.type.TypeReference;
 @RequestMapping("/file")
 public class FileProcessingController {
     private static final Logger logger = LoggerFactory.getLogger(FileProcessingController.class);
+    // Page images are cached briefly and then revalidated by ETag: a re-rendered page shows within minutes
+    private static final String PAGE_IMAGE_CACHE_CONTROL = "private, max-age=300";
     @Autowired
     private PdfService pdfService;
 
+    @Autowired
+    private DocumentStoreService documentStoreService;
+
+    @Autowired
+    private ProgressEventService progressEventService;
+
+    @Autowired
+    private ChunkedUploadService chunkedUploadService;
+
     @Autowired
     private ExtractionPipelineService extractionPipelineService;
 
+    @Autowired
+    private RetentionService retentionService;
+
     @Autowired
     private AppConfig appConfig;
 
@@ -46,11 +73,9 @@ public class FileProcessingController {
     @PostMapping("/upload")
     @ResponseBody
     public ResponseEntity<?> uploadPdf(@RequestParam("file") MultipartFile[] files, HttpSession session, Authentication auth) {
-        logger.info("[CONFIG] uploadPdf: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.PDF_TO_IMAGE_DPI, PdfService.MAX_CONVERT_THREADS);
+        logger.info("[CONFIG] uploadPdf: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.getSettings().getDpi(), PdfService.MAX_CONVERT_THREADS);
         String sessionId = session.getId();
         PdfSourceDataSource dataSource = pdfService.getDataSourceForSession(sessionId);
-        File sessionDir = pdfService.getSessionDir(sessionId);
-        if (!sessionDir.exists()) sessionDir.mkdirs();
         List<Map<String, String>> uploaded = new ArrayList<>();
         // Clear the uploaded list for this session before each upload
         dataSource.clearOriginalFilenames();
@@ -62,12 +87,13 @@ public class FileProcessingController {
             // Generate a unique UUID for each file
             String uuid = UUID.randomUUID().toString();
             String ext = StringUtils.getFilenameExtension(file.getOriginalFilename());
-            String storedName = uuid + (ext != null ? "." + ext : "");
-            File dest = new File(sessionDir, storedName);
-            try {
-                Files.copy(file.getInputStream(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (InputStream in = file.getInputStream()) {
+                // Identical content is kept once; its earlier outputs are reused by convert/extract
+                DocumentStoreService.StoredDocument stored = documentStoreService.store(in, ext);
                 dataSource.addOriginalFilename(uuid, file.getOriginalFilename());
-                uploaded.add(Map.of("uuid", uuid, "original", file.getOriginalFilename(), "stored", storedName));
+                dataSource.setContentHash(uuid, stored.getContentHash());
+                uploaded.add(Map.of("uuid", uuid, "original", file.getOriginalFilename(), "stored", stored.getSourceFile().getName(),
+                        "contentHash", stored.getContentHash(), "reused", String.valueOf(stored.isAlreadyStored())));
             } catch (IOException e) {
                 return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to save: " + file.getOriginalFilename());
             }
@@ -75,11 +101,64 @@ public class FileProcessingController {
         return ResponseEntity.ok(uploaded);
     }
 
+    // Start a chunked, resumable upload; the bytes follow with PUT /upload/chunked/{uploadId}?offset=N.
+    // With convert=true the document is queued for conversion as soon as its last chunk is stored.
+    @PostMapping("/upload/chunked")
+    @ResponseBody
+    public ResponseEntity<?> startChunkedUpload(@RequestParam("filename") String filename, @RequestParam("size") long size,
+            @RequestParam(defaultValue = "false") boolean convert, HttpSession session) {
+        try {
+            ChunkedUploadService.Upload upload = chunkedUploadService.start(session.getId(), filename, size, convert);
+            return ResponseEntity.ok(upload.getStatus());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Failed to start upload: " + e.getMessage()));
+        }
+    }
+
+    // Append the request body (application/octet-stream) at offset; after a dropped connection, GET the upload and resume from "received"
+    @PutMapping(value = "/upload/chunked/{uploadId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @ResponseBody
+    public ResponseEntity<?> appendChunk(@PathVariable String uploadId, @RequestParam("offset") long offset,
+            HttpServletRequest request, HttpSession session) {
+        ChunkedUploadService.Upload upload = chunkedUploadService.get(session.getId(), uploadId);
+        if (upload == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "Upload not found"));
+        try (InputStream in = request.getInputStream()) {
+            return ResponseEntity.ok(chunkedUploadService.append(upload, offset, request.getContentLengthLong(), in).getStatus());
+        } catch (ChunkedUploadService.OffsetMismatchException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(upload.getStatus());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IOException e) {
+            logger.warn("Chunk of upload {} broke off at {} bytes: {}", uploadId, upload.getReceived(), e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(upload.getStatus());
+        }
+    }
+
+    // Received offset of a chunked upload, and the stored document once it is complete
+    @GetMapping("/upload/chunked/{uploadId}")
+    @ResponseBody
+    public ResponseEntity<?> getChunkedUpload(@PathVariable String uploadId, HttpSession session) {
+        ChunkedUploadService.Upload upload = chunkedUploadService.get(session.getId(), uploadId);
+        if (upload == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "Upload not found"));
+        return ResponseEntity.ok(upload.getStatus());
+    }
+
+    @DeleteMapping("/upload/chunked/{uploadId}")
+    @ResponseBody
+    public ResponseEntity<?> cancelChunkedUpload(@PathVariable String uploadId, HttpSession session) {
+        ChunkedUploadService.Upload upload = chunkedUploadService.get(session.getId(), uploadId);
+        if (upload == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "Upload not found"));
+        chunkedUploadService.cancel(upload);
+        return ResponseEntity.ok(Map.of("success", true));
+    }
+
     // List uploaded files for session
     @GetMapping("/list")
     @ResponseBody
     public ResponseEntity<?> listUploadedFiles(HttpSession session) {
-        logger.info("[CONFIG] listUploadedFiles: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.PDF_TO_IMAGE_DPI, PdfService.MAX_CONVERT_THREADS);
+        logger.info("[CONFIG] listUploadedFiles: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.getSettings().getDpi(), PdfService.MAX_CONVERT_THREADS);
         String sessionId = session.getId();
         PdfSourceDataSource dataSource = pdfService.getDataSourceForSession(sessionId);
         Map<String, String> map = dataSource.getOriginalFilenameMap();
@@ -90,60 +169,106 @@ public class FileProcessingController {
     @PostMapping("/convert")
     @ResponseBody
     public ResponseEntity<?> convertPdf(@RequestParam("uuid") String uuid, HttpSession session) {
-        logger.info("[CONFIG] convertPdf: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.PDF_TO_IMAGE_DPI, PdfService.MAX_CONVERT_THREADS);
+        logger.info("[CONFIG] convertPdf: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.getSettings().getDpi(), PdfService.MAX_CONVERT_THREADS);
         String sessionId = session.getId();
         PdfSourceDataSource dataSource = pdfService.getDataSourceForSession(sessionId);
         String original = dataSource.getOriginalFilename(uuid);
         if (original == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
         }
-        // Find stored filename by UUID
-        File sessionDir = pdfService.getSessionDir(sessionId);
-        File[] files = sessionDir.listFiles((dir, name) -> name.startsWith(uuid + "."));
-        if (files == null || files.length == 0) {
+        // Find stored file by UUID (content store or legacy session folder)
+        if (pdfService.findStoredPdf(sessionId, uuid) == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Stored file not found");
         }
-        String storedFilename = files[0].getName();
-        // Create output folder named after the stored UUID (normalized file name, without extension)
-        String baseName = storedFilename;
-        int dotIdx = baseName.lastIndexOf('.');
-        if (dotIdx > 0) baseName = baseName.substring(0, dotIdx);
-        File outputDir = new File(sessionDir, baseName);
-        if (!outputDir.exists()) outputDir.mkdirs();
-        pdfService.convertPdfToImages(sessionId, uuid, storedFilename, outputDir);
+        pdfService.convertDocument(sessionId, uuid);
         return ResponseEntity.ok("Conversion started for " + original);
     }
 
-    // Poll progress log for current session
+    // Render only a page range (1-based, inclusive) of a file (by UUID); already rendered pages are reused
+    @PostMapping("/render-pages")
+    @ResponseBody
+    public ResponseEntity<?> renderPages(@RequestParam("uuid") String uuid, @RequestParam("from") int fromPage, @RequestParam("to") int toPage, HttpSession session) {
+        String sessionId = session.getId();
+        PdfSourceDataSource dataSource = pdfService.getDataSourceForSession(sessionId);
+        if (dataSource.getOriginalFilename(uuid) == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
+        }
+        if (pdfService.findStoredPdf(sessionId, uuid) == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Stored file not found");
+        }
+        try {
+            return ResponseEntity.ok(pdfService.renderPages(sessionId, uuid, fromPage, toPage));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Render error: " + e.getMessage());
+        }
+    }
+
+    // Page image of a file (by UUID) at a pyramid level: "thumb", "preview" or "full" (see PagePyramid), rendered
+    // first if missing. Revalidated by ETag, served in ranges, and big files go out through the container's sendfile.
+    @GetMapping("/page-image")
+    public ResponseEntity<?> getPageImage(@RequestParam("uuid") String uuid, @RequestParam("page") int page,
+                                          @RequestParam(defaultValue = "full") String level, HttpSession session,
+                                          HttpServletRequest request, HttpServletResponse response) {
+        String sessionId = session.getId();
+        if (pdfService.getDataSourceForSession(sessionId).getOriginalFilename(uuid) == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
+        }
+        if (pdfService.findStoredPdf(sessionId, uuid) == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Stored file not found");
+        }
+        try {
+            File file = pdfService.getPageImageFile(sessionId, uuid, page, PagePyramid.Level.parse(level));
+            String contentType = MediaTypeFactory.getMediaType(file.getName()).orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+            FileRangeResponse.send(file, contentType, PAGE_IMAGE_CACHE_CONTROL, request, response);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Page image error: " + e.getMessage());
+        }
+    }
+
+    // Poll progress events for current session. With a uuid: that document's events after "since"
+    // (the last sequence number seen); without: the events each document still has buffered.
     @GetMapping("/progress")
     @ResponseBody
-    public ResponseEntity<?> getProgress(HttpSession session) {
-        logger.info("[CONFIG] getProgress: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.PDF_TO_IMAGE_DPI, PdfService.MAX_CONVERT_THREADS);
+    public ResponseEntity<?> getProgress(@RequestParam(required = false) String uuid, @RequestParam(defaultValue = "0") long since, HttpSession session) {
         String sessionId = session.getId();
-        List<String> log = pdfService.getProgressLog(sessionId);
-        return ResponseEntity.ok(log);
+        if (uuid != null) {
+            return ResponseEntity.ok(progressEventService.getEvents(sessionId, uuid, since));
+        }
+        return ResponseEntity.ok(progressEventService.getAllEvents(sessionId));
+    }
+
+    // Server-Sent Events stream of progress events: one document with uuid, else every document of the session.
+    // Browsers resume after a reconnect with the Last-Event-ID header.
+    @GetMapping(value = "/progress/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamProgress(@RequestParam(required = false) String uuid,
+                                     @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId, HttpSession session) {
+        return progressEventService.subscribe(session.getId(), uuid, lastEventId);
     }
 
     // Admin-only cleanup endpoint
     @PostMapping("/cmd/cleanup-upload")
     @ResponseBody
     public ResponseEntity<?> cleanupUploads(Authentication auth) {
-        logger.info("[CONFIG] cleanupUploads: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.PDF_TO_IMAGE_DPI, PdfService.MAX_CONVERT_THREADS);
+        logger.info("[CONFIG] cleanupUploads: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.getSettings().getDpi(), PdfService.MAX_CONVERT_THREADS);
         if (auth == null || auth.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_ADMIN"))) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Forbidden: Admins only");
         }
-        // Delete all files and folders under ROOT_FOLDER
-        File root = new File(PdfService.ROOT_FOLDER);
-        int deleted = deleteRecursive(root);
+        // Everything under ROOT_FOLDER is moved aside now and deleted in the background
+        int moved = retentionService.cleanupAll();
         pdfService.clearAllSessions();
-        return ResponseEntity.ok("Cleanup complete. Files deleted: " + deleted);
+        return ResponseEntity.accepted().body("Cleanup started: " + moved + " entries moved aside, deleting in the background");
     }
 
     // Admin: update config (max upload size, DPI, threads)
     @PostMapping("/cmd/update-config")
     @ResponseBody
     public ResponseEntity<?> updateConfig(@RequestBody Map<String, Object> body, Authentication auth) {
-        logger.info("[CONFIG] updateConfig: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.PDF_TO_IMAGE_DPI, PdfService.MAX_CONVERT_THREADS);
+        logger.info("[CONFIG] updateConfig: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.getSettings().getDpi(), PdfService.MAX_CONVERT_THREADS);
         if (auth == null || auth.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_ADMIN"))) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden: Admins only"));
         }
@@ -154,9 +279,118 @@ public class FileProcessingController {
             if (maxUploadSizeMB < 1 || maxUploadSizeMB > 500) throw new IllegalArgumentException("Max upload size out of range");
             if (pdfToImageDpi < 72 || pdfToImageDpi > 600) throw new IllegalArgumentException("DPI out of range");
             if (maxConvertThreads < 1 || maxConvertThreads > 64) throw new IllegalArgumentException("Threads out of range");
-            com.recapmap.core.service.PdfService.MAX_UPLOAD_SIZE_MB = maxUploadSizeMB;
-            com.recapmap.core.service.PdfService.PDF_TO_IMAGE_DPI = pdfToImageDpi;
-            com.recapmap.core.service.PdfService.updateConvertThreadPool(maxConvertThreads);
+            // Every value is parsed and checked first; nothing changes unless the whole request is valid
+            ConversionSettings current = PdfService.getSettings();
+            // Optional automatic sizing of the render stage (maxConvertThreads is then its ceiling)
+            String convertThreadsMode = body.containsKey("convertThreadsMode") ? body.get("convertThreadsMode").toString() : PdfService.CONVERT_THREADS_MODE;
+            if (!List.of("fixed", "auto").contains(convertThreadsMode)) throw new IllegalArgumentException("Unsupported convert threads mode: " + convertThreadsMode);
+            // Optional per-stage worker counts for the conversion pipeline
+            int normalizeThreads = parseOptionalInt(body, "normalizeThreads", PdfService.NORMALIZE_THREADS);
+            int sharpenThreads = parseOptionalInt(body, "sharpenThreads", PdfService.SHARPEN_THREADS);
+            int encodeThreads = parseOptionalInt(body, "encodeThreads", PdfService.ENCODE_THREADS);
+            int writeThreads = parseOptionalInt(body, "writeThreads", PdfService.WRITE_THREADS);
+            if (normalizeThreads < 1 || normalizeThreads > 64) throw new IllegalArgumentException("Normalize threads out of range");
+            if (sharpenThreads < 1 || sharpenThreads > 64) throw new IllegalArgumentException("Sharpen threads out of range");
+            if (encodeThreads < 1 || encodeThreads > 64) throw new IllegalArgumentException("Encode threads out of range");
+            if (writeThreads < 1 || writeThreads > 64) throw new IllegalArgumentException("Write threads out of range");
+            // Optional page image encoder settings
+            String imageFormat = body.containsKey("imageFormat") ? body.get("imageFormat").toString() : current.getImageFormat();
+            float jpegQuality = body.containsKey("jpegQuality") ? Float.parseFloat(body.get("jpegQuality").toString()) : current.getJpegQuality();
+            int pngCompressionLevel = parseOptionalInt(body, "pngCompressionLevel", current.getPngCompressionLevel());
+            if (!PageImageEncoders.availableFormats().contains(imageFormat)) throw new IllegalArgumentException("Unsupported image format: " + imageFormat);
+            if (jpegQuality < 0.1f || jpegQuality > 1f) throw new IllegalArgumentException("JPEG quality out of range");
+            if (pngCompressionLevel < 0 || pngCompressionLevel > 9) throw new IllegalArgumentException("PNG compression level out of range");
+            // Optional sharpen settings
+            String sharpenMode = body.containsKey("sharpenMode") ? body.get("sharpenMode").toString() : current.getSharpenMode();
+            if (!List.of("auto", "always", "off").contains(sharpenMode)) throw new IllegalArgumentException("Unsupported sharpen mode: " + sharpenMode);
+            // Optional margin trimming and deskewing of page images
+            String normalizeMode = body.containsKey("normalizeMode") ? body.get("normalizeMode").toString() : current.getNormalizeMode();
+            if (!List.of("auto", "crop", "off").contains(normalizeMode)) throw new IllegalArgumentException("Unsupported normalize mode: " + normalizeMode);
+            // Optional content-aware render profiles
+            String renderProfileMode = body.containsKey("renderProfileMode") ? body.get("renderProfileMode").toString() : current.getRenderProfileMode();
+            int textProfileDpi = parseOptionalInt(body, "textProfileDpi", current.getTextProfileDpi());
+            int figureProfileDpi = parseOptionalInt(body, "figureProfileDpi", current.getFigureProfileDpi());
+            if (!List.of("fixed", "auto").contains(renderProfileMode)) throw new IllegalArgumentException("Unsupported render profile mode: " + renderProfileMode);
+            if (textProfileDpi < 72 || textProfileDpi > 600) throw new IllegalArgumentException("Text profile DPI out of range");
+            if (figureProfileDpi < 72 || figureProfileDpi > 600) throw new IllegalArgumentException("Figure profile DPI out of range");
+            // Optional heap budget for page bitmaps in flight (bounded by the JVM's max heap)
+            int renderMemoryBudgetMb = parseOptionalInt(body, "renderMemoryBudgetMb", PdfService.RENDER_MEMORY_BUDGET_MB);
+            long maxHeapMb = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+            if (renderMemoryBudgetMb < 64 || renderMemoryBudgetMb > maxHeapMb) throw new IllegalArgumentException("Render memory budget out of range (64-" + maxHeapMb + " MB)");
+            // Optional pool of reusable page bitmaps (0 turns pooling off)
+            int rasterPoolMb = parseOptionalInt(body, "rasterPoolMb", PdfService.RASTER_POOL_MB);
+            if (rasterPoolMb < 0 || rasterPoolMb > maxHeapMb / 2) throw new IllegalArgumentException("Raster pool size out of range (0-" + maxHeapMb / 2 + " MB)");
+            // Optional low-memory mode for large PDFs (threshold 0 turns it off)
+            int largeDocumentThresholdMb = parseOptionalInt(body, "largeDocumentThresholdMb", PdfService.LARGE_DOCUMENT_THRESHOLD_MB);
+            int largeDocumentMaxHandles = parseOptionalInt(body, "largeDocumentMaxHandles", PdfService.LARGE_DOCUMENT_MAX_HANDLES);
+            if (largeDocumentThresholdMb < 0) throw new IllegalArgumentException("Large document threshold out of range");
+            if (largeDocumentMaxHandles < 1 || largeDocumentMaxHandles > 16) throw new IllegalArgumentException("Large document handles out of range (1-16)");
+            // Optional tiled rendering of oversized pages (min side 0 turns it off)
+            int tiledPageMinSidePt = parseOptionalInt(body, "tiledPageMinSidePt", current.getTiledPageMinSidePt());
+            int tileSizePx = parseOptionalInt(body, "tileSizePx", current.getTileSizePx());
+            int tileOverlapPx = parseOptionalInt(body, "tileOverlapPx", current.getTileOverlapPx());
+            if (tiledPageMinSidePt < 0) throw new IllegalArgumentException("Tiled page size out of range");
+            if (tileSizePx < 512 || tileSizePx > 4096) throw new IllegalArgumentException("Tile size out of range (512-4096 px)");
+            if (tileOverlapPx < 0 || tileOverlapPx > tileSizePx / 4) throw new IllegalArgumentException("Tile overlap out of range (0-" + tileSizePx / 4 + " px)");
+            // Optional sizing of images sent to the vision model
+            String visionImageSizing = body.containsKey("visionImageSizing") ? body.get("visionImageSizing").toString() : VisionImageSizer.MODE;
+            int visionMinDpi = parseOptionalInt(body, "visionMinDpi", VisionImageSizer.MIN_DPI);
+            if (!List.of("auto", "off").contains(visionImageSizing)) throw new IllegalArgumentException("Unsupported vision image sizing: " + visionImageSizing);
+            if (visionMinDpi < 36 || visionMinDpi > 300) throw new IllegalArgumentException("Vision minimum DPI out of range (36-300)");
+            // Optional rendering in child JVMs, isolating the application from crashes and GC pauses of heavy pages
+            String renderWorkers = body.containsKey("renderWorkers") ? body.get("renderWorkers").toString() : PdfService.RENDER_WORKERS;
+            int renderProcesses = parseOptionalInt(body, "renderProcesses", PdfService.RENDER_PROCESSES);
+            int renderProcessHeapMb = parseOptionalInt(body, "renderProcessHeapMb", PdfService.RENDER_PROCESS_HEAP_MB);
+            int renderProcessMaxPages = parseOptionalInt(body, "renderProcessMaxPages", PdfService.RENDER_PROCESS_MAX_PAGES);
+            if (!List.of("threads", "processes").contains(renderWorkers)) throw new IllegalArgumentException("Unsupported render workers: " + renderWorkers);
+            if (renderProcesses < 1 || renderProcesses > 64) throw new IllegalArgumentException("Render processes out of range (1-64)");
+            if (renderProcessHeapMb < 128 || renderProcessHeapMb > 32768) throw new IllegalArgumentException("Render process heap out of range (128-32768 MB)");
+            if (renderProcessMaxPages < 0) throw new IllegalArgumentException("Render process page limit out of range");
+            // Optional preview pyramid timing: built with every page, or on the first preview request
+            String pagePyramid = body.containsKey("pagePyramid") ? body.get("pagePyramid").toString() : PagePyramid.MODE;
+            if (!List.of("eager", "lazy").contains(pagePyramid)) throw new IllegalArgumentException("Unsupported page pyramid mode: " + pagePyramid);
+            // Optional retention of ROOT_FOLDER: TTLs in days since a document's last use (0 = keep) and disk limits (0 = off)
+            int retentionSourceDays = parseOptionalInt(body, "retentionSourceDays", RetentionService.SOURCE_TTL_DAYS);
+            int retentionPageImageDays = parseOptionalInt(body, "retentionPageImageDays", RetentionService.PAGE_IMAGE_TTL_DAYS);
+            int retentionJsonResultDays = parseOptionalInt(body, "retentionJsonResultDays", RetentionService.JSON_RESULT_TTL_DAYS);
+            int diskQuotaMb = parseOptionalInt(body, "diskQuotaMb", RetentionService.DISK_QUOTA_MB);
+            int minFreeDiskMb = parseOptionalInt(body, "minFreeDiskMb", RetentionService.MIN_FREE_DISK_MB);
+            if (retentionSourceDays < 0 || retentionPageImageDays < 0 || retentionJsonResultDays < 0) throw new IllegalArgumentException("Retention days must not be negative");
+            if (diskQuotaMb < 0 || minFreeDiskMb < 0) throw new IllegalArgumentException("Disk limits must not be negative");
+            // Settings that shape page images become one new snapshot; building it once here checks the encoder
+            UnaryOperator<ConversionSettings> settingsUpdate = s -> s.toBuilder()
+                    .dpi(pdfToImageDpi)
+                    .renderProfileMode(renderProfileMode)
+                    .textProfileDpi(textProfileDpi)
+                    .figureProfileDpi(figureProfileDpi)
+                    .sharpenMode(sharpenMode)
+                    .normalizeMode(normalizeMode)
+                    .tiledPageMinSidePt(tiledPageMinSidePt)
+                    .tileSizePx(tileSizePx)
+                    .tileOverlapPx(tileOverlapPx)
+                    .imageEncoder(imageFormat, jpegQuality, pngCompressionLevel)
+                    .build();
+            settingsUpdate.apply(current);
+
+            // All values are valid: apply them together
+            PdfService.MAX_UPLOAD_SIZE_MB = maxUploadSizeMB;
+            PdfService.updateConvertThreadPool(maxConvertThreads);
+            PdfService.updateConvertThreadsMode(convertThreadsMode);
+            PdfService.updatePipelineWorkers(normalizeThreads, sharpenThreads, encodeThreads, writeThreads);
+            PdfService.updateRenderMemoryBudget(renderMemoryBudgetMb);
+            PdfService.updateRasterPool(rasterPoolMb);
+            PdfService.LARGE_DOCUMENT_THRESHOLD_MB = largeDocumentThresholdMb;
+            PdfService.LARGE_DOCUMENT_MAX_HANDLES = largeDocumentMaxHandles;
+            VisionImageSizer.MODE = visionImageSizing;
+            VisionImageSizer.MIN_DPI = visionMinDpi;
+            PdfService.updateRenderWorkers(renderWorkers, renderProcesses, renderProcessHeapMb, renderProcessMaxPages);
+            PagePyramid.MODE = pagePyramid;
+            RetentionService.SOURCE_TTL_DAYS = retentionSourceDays;
+            RetentionService.PAGE_IMAGE_TTL_DAYS = retentionPageImageDays;
+            RetentionService.JSON_RESULT_TTL_DAYS = retentionJsonResultDays;
+            RetentionService.DISK_QUOTA_MB = diskQuotaMb;
+            RetentionService.MIN_FREE_DISK_MB = minFreeDiskMb;
+            PdfService.updateSettings(settingsUpdate);
             return ResponseEntity.ok(Map.of("success", true));
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
@@ -167,14 +401,115 @@ public class FileProcessingController {
     @GetMapping("/cmd/get-config")
     @ResponseBody
     public Map<String, Object> getConfig() {
-        logger.info("[CONFIG] getConfig: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.PDF_TO_IMAGE_DPI, PdfService.MAX_CONVERT_THREADS);
+        logger.info("[CONFIG] getConfig: MAX_UPLOAD_SIZE_MB={}, PDF_TO_IMAGE_DPI={}, MAX_CONVERT_THREADS={}", PdfService.MAX_UPLOAD_SIZE_MB, PdfService.getSettings().getDpi(), PdfService.MAX_CONVERT_THREADS);
+        ConversionSettings settings = PdfService.getSettings();
         Map<String, Object> map = new HashMap<>();
         map.put("maxUploadSizeMB", com.recapmap.core.service.PdfService.MAX_UPLOAD_SIZE_MB);
-        map.put("pdfToImageDpi", com.recapmap.core.service.PdfService.PDF_TO_IMAGE_DPI);
+        map.put("pdfToImageDpi", settings.getDpi());
         map.put("maxConvertThreads", com.recapmap.core.service.PdfService.MAX_CONVERT_THREADS);
+        map.put("convertThreadsMode", PdfService.CONVERT_THREADS_MODE);
+        map.put("normalizeThreads", PdfService.NORMALIZE_THREADS);
+        map.put("sharpenThreads", PdfService.SHARPEN_THREADS);
+        map.put("encodeThreads", PdfService.ENCODE_THREADS);
+        map.put("writeThreads", PdfService.WRITE_THREADS);
+        map.put("imageFormat", settings.getImageFormat());
+        map.put("jpegQuality", settings.getJpegQuality());
+        map.put("pngCompressionLevel", settings.getPngCompressionLevel());
+        map.put("availableImageFormats", PageImageEncoders.availableFormats());
+        map.put("sharpenMode", settings.getSharpenMode());
+        map.put("normalizeMode", settings.getNormalizeMode());
+        map.put("renderProfileMode", settings.getRenderProfileMode());
+        map.put("textProfileDpi", settings.getTextProfileDpi());
+        map.put("figureProfileDpi", settings.getFigureProfileDpi());
+        map.put("renderMemoryBudgetMb", PdfService.RENDER_MEMORY_BUDGET_MB);
+        map.put("rasterPoolMb", PdfService.RASTER_POOL_MB);
+        map.put("tiledPageMinSidePt", settings.getTiledPageMinSidePt());
+        map.put("tileSizePx", settings.getTileSizePx());
+        map.put("tileOverlapPx", settings.getTileOverlapPx());
+        map.put("largeDocumentThresholdMb", PdfService.LARGE_DOCUMENT_THRESHOLD_MB);
+        map.put("largeDocumentMaxHandles", PdfService.LARGE_DOCUMENT_MAX_HANDLES);
+        map.put("visionImageSizing", VisionImageSizer.MODE);
+        map.put("visionMinDpi", VisionImageSizer.MIN_DPI);
+        map.put("renderWorkers", PdfService.RENDER_WORKERS);
+        map.put("renderProcesses", PdfService.RENDER_PROCESSES);
+        map.put("renderProcessHeapMb", PdfService.RENDER_PROCESS_HEAP_MB);
+        map.put("renderProcessMaxPages", PdfService.RENDER_PROCESS_MAX_PAGES);
+        map.put("pagePyramid", PagePyramid.MODE);
+        map.put("retentionSourceDays", RetentionService.SOURCE_TTL_DAYS);
+        map.put("retentionPageImageDays", RetentionService.PAGE_IMAGE_TTL_DAYS);
+        map.put("retentionJsonResultDays", RetentionService.JSON_RESULT_TTL_DAYS);
+        map.put("diskQuotaMb", RetentionService.DISK_QUOTA_MB);
+        map.put("minFreeDiskMb", RetentionService.MIN_FREE_DISK_MB);
+        map.put("maxHeapMb", Runtime.getRuntime().maxMemory() / (1024 * 1024));
         return map;
     }
 
+    // Page image encoder stats: encode time and output size per format
+    @GetMapping("/cmd/encoder-stats")
+    @ResponseBody
+    public ResponseEntity<?> getEncoderStats(Authentication auth) {
+        if (auth == null || auth.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_ADMIN"))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden: Admins only"));
+        }
+        return ResponseEntity.ok(pdfService.getEncoderStats());
+    }
+
+    // Conversion pipeline stats: per-stage workers, queue depth and throughput
+    @GetMapping("/cmd/pipeline-stats")
+    @ResponseBody
+    public ResponseEntity<?> getPipelineStats(Authentication auth) {
+        if (auth == null || auth.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_ADMIN"))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden: Admins only"));
+        }
+        return ResponseEntity.ok(pdfService.getPipelineStats());
+    }
+
+    // ROOT_FOLDER retention: disk usage by artifact, reclaimed bytes by reason, walks
+    @GetMapping("/cmd/retention-stats")
+    @ResponseBody
+    public ResponseEntity<?> getRetentionStats(Authentication auth) {
+        if (auth == null || auth.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_ADMIN"))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden: Admins only"));
+        }
+        return ResponseEntity.ok(retentionService.getStats());
+    }
+
+    // Admin: walk ROOT_FOLDER for retention now instead of at the next interval; returns right away
+    @PostMapping("/cmd/retention-sweep")
+    @ResponseBody
+    public ResponseEntity<?> sweepRetention(Authentication auth) {
+        if (auth == null || auth.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_ADMIN"))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden: Admins only"));
+        }
+        retentionService.sweepNow();
+        return ResponseEntity.accepted().body(Map.of("success", true));
+    }
+
+    // Admin: relative render page rate of a tenant from pipeline-stats while conversions compete (1 = equal share)
+    @PostMapping("/cmd/session-weight")
+    @ResponseBody
+    public ResponseEntity<?> setSessionWeight(@RequestBody Map<String, Object> body, Authentication auth) {
+        if (auth == null || auth.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_ADMIN"))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden: Admins only"));
+        }
+        try {
+            Object tenant = body.get("tenant");
+            if (tenant == null) throw new IllegalArgumentException("tenant is required");
+            int weight = parseOptionalInt(body, "weight", 1);
+            if (weight < 1 || weight > 100) throw new IllegalArgumentException("Weight out of range");
+            PdfService.setTenantWeight(tenant.toString(), weight);
+            return ResponseEntity.ok(Map.of("success", true));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    // Helper: read an optional integer field from a request body, falling back to a default
+    private static int parseOptionalInt(Map<String, Object> body, String key, int defaultValue) {
+        Object value = body.get(key);
+        return value != null ? Integer.parseInt(value.toString()) : defaultValue;
+    }
+
     // Get and set extraction config
     private ExtractionConfig extractionConfig = new ExtractionConfig(12000, 6000, List.of("raw", "semantic", "qa", "keywords"), true);
 
@@ -204,21 +539,14 @@ public class FileProcessingController {
         if (original == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
         }
-        // Find stored filename by UUID
-        File sessionDir = pdfService.getSessionDir(sessionId);
-        File[] files = sessionDir.listFiles((dir, name) -> name.startsWith(uuid + "."));
-        if (files == null || files.length == 0) {
+        // Find stored file by UUID (content store or legacy session folder)
+        if (pdfService.findStoredPdf(sessionId, uuid) == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Stored file not found");
         }
-        String storedFilename = files[0].getName();
-        // Output folder named after the stored UUID (normalized file name, without extension)
-        String baseName = storedFilename;
-        int dotIdx = baseName.lastIndexOf('.');
-        if (dotIdx > 0) baseName = baseName.substring(0, dotIdx);
-        File outputDir = new File(sessionDir, baseName);
+        File outputDir = pdfService.getDocumentOutputDir(sessionId, uuid);
         if (!outputDir.exists()) outputDir.mkdirs();
-        // List all PNG images in outputDir (sorted by page)
-        File[] imageFiles = outputDir.listFiles((dir, name) -> name.endsWith(".png"));
+        // List all page images in outputDir (sorted by page)
+        File[] imageFiles = outputDir.listFiles((dir, name) -> PageImageEncoders.isPageImageFile(name));
         if (imageFiles == null || imageFiles.length == 0) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No images found for extraction");
         }
@@ -254,7 +582,20 @@ public class FileProcessingController {
         }
     }
 
-    // Trigger simple per-page extraction for a converted PDF (by UUID)
+    @GetMapping("/simple-extraction-mode")
+    public String getSimpleExtractionMode() {
+        return appConfig.getSimpleExtractionMode();
+    }
+
+    @PostMapping("/simple-extraction-mode")
+    public void setSimpleExtractionMode(@RequestBody Map<String, Object> body) {
+        if (body.containsKey("mode")) {
+            appConfig.setSimpleExtractionMode(body.get("mode").toString());
+        }
+    }
+
+    // Trigger simple per-page extraction for a converted PDF (by UUID).
+    // With "fromPage"/"toPage" (1-based) only that range is extracted, rendering its pages on demand.
     @PostMapping("/extract-simple")
     public ResponseEntity<?> extractSimplePerPage(@RequestBody Map<String, Object> body, HttpSession session) {
         String uuid = (String) body.get("uuid");
@@ -264,29 +605,46 @@ public class FileProcessingController {
         if (original == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
         }
-        // Find stored filename by UUID
-        File sessionDir = pdfService.getSessionDir(sessionId);
-        File[] files = sessionDir.listFiles((dir, name) -> name.startsWith(uuid + "."));
-        if (files == null || files.length == 0) {
+        // Find stored file by UUID (content store or legacy session folder)
+        if (pdfService.findStoredPdf(sessionId, uuid) == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Stored file not found");
         }
-        String storedFilename = files[0].getName();
-        // Output folder named after the stored UUID (normalized file name, without extension)
-        String baseName = storedFilename;
-        int dotIdx = baseName.lastIndexOf('.');
-        if (dotIdx > 0) baseName = baseName.substring(0, dotIdx);
-        File outputDir = new File(sessionDir, baseName);
+        File outputDir = pdfService.getDocumentOutputDir(sessionId, uuid);
         if (!outputDir.exists()) outputDir.mkdirs();
-        // List all PNG images in outputDir (sorted by page)
-        File[] imageFiles = outputDir.listFiles((dir, name) -> name.endsWith(".png"));
-        if (imageFiles == null || imageFiles.length == 0) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No images found for extraction");
+        List<File> sortedImages;
+        if (body.containsKey("fromPage") || body.containsKey("toPage")) {
+            int fromPage = parseOptionalInt(body, "fromPage", 1);
+            int toPage = parseOptionalInt(body, "toPage", fromPage);
+            try {
+                sortedImages = pdfService.getPageImages(sessionId, uuid, fromPage, toPage);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+            } catch (Exception e) {
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Render error: " + e.getMessage());
+            }
+        } else {
+            // List all page images in outputDir (sorted by page)
+            File[] imageFiles = outputDir.listFiles((dir, name) -> PageImageEncoders.isPageImageFile(name));
+            if (imageFiles == null || imageFiles.length == 0) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No images found for extraction");
+            }
+            sortedImages = Arrays.asList(imageFiles);
+            sortedImages.sort(Comparator.comparing(File::getName));
         }
-        List<File> sortedImages = Arrays.asList(imageFiles);
-        sortedImages.sort(Comparator.comparing(File::getName));
         try {
-            extractionPipelineService.runSimplePerPageExtraction(outputDir.getAbsolutePath(), sortedImages, appConfig.getSimpleExtractionThreads());
-            return ResponseEntity.ok("Simple per-page extraction started for " + original);
+            // Pages already extracted for this content (e.g. by another session) are kept unless "force" is set
+            boolean reuseExisting = !Boolean.TRUE.equals(body.get("force"));
+            // In text-first mode born-digital pages are taken from the PDF text layer instead of the vision model;
+            // hybrid mode also sends only the figure regions of mixed pages
+            String mode = appConfig.getSimpleExtractionMode();
+            File textLayerSource = "vision".equals(mode) ? null : pdfService.findStoredPdf(sessionId, uuid);
+            // Blank and repeated pages are skipped; the stats say how many vision calls that saved
+            Map<String, Object> stats = extractionPipelineService.runSimplePerPageExtraction(outputDir.getAbsolutePath(), sortedImages,
+                    appConfig.getSimpleExtractionThreads(), reuseExisting, textLayerSource, "hybrid".equals(mode));
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("message", "Simple per-page extraction started for " + original);
+            response.putAll(stats);
+            return ResponseEntity.ok(response);
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Extraction error: " + e.getMessage());
         }
@@ -302,18 +660,11 @@ public class FileProcessingController {
         if (original == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
         }
-        // Find stored filename by UUID
-        File sessionDir = pdfService.getSessionDir(sessionId);
-        File[] files = sessionDir.listFiles((dir, name) -> name.startsWith(uuid + "."));
-        if (files == null || files.length == 0) {
+        // Find stored file by UUID (content store or legacy session folder)
+        if (pdfService.findStoredPdf(sessionId, uuid) == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Stored file not found");
         }
-        String storedFilename = files[0].getName();
-        // Output folder named after the stored UUID (normalized file name, without extension)
-        String baseName = storedFilename;
-        int dotIdx = baseName.lastIndexOf('.');
-        if (dotIdx > 0) baseName = baseName.substring(0, dotIdx);
-        File outputDir = new File(sessionDir, baseName);
+        File outputDir = pdfService.getDocumentOutputDir(sessionId, uuid);
         if (!outputDir.exists()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No extraction output found");
         }
@@ -325,29 +676,4 @@ public class FileProcessingController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Save error: " + e.getMessage());
         }
     }
-
-    // Helper: recursively delete files/folders, return count
-    private int deleteRecursive(File file) {
-        int count = 0;
-        try {
-            File root = new File(PdfService.ROOT_FOLDER).getCanonicalFile();
-            File current = file.getCanonicalFile();
-            if (current.isDirectory()) {
-                for (File child : current.listFiles()) {
-                    count += deleteRecursive(child);
-                }
-                // Do not delete the root folder itself
-                if (!current.equals(root)) {
-                    if (current.delete()) count++;
-                }
-            } else {
-                if (current.exists()) {
-                    if (current.delete()) count++;
-                }
-            }
-        } catch (IOException e) {
-            // Optionally log error
-        }
-        return count;
-    }
 }
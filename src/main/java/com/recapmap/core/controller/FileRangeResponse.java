@@ -0,0 +1,141 @@
+package com.recapmap.core.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends a file the way a static file server would: ETag and Last-Modified for revalidation
+ * (304 Not Modified), a single byte range (206, If-Range honoured, 416 when out of the file) and
+ * Cache-Control. The body goes through the container's sendfile when it offers one (Tomcat NIO
+ * copies the file to the socket with FileChannel.transferTo once the request thread has returned);
+ * otherwise FileChannel.transferTo writes it to the response stream from the request thread.
+ * A multi-range request gets the whole file.
+ */
+final class FileRangeResponse {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final long SENDFILE_MIN_BYTES = 48 * 1024; // Smaller bodies are cheaper to write directly, as in Tomcat's DefaultServlet
+
+    private FileRangeResponse() {
+    }
+
+    static void send(File file, String contentType, String cacheControl, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (notModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        long start = 0;
+        long end = length; // Exclusive
+        String range = request.getHeader("Range");
+        if (range != null && rangeApplies(request, etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+            }
+        }
+        response.setContentType(contentType);
+        response.setContentLengthLong(end - start);
+        if ("HEAD".equals(request.getMethod()) || end == start) return;
+        if (end - start >= SENDFILE_MIN_BYTES && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, out);
+                if (sent <= 0) break;
+                position += sent;
+            }
+        }
+    }
+
+    // If-None-Match wins over If-Modified-Since
+    private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            return false;
+        }
+        long ifModifiedSince = dateHeader(request, "If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    // A Range with If-Range only applies while the file is still the one the client has part of
+    private static boolean rangeApplies(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) return true;
+        if (ifRange.trim().startsWith("\"")) return ifRange.trim().equals(etag);
+        long date = dateHeader(request, "If-Range");
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * {start, end (exclusive)} of a single "bytes=" range, an empty array to send the whole file
+     * (several ranges, or a header this doesn't understand), or null if the range is outside the file.
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.contains(",")) return new long[0];
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return new long[0];
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Suffix range: the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) return null;
+                return new long[] {Math.max(0, length - suffix), length};
+            }
+            long start = Long.parseLong(first);
+            long lastByte = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            // A last byte before the first makes the header invalid, and an invalid Range is ignored
+            if (lastByte < start) return start >= length ? null : new long[0];
+            if (start >= length) return null;
+            return new long[] {start, Math.min(length, lastByte + 1)};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+}
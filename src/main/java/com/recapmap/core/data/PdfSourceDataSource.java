@@ -1,17 +1,20 @@
 package com.recapmap.core.data;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Tracks uploaded PDF files and their output images for a session/tenant.
  * Also stores original filename mapping.
+ * Thread-safe: several conversions of one session may record their output concurrently.
  */
 public class PdfSourceDataSource {
     // Map: UUID filename -> original filename
-    private final Map<String, String> originalFilenameMap = new HashMap<>();
+    private final Map<String, String> originalFilenameMap = new ConcurrentHashMap<>();
     // Map: UUID filename -> output image filenames (per page)
-    private final Map<String, String[]> outputImagesMap = new HashMap<>();
+    private final Map<String, String[]> outputImagesMap = new ConcurrentHashMap<>();
+    // Map: UUID filename -> SHA-256 of the content in the document store (absent for legacy uploads)
+    private final Map<String, String> contentHashMap = new ConcurrentHashMap<>();
 
     public void addOriginalFilename(String uuid, String originalName) {
         originalFilenameMap.put(uuid, originalName);
@@ -29,6 +32,14 @@ public class PdfSourceDataSource {
         return outputImagesMap.get(uuid);
     }
 
+    public void setContentHash(String uuid, String contentHash) {
+        contentHashMap.put(uuid, contentHash);
+    }
+
+    public String getContentHash(String uuid) {
+        return contentHashMap.get(uuid);
+    }
+
     public Map<String, String> getOriginalFilenameMap() {
         return originalFilenameMap;
     }
@@ -40,6 +51,7 @@ public class PdfSourceDataSource {
     public void clear() {
         originalFilenameMap.clear();
         outputImagesMap.clear();
+        contentHashMap.clear();
     }
 
     // Remove all original filenames for this session
@@ -0,0 +1,219 @@
+package com.recapmap.core.service;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Resumable uploads sent in chunks, for files too big to send in one request.
+ * Every chunk is written to a temp file through a FileChannel and fed to the upload's SHA-256 digest
+ * on the way, so the content hash is known the moment the last byte lands and the file is never read
+ * again. A dropped connection only loses the part of a chunk that didn't arrive: the client asks for
+ * the received offset and continues from there. A completed upload is moved into the DocumentStoreService,
+ * registered with the session like a single-request upload and, if asked for, queued for conversion.
+ * Uploads in progress live in memory and don't survive a restart.
+ */
+@Service
+public class ChunkedUploadService {
+    public static int CHUNK_SIZE_MB = 8; // Chunk size suggested to clients; any size is accepted
+    private static final long IDLE_EXPIRY_MILLIS = 6 * 60 * 60 * 1000L; // Unfinished uploads are dropped after this
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final DocumentStoreService documentStore;
+    private final PdfService pdfService;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    /** Thrown when a chunk doesn't continue at the received offset; the client should resume from there. */
+    public static class OffsetMismatchException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+        private final long received;
+
+        public OffsetMismatchException(long offset, long received) {
+            this("Chunk starts at " + offset + " but " + received + " bytes were received", received);
+        }
+
+        public OffsetMismatchException(String message, long received) {
+            super(message);
+            this.received = received;
+        }
+
+        public long getReceived() { return received; }
+    }
+
+    public static class Upload {
+        private final String id = UUID.randomUUID().toString();
+        private final String uuid = UUID.randomUUID().toString(); // The document's uuid once complete
+        private final String sessionId;
+        private final String filename;
+        private final long size;
+        private final boolean convert;
+        private final File partFile;
+        private final MessageDigest digest = DocumentStoreService.newDigest();
+        private FileChannel channel;
+        private volatile long received = 0;
+        private volatile boolean overflow; // The last chunk went on past the size; the extra bytes were dropped
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile DocumentStoreService.StoredDocument stored;
+
+        Upload(String sessionId, String filename, long size, boolean convert, File partFile) throws IOException {
+            this.sessionId = sessionId;
+            this.filename = filename;
+            this.size = size;
+            this.convert = convert;
+            this.partFile = partFile;
+            this.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+        }
+
+        public String getId() { return id; }
+        public long getReceived() { return received; }
+        public boolean isComplete() { return stored != null; }
+
+        public Map<String, Object> getStatus() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("uploadId", id);
+            status.put("uuid", uuid);
+            status.put("original", filename);
+            status.put("size", size);
+            status.put("received", received);
+            status.put("chunkSize", CHUNK_SIZE_MB * 1024L * 1024L);
+            status.put("complete", stored != null);
+            if (stored != null) {
+                status.put("stored", stored.getSourceFile().getName());
+                status.put("contentHash", stored.getContentHash());
+                status.put("reused", stored.isAlreadyStored());
+                status.put("conversionQueued", convert);
+                if (overflow) status.put("overflow", true);
+            }
+            return status;
+        }
+
+        private void closeChannel() {
+            if (channel == null) return;
+            try { channel.close(); } catch (IOException ignored) {}
+            channel = null;
+        }
+    }
+
+    public ChunkedUploadService(DocumentStoreService documentStore, PdfService pdfService) {
+        this.documentStore = documentStore;
+        this.pdfService = pdfService;
+    }
+
+    /**
+     * Start an upload of size bytes.
+     * @param convert Queue the document's conversion as soon as the last chunk is stored
+     */
+    public Upload start(String sessionId, String filename, long size, boolean convert) throws IOException {
+        if (size <= 0) throw new IllegalArgumentException("Upload size must be positive");
+        if (size > PdfService.MAX_UPLOAD_SIZE_MB * 1024L * 1024L) throw new IllegalArgumentException("File too large: " + filename);
+        expireIdleUploads();
+        Upload upload = new Upload(sessionId, filename, size, convert, documentStore.newTempFile());
+        uploads.put(upload.id, upload);
+        return upload;
+    }
+
+    // The session's upload, or null if it is unknown, expired or another session's
+    public Upload get(String sessionId, String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        return upload != null && upload.sessionId.equals(sessionId) ? upload : null;
+    }
+
+    /**
+     * Append a chunk starting at offset. Bytes before the received offset (a chunk resent after its
+     * response was lost) are skipped; a chunk starting after it, or ending before it, is refused with
+     * OffsetMismatchException. A chunk of known length that would go past the upload size is refused
+     * before anything is written. If the stream breaks off, everything that arrived is kept and the
+     * upload can be resumed. The chunk that brings the upload to its full size completes it; should a
+     * chunk of unknown length go on past the size, the extra bytes are dropped and the status says so.
+     * @param length Bytes in the chunk (the request's Content-Length), or -1 if unknown
+     */
+    public Upload append(Upload upload, long offset, long length, InputStream in) throws IOException {
+        synchronized (upload) {
+            if (upload.isComplete()) return upload;
+            if (upload.channel == null) throw new IllegalStateException("Upload " + upload.id + " was cancelled");
+            if (offset > upload.received) throw new OffsetMismatchException(offset, upload.received);
+            if (length >= 0 && offset + length > upload.size) {
+                throw new IllegalArgumentException("Chunk of " + length + " bytes at " + offset + " goes past the upload size of " + upload.size + " bytes");
+            }
+            long resent = upload.received - offset;
+            if (length >= 0 && length < resent) throw shortResend(offset, length, upload.received);
+            upload.lastActivity = System.currentTimeMillis();
+            try {
+                in.skipNBytes(resent);
+            } catch (EOFException e) {
+                throw shortResend(offset, -1, upload.received);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = upload.received;
+            try {
+                while (position < upload.size) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, upload.size - position));
+                    if (n < 0) break;
+                    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+                    while (bytes.hasRemaining()) upload.channel.write(bytes, position + bytes.position());
+                    // Hash only what reached the file, so digest and received offset always agree
+                    upload.digest.update(buffer, 0, n);
+                    position += n;
+                    upload.received = position;
+                }
+            } finally {
+                upload.lastActivity = System.currentTimeMillis();
+            }
+            if (position == upload.size) {
+                upload.overflow = in.read() >= 0;
+                complete(upload);
+            }
+            return upload;
+        }
+    }
+
+    private static OffsetMismatchException shortResend(long offset, long length, long received) {
+        return new OffsetMismatchException("Chunk at " + offset + (length >= 0 ? " of " + length + " bytes" : "")
+                + " ends before the " + received + " bytes already received", received);
+    }
+
+    private void complete(Upload upload) throws IOException {
+        upload.closeChannel();
+        String contentHash = HexFormat.of().formatHex(upload.digest.digest());
+        upload.stored = documentStore.adopt(upload.partFile, contentHash, StringUtils.getFilenameExtension(upload.filename));
+        pdfService.getDataSourceForSession(upload.sessionId).addOriginalFilename(upload.uuid, upload.filename);
+        pdfService.getDataSourceForSession(upload.sessionId).setContentHash(upload.uuid, contentHash);
+        if (upload.convert) pdfService.queueConversion(upload.sessionId, upload.uuid);
+    }
+
+    public void cancel(Upload upload) {
+        synchronized (upload) {
+            uploads.remove(upload.id);
+            upload.closeChannel();
+            if (!upload.isComplete()) upload.partFile.delete();
+        }
+    }
+
+    // Completed uploads are kept a while too, so a client whose last response got lost can still ask for the result
+    private void expireIdleUploads() {
+        long now = System.currentTimeMillis();
+        for (Upload upload : uploads.values()) {
+            if (now - upload.lastActivity > IDLE_EXPIRY_MILLIS) cancel(upload);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Upload upload : uploads.values()) cancel(upload);
+    }
+}
@@ -0,0 +1,171 @@
+package com.recapmap.core.service;
+
+import java.util.Properties;
+
+/**
+ * Everything that shapes the page images of a conversion, as one immutable snapshot.
+ * An admin update builds a new snapshot and swaps it in whole (PdfService.updateSettings), so no
+ * worker ever sees half of an update. A conversion takes the current snapshot when it starts and
+ * renders all its pages with it, so a change made while it runs never leaves a document with pages
+ * rendered two ways; the next conversion picks the change up.
+ */
+public final class ConversionSettings {
+
+    private final int dpi;
+    private final String renderProfileMode;
+    private final int textProfileDpi;
+    private final int figureProfileDpi;
+    private final String sharpenMode;
+    private final double sharpenMinGain;
+    private final String normalizeMode;
+    private final int tiledPageMinSidePt;
+    private final int tileSizePx;
+    private final int tileOverlapPx;
+    private final String imageFormat;
+    private final float jpegQuality;
+    private final int pngCompressionLevel;
+    private final PageImageEncoder encoder;
+
+    private ConversionSettings(Builder b) {
+        this.dpi = b.dpi;
+        this.renderProfileMode = b.renderProfileMode;
+        this.textProfileDpi = b.textProfileDpi;
+        this.figureProfileDpi = b.figureProfileDpi;
+        this.sharpenMode = b.sharpenMode;
+        this.sharpenMinGain = b.sharpenMinGain;
+        this.normalizeMode = b.normalizeMode;
+        this.tiledPageMinSidePt = b.tiledPageMinSidePt;
+        this.tileSizePx = b.tileSizePx;
+        this.tileOverlapPx = b.tileOverlapPx;
+        this.imageFormat = b.imageFormat;
+        this.jpegQuality = b.jpegQuality;
+        this.pngCompressionLevel = b.pngCompressionLevel;
+        this.encoder = PageImageEncoders.create(imageFormat, jpegQuality, pngCompressionLevel);
+    }
+
+    public static ConversionSettings defaults() {
+        return new Builder().build();
+    }
+
+    /** A builder starting from these settings, for an update that changes some of them. */
+    public Builder toBuilder() {
+        return new Builder()
+                .dpi(dpi)
+                .renderProfileMode(renderProfileMode)
+                .textProfileDpi(textProfileDpi)
+                .figureProfileDpi(figureProfileDpi)
+                .sharpenMode(sharpenMode)
+                .sharpenMinGain(sharpenMinGain)
+                .normalizeMode(normalizeMode)
+                .tiledPageMinSidePt(tiledPageMinSidePt)
+                .tileSizePx(tileSizePx)
+                .tileOverlapPx(tileOverlapPx)
+                .imageEncoder(imageFormat, jpegQuality, pngCompressionLevel);
+    }
+
+    public int getDpi() { return dpi; }
+    public String getRenderProfileMode() { return renderProfileMode; }
+    public boolean isAutoRenderProfile() { return "auto".equals(renderProfileMode); }
+    public int getTextProfileDpi() { return textProfileDpi; }
+    public int getFigureProfileDpi() { return figureProfileDpi; }
+    public String getSharpenMode() { return sharpenMode; }
+    public double getSharpenMinGain() { return sharpenMinGain; }
+    public String getNormalizeMode() { return normalizeMode; }
+    public int getTiledPageMinSidePt() { return tiledPageMinSidePt; }
+    public int getTileSizePx() { return tileSizePx; }
+    public int getTileOverlapPx() { return tileOverlapPx; }
+    public String getImageFormat() { return imageFormat; }
+    public float getJpegQuality() { return jpegQuality; }
+    public int getPngCompressionLevel() { return pngCompressionLevel; }
+    public PageImageEncoder getEncoder() { return encoder; }
+
+    /** Lowest DPI a page is rendered at, e.g. when the page an image shows is unknown. */
+    public int getMinDpi() {
+        return isAutoRenderProfile() ? Math.min(textProfileDpi, figureProfileDpi) : dpi;
+    }
+
+    // Everything that changes the rendered page images; pages rendered with an equal signature can be reused
+    public String getSignature() {
+        return dpi + "|" + renderProfileMode + "|" + textProfileDpi + "|" + figureProfileDpi + "|"
+                + sharpenMode + "|" + encoder.getFormat() + "|" + jpegQuality + "|" + pngCompressionLevel + "|"
+                + tiledPageMinSidePt + "|" + tileSizePx + "|" + tileOverlapPx + "|" + normalizeMode;
+    }
+
+    /** The settings as plain properties, e.g. to hand them to a render process (see RenderWorkerProcess). */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("dpi", String.valueOf(dpi));
+        properties.setProperty("renderProfileMode", renderProfileMode);
+        properties.setProperty("textProfileDpi", String.valueOf(textProfileDpi));
+        properties.setProperty("figureProfileDpi", String.valueOf(figureProfileDpi));
+        properties.setProperty("sharpenMode", sharpenMode);
+        properties.setProperty("sharpenMinGain", String.valueOf(sharpenMinGain));
+        properties.setProperty("normalizeMode", normalizeMode);
+        properties.setProperty("tiledPageMinSidePt", String.valueOf(tiledPageMinSidePt));
+        properties.setProperty("tileSizePx", String.valueOf(tileSizePx));
+        properties.setProperty("tileOverlapPx", String.valueOf(tileOverlapPx));
+        properties.setProperty("imageFormat", imageFormat);
+        properties.setProperty("jpegQuality", String.valueOf(jpegQuality));
+        properties.setProperty("pngCompressionLevel", String.valueOf(pngCompressionLevel));
+        return properties;
+    }
+
+    /** Settings from toProperties(); missing entries keep their defaults. */
+    public static ConversionSettings fromProperties(Properties properties) {
+        Builder defaults = new Builder();
+        return new Builder()
+                .dpi(Integer.parseInt(properties.getProperty("dpi", String.valueOf(defaults.dpi))))
+                .renderProfileMode(properties.getProperty("renderProfileMode", defaults.renderProfileMode))
+                .textProfileDpi(Integer.parseInt(properties.getProperty("textProfileDpi", String.valueOf(defaults.textProfileDpi))))
+                .figureProfileDpi(Integer.parseInt(properties.getProperty("figureProfileDpi", String.valueOf(defaults.figureProfileDpi))))
+                .sharpenMode(properties.getProperty("sharpenMode", defaults.sharpenMode))
+                .sharpenMinGain(Double.parseDouble(properties.getProperty("sharpenMinGain", String.valueOf(defaults.sharpenMinGain))))
+                .normalizeMode(properties.getProperty("normalizeMode", defaults.normalizeMode))
+                .tiledPageMinSidePt(Integer.parseInt(properties.getProperty("tiledPageMinSidePt", String.valueOf(defaults.tiledPageMinSidePt))))
+                .tileSizePx(Integer.parseInt(properties.getProperty("tileSizePx", String.valueOf(defaults.tileSizePx))))
+                .tileOverlapPx(Integer.parseInt(properties.getProperty("tileOverlapPx", String.valueOf(defaults.tileOverlapPx))))
+                .imageEncoder(properties.getProperty("imageFormat", defaults.imageFormat),
+                        Float.parseFloat(properties.getProperty("jpegQuality", String.valueOf(defaults.jpegQuality))),
+                        Integer.parseInt(properties.getProperty("pngCompressionLevel", String.valueOf(defaults.pngCompressionLevel))))
+                .build();
+    }
+
+    public static class Builder {
+        private int dpi = 150; // Possible values: 72, 150, 200, 300, etc.
+        private String renderProfileMode = "fixed"; // "fixed" (dpi, RGB) or "auto" (per-page profile)
+        private int textProfileDpi = 110; // Auto mode: plain text pages, rendered as gray
+        private int figureProfileDpi = 200; // Auto mode: pages with images, shadings or dense vector graphics
+        private String sharpenMode = "auto"; // "auto" (skip pages it barely changes), "always" or "off"
+        private double sharpenMinGain = 0.1; // Mean per-pixel change (0-255 levels) below which auto skips
+        private String normalizeMode = "auto"; // "auto" (trim margins, deskew scans), "crop" (trim margins only) or "off"
+        private int tiledPageMinSidePt = 1224; // Pages with a longer side (17 in, above A3) are rendered as tiles (0 = never)
+        private int tileSizePx = 768; // Tile side at the page's render DPI; the vision model scales larger tiles down to 768
+        private int tileOverlapPx = 96; // Overlap of neighbouring tiles, a few text lines at 150 DPI
+        private String imageFormat = "png"; // See PageImageEncoders.availableFormats()
+        private float jpegQuality = 0.85f; // Also used as WebP quality
+        private int pngCompressionLevel = 4; // 0 (fastest) - 9 (smallest), JDK default is 4
+
+        public Builder dpi(int dpi) { this.dpi = dpi; return this; }
+        public Builder renderProfileMode(String renderProfileMode) { this.renderProfileMode = renderProfileMode; return this; }
+        public Builder textProfileDpi(int textProfileDpi) { this.textProfileDpi = textProfileDpi; return this; }
+        public Builder figureProfileDpi(int figureProfileDpi) { this.figureProfileDpi = figureProfileDpi; return this; }
+        public Builder sharpenMode(String sharpenMode) { this.sharpenMode = sharpenMode; return this; }
+        public Builder sharpenMinGain(double sharpenMinGain) { this.sharpenMinGain = sharpenMinGain; return this; }
+        public Builder normalizeMode(String normalizeMode) { this.normalizeMode = normalizeMode; return this; }
+        public Builder tiledPageMinSidePt(int tiledPageMinSidePt) { this.tiledPageMinSidePt = tiledPageMinSidePt; return this; }
+        public Builder tileSizePx(int tileSizePx) { this.tileSizePx = tileSizePx; return this; }
+        public Builder tileOverlapPx(int tileOverlapPx) { this.tileOverlapPx = tileOverlapPx; return this; }
+
+        public Builder imageEncoder(String imageFormat, float jpegQuality, int pngCompressionLevel) {
+            this.imageFormat = imageFormat;
+            this.jpegQuality = jpegQuality;
+            this.pngCompressionLevel = pngCompressionLevel;
+            return this;
+        }
+
+        /** The snapshot; an image format without an encoder fails here, before anything is swapped. */
+        public ConversionSettings build() {
+            return new ConversionSettings(this);
+        }
+    }
+}
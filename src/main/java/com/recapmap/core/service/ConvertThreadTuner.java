@@ -0,0 +1,193 @@
+package com.recapmap.core.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes a pipeline stage (the render stage) from what the machine is doing, for the "auto" thread mode.
+ * Every TICK_MILLIS the stage's counters are compared with the previous tick and one step is taken:
+ * - live heap (as left by the last GC) above HEAP_HIGH, or pages waiting for the render memory
+ *   budget: fewer workers, more of them would only hold more bitmaps;
+ * - render workers blocked on full downstream queues, or the CPU saturated with more workers than
+ *   cores: one worker less, the stage is not what limits throughput;
+ * - pages waiting in the queue longer than QUEUE_WAIT_LOW_MILLIS with CPU to spare: more workers.
+ * Steps go through PageConversionPipeline.setWorkerCount, so a shrink lets workers finish their page
+ * and no queued page is dropped. The count stays between 1 and the configured maximum.
+ */
+public class ConvertThreadTuner {
+
+    private static final long TICK_MILLIS = 2000;
+    private static final double HEAP_HIGH = 0.85; // Live heap share above which workers are cut by a quarter
+    private static final double CPU_TARGET = 0.85; // System CPU load below which the stage may grow
+    private static final double CPU_HIGH = 0.97;
+    private static final double HANDOFF_BOUND = 0.25; // Share of busy time spent waiting for the next stage's queue
+    private static final double QUEUE_WAIT_LOW_MILLIS = 50; // Pages picked up faster than this need no more workers
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private final PageConversionPipeline pipeline;
+    private final String stageName;
+    private final RenderMemoryBudget memoryBudget;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private volatile int maxWorkers = 1;
+    private Thread thread;
+    private PageConversionPipeline.StageSample last;
+    private long lastBudgetWaits;
+
+    // What the last tick saw and did, for the stats
+    private volatile double cpuLoad = -1;
+    private volatile double heapUsed = 0;
+    private volatile double queueWaitMillis = 0;
+    private volatile String lastDecision = "none";
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+
+    public ConvertThreadTuner(PageConversionPipeline pipeline, String stageName, RenderMemoryBudget memoryBudget) {
+        this.pipeline = pipeline;
+        this.stageName = stageName;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** Start tuning, with the stage's current worker count as the starting point and maxWorkers as the ceiling. */
+    public synchronized void start(int maxWorkers) {
+        if (thread == null) {
+            last = null;
+            thread = new Thread(this::run, "pdf-" + stageName + "-tuner");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        setMaxWorkers(maxWorkers);
+    }
+
+    public synchronized void stop() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    // A lower ceiling applies right away
+    public void setMaxWorkers(int maxWorkers) {
+        this.maxWorkers = Math.max(1, maxWorkers);
+        if (isRunning() && pipeline.getWorkerCount(stageName) > this.maxWorkers) {
+            pipeline.setWorkerCount(stageName, this.maxWorkers);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                if (thread != Thread.currentThread()) return;
+                tick();
+            }
+        }
+    }
+
+    private void tick() {
+        PageConversionPipeline.StageSample now = pipeline.sample(stageName);
+        long budgetWaits = memoryBudget.getWaitedPages();
+        if (last == null) {
+            last = now;
+            lastBudgetWaits = budgetWaits;
+            return;
+        }
+        long pickedUp = now.getPickedUp() - last.getPickedUp();
+        long busyNanos = now.getBusyNanos() - last.getBusyNanos();
+        queueWaitMillis = pickedUp > 0 ? (now.getQueueWaitNanos() - last.getQueueWaitNanos()) / 1_000_000.0 / pickedUp : 0;
+        double handoffShare = busyNanos > 0 ? (double) (now.getHandoffWaitNanos() - last.getHandoffWaitNanos()) / busyNanos : 0;
+        boolean memoryWaits = budgetWaits > lastBudgetWaits;
+        cpuLoad = systemCpuLoad();
+        heapUsed = liveHeapShare();
+        last = now;
+        lastBudgetWaits = budgetWaits;
+
+        int workers = pipeline.getWorkerCount(stageName);
+        int target = workers;
+        String reason;
+        if (heapUsed > HEAP_HIGH) {
+            target = workers - Math.max(1, workers / 4);
+            reason = "heap " + percent(heapUsed) + " used";
+        } else if (memoryWaits) {
+            target = workers - 1;
+            reason = "pages waiting for render memory";
+        } else if (handoffShare > HANDOFF_BOUND) {
+            target = workers - 1;
+            reason = "next stage full " + percent(handoffShare) + " of the time";
+        } else if (cpuLoad >= CPU_HIGH && workers > CORES) {
+            target = workers - 1;
+            reason = "CPU " + percent(cpuLoad);
+        } else if (now.getQueueDepth() > 0 && queueWaitMillis > QUEUE_WAIT_LOW_MILLIS && cpuLoad < CPU_TARGET) {
+            // Unknown CPU load (negative) doesn't stop growing; latency and memory still bound it
+            target = workers + (cpuLoad >= 0 && cpuLoad < CPU_TARGET / 2 ? 2 : 1);
+            reason = "pages queued " + Math.round(queueWaitMillis) + " ms";
+        } else {
+            reason = "steady";
+        }
+        target = Math.max(1, Math.min(maxWorkers, target));
+        if (target == workers) {
+            lastDecision = "kept " + workers + " (" + reason + ")";
+            return;
+        }
+        pipeline.setWorkerCount(stageName, target);
+        (target > workers ? increases : decreases).incrementAndGet();
+        lastDecision = workers + " -> " + target + " (" + reason + ")";
+        System.out.println("[ConvertThreadTuner] " + stageName + " workers " + lastDecision);
+    }
+
+    // System-wide, so other processes on the machine count too; negative if the JVM can't tell
+    private double systemCpuLoad() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+            if (load >= 0) return load;
+        }
+        double loadAverage = os.getSystemLoadAverage();
+        return loadAverage >= 0 ? Math.min(1.0, loadAverage / CORES) : -1;
+    }
+
+    // Heap still in use after the last collection of each heap pool, i.e. without garbage not collected yet
+    static double liveHeapShare() {
+        long max = Runtime.getRuntime().maxMemory();
+        long used = 0;
+        boolean collected = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) continue;
+            used += usage.getUsed();
+            collected = true;
+        }
+        if (!collected) used = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        return max > 0 ? (double) used / max : 0;
+    }
+
+    private static String percent(double share) {
+        return Math.round(share * 100) + "%";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", isRunning());
+        stats.put("workers", pipeline.getWorkerCount(stageName));
+        stats.put("maxWorkers", maxWorkers);
+        stats.put("cpuLoad", cpuLoad);
+        stats.put("liveHeapShare", heapUsed);
+        stats.put("avgQueueWaitMillis", queueWaitMillis);
+        stats.put("increases", increases.get());
+        stats.put("decreases", decreases.get());
+        stats.put("lastDecision", lastDecision);
+        return stats;
+    }
+}
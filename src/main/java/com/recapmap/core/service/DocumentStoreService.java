@@ -0,0 +1,130 @@
+package com.recapmap.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * Content-addressed store for uploaded documents.
+ * Every upload is hashed (SHA-256) while it streams to disk and kept once under
+ * ROOT_FOLDER/store/&lt;hash&gt;/, whichever session uploaded it. The same folder is the document's
+ * output folder, so rendered pages and json_result files produced for one session are reused by
+ * every other session that uploads identical bytes.
+ */
+@Service
+public class DocumentStoreService {
+    public static final String STORE_FOLDER = "store";
+    static final String TMP_FOLDER = "tmp";
+    private static final String SOURCE_NAME = "source";
+
+    // Per-hash locks so concurrent uploads of the same content don't race on the move
+    private final Map<String, Object> hashLocks = new ConcurrentHashMap<>();
+
+    /** Result of storing an upload. */
+    public static class StoredDocument {
+        private final String contentHash;
+        private final File sourceFile;
+        private final boolean alreadyStored;
+
+        public StoredDocument(String contentHash, File sourceFile, boolean alreadyStored) {
+            this.contentHash = contentHash;
+            this.sourceFile = sourceFile;
+            this.alreadyStored = alreadyStored;
+        }
+
+        public String getContentHash() { return contentHash; }
+        public File getSourceFile() { return sourceFile; }
+        public boolean isAlreadyStored() { return alreadyStored; }
+    }
+
+    public File getStoreRoot() {
+        return new File(PdfService.ROOT_FOLDER, STORE_FOLDER);
+    }
+
+    // Folder holding the source file and all its outputs (page images, json_result)
+    public File getDocumentDir(String contentHash) {
+        return new File(getStoreRoot(), contentHash);
+    }
+
+    // The stored source file (source.<ext>), or null if not stored
+    public File getSourceFile(String contentHash) {
+        File[] files = getDocumentDir(contentHash).listFiles((dir, name) -> name.startsWith(SOURCE_NAME + "."));
+        return files == null || files.length == 0 ? null : files[0];
+    }
+
+    public boolean contains(String contentHash) {
+        return getSourceFile(contentHash) != null;
+    }
+
+    /**
+     * Stream the upload to a temp file while hashing it, then keep it under its hash.
+     * If the content is already stored the temp copy is discarded.
+     * @param in Upload stream (not closed here)
+     * @param ext File extension without dot, may be null
+     */
+    public StoredDocument store(InputStream in, String ext) throws IOException {
+        File tmp = newTempFile();
+        String contentHash;
+        try {
+            MessageDigest digest = newDigest();
+            try (DigestInputStream din = new DigestInputStream(in, digest)) {
+                Files.copy(din, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            contentHash = HexFormat.of().formatHex(digest.digest());
+            return adopt(tmp, contentHash, ext);
+        } finally {
+            if (tmp.exists()) tmp.delete();
+        }
+    }
+
+    // Empty file in the store's temp folder, on the same file system as the store so adopt() can move it
+    public File newTempFile() throws IOException {
+        File tmpDir = new File(getStoreRoot(), TMP_FOLDER);
+        if (!tmpDir.exists()) tmpDir.mkdirs();
+        return File.createTempFile("upload-", ".part", tmpDir);
+    }
+
+    /**
+     * Move a fully written file whose hash is already known into the store.
+     * The file is removed if the content is already stored.
+     */
+    public StoredDocument adopt(File file, String contentHash, String ext) throws IOException {
+        Object lock = hashLocks.computeIfAbsent(contentHash, k -> new Object());
+        synchronized (lock) {
+            File existing = getSourceFile(contentHash);
+            if (existing != null) {
+                Files.deleteIfExists(file.toPath());
+                existing.getParentFile().setLastModified(System.currentTimeMillis());
+                return new StoredDocument(contentHash, existing, true);
+            }
+            File documentDir = getDocumentDir(contentHash);
+            if (!documentDir.exists()) documentDir.mkdirs();
+            File target = new File(documentDir, SOURCE_NAME + "." + (ext != null ? ext.toLowerCase() : "bin"));
+            try {
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new StoredDocument(contentHash, target, false);
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
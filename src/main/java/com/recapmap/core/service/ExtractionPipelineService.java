@@ -3,6 +3,7 @@ package com.recapmap.core.service;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.recapmap.core.data.ExtractionConfig;
+import org.apache.pdfbox.pdmodel.PDDocument;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
@@ -16,6 +17,8 @@ import java.util.stream.Collectors;
 @Service
 public class ExtractionPipelineService {
     private final OpenAiVisionService openAiVisionService;
+    private static final double FIGURE_PADDING = 6; // Points around a figure region when cropping
+    private static final double BLANK_INK_COVERAGE = 0.001; // Pages with less ink are blank (page numbers, running headers at most)
 
     public ExtractionPipelineService(OpenAiVisionService openAiVisionService) {
         this.openAiVisionService = openAiVisionService;
@@ -33,6 +36,7 @@ public class ExtractionPipelineService {
         // Prepare json_result folder
         File jsonResultDir = new File(documentFolder, "json_result");
         if (!jsonResultDir.exists()) jsonResultDir.mkdirs();
+        RetentionService.touch(new File(documentFolder));
 
         ObjectMapper objectMapper = new ObjectMapper();
 
@@ -293,6 +297,40 @@ public class ExtractionPipelineService {
      * Now supports multi-threading (thread count configurable).
      */
     public void runSimplePerPageExtraction(String documentFolder, List<File> imageFiles, int numThreads) throws IOException {
+        runSimplePerPageExtraction(documentFolder, imageFiles, numThreads, false);
+    }
+
+    /**
+     * Simple per-page extraction that can keep earlier results.
+     * @param reuseExisting Skip pages whose page_N.json and page_N.txt already exist in json_result
+     *                      (e.g. extracted for another upload of the same content)
+     */
+    public void runSimplePerPageExtraction(String documentFolder, List<File> imageFiles, int numThreads, boolean reuseExisting) throws IOException {
+        runSimplePerPageExtraction(documentFolder, imageFiles, numThreads, reuseExisting, null);
+    }
+
+    /**
+     * Simple per-page extraction with the text-layer fast path.
+     * @param textLayerSource The source PDF; when set, born-digital pages without figures are converted
+     *                        to Markdown from its text layer (TextLayerExtractor) and only the remaining
+     *                        pages are sent to the vision model. Null sends every page to the vision model.
+     */
+    public void runSimplePerPageExtraction(String documentFolder, List<File> imageFiles, int numThreads, boolean reuseExisting, File textLayerSource) throws IOException {
+        runSimplePerPageExtraction(documentFolder, imageFiles, numThreads, reuseExisting, textLayerSource, false);
+    }
+
+    /**
+     * Simple per-page extraction with the text-layer fast path and, optionally, hybrid pages.
+     * Pages that would go to the vision model are checked first: blank pages (by the ink coverage of their
+     * fingerprint) are written empty, and exact duplicates of another page of this document (same
+     * content hash, or the same image bytes) get a copy of its result. With reuseExisting, pages
+     * whose content hash (PageContentHashes) matches an extracted page of an earlier version of the
+     * document take its result before anything else is done for them.
+     * @param splitFigures For pages mixing text and figures, take the text from the text layer and
+     *                     send only the cropped figure regions to the vision model (needs textLayerSource)
+     * @return per-document counts: pages by route, blank and duplicate pages, and vision calls saved
+     */
+    public Map<String, Object> runSimplePerPageExtraction(String documentFolder, List<File> imageFiles, int numThreads, boolean reuseExisting, File textLayerSource, boolean splitFigures) throws IOException {
         // Sort imageFiles by numeric value in filename for correct page order (e.g., page_1, page_2, ..., page_10)
         // Improved sort: extract the numeric page index from the filename, ignoring the PDF base name and extension
         imageFiles.sort((f1, f2) -> {
@@ -316,6 +354,7 @@ public class ExtractionPipelineService {
         });
         File jsonResultDir = new File(documentFolder, "json_result");
         if (!jsonResultDir.exists()) jsonResultDir.mkdirs();
+        RetentionService.touch(new File(documentFolder));
         ObjectMapper objectMapper = new ObjectMapper();
         String hardcodedPrompt = "Extract the content of this page as a Markdown document.\n" +
                 "- For paragraphs, keep the raw text as-is, preserving the original wording and order.\n" +
@@ -333,105 +372,563 @@ public class ExtractionPipelineService {
 
         java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(numThreads);
         List<java.util.concurrent.Future<?>> futures = new java.util.ArrayList<>();
-        for (int i = 0; i < imageFiles.size(); i++) {
-            final int pageIndex = i;
-            futures.add(executor.submit(() -> {
-                int maxRetries = 5;
-                int retry = 0;
-                int backoffMillis = 2000;
-                while (retry < maxRetries) {
+        int reusedPages = 0;
+        int textLayerPages = 0;
+        int hybridPages = 0;
+        PDDocument textLayerDocument = null;
+        if (textLayerSource != null) {
+            try {
+                textLayerDocument = PDDocument.load(textLayerSource, PdfService.documentMemoryUsage(textLayerSource));
+            } catch (IOException e) {
+                System.out.println("[WARN] No text layer available from " + textLayerSource + ", using the vision model: " + e.getMessage());
+            }
+        }
+        TextLayerExtractor textLayerExtractor = textLayerDocument != null ? new TextLayerExtractor(textLayerDocument) : null;
+        long textLayerStart = System.currentTimeMillis();
+        Map<File, Map<String, PageFingerprint>> storedFingerprints = new java.util.HashMap<>();
+        Map<File, Map<String, PageTiles>> storedTiles = new java.util.HashMap<>();
+        Map<File, Map<String, PageNormalizer.Transform>> storedTransforms = new java.util.HashMap<>();
+        int tiledPages = 0;
+        Map<String, Integer> submittedPages = new java.util.HashMap<>(); // Page key (see pageKey) -> page sent to the vision model
+        Map<Integer, Integer> duplicateOf = new java.util.TreeMap<>(); // Page -> earlier page of this run with the same content
+        int blankPages = 0;
+        int duplicatePages = 0;
+        int visionCallsSaved = 0;
+        ImageTokens imageTokens = new ImageTokens();
+        // Page content hashes of the document: repeated pages, and pages unchanged from an earlier version that was extracted
+        Map<Integer, String> pageHashes = PageContentHashes.load(new File(documentFolder));
+        int carriedForwardPages = 0;
+        // A failure part-way must not leave the document open or the pool's threads running
+        boolean finished = false;
+        try {
+            for (int i = 0; i < imageFiles.size(); i++) {
+                // Results are named after the page the image shows, so a page range lands on the right page_N files
+                final int pageIndex = pageIndexOf(imageFiles.get(i), i);
+                final File pageImage = imageFiles.get(i);
+                if (reuseExisting && hasPageResult(jsonResultDir, pageIndex)) {
+                    reusedPages++;
+                    continue;
+                }
+                if (reuseExisting && carryForwardPageResult(pageHashes.get(pageIndex), jsonResultDir, pageIndex, objectMapper)) {
+                    carriedForwardPages++;
+                    continue;
+                }
+                // Vision tasks already submitted keep running while later pages are checked here
+                // Figure regions first: small vector diagrams would otherwise pass as a text page and lose their structure
+                TextLayerExtractor.PageLayout layout = null;
+                if (textLayerExtractor != null && splitFigures) {
                     try {
-                        File pageImage = imageFiles.get(pageIndex);
-                        String prompt = hardcodedPrompt;
-                        long startTime = System.currentTimeMillis();
-                        System.out.println("[SimpleExtract] Page " + pageIndex + " of " + imageFiles.size());
-                        String resultJson = openAiVisionService.extractFromImages(List.of(pageImage), prompt, true);
-                        long finishTime = System.currentTimeMillis();
-                        System.out.println("  Finish timestamp: " + new java.util.Date(finishTime));
-                        System.out.println("  Spent time (ms): " + (finishTime - startTime));
-                        // Save JSON
-                        String jsonFileName = "page_" + pageIndex + ".json";
-                        File outFile = new File(jsonResultDir, jsonFileName);
-                        try (FileWriter fw = new FileWriter(outFile)) {
-                            fw.write(resultJson);
-                        }
-                        // Print token usage if present
+                        layout = textLayerExtractor.analyzeLayout(pageIndex);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("[WARN] Layout analysis failed for page " + pageIndex + ", sending the whole page: " + e.getMessage());
+                    }
+                }
+                // No figure regions (or not split): pure text pages need no vision call at all
+                if (layout == null && textLayerExtractor != null && extractFromTextLayer(textLayerExtractor, pageIndex, jsonResultDir, objectMapper)) {
+                    textLayerPages++;
+                    continue;
+                }
+                // From here on the page costs vision calls, unless it is blank or the same as a page already sent
+                int visionCalls = layout != null ? layout.getFigureCount() : 1;
+                PageFingerprint fingerprint = fingerprintOf(pageImage, storedFingerprints);
+                if (fingerprint != null && fingerprint.isBlank(BLANK_INK_COVERAGE)) {
+                    writeBlankPage(pageIndex, fingerprint, jsonResultDir, objectMapper);
+                    blankPages++;
+                    visionCallsSaved += visionCalls;
+                    continue;
+                }
+                String pageKey = pageKey(pageHashes.get(pageIndex), pageImage, storedTiles);
+                if (pageKey != null) {
+                    Integer originalPage = submittedPages.putIfAbsent(pageKey, pageIndex);
+                    if (originalPage != null) {
+                        // Copied once the original's extraction has finished
+                        duplicateOf.put(pageIndex, originalPage);
+                        duplicatePages++;
+                        visionCallsSaved += visionCalls;
+                        continue;
+                    }
+                }
+                // Trimmed or deskewed page images: figure regions and DPI refer to the page as rendered
+                final PageNormalizer.Transform transform = transformOf(pageImage, storedTransforms);
+                if (layout != null) {
+                    final TextLayerExtractor.PageLayout pageLayout = layout;
+                    hybridPages++;
+                    futures.add(executor.submit(() -> {
                         try {
-                            JsonNode root = objectMapper.readTree(resultJson);
-                            if (root.has("usage")) {
-                                JsonNode usage = root.get("usage");
-                                int totalTokens = usage.has("total_tokens") ? usage.get("total_tokens").asInt() : -1;
-                                System.out.println("  Token usage: " + totalTokens);
-                            } else {
-                                System.out.println("  Token usage: (not found in response)");
-                            }
+                            extractHybridPage(pageLayout, pageImage, transform, pageIndex, jsonResultDir, objectMapper, imageTokens);
                         } catch (Exception e) {
-                            System.out.println("  [WARN] Could not parse token usage: " + e.getMessage());
+                            System.out.println("[ERROR] Hybrid extraction failed for page " + pageIndex + ": " + e.getMessage());
                         }
-                        // Extract markdown and save as .md
-                        String markdown = null;
+                        return null;
+                    }));
+                    continue;
+                }
+                // Oversized pages go as their full-resolution tiles, with the tile positions in the prompt
+                PageTiles tiles = tilesOf(pageImage, storedTiles);
+                List<File> tileFiles = tiles != null ? tiles.getTileFiles(pageImage.getAbsoluteFile().getParentFile()) : null;
+                if (tileFiles != null) {
+                    tiledPages++;
+                    writeTileLayout(pageIndex, tiles, jsonResultDir, objectMapper);
+                } else if (transform != null) {
+                    writePageTransform(pageIndex, transform, jsonResultDir, objectMapper);
+                }
+                final List<File> pageImages = tileFiles != null ? tileFiles : List.of(pageImage);
+                final double imageDpi = tileFiles != null ? tiles.getDpi() : pageDpi(pageImage, transform, textLayerDocument, pageIndex);
+                final String visionPrompt = tileFiles != null ? hardcodedPrompt + tilePrompt(tiles) : hardcodedPrompt;
+                futures.add(executor.submit(() -> {
+                    List<File> visionImages = imageTokens.sizeForVision(pageImages, imageDpi);
+                    int maxRetries = 5;
+                    int retry = 0;
+                    int backoffMillis = 2000;
+                    while (retry < maxRetries) {
                         try {
-                            JsonNode root = objectMapper.readTree(resultJson);
-                            if (root.isTextual()) {
-                                markdown = root.asText();
-                            } else if (root.has("content")) {
-                                markdown = root.get("content").asText();
-                            } else if (root.has("markdown")) {
-                                markdown = root.get("markdown").asText();
-                            } else if (root.has("choices")) {
-                                JsonNode choices = root.get("choices");
-                                if (choices.isArray() && choices.size() > 0) {
-                                    JsonNode msg = choices.get(0).get("message");
-                                    if (msg != null && msg.has("content")) {
-                                        markdown = msg.get("content").asText();
-                                    }
-                                }
+                            long startTime = System.currentTimeMillis();
+                            System.out.println("[SimpleExtract] Page " + pageIndex + " of " + imageFiles.size()
+                                    + (visionImages.size() > 1 ? " (" + visionImages.size() + " tiles)" : ""));
+                            String resultJson = openAiVisionService.extractFromImages(visionImages, visionPrompt, true);
+                            long finishTime = System.currentTimeMillis();
+                            System.out.println("  Finish timestamp: " + new java.util.Date(finishTime));
+                            System.out.println("  Spent time (ms): " + (finishTime - startTime));
+                            // Save JSON
+                            String jsonFileName = "page_" + pageIndex + ".json";
+                            File outFile = new File(jsonResultDir, jsonFileName);
+                            try (FileWriter fw = new FileWriter(outFile)) {
+                                fw.write(resultJson);
                             }
-                        } catch (Exception e) {
-                            System.out.println("  [WARN] Could not extract markdown for .md file: " + e.getMessage());
-                        }
-                        if (markdown != null && !markdown.isBlank()) {
-                            if (markdown.startsWith("```") ) {
-                                int firstNewline = markdown.indexOf('\n');
-                                if (firstNewline > 0) {
-                                    markdown = markdown.substring(firstNewline + 1);
+                            // Print token usage if present
+                            try {
+                                JsonNode root = objectMapper.readTree(resultJson);
+                                if (root.has("usage")) {
+                                    JsonNode usage = root.get("usage");
+                                    int totalTokens = usage.has("total_tokens") ? usage.get("total_tokens").asInt() : -1;
+                                    System.out.println("  Token usage: " + totalTokens);
+                                } else {
+                                    System.out.println("  Token usage: (not found in response)");
                                 }
-                                if (markdown.endsWith("```") ) {
-                                    markdown = markdown.substring(0, markdown.length() - 3);
+                            } catch (Exception e) {
+                                System.out.println("  [WARN] Could not parse token usage: " + e.getMessage());
+                            }
+                            // Extract markdown and save as .md
+                            String markdown = visionMarkdown(resultJson, objectMapper);
+                            if (markdown != null) {
+                                String txtFileName = "page_" + pageIndex + ".txt";
+                                File txtFile = new File(jsonResultDir, txtFileName);
+                                try (java.io.OutputStreamWriter fw = new java.io.OutputStreamWriter(new java.io.FileOutputStream(txtFile), java.nio.charset.StandardCharsets.UTF_8)) {
+                                    fw.write(markdown.trim());
                                 }
+                                System.out.println("  Markdown file: " + txtFile.getAbsolutePath());
                             }
-                            // Clean the markdown before saving
-                            markdown = cleanMarkdown(markdown);
-                            String txtFileName = "page_" + pageIndex + ".txt";
-                            File txtFile = new File(jsonResultDir, txtFileName);
-                            try (java.io.OutputStreamWriter fw = new java.io.OutputStreamWriter(new java.io.FileOutputStream(txtFile), java.nio.charset.StandardCharsets.UTF_8)) {
-                                fw.write(markdown.trim());
+                            return null;
+                        } catch (Exception e) {
+                            // Check for OpenAI rate limit error (HTTP 429 or message)
+                            String msg = e.getMessage() != null ? e.getMessage() : "";
+                            if (msg.contains("429") || msg.toLowerCase().contains("rate limit")) {
+                                retry++;
+                                int sleep = backoffMillis * retry;
+                                System.out.println("[WARN] Rate limit hit for page " + pageIndex + ", retry " + retry + " after " + sleep + "ms");
+                                try { Thread.sleep(sleep); } catch (InterruptedException ie) { break; }
+                            } else {
+                                System.out.println("[ERROR] Extraction failed for page " + pageIndex + ": " + e.getMessage());
+                                break;
                             }
-                            System.out.println("  Markdown file: " + txtFile.getAbsolutePath());
-                        }
-                        return null;
-                    } catch (Exception e) {
-                        // Check for OpenAI rate limit error (HTTP 429 or message)
-                        String msg = e.getMessage() != null ? e.getMessage() : "";
-                        if (msg.contains("429") || msg.toLowerCase().contains("rate limit")) {
-                            retry++;
-                            int sleep = backoffMillis * retry;
-                            System.out.println("[WARN] Rate limit hit for page " + pageIndex + ", retry " + retry + " after " + sleep + "ms");
-                            try { Thread.sleep(sleep); } catch (InterruptedException ie) { break; }
-                        } else {
-                            System.out.println("[ERROR] Extraction failed for page " + pageIndex + ": " + e.getMessage());
-                            break;
                         }
                     }
+                    return null;
+                }));
+            }
+            if (textLayerDocument != null) {
+                textLayerDocument.close();
+                System.out.println("[SimpleExtract] " + textLayerPages + " of " + imageFiles.size() + " pages extracted from the text layer in "
+                        + (System.currentTimeMillis() - textLayerStart) + " ms, " + hybridPages + " with only their figures and "
+                        + (futures.size() - hybridPages) + " whole pages sent to the vision model");
+            }
+            if (carriedForwardPages > 0) {
+                System.out.println("[SimpleExtract] Carried forward " + carriedForwardPages + " of " + imageFiles.size()
+                        + " pages unchanged from an earlier version of the document");
+            }
+            if (reusedPages > 0) {
+                System.out.println("[SimpleExtract] Reused " + reusedPages + " of " + imageFiles.size() + " pages extracted earlier in " + jsonResultDir.getAbsolutePath());
+            }
+            // Wait for all threads to finish
+            for (java.util.concurrent.Future<?> f : futures) {
+                try { f.get(); } catch (Exception e) { System.out.println("[WARN] Extraction thread error: " + e.getMessage()); }
+            }
+            executor.shutdown();
+            finished = true;
+        } finally {
+            if (!finished) {
+                executor.shutdownNow();
+                if (textLayerDocument != null) {
+                    try { textLayerDocument.close(); } catch (IOException e) { System.out.println("[WARN] Could not close " + textLayerSource + ": " + e.getMessage()); }
+                }
+            }
+        }
+        // A duplicate whose original failed stays missing and is tried again on the next run
+        duplicateOf.forEach((page, originalPage) -> copyPageResult(jsonResultDir, originalPage, jsonResultDir, page, objectMapper));
+        if (blankPages + duplicatePages > 0) {
+            System.out.println("[SimpleExtract] Skipped " + blankPages + " blank and " + duplicatePages + " duplicate pages of "
+                    + imageFiles.size() + ": " + visionCallsSaved + " vision calls saved");
+        }
+        if (imageTokens.before.get() > 0) {
+            System.out.println("[SimpleExtract] Estimated image tokens " + imageTokens.before.get() + " as rendered, "
+                    + imageTokens.after.get() + " sent (" + imageTokens.resized.get() + " images resized)");
+        }
+        Map<String, Object> stats = new java.util.LinkedHashMap<>();
+        stats.put("pages", imageFiles.size());
+        stats.put("reusedPages", reusedPages);
+        stats.put("carriedForwardPages", carriedForwardPages);
+        stats.put("textLayerPages", textLayerPages);
+        stats.put("hybridPages", hybridPages);
+        stats.put("visionPages", futures.size() - hybridPages);
+        stats.put("tiledPages", tiledPages);
+        stats.put("blankPages", blankPages);
+        stats.put("duplicatePages", duplicatePages);
+        stats.put("visionCallsSaved", visionCallsSaved);
+        stats.put("imageTokensBefore", imageTokens.before.get());
+        stats.put("imageTokensAfter", imageTokens.after.get());
+        return stats;
+    }
+
+    // Fingerprint stored by the render stage, or computed from the image (e.g. pages rendered before fingerprints existed)
+    private static PageFingerprint fingerprintOf(File pageImage, Map<File, Map<String, PageFingerprint>> storedFingerprints) {
+        File imageDir = pageImage.getAbsoluteFile().getParentFile();
+        PageFingerprint fingerprint = storedFingerprints.computeIfAbsent(imageDir, PageFingerprint::load).get(pageImage.getName());
+        if (fingerprint != null) return fingerprint;
+        try {
+            java.awt.image.BufferedImage image = javax.imageio.ImageIO.read(pageImage);
+            return image != null ? PageFingerprint.of(image) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Estimated image tokens of the images sent in one extraction run, as rendered and as sent
+    private static class ImageTokens {
+        private final java.util.concurrent.atomic.AtomicLong before = new java.util.concurrent.atomic.AtomicLong();
+        private final java.util.concurrent.atomic.AtomicLong after = new java.util.concurrent.atomic.AtomicLong();
+        private final java.util.concurrent.atomic.AtomicInteger resized = new java.util.concurrent.atomic.AtomicInteger();
+
+        // The images resized to their cheapest legible size; an image that can't be resized goes as it is
+        List<File> sizeForVision(List<File> images, double dpi) {
+            List<File> sized = new java.util.ArrayList<>(images.size());
+            for (File image : images) {
+                try {
+                    VisionImageSizer.SizedImage s = VisionImageSizer.prepare(image, dpi);
+                    before.addAndGet(s.getTokensBefore());
+                    after.addAndGet(s.getTokensAfter());
+                    if (!s.getFile().equals(image)) resized.incrementAndGet();
+                    sized.add(s.getFile());
+                } catch (IOException e) {
+                    System.out.println("[WARN] Could not resize " + image.getName() + " for the vision model: " + e.getMessage());
+                    sized.add(image);
+                }
+            }
+            return sized;
+        }
+    }
+
+    /**
+     * Resolution a page image shows its page at: from the page size when the PDF is open, else the lowest
+     * DPI pages are rendered at, so an image is never assumed sharper than it is.
+     */
+    private static double pageDpi(File pageImage, PageNormalizer.Transform transform, PDDocument document, int pageIndex) {
+        double renderDpi = PdfService.getSettings().getMinDpi();
+        if (document == null || pageIndex < 0 || pageIndex >= document.getNumberOfPages()) return renderDpi;
+        org.apache.pdfbox.pdmodel.common.PDRectangle box = document.getPage(pageIndex).getCropBox();
+        float longerSidePt = Math.max(box.getWidth(), box.getHeight());
+        if (transform != null && longerSidePt > 0) return Math.max(transform.getSourceWidth(), transform.getSourceHeight()) * 72.0 / longerSidePt;
+        try (javax.imageio.stream.ImageInputStream in = javax.imageio.ImageIO.createImageInputStream(pageImage)) {
+            java.util.Iterator<javax.imageio.ImageReader> readers = in != null ? javax.imageio.ImageIO.getImageReaders(in) : java.util.Collections.emptyIterator();
+            if (!readers.hasNext() || longerSidePt <= 0) return renderDpi;
+            javax.imageio.ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return Math.max(reader.getWidth(0), reader.getHeight(0)) * 72.0 / longerSidePt;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return renderDpi;
+        }
+    }
+
+    // How a page image was trimmed and deskewed, or null if it was saved as rendered
+    private static PageNormalizer.Transform transformOf(File pageImage, Map<File, Map<String, PageNormalizer.Transform>> storedTransforms) {
+        File imageDir = pageImage.getAbsoluteFile().getParentFile();
+        return storedTransforms.computeIfAbsent(imageDir, PageNormalizer::load).get(pageImage.getName());
+    }
+
+    // Tile layout of an oversized page, or null if the page was rendered as one image
+    private static PageTiles tilesOf(File pageImage, Map<File, Map<String, PageTiles>> storedTiles) {
+        File imageDir = pageImage.getAbsoluteFile().getParentFile();
+        return storedTiles.computeIfAbsent(imageDir, PageTiles::load).get(pageImage.getName());
+    }
+
+    private static String tilePrompt(PageTiles tiles) {
+        StringBuilder prompt = new StringBuilder("\n\nThe page is a large sheet (" + tiles.getPageWidth() + " x " + tiles.getPageHeight()
+                + " px) sent as " + tiles.getTiles().size() + " overlapping tiles, in this order (x, y = top-left corner on the page):\n");
+        for (int i = 0; i < tiles.getTiles().size(); i++) {
+            PageTiles.Tile tile = tiles.getTiles().get(i);
+            prompt.append("- Image ").append(i + 1).append(": row ").append(tile.getRow() + 1).append(", column ").append(tile.getCol() + 1)
+                    .append(", x=").append(tile.getX()).append(", y=").append(tile.getY())
+                    .append(", ").append(tile.getWidth()).append(" x ").append(tile.getHeight()).append(" px\n");
+        }
+        prompt.append("Extract the page as a whole: join text and drawing elements cut at tile edges, "
+                + "and report content visible in the overlap of two tiles only once.");
+        return prompt.toString();
+    }
+
+    // page_N_tiles.json: where each tile sent for the page sits, so results can be mapped back onto the sheet
+    private static void writeTileLayout(int pageIndex, PageTiles tiles, File jsonResultDir, ObjectMapper objectMapper) {
+        try {
+            objectMapper.writeValue(new File(jsonResultDir, "page_" + pageIndex + "_tiles.json"), tiles.toMap());
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write the tile layout of page " + pageIndex + ": " + e.getMessage());
+        }
+    }
+
+    // page_N_transform.json: how the page image sent was cut from the rendered page, so results can be mapped back onto it
+    private static void writePageTransform(int pageIndex, PageNormalizer.Transform transform, File jsonResultDir, ObjectMapper objectMapper) {
+        try {
+            objectMapper.writeValue(new File(jsonResultDir, "page_" + pageIndex + "_transform.json"), transform.toMap());
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write the page transform of page " + pageIndex + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * What makes two pages of a document the same for extraction: their content hash when the PDF was
+     * hashed, else a SHA-256 of the page image (and its tiles) as rendered. Null if the image can't be read.
+     */
+    private static String pageKey(String pageHash, File pageImage, Map<File, Map<String, PageTiles>> storedTiles) {
+        if (pageHash != null) return "content:" + pageHash;
+        java.security.MessageDigest digest = DocumentStoreService.newDigest();
+        List<File> files = new java.util.ArrayList<>(List.of(pageImage));
+        PageTiles tiles = tilesOf(pageImage, storedTiles);
+        List<File> tileFiles = tiles != null ? tiles.getTileFiles(pageImage.getAbsoluteFile().getParentFile()) : null;
+        if (tileFiles != null) files.addAll(tileFiles);
+        try {
+            for (File file : files) {
+                try (java.security.DigestInputStream in = new java.security.DigestInputStream(new java.io.FileInputStream(file), digest)) {
+                    in.transferTo(java.io.OutputStream.nullOutputStream());
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return "image:" + java.util.HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void writeBlankPage(int pageIndex, PageFingerprint fingerprint, File jsonResultDir, ObjectMapper objectMapper) throws IOException {
+        Map<String, Object> result = new java.util.LinkedHashMap<>();
+        result.put("source", "blank");
+        result.put("content", "");
+        result.put("inkCoverage", fingerprint.getInkCoverage());
+        objectMapper.writeValue(new File(jsonResultDir, "page_" + pageIndex + ".json"), result);
+        Files.write(new File(jsonResultDir, "page_" + pageIndex + ".txt").toPath(), new byte[0]);
+    }
+
+    // Copy page_N.json/.txt of an identical page, noting where it came from; false if the original has no result
+    private static boolean copyPageResult(File fromDir, int fromPage, File toDir, int toPage, ObjectMapper objectMapper) {
+        if (!hasPageResult(fromDir, fromPage)) return false;
+        try {
+            JsonNode root = objectMapper.readTree(new File(fromDir, "page_" + fromPage + ".json"));
+            if (root instanceof com.fasterxml.jackson.databind.node.ObjectNode) {
+                com.fasterxml.jackson.databind.node.ObjectNode result = (com.fasterxml.jackson.databind.node.ObjectNode) root;
+                result.put("duplicateOfPage", fromPage);
+                if (!fromDir.equals(toDir)) result.put("duplicateOfDocument", fromDir.getParentFile().getName());
+            }
+            objectMapper.writeValue(new File(toDir, "page_" + toPage + ".json"), root);
+            Files.copy(new File(fromDir, "page_" + fromPage + ".txt").toPath(), new File(toDir, "page_" + toPage + ".txt").toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not copy the result of page " + fromPage + " to page " + toPage + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Copy the result of an identical page (same content hash) of another stored document, with its tile layout and transform
+    private static boolean carryForwardPageResult(String pageHash, File jsonResultDir, int pageIndex, ObjectMapper objectMapper) {
+        File documentDir = jsonResultDir.getAbsoluteFile().getParentFile();
+        for (PageContentHashes.PageRef ref : PageContentHashes.find(pageHash)) {
+            if (ref.getDocumentDir().equals(documentDir)) continue;
+            File refResultDir = new File(ref.getDocumentDir(), "json_result");
+            if (!copyPageResult(refResultDir, ref.getPageIndex(), jsonResultDir, pageIndex, objectMapper)) continue;
+            for (String suffix : new String[] {"_tiles.json", "_transform.json"}) {
+                File from = new File(refResultDir, "page_" + ref.getPageIndex() + suffix);
+                File to = new File(jsonResultDir, "page_" + pageIndex + suffix);
+                try {
+                    if (from.isFile()) Files.copy(from.toPath(), to.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    else Files.deleteIfExists(to.toPath());
+                } catch (IOException e) {
+                    System.out.println("[WARN] Could not copy " + from.getName() + " to page " + pageIndex + ": " + e.getMessage());
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Markdown of a vision API response (fences stripped, cleaned), or null if there is none
+    private static String visionMarkdown(String resultJson, ObjectMapper objectMapper) {
+        String markdown = null;
+        try {
+            JsonNode root = objectMapper.readTree(resultJson);
+            if (root.isTextual()) {
+                markdown = root.asText();
+            } else if (root.has("content")) {
+                markdown = root.get("content").asText();
+            } else if (root.has("markdown")) {
+                markdown = root.get("markdown").asText();
+            } else if (root.has("choices")) {
+                JsonNode choices = root.get("choices");
+                if (choices.isArray() && choices.size() > 0) {
+                    JsonNode msg = choices.get(0).get("message");
+                    if (msg != null && msg.has("content")) {
+                        markdown = msg.get("content").asText();
+                    }
                 }
-                return null;
-            }));
+            }
+        } catch (Exception e) {
+            System.out.println("  [WARN] Could not extract markdown for .md file: " + e.getMessage());
         }
-        // Wait for all threads to finish
-        for (java.util.concurrent.Future<?> f : futures) {
-            try { f.get(); } catch (Exception e) { System.out.println("[WARN] Extraction thread error: " + e.getMessage()); }
+        if (markdown == null || markdown.isBlank()) return null;
+        if (markdown.startsWith("```") ) {
+            int firstNewline = markdown.indexOf('\n');
+            if (firstNewline > 0) {
+                markdown = markdown.substring(firstNewline + 1);
+            }
+            if (markdown.endsWith("```") ) {
+                markdown = markdown.substring(0, markdown.length() - 3);
+            }
         }
-        executor.shutdown();
+        return cleanMarkdown(markdown);
+    }
+
+    private static final String FIGURE_PROMPT = "Extract the content of this figure or table, cropped from a document page, as Markdown.\n" +
+            "- Perform a detailed extraction, not a summary: identify and list every distinct element, label, node, relationship, value and text.\n" +
+            "- For each, provide the exact wording, and if possible, describe its role or meaning in context.\n" +
+            "- Reproduce tables as Markdown tables; present diagrams with bullet points, reflecting groups or categories.\n" +
+            "- Do not invent or add information that is not present in the image. Do not add a keywords section.\n" +
+            "Return only the Markdown.";
+
+    /**
+     * Hybrid page: text blocks come from the text layer, each figure region is cropped from the rendered
+     * page image and extracted by the vision model on its own, and the results are merged in reading order.
+     * Nothing is written if a figure request fails, so the page is retried on the next run.
+     * @param transform How the page image was trimmed and deskewed; null if it was saved as rendered
+     */
+    private void extractHybridPage(TextLayerExtractor.PageLayout layout, File pageImage, PageNormalizer.Transform transform, int pageIndex,
+                                   File jsonResultDir, ObjectMapper objectMapper, ImageTokens imageTokens) throws IOException {
+        java.awt.image.BufferedImage image = javax.imageio.ImageIO.read(pageImage);
+        if (image == null) throw new IOException("Unreadable page image " + pageImage);
+        double scale = (transform != null ? transform.getSourceWidth() : image.getWidth()) / (double) layout.getPageWidth();
+        File regionDir = new File(jsonResultDir.getParentFile(), "regions");
+        if (!regionDir.exists()) regionDir.mkdirs();
+        String baseName = pageImage.getName().substring(0, pageImage.getName().lastIndexOf('.'));
+        StringBuilder merged = new StringBuilder();
+        List<Map<String, Object>> regions = new java.util.ArrayList<>();
+        long figurePixels = 0;
+        int totalTokens = 0;
+        int figure = 0;
+        for (TextLayerExtractor.LayoutBlock block : layout.getBlocks()) {
+            if (merged.length() > 0) merged.append("\n\n");
+            if (!block.isFigure()) {
+                merged.append(block.getMarkdown());
+                continue;
+            }
+            java.awt.geom.Rectangle2D r = block.getRegion();
+            java.awt.geom.Rectangle2D region = new java.awt.geom.Rectangle2D.Double((r.getMinX() - FIGURE_PADDING) * scale, (r.getMinY() - FIGURE_PADDING) * scale,
+                    (r.getWidth() + 2 * FIGURE_PADDING) * scale, (r.getHeight() + 2 * FIGURE_PADDING) * scale);
+            if (transform != null) region = transform.toImage(region);
+            int x = (int) Math.max(0, Math.floor(region.getMinX()));
+            int y = (int) Math.max(0, Math.floor(region.getMinY()));
+            int w = (int) Math.min(image.getWidth() - x, Math.ceil(region.getMaxX()) - x);
+            int h = (int) Math.min(image.getHeight() - y, Math.ceil(region.getMaxY()) - y);
+            if (w <= 0 || h <= 0) throw new IOException("Figure " + (figure + 1) + " lies outside the page image");
+            File cropFile = new File(regionDir, baseName + "_fig" + (++figure) + ".png");
+            javax.imageio.ImageIO.write(image.getSubimage(x, y, w, h), "png", cropFile);
+            figurePixels += (long) w * h;
+            String resultJson = openAiVisionService.extractFromImages(imageTokens.sizeForVision(List.of(cropFile), scale * 72), FIGURE_PROMPT, true);
+            String figureMarkdown = visionMarkdown(resultJson, objectMapper);
+            if (figureMarkdown == null) {
+                throw new IOException("Figure " + figure + " extraction failed: " + (resultJson != null && resultJson.length() > 200 ? resultJson.substring(0, 200) : resultJson));
+            }
+            merged.append(figureMarkdown.trim());
+            totalTokens += usageTokens(resultJson, objectMapper);
+            regions.add(Map.of("figure", figure, "x", x, "y", y, "width", w, "height", h, "image", cropFile.getName()));
+        }
+        String markdown = TextLayerExtractor.withKeywords(merged.toString().trim());
+        Map<String, Object> result = new java.util.LinkedHashMap<>();
+        result.put("source", "hybrid");
+        result.put("content", markdown);
+        result.put("regions", regions);
+        if (transform != null) result.put("transform", transform.toMap());
+        result.put("figurePixelRatio", (double) figurePixels / ((long) image.getWidth() * image.getHeight()));
+        result.put("usage", Map.of("total_tokens", totalTokens));
+        objectMapper.writeValue(new File(jsonResultDir, "page_" + pageIndex + ".json"), result);
+        File txtFile = new File(jsonResultDir, "page_" + pageIndex + ".txt");
+        try (java.io.OutputStreamWriter fw = new java.io.OutputStreamWriter(new java.io.FileOutputStream(txtFile), java.nio.charset.StandardCharsets.UTF_8)) {
+            fw.write(markdown);
+        }
+        System.out.println("[SimpleExtract] Page " + pageIndex + " hybrid: " + figure + " figure region(s), "
+                + Math.round(100.0 * figurePixels / ((long) image.getWidth() * image.getHeight())) + "% of the page image sent, " + totalTokens + " tokens");
+    }
+
+    private static int usageTokens(String resultJson, ObjectMapper objectMapper) {
+        try {
+            JsonNode usage = objectMapper.readTree(resultJson).get("usage");
+            return usage != null && usage.has("total_tokens") ? usage.get("total_tokens").asInt() : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    // Write page_N.json/.txt from the PDF text layer; false if the page needs the vision model
+    private static boolean extractFromTextLayer(TextLayerExtractor extractor, int pageIndex, File jsonResultDir, ObjectMapper objectMapper) {
+        String markdown;
+        try {
+            markdown = extractor.extractMarkdown(pageIndex);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[WARN] Text layer of page " + pageIndex + " unreadable, using the vision model: " + e.getMessage());
+            return false;
+        }
+        if (markdown == null) return false;
+        try {
+            Map<String, Object> result = new java.util.LinkedHashMap<>();
+            result.put("source", "text-layer");
+            result.put("content", markdown);
+            objectMapper.writeValue(new File(jsonResultDir, "page_" + pageIndex + ".json"), result);
+            File txtFile = new File(jsonResultDir, "page_" + pageIndex + ".txt");
+            try (java.io.OutputStreamWriter fw = new java.io.OutputStreamWriter(new java.io.FileOutputStream(txtFile), java.nio.charset.StandardCharsets.UTF_8)) {
+                fw.write(markdown);
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write text layer result for page " + pageIndex + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // 0-based page index from a page image name (<base>_page<N>.<ext>, N 1-based); the list position otherwise
+    static int pageIndexOf(File pageImage, int fallback) {
+        String name = pageImage.getName();
+        int start = name.lastIndexOf("_page");
+        int end = name.lastIndexOf('.');
+        if (start < 0 || end < start + 5) return fallback;
+        try {
+            return Integer.parseInt(name.substring(start + 5, end)) - 1;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    // A page counts as extracted when both its JSON response and its Markdown text were written
+    private static boolean hasPageResult(File jsonResultDir, int pageIndex) {
+        File json = new File(jsonResultDir, "page_" + pageIndex + ".json");
+        File txt = new File(jsonResultDir, "page_" + pageIndex + ".txt");
+        return json.isFile() && json.length() > 0 && txt.isFile() && txt.length() > 0;
     }
 
     /**
@@ -484,8 +981,11 @@ public class ExtractionPipelineService {
             }
         });
         com.fasterxml.jackson.databind.ObjectMapper objectMapper = new com.fasterxml.jackson.databind.ObjectMapper();
-        for (int i = 0; i < jsonFiles.length; i++) {
-            File pageFile = jsonFiles[i];
+        for (int f = 0; f < jsonFiles.length; f++) {
+            File pageFile = jsonFiles[f];
+            // page_N.json holds 0-based page N; pages may be missing (e.g. only a range was extracted)
+            String pageName = pageFile.getName();
+            int i = Integer.parseInt(pageName.substring("page_".length(), pageName.length() - ".json".length()));
             String markdown = null;
             java.util.List<String> keywords = new java.util.ArrayList<>();
             if (skipObjectMapper) {
@@ -0,0 +1,225 @@
+package com.recapmap.core.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weighted fair queuing of page tasks in front of the render stage.
+ * Pages are grouped per tenant (session) and, within a tenant, per document (job). Each tenant
+ * carries a virtual start tag that advances by 1/weight for every page dispatched; the tenant
+ * with the lowest tag goes next, and within it the document with the lowest tag. A tenant that
+ * was idle re-enters at the current virtual time, so it can't bank credit while idle.
+ * The result: a 1,000-page batch gets the same page rate as a 5-page upload from another session,
+ * and the small upload finishes after roughly 2 x 5 render slots instead of waiting for the batch.
+ * Every document may have at most perJobCapacity pages queued, so a huge document only blocks
+ * its own submitter. A document is also passed over while it has as many pages rendering as it has
+ * document handles (see Job.getMaxConcurrentRenders), so render workers don't sit waiting for a
+ * handle of a large document while other documents have work; the render stage reports finished
+ * pages through renderFinished().
+ */
+public class FairShareScheduler implements PageConversionPipeline.TaskQueue {
+
+    private static final int RECENT_WINDOW = 1024; // Dispatches used for the "recent share" figure
+
+    private static class Flow {
+        private final Deque<PageConversionPipeline.PageTask> tasks = new ArrayDeque<>();
+        private double tag;
+    }
+
+    private static class Tenant {
+        private final String id;
+        private final Map<PageConversionPipeline.Job, Flow> flows = new LinkedHashMap<>();
+        private double tag;
+        private double innerVirtualTime; // Tag of the last document served within this tenant
+        private int queued;
+        private long served;
+
+        Tenant(String id) {
+            this.id = id;
+        }
+    }
+
+    private final int perJobCapacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition spaceFreed = lock.newCondition();
+    private final Map<String, Tenant> tenants = new LinkedHashMap<>();
+    private final Map<String, Integer> weights = new HashMap<>();
+    private final String[] recent = new String[RECENT_WINDOW];
+    private int recentPos = 0;
+    private double virtualTime = 0;
+    private int size = 0;
+    private long totalServed = 0;
+
+    public FairShareScheduler(int perJobCapacity) {
+        this.perJobCapacity = Math.max(1, perJobCapacity);
+    }
+
+    @Override
+    public void put(PageConversionPipeline.PageTask task) throws InterruptedException {
+        PageConversionPipeline.Job job = task.getJob();
+        lock.lockInterruptibly();
+        try {
+            Tenant tenant = tenants.computeIfAbsent(job.getTenantId(), Tenant::new);
+            Flow flow = tenant.flows.get(job);
+            while (flow != null && flow.tasks.size() >= perJobCapacity) {
+                spaceFreed.await();
+                flow = tenant.flows.get(job);
+            }
+            if (tenant.queued == 0) tenant.tag = Math.max(tenant.tag, virtualTime);
+            if (flow == null) {
+                flow = new Flow();
+                flow.tag = tenant.innerVirtualTime;
+                tenant.flows.put(job, flow);
+            }
+            flow.tasks.add(task);
+            tenant.queued++;
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public PageConversionPipeline.PageTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Tenant tenant = null;
+            PageConversionPipeline.Job job = null;
+            Flow flow = null;
+            while (true) {
+                // Lowest tag among tenants with a document that may start another page, then its lowest-tag document
+                for (Tenant t : tenants.values()) {
+                    if (t.queued == 0 || (tenant != null && t.tag >= tenant.tag)) continue;
+                    Map.Entry<PageConversionPipeline.Job, Flow> next = nextFlow(t);
+                    if (next == null) continue;
+                    tenant = t;
+                    job = next.getKey();
+                    flow = next.getValue();
+                }
+                if (flow != null) break;
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            PageConversionPipeline.PageTask task = flow.tasks.poll();
+            job.renderStarted();
+            virtualTime = tenant.tag;
+            tenant.tag += 1.0 / weights.getOrDefault(tenant.id, 1);
+            tenant.innerVirtualTime = flow.tag;
+            flow.tag += 1.0;
+            if (flow.tasks.isEmpty()) tenant.flows.remove(job);
+            tenant.queued--;
+            tenant.served++;
+            size--;
+            totalServed++;
+            recent[recentPos] = tenant.id;
+            recentPos = (recentPos + 1) % RECENT_WINDOW;
+            spaceFreed.signalAll();
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Map.Entry<PageConversionPipeline.Job, Flow> nextFlow(Tenant tenant) {
+        Map.Entry<PageConversionPipeline.Job, Flow> next = null;
+        for (Map.Entry<PageConversionPipeline.Job, Flow> e : tenant.flows.entrySet()) {
+            if (e.getKey().getRendering() >= e.getKey().getMaxConcurrentRenders()) continue;
+            if (next == null || e.getValue().tag < next.getValue().tag) next = e;
+        }
+        return next;
+    }
+
+    /** A page handed out by poll() has left the render stage (rendered or failed); its document may start another. */
+    public void renderFinished(PageConversionPipeline.PageTask task) {
+        lock.lock();
+        try {
+            task.getJob().renderFinished();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // No global bound: each document is bounded by perJobCapacity
+    @Override
+    public int capacity() {
+        return perJobCapacity;
+    }
+
+    /** Relative page rate of a tenant (default 1); a tenant of weight 2 gets twice the pages of weight 1. */
+    public void setWeight(String tenantId, int weight) {
+        lock.lock();
+        try {
+            if (weight <= 1) weights.remove(tenantId);
+            else weights.put(tenantId, weight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drop an idle tenant's bookkeeping (e.g. when its session ends)
+    public void forgetTenant(String tenantId) {
+        lock.lock();
+        try {
+            Tenant tenant = tenants.get(tenantId);
+            if (tenant != null && tenant.queued == 0) tenants.remove(tenantId);
+            weights.remove(tenantId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Per-tenant queue length, pages served and share of the render slots (overall and over the last dispatches). */
+    public Map<String, Object> getStats() {
+        lock.lock();
+        try {
+            Map<String, Integer> recentCounts = new HashMap<>();
+            int recentTotal = 0;
+            for (String id : recent) {
+                if (id == null) continue;
+                recentCounts.merge(id, 1, Integer::sum);
+                recentTotal++;
+            }
+            List<Map<String, Object>> tenantStats = new ArrayList<>();
+            for (Tenant tenant : tenants.values()) {
+                Map<String, Object> t = new LinkedHashMap<>();
+                t.put("tenant", tenant.id);
+                t.put("weight", weights.getOrDefault(tenant.id, 1));
+                t.put("queuedPages", tenant.queued);
+                t.put("queuedDocuments", tenant.flows.size());
+                t.put("servedPages", tenant.served);
+                t.put("share", totalServed > 0 ? (double) tenant.served / totalServed : 0.0);
+                t.put("recentShare", recentTotal > 0 ? (double) recentCounts.getOrDefault(tenant.id, 0) / recentTotal : 0.0);
+                tenantStats.add(t);
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("queuedPages", size);
+            stats.put("servedPages", totalServed);
+            stats.put("tenants", tenantStats);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
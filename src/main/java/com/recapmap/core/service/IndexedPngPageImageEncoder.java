@@ -0,0 +1,137 @@
+package com.recapmap.core.service;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 8-bit PNG for text pages. Pages that use at most 256 distinct colours (typical for black text
+ * with anti-aliasing) get an exact palette, so the output is lossless at a third of the RGB size.
+ * Other grayscale pages become 8-bit gray; anything else falls back to the JDK's default
+ * 256-colour palette. Scratch bitmaps come from the PdfService raster pool.
+ */
+public class IndexedPngPageImageEncoder implements PageImageEncoder {
+    private static final int MAX_PALETTE = 256;
+    private final int compressionLevel;
+
+    public IndexedPngPageImageEncoder(int compressionLevel) {
+        this.compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+    }
+
+    @Override
+    public String getFormat() {
+        return "png-indexed";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "png";
+    }
+
+    @Override
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY || image.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
+            PngPageImageEncoder.writePng(image, out, compressionLevel);
+            return;
+        }
+        RasterBufferPool pool = PdfService.rasterBufferPool();
+        BufferedImage indexed = toExactPalette(image, pool);
+        if (indexed == null) {
+            indexed = isGrayscale(image) ? convert(image, BufferedImage.TYPE_BYTE_GRAY, pool) : convert(image, BufferedImage.TYPE_BYTE_INDEXED, pool);
+        }
+        try {
+            PngPageImageEncoder.writePng(indexed, out, compressionLevel);
+        } finally {
+            pool.release(indexed);
+        }
+    }
+
+    // Build an exact palette if the page has <= 256 colours, else return null
+    private static BufferedImage toExactPalette(BufferedImage image, RasterBufferPool pool) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // Small open-addressing set: colour -> palette index
+        int[] keys = new int[MAX_PALETTE * 2];
+        int[] values = new int[MAX_PALETTE * 2];
+        boolean[] used = new boolean[MAX_PALETTE * 2];
+        int[] palette = new int[MAX_PALETTE];
+        int paletteSize = 0;
+        BufferedImage indexed = null;
+        byte[] indices = pool.acquireBytes(width * height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x] & 0xFFFFFF;
+                int slot = (rgb * 0x9E3779B1 >>> 23) & (keys.length - 1);
+                while (used[slot] && keys[slot] != rgb) slot = (slot + 1) & (keys.length - 1);
+                if (!used[slot]) {
+                    if (paletteSize == MAX_PALETTE) {
+                        pool.release(indices);
+                        return null;
+                    }
+                    used[slot] = true;
+                    keys[slot] = rgb;
+                    values[slot] = paletteSize;
+                    palette[paletteSize++] = rgb;
+                }
+                indices[offset + x] = (byte) values[slot];
+            }
+        }
+        byte[] r = new byte[paletteSize];
+        byte[] g = new byte[paletteSize];
+        byte[] b = new byte[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            r[i] = (byte) (palette[i] >> 16);
+            g[i] = (byte) (palette[i] >> 8);
+            b[i] = (byte) palette[i];
+        }
+        int bits = paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 4 : 8;
+        IndexColorModel colorModel = new IndexColorModel(bits, Math.max(paletteSize, 1), r, g, b);
+        if (bits == 8) {
+            // The indices are the pixels: wrap them instead of copying
+            indexed = new BufferedImage(colorModel, Raster.createInterleavedRaster(new DataBufferByte(indices, width * height),
+                    width, height, width, 1, new int[] {0}, null), false, null);
+        } else {
+            // Packed 1/2/4-bit raster: let the raster do the packing
+            indexed = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+            int[] sample = new int[width];
+            for (int y = 0; y < height; y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) sample[x] = indices[offset + x] & 0xFF;
+                indexed.getRaster().setSamples(0, y, width, 1, 0, sample);
+            }
+            pool.release(indices);
+        }
+        return indexed;
+    }
+
+    // Sampled check: every 7th pixel has r == g == b
+    private static boolean isGrayscale(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        for (int y = 0; y < height; y += 7) {
+            for (int x = 0; x < width; x += 7) {
+                int rgb = image.getRGB(x, y);
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                if (r != g || g != b) return false;
+            }
+        }
+        return true;
+    }
+
+    private static BufferedImage convert(BufferedImage image, int type, RasterBufferPool pool) {
+        BufferedImage out = pool.acquireImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g2d = out.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return out;
+    }
+}
@@ -27,7 +27,7 @@ public class OpenAiVisionService {
 
             // Read image as base64 and build data URL
             String mimeType = Files.probeContentType(imageFile.toPath());
-            if (mimeType == null) mimeType = "image/png"; // fallback
+            if (mimeType == null) mimeType = guessImageMimeType(imageFile); // fallback
             byte[] imageBytes = Files.readAllBytes(imageFile.toPath());
             String base64 = Base64.getEncoder().encodeToString(imageBytes);
             String dataUrl = "data:" + mimeType + ";base64," + base64;
@@ -96,7 +96,7 @@ public class OpenAiVisionService {
             if (includeImage) {
                 for (File imageFile : imageFiles) {
                     String mimeType = Files.probeContentType(imageFile.toPath());
-                    if (mimeType == null) mimeType = "image/png";
+                    if (mimeType == null) mimeType = guessImageMimeType(imageFile);
                     byte[] imageBytes = Files.readAllBytes(imageFile.toPath());
                     String base64 = Base64.getEncoder().encodeToString(imageBytes);
                     String dataUrl = "data:" + mimeType + ";base64," + base64;
@@ -126,4 +126,12 @@ public class OpenAiVisionService {
             return "Error: " + e.getMessage();
         }
     }
+
+    // Fallback when the OS cannot probe the type: page images may be PNG, JPEG or WebP
+    private static String guessImageMimeType(File imageFile) {
+        String name = imageFile.getName().toLowerCase();
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+        if (name.endsWith(".webp")) return "image/webp";
+        return "image/png";
+    }
 }
@@ -0,0 +1,110 @@
+package com.recapmap.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Takes page images over from earlier versions of a document (see PageContentHashes) instead of
+ * rendering them again. A page qualifies when another stored document has a page with the same
+ * content hash, rendered with the same settings, whose image still exists. The image is hard-linked
+ * under this document's name (copied where links aren't supported), so it stays when the other
+ * document is deleted, and its previews, fingerprint and transform come with it.
+ * Tiled pages are rendered again.
+ * One instance per conversion; the folders of other documents are read once each.
+ */
+class PageCarryForward {
+
+    private final File outputDir;
+    private final String imageBaseName;
+    private final String renderSignature;
+    private final Map<File, Properties> markers = new HashMap<>();
+    private final Map<File, Properties> pageRenders = new HashMap<>();
+    private final Map<File, Map<String, PageFingerprint>> storedFingerprints = new HashMap<>();
+    private final Map<File, Map<String, PageTiles>> storedTiles = new HashMap<>();
+    private final Map<File, Map<String, PageNormalizer.Transform>> storedTransforms = new HashMap<>();
+    private final Map<String, PageFingerprint> fingerprints = new HashMap<>();
+    private final Map<String, PageNormalizer.Transform> transforms = new HashMap<>();
+
+    PageCarryForward(File outputDir, String imageBaseName, String renderSignature) {
+        this.outputDir = outputDir.getAbsoluteFile();
+        this.imageBaseName = imageBaseName;
+        this.renderSignature = renderSignature;
+    }
+
+    /**
+     * Give a page the image of an identical page rendered for another document.
+     * @return the page's image name, or null if the page must be rendered
+     */
+    String carry(int pageIndex, String pageHash) {
+        for (PageContentHashes.PageRef ref : PageContentHashes.find(pageHash)) {
+            File refDir = ref.getDocumentDir();
+            if (refDir.equals(outputDir)) continue;
+            File source = renderedImage(refDir, ref.getPageIndex());
+            if (source == null) continue;
+            String sourceName = source.getName();
+            if (storedTiles.computeIfAbsent(refDir, PageTiles::load).containsKey(sourceName)) continue;
+            String imageName = imageBaseName + "_page" + (pageIndex + 1) + sourceName.substring(sourceName.lastIndexOf('.'));
+            try {
+                File target = new File(outputDir, imageName);
+                linkOrCopy(source, target);
+                // Previews too, where the other document has them; missing ones are made on request
+                for (PagePyramid.Level level : new PagePyramid.Level[] {PagePyramid.Level.PREVIEW, PagePyramid.Level.THUMB}) {
+                    File sourceLevel = PagePyramid.levelFile(source, level);
+                    if (!sourceLevel.isFile()) continue;
+                    File targetLevel = PagePyramid.levelFile(target, level);
+                    targetLevel.getParentFile().mkdirs();
+                    linkOrCopy(sourceLevel, targetLevel);
+                }
+            } catch (IOException e) {
+                // The other document may be re-rendering or going away; try the next one
+                continue;
+            }
+            PageFingerprint fingerprint = storedFingerprints.computeIfAbsent(refDir, PageFingerprint::load).get(sourceName);
+            if (fingerprint != null) fingerprints.put(imageName, fingerprint);
+            PageNormalizer.Transform transform = storedTransforms.computeIfAbsent(refDir, PageNormalizer::load).get(sourceName);
+            if (transform != null) transforms.put(imageName, transform);
+            return imageName;
+        }
+        return null;
+    }
+
+    // The page's image in another document if it was rendered with this conversion's settings
+    private File renderedImage(File refDir, int pageIndex) {
+        int page = pageIndex + 1;
+        Properties marker = markers.computeIfAbsent(refDir, dir -> PdfService.loadProperties(new File(dir, PdfService.CONVERSION_MARKER)));
+        String imageName = null;
+        if (renderSignature.equals(marker.getProperty("renderSignature"))) {
+            imageName = marker.getProperty("imageBaseName") + "_page" + page + "." + marker.getProperty("imageExtension");
+        } else {
+            Properties renders = pageRenders.computeIfAbsent(refDir, dir -> PdfService.loadProperties(new File(dir, PdfService.PAGE_RENDERS_FILE)));
+            if (renderSignature.equals(renders.getProperty("page." + page + ".signature"))) imageName = renders.getProperty("page." + page + ".image");
+        }
+        if (imageName == null) return null;
+        File image = new File(refDir, imageName);
+        return image.isFile() ? image : null;
+    }
+
+    private static void linkOrCopy(File source, File target) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Fingerprints of the pages carried forward, by their new image name. */
+    Map<String, PageFingerprint> getFingerprints() {
+        return fingerprints;
+    }
+
+    /** Transforms of the pages carried forward, by their new image name. */
+    Map<String, PageNormalizer.Transform> getTransforms() {
+        return transforms;
+    }
+}
@@ -0,0 +1,149 @@
+package com.recapmap.core.service;
+
+import java.awt.geom.Point2D;
+import java.io.IOException;
+
+import org.apache.pdfbox.contentstream.PDFGraphicsStreamEngine;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImage;
+import org.apache.pdfbox.util.Matrix;
+import org.apache.pdfbox.util.Vector;
+
+/**
+ * One cheap pass over a page's content stream (no rasterisation) counting glyphs, embedded image
+ * coverage, vector painting operators and whether anything is painted in colour.
+ * The result picks the PageRenderProfile for the page.
+ * Not thread-safe: use one instance per page, on the same document handle the page is rendered from.
+ */
+public class PageContentAnalyzer extends PDFGraphicsStreamEngine {
+
+    // Thresholds for the profile decision
+    private static final double FIGURE_IMAGE_AREA_RATIO = 0.05; // Images covering >= 5% of the page
+    private static final double LOGO_IMAGE_AREA_RATIO = 0.01; // Smaller images (logos, bullets) are ignored
+    private static final int FIGURE_PATH_OPS = 200; // Dense vector drawings, charts
+    private static final int TEXT_MAX_PATH_OPS = 40; // Underlines, table rules, boxes
+    private static final double SCAN_IMAGE_AREA_RATIO = 0.8; // A scanned page is an image covering most of it
+
+    private int glyphs = 0;
+    private int images = 0;
+    private double imageArea = 0;
+    private int pathPaintOps = 0;
+    private int shadings = 0;
+    private boolean colorUsed = false;
+    private final double pageArea;
+
+    public PageContentAnalyzer(PDPage page) {
+        super(page);
+        PDRectangle box = page.getCropBox();
+        this.pageArea = Math.max(1.0, (double) box.getWidth() * box.getHeight());
+    }
+
+    /** Analyse the page and return the render profile for it. */
+    public static PageRenderProfile chooseProfile(PDPage page) throws IOException {
+        PageContentAnalyzer analyzer = new PageContentAnalyzer(page);
+        analyzer.processPage(page);
+        return analyzer.getProfile();
+    }
+
+    public PageRenderProfile getProfile() {
+        double imageRatio = getImageAreaRatio();
+        if (shadings > 0 || imageRatio >= FIGURE_IMAGE_AREA_RATIO || pathPaintOps >= FIGURE_PATH_OPS) {
+            return PageRenderProfile.FIGURE;
+        }
+        if (!colorUsed && imageRatio < LOGO_IMAGE_AREA_RATIO && pathPaintOps <= TEXT_MAX_PATH_OPS) {
+            return PageRenderProfile.TEXT;
+        }
+        return PageRenderProfile.MIXED;
+    }
+
+    /** The page is a scan: an image over most of it and hardly any vector drawing (an OCR text layer is allowed). */
+    public boolean isScan() {
+        return getImageAreaRatio() >= SCAN_IMAGE_AREA_RATIO && shadings == 0 && pathPaintOps <= TEXT_MAX_PATH_OPS;
+    }
+
+    public int getGlyphs() { return glyphs; }
+    public int getImages() { return images; }
+    public int getPathPaintOps() { return pathPaintOps; }
+    public boolean isColorUsed() { return colorUsed; }
+
+    public double getImageAreaRatio() {
+        return Math.min(1.0, imageArea / pageArea);
+    }
+
+    @Override
+    protected void showGlyph(Matrix textRenderingMatrix, PDFont font, int code, Vector displacement) throws IOException {
+        glyphs++;
+        checkColor(getGraphicsState().getNonStrokingColor());
+        // No glyph outlines needed: skip super, which would load and decode them
+    }
+
+    @Override
+    public void drawImage(PDImage pdImage) throws IOException {
+        images++;
+        // The image fills the unit square transformed by the CTM
+        Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+        imageArea += Math.abs((double) ctm.getScalingFactorX() * ctm.getScalingFactorY());
+        if (!pdImage.isStencil()) colorUsed |= !isGrayColorSpace(pdImage);
+    }
+
+    @Override
+    public void strokePath() {
+        pathPaintOps++;
+        checkColor(getGraphicsState().getStrokingColor());
+    }
+
+    @Override
+    public void fillPath(int windingRule) {
+        pathPaintOps++;
+        checkColor(getGraphicsState().getNonStrokingColor());
+    }
+
+    @Override
+    public void fillAndStrokePath(int windingRule) {
+        pathPaintOps++;
+        checkColor(getGraphicsState().getNonStrokingColor());
+        checkColor(getGraphicsState().getStrokingColor());
+    }
+
+    @Override
+    public void shadingFill(COSName shadingName) {
+        shadings++;
+        colorUsed = true;
+    }
+
+    // Path construction only matters to the renderer
+    @Override public void appendRectangle(Point2D p0, Point2D p1, Point2D p2, Point2D p3) {}
+    @Override public void clip(int windingRule) {}
+    @Override public void moveTo(float x, float y) {}
+    @Override public void lineTo(float x, float y) {}
+    @Override public void curveTo(float x1, float y1, float x2, float y2, float x3, float y3) {}
+    @Override public Point2D getCurrentPoint() { return new Point2D.Float(0, 0); }
+    @Override public void closePath() {}
+    @Override public void endPath() {}
+
+    private void checkColor(PDColor color) {
+        if (colorUsed || color == null) return;
+        try {
+            int rgb = color.toRGB();
+            int r = (rgb >> 16) & 0xFF;
+            int g = (rgb >> 8) & 0xFF;
+            int b = rgb & 0xFF;
+            if (Math.abs(r - g) > 8 || Math.abs(g - b) > 8 || Math.abs(r - b) > 8) colorUsed = true;
+        } catch (IOException | RuntimeException e) {
+            // Patterns and exotic colour spaces cannot be converted: assume colour
+            colorUsed = true;
+        }
+    }
+
+    private static boolean isGrayColorSpace(PDImage image) {
+        try {
+            return image.getColorSpace().getNumberOfComponents() == 1;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+}
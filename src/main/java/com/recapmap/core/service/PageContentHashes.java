@@ -0,0 +1,242 @@
+package com.recapmap.core.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Content hash of every page of a PDF, so a revised upload can tell its unchanged pages from the
+ * changed ones before anything is rendered. A page's hash (SHA-256) covers its decoded content
+ * stream, its resources (fonts, images, forms, graphics states), its annotations, its boxes and
+ * rotation, and the document's optional content settings. Dictionaries are hashed by structure,
+ * with sorted keys and without object numbers, so the same page saved into another file (other
+ * object numbers, other page tree) hashes the same; back references (/Parent, /P) are left out.
+ * Hashes are kept with the document in HASHES_FILE, and the most recent pages of all stored
+ * documents are indexed by hash, so a page can be looked up in earlier versions of a document.
+ */
+public class PageContentHashes {
+
+    public static final String HASHES_FILE = "page-content-hashes.properties";
+    private static final int INDEX_CAPACITY = 200_000; // Distinct page hashes indexed
+    private static final int REFS_PER_HASH = 4; // Documents remembered per page hash, most recent first
+    private static final Set<COSName> BACK_REFERENCES = Set.of(COSName.PARENT, COSName.P);
+
+    /** A page of a stored document. */
+    public static class PageRef {
+        private final File documentDir;
+        private final int pageIndex;
+
+        PageRef(File documentDir, int pageIndex) {
+            this.documentDir = documentDir;
+            this.pageIndex = pageIndex;
+        }
+
+        public File getDocumentDir() { return documentDir; }
+        public int getPageIndex() { return pageIndex; }
+    }
+
+    private static final Map<String, List<PageRef>> index = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<PageRef>> eldest) {
+            return size() > INDEX_CAPACITY;
+        }
+    };
+    private static File indexedStore; // Store folder the index was built from
+
+    /** Hash of every page, by 0-based page index. */
+    public static Map<Integer, String> compute(PDDocument document) throws IOException {
+        // Fonts and images shared by many pages are hashed once
+        Map<COSBase, byte[]> digests = new IdentityHashMap<>();
+        byte[] optionalContent = structureDigest(document.getDocumentCatalog().getCOSObject().getItem(COSName.OCPROPERTIES), digests, newPath());
+        Map<Integer, String> hashes = new TreeMap<>();
+        for (int i = 0; i < document.getNumberOfPages(); i++) {
+            hashes.put(i, pageHash(document.getPage(i), optionalContent, digests));
+        }
+        return hashes;
+    }
+
+    private static String pageHash(PDPage page, byte[] optionalContent, Map<COSBase, byte[]> digests) throws IOException {
+        MessageDigest digest = DocumentStoreService.newDigest();
+        update(digest, "media " + page.getMediaBox() + " crop " + page.getCropBox() + " rotate " + page.getRotation());
+        // Content streams decoded and joined, so the same drawing split into other streams still matches
+        update(digest, "contents");
+        try (InputStream in = page.getContents()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+        }
+        update(digest, "resources");
+        digest.update(structureDigest(page.getResources() != null ? page.getResources().getCOSObject() : null, digests, newPath()));
+        update(digest, "annots");
+        digest.update(structureDigest(page.getCOSObject().getItem(COSName.ANNOTS), digests, newPath()));
+        update(digest, "group");
+        digest.update(structureDigest(page.getCOSObject().getItem(COSName.GROUP), digests, newPath()));
+        digest.update(optionalContent);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Digest of an object and everything it refers to; streams by their encoded bytes
+    private static byte[] structureDigest(COSBase base, Map<COSBase, byte[]> digests, Set<COSBase> path) throws IOException {
+        if (base instanceof COSObject) base = ((COSObject) base).getObject();
+        MessageDigest digest = DocumentStoreService.newDigest();
+        if (!(base instanceof COSDictionary) && !(base instanceof COSArray)) {
+            update(digest, leaf(base));
+            return digest.digest();
+        }
+        byte[] cached = digests.get(base);
+        if (cached != null) return cached;
+        if (!path.add(base)) {
+            update(digest, "cycle");
+            return digest.digest();
+        }
+        try {
+            if (base instanceof COSArray) {
+                update(digest, "[");
+                for (COSBase item : (COSArray) base) digest.update(structureDigest(item, digests, path));
+            } else {
+                COSDictionary dictionary = (COSDictionary) base;
+                boolean stream = dictionary instanceof COSStream;
+                update(digest, stream ? "stream{" : "{");
+                List<COSName> keys = new ArrayList<>(dictionary.keySet());
+                keys.sort(Comparator.comparing(COSName::getName));
+                for (COSName key : keys) {
+                    if (BACK_REFERENCES.contains(key) || (stream && COSName.LENGTH.equals(key))) continue;
+                    update(digest, "/" + key.getName());
+                    digest.update(structureDigest(dictionary.getItem(key), digests, path));
+                }
+                if (stream) {
+                    try (InputStream in = ((COSStream) dictionary).createRawInputStream()) {
+                        byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+                    }
+                }
+            }
+        } finally {
+            path.remove(base);
+        }
+        byte[] result = digest.digest();
+        digests.put(base, result);
+        return result;
+    }
+
+    // Objects being hashed, by identity: a dictionary must not stand for an equal one elsewhere
+    private static Set<COSBase> newPath() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private static String leaf(COSBase base) {
+        if (base instanceof COSName) return "/" + ((COSName) base).getName();
+        if (base instanceof COSString) return "(" + HexFormat.of().formatHex(((COSString) base).getBytes()) + ")";
+        if (base instanceof COSInteger) return "i" + ((COSInteger) base).longValue();
+        if (base instanceof COSFloat) return "f" + ((COSFloat) base).floatValue();
+        if (base instanceof COSBoolean) return String.valueOf(((COSBoolean) base).getValue());
+        return "null";
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /** Hashes stored with a document, by 0-based page index; empty if there are none. */
+    public static Map<Integer, String> load(File documentDir) {
+        Map<Integer, String> hashes = new TreeMap<>();
+        File file = new File(documentDir, HASHES_FILE);
+        if (!file.exists()) return hashes;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return hashes;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith("page.")) continue;
+            try {
+                hashes.put(Integer.parseInt(key.substring("page.".length())) - 1, properties.getProperty(key));
+            } catch (NumberFormatException e) {
+                // Skip damaged entries; the page then counts as changed
+            }
+        }
+        return hashes;
+    }
+
+    // Keep a document's hashes with it and make its pages findable by later versions
+    public static void store(File documentDir, Map<Integer, String> hashes) {
+        Properties properties = new Properties();
+        hashes.forEach((pageIndex, hash) -> properties.setProperty("page." + (pageIndex + 1), hash));
+        try (OutputStream out = new FileOutputStream(new File(documentDir, HASHES_FILE))) {
+            properties.store(out, "Page content hashes (SHA-256 of content stream and resources)");
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write page content hashes to " + documentDir + ": " + e.getMessage());
+            return;
+        }
+        synchronized (index) {
+            if (indexedStore != null) remember(documentDir.getAbsoluteFile(), hashes);
+        }
+    }
+
+    /** Pages of stored documents with this hash, most recently stored first; the caller checks what each still has. */
+    public static List<PageRef> find(String hash) {
+        if (hash == null) return Collections.emptyList();
+        synchronized (index) {
+            ensureIndexed();
+            List<PageRef> refs = index.get(hash);
+            return refs == null ? Collections.emptyList() : new ArrayList<>(refs);
+        }
+    }
+
+    // Built on first use from the hashes files in the document store, oldest documents first so the newest win
+    private static void ensureIndexed() {
+        File store = new File(PdfService.ROOT_FOLDER, DocumentStoreService.STORE_FOLDER).getAbsoluteFile();
+        if (store.equals(indexedStore)) return;
+        index.clear();
+        indexedStore = store;
+        long start = System.currentTimeMillis();
+        File[] hashFiles = store.listFiles(dir -> new File(dir, HASHES_FILE).isFile());
+        if (hashFiles == null) return;
+        Arrays.sort(hashFiles, Comparator.comparingLong(dir -> new File(dir, HASHES_FILE).lastModified()));
+        for (File documentDir : hashFiles) remember(documentDir, load(documentDir));
+        System.out.println("[PageContentHashes] Indexed " + index.size() + " page hashes of " + hashFiles.length
+                + " documents in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void remember(File documentDir, Map<Integer, String> hashes) {
+        hashes.forEach((pageIndex, hash) -> {
+            List<PageRef> refs = index.computeIfAbsent(hash, h -> new ArrayList<>());
+            refs.removeIf(ref -> ref.documentDir.equals(documentDir));
+            refs.add(0, new PageRef(documentDir, pageIndex));
+            if (refs.size() > REFS_PER_HASH) refs.remove(refs.size() - 1);
+        });
+    }
+}
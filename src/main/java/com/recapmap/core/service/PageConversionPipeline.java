@@ -0,0 +1,392 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-stage page conversion pipeline (e.g. render -> normalize -> sharpen -> encode -> write).
+ * Every stage has its own worker threads and a bounded input queue; a worker that finishes a page
+ * hands it to the next stage's queue and blocks while that queue is full, so a slow stage applies
+ * back-pressure upstream instead of letting pages pile up in memory.
+ * Per-stage queue depth, throughput and hand-off wait times are exposed through getStats().
+ */
+public class PageConversionPipeline {
+
+    @FunctionalInterface
+    public interface StageFunction {
+        void process(PageTask task) throws Exception;
+    }
+
+    public interface JobListener {
+        void pageCompleted(PageTask task);
+        void pageFailed(PageTask task, Throwable error);
+    }
+
+    /**
+     * Input queue of a stage. Stages between workers use a plain bounded FIFO; the first stage
+     * can be given a scheduling queue (see FairShareScheduler) that decides which page runs next.
+     */
+    public interface TaskQueue {
+        /** Enqueue, blocking while the queue has no room for this task. */
+        void put(PageTask task) throws InterruptedException;
+        /** Next task to process, or null after the timeout. */
+        PageTask poll(long timeout, TimeUnit unit) throws InterruptedException;
+        int size();
+        int capacity();
+    }
+
+    private static class BoundedTaskQueue implements TaskQueue {
+        private final BlockingQueue<PageTask> queue;
+        private final int capacity;
+
+        BoundedTaskQueue(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.capacity = capacity;
+        }
+
+        public void put(PageTask task) throws InterruptedException { queue.put(task); }
+        public PageTask poll(long timeout, TimeUnit unit) throws InterruptedException { return queue.poll(timeout, unit); }
+        public int size() { return queue.size(); }
+        public int capacity() { return capacity; }
+    }
+
+    /** One document conversion flowing through the pipeline. */
+    public static class Job {
+        private final String tenantId;
+        private final String imageBaseName;
+        private final PdfDocumentPool documentPool;
+        private final File outputDir;
+        private final ConversionSettings settings;
+        private final JobListener listener;
+        private final CountDownLatch remaining;
+        private final AtomicInteger completed = new AtomicInteger(0);
+        private final AtomicInteger failed = new AtomicInteger(0);
+        private final int maxConcurrentRenders;
+        private final AtomicInteger rendering = new AtomicInteger(0);
+        private final AtomicLong peakHeapBytes = new AtomicLong(0);
+
+        public Job(String tenantId, String imageBaseName, PdfDocumentPool documentPool, File outputDir, ConversionSettings settings, int pageCount, JobListener listener) {
+            this.tenantId = tenantId;
+            this.imageBaseName = imageBaseName;
+            this.documentPool = documentPool;
+            this.outputDir = outputDir;
+            this.settings = settings;
+            this.listener = listener;
+            this.remaining = new CountDownLatch(pageCount);
+            // A page can only render with a document handle, so more at once would just wait for one
+            this.maxConcurrentRenders = documentPool != null ? documentPool.getMaxHandles() : Integer.MAX_VALUE;
+        }
+
+        public String getTenantId() { return tenantId; }
+        public String getImageBaseName() { return imageBaseName; }
+        public PdfDocumentPool getDocumentPool() { return documentPool; }
+        public File getOutputDir() { return outputDir; }
+        public ConversionSettings getSettings() { return settings; }
+        public PageImageEncoder getEncoder() { return settings.getEncoder(); }
+        public int getCompleted() { return completed.get(); }
+        public int getFailed() { return failed.get(); }
+        public int getMaxConcurrentRenders() { return maxConcurrentRenders; }
+        public long getPeakHeapBytes() { return peakHeapBytes.get(); }
+
+        // Heap in use while one of the job's pages was in memory; the highest sample is the job's peak
+        public void recordHeapUsed(long bytes) {
+            peakHeapBytes.accumulateAndGet(bytes, Math::max);
+        }
+
+        // Pages taken by the render scheduler and not yet through the render stage
+        int getRendering() { return rendering.get(); }
+        void renderStarted() { rendering.incrementAndGet(); }
+        void renderFinished() { rendering.decrementAndGet(); }
+
+        public void await() throws InterruptedException {
+            remaining.await();
+        }
+
+        void complete(PageTask task) {
+            try {
+                listener.pageCompleted(task);
+            } finally {
+                completed.incrementAndGet();
+                remaining.countDown();
+            }
+        }
+
+        void fail(PageTask task, Throwable error) {
+            try {
+                listener.pageFailed(task, error);
+            } finally {
+                failed.incrementAndGet();
+                completed.incrementAndGet();
+                remaining.countDown();
+            }
+        }
+    }
+
+    /** A single page travelling through the stages; each stage fills in what the next one needs. */
+    public static class PageTask {
+        private final Job job;
+        private final int pageIndex;
+        private PageRenderProfile renderProfile = PageRenderProfile.MIXED;
+        private BufferedImage image;
+        private long reservedBytes;
+        private PageFingerprint fingerprint;
+        private PageTiles tiles;
+        private boolean scan;
+        private PageNormalizer.Transform transform;
+        private byte[] encoded;
+        private int encodedLength;
+        private Map<PagePyramid.Level, byte[]> pyramid;
+        private String imageName;
+        private File outputFile;
+        private long enqueuedNanos; // When the page entered its current stage's queue
+        private boolean finished; // Done early, the remaining stages are skipped
+
+        public PageTask(Job job, int pageIndex) {
+            this.job = job;
+            this.pageIndex = pageIndex;
+        }
+
+        public Job getJob() { return job; }
+        public int getPageIndex() { return pageIndex; }
+        public PageRenderProfile getRenderProfile() { return renderProfile; }
+        public void setRenderProfile(PageRenderProfile renderProfile) { this.renderProfile = renderProfile; }
+        public BufferedImage getImage() { return image; }
+        public void setImage(BufferedImage image) { this.image = image; }
+        public long getReservedBytes() { return reservedBytes; }
+        public void setReservedBytes(long reservedBytes) { this.reservedBytes = reservedBytes; }
+        public PageFingerprint getFingerprint() { return fingerprint; }
+        public void setFingerprint(PageFingerprint fingerprint) { this.fingerprint = fingerprint; }
+        public PageTiles getTiles() { return tiles; }
+        public void setTiles(PageTiles tiles) { this.tiles = tiles; }
+        public boolean isScan() { return scan; }
+        public void setScan(boolean scan) { this.scan = scan; }
+        public PageNormalizer.Transform getTransform() { return transform; }
+        public void setTransform(PageNormalizer.Transform transform) { this.transform = transform; }
+        public byte[] getEncoded() { return encoded; }
+        public int getEncodedLength() { return encodedLength; }
+        public void setEncoded(byte[] encoded) { setEncoded(encoded, encoded != null ? encoded.length : 0); }
+        // The encoded image is encoded[0..length), e.g. a pooled buffer longer than the image
+        public void setEncoded(byte[] encoded, int length) {
+            this.encoded = encoded;
+            this.encodedLength = length;
+        }
+        public Map<PagePyramid.Level, byte[]> getPyramid() { return pyramid; }
+        public void setPyramid(Map<PagePyramid.Level, byte[]> pyramid) { this.pyramid = pyramid; }
+        public String getImageName() { return imageName; }
+        public void setImageName(String imageName) { this.imageName = imageName; }
+        public File getOutputFile() { return outputFile; }
+        public void setOutputFile(File outputFile) { this.outputFile = outputFile; }
+        public boolean isFinished() { return finished; }
+        // Skip the remaining stages, e.g. for a page a render process has already written
+        public void finish() { this.finished = true; }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final StageFunction function;
+        private final TaskQueue input;
+        private Stage next;
+        private final AtomicInteger liveWorkers = new AtomicInteger(0);
+        private volatile int targetWorkers;
+        private final AtomicInteger workerSeq = new AtomicInteger(0);
+        private final AtomicLong processed = new AtomicLong(0);
+        private final AtomicLong failed = new AtomicLong(0);
+        private final AtomicLong busyNanos = new AtomicLong(0);
+        private final AtomicLong handoffWaitNanos = new AtomicLong(0);
+        private final AtomicLong queueWaitNanos = new AtomicLong(0);
+
+        Stage(String name, int workers, TaskQueue input, StageFunction function) {
+            this.name = name;
+            this.function = function;
+            this.input = input;
+            this.targetWorkers = workers;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private volatile RenderMemoryBudget renderMemoryBudget;
+
+    /**
+     * Budget the stages reserve page bitmaps from (PageTask.setReservedBytes). Whatever a page still
+     * holds when it fails in any stage is given back here before the job hears about the failure.
+     */
+    public PageConversionPipeline withRenderMemoryBudget(RenderMemoryBudget renderMemoryBudget) {
+        this.renderMemoryBudget = renderMemoryBudget;
+        return this;
+    }
+
+    public PageConversionPipeline addStage(String name, int workers, int queueCapacity, StageFunction function) {
+        return addStage(name, workers, new BoundedTaskQueue(Math.max(1, queueCapacity)), function);
+    }
+
+    public synchronized PageConversionPipeline addStage(String name, int workers, TaskQueue input, StageFunction function) {
+        Stage stage = new Stage(name, Math.max(1, workers), input, function);
+        if (!stages.isEmpty()) stages.get(stages.size() - 1).next = stage;
+        stages.add(stage);
+        for (int i = 0; i < stage.targetWorkers; i++) startWorker(stage);
+        return this;
+    }
+
+    /** Feed a page into the first stage; blocks while the first stage's queue has no room for it. */
+    public void submit(PageTask task) throws InterruptedException {
+        task.enqueuedNanos = System.nanoTime();
+        stages.get(0).input.put(task);
+    }
+
+    public int getWorkerCount(String stageName) {
+        return findStage(stageName).targetWorkers;
+    }
+
+    /**
+     * Change the worker count of a stage. Extra workers are started immediately; surplus workers
+     * retire after finishing their current page, so no queued page is dropped.
+     */
+    public synchronized void setWorkerCount(String stageName, int workers) {
+        Stage stage = findStage(stageName);
+        stage.targetWorkers = Math.max(1, workers);
+        while (stage.liveWorkers.get() < stage.targetWorkers) startWorker(stage);
+    }
+
+    public Map<String, Object> getStats() {
+        List<Map<String, Object>> stageStats = new ArrayList<>();
+        String limitingStage = null;
+        double lowestCapacity = Double.MAX_VALUE;
+        for (Stage stage : stages) {
+            long processed = stage.processed.get();
+            double busySeconds = stage.busyNanos.get() / 1_000_000_000.0;
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("stage", stage.name);
+            s.put("workers", stage.liveWorkers.get());
+            s.put("queueDepth", stage.input.size());
+            s.put("queueCapacity", stage.input.capacity());
+            s.put("processed", processed);
+            s.put("failed", stage.failed.get());
+            s.put("avgMillisPerPage", processed > 0 ? (busySeconds * 1000.0) / processed : 0.0);
+            s.put("handoffWaitMillis", stage.handoffWaitNanos.get() / 1_000_000);
+            long pickedUp = processed + stage.failed.get();
+            s.put("avgQueueWaitMillis", pickedUp > 0 ? stage.queueWaitNanos.get() / 1_000_000.0 / pickedUp : 0.0);
+            // Pages/sec the stage could sustain with all its workers busy
+            double capacity = busySeconds > 0 ? processed / busySeconds * stage.liveWorkers.get() : 0.0;
+            s.put("capacityPagesPerSecond", capacity);
+            if (processed > 0 && capacity < lowestCapacity) {
+                lowestCapacity = capacity;
+                limitingStage = stage.name;
+            }
+            stageStats.add(s);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("stages", stageStats);
+        stats.put("limitingStage", limitingStage);
+        return stats;
+    }
+
+    /** Running totals of one stage; a tuner compares two samples to see how the stage did in between. */
+    public static class StageSample {
+        private final int workers;
+        private final int queueDepth;
+        private final long pickedUp;
+        private final long busyNanos;
+        private final long queueWaitNanos;
+        private final long handoffWaitNanos;
+
+        StageSample(Stage stage) {
+            this.workers = stage.liveWorkers.get();
+            this.queueDepth = stage.input.size();
+            this.pickedUp = stage.processed.get() + stage.failed.get();
+            this.busyNanos = stage.busyNanos.get();
+            this.queueWaitNanos = stage.queueWaitNanos.get();
+            this.handoffWaitNanos = stage.handoffWaitNanos.get();
+        }
+
+        public int getWorkers() { return workers; }
+        public int getQueueDepth() { return queueDepth; }
+        public long getPickedUp() { return pickedUp; }
+        public long getBusyNanos() { return busyNanos; }
+        public long getQueueWaitNanos() { return queueWaitNanos; }
+        public long getHandoffWaitNanos() { return handoffWaitNanos; }
+    }
+
+    public StageSample sample(String stageName) {
+        return new StageSample(findStage(stageName));
+    }
+
+    private Stage findStage(String stageName) {
+        for (Stage stage : stages) {
+            if (stage.name.equals(stageName)) return stage;
+        }
+        throw new IllegalArgumentException("Unknown pipeline stage: " + stageName);
+    }
+
+    private void startWorker(Stage stage) {
+        stage.liveWorkers.incrementAndGet();
+        Thread worker = new Thread(() -> runWorker(stage), "pdf-" + stage.name + "-" + stage.workerSeq.incrementAndGet());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void runWorker(Stage stage) {
+        while (true) {
+            // Retire if the stage was shrunk
+            int live = stage.liveWorkers.get();
+            if (live > stage.targetWorkers) {
+                if (stage.liveWorkers.compareAndSet(live, live - 1)) return;
+                continue;
+            }
+            PageTask task;
+            try {
+                task = stage.input.poll(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                stage.liveWorkers.decrementAndGet();
+                return;
+            }
+            if (task == null) continue;
+            long start = System.nanoTime();
+            stage.queueWaitNanos.addAndGet(start - task.enqueuedNanos);
+            try {
+                stage.function.process(task);
+            } catch (Throwable t) {
+                stage.busyNanos.addAndGet(System.nanoTime() - start);
+                stage.failed.incrementAndGet();
+                fail(task, t);
+                continue;
+            }
+            stage.busyNanos.addAndGet(System.nanoTime() - start);
+            stage.processed.incrementAndGet();
+            if (stage.next == null || task.finished) {
+                task.getJob().complete(task);
+                continue;
+            }
+            long waitStart = System.nanoTime();
+            task.enqueuedNanos = waitStart;
+            try {
+                stage.next.input.put(task);
+            } catch (InterruptedException e) {
+                fail(task, e);
+                stage.liveWorkers.decrementAndGet();
+                return;
+            } finally {
+                stage.handoffWaitNanos.addAndGet(System.nanoTime() - waitStart);
+            }
+        }
+    }
+
+    // Drop what the page holds, including its bitmap reservation, then report it to the job
+    private void fail(PageTask task, Throwable error) {
+        task.setImage(null);
+        task.setEncoded(null);
+        RenderMemoryBudget budget = renderMemoryBudget;
+        if (budget != null) budget.release(task.getReservedBytes());
+        task.setReservedBytes(0);
+        task.getJob().fail(task, error);
+    }
+}
@@ -0,0 +1,112 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Fingerprint of a rendered page used to skip blank pages: its ink coverage, the share of pixels
+ * that stand out from the page background (the most common luminance), so a blank page scores
+ * near zero whatever its paper colour.
+ * Computed by the render stage and kept next to the page images in FINGERPRINTS_FILE.
+ * Duplicate pages are found by content hash instead (see PageContentHashes).
+ */
+public class PageFingerprint {
+
+    public static final String FINGERPRINTS_FILE = "page-fingerprints.properties";
+    private static final int INK_CONTRAST = 48; // Luminance levels from the background that count as ink
+    private static final int SAMPLES_PER_SIDE = 512; // Pixels sampled along the shorter side
+
+    private final double inkCoverage;
+
+    private PageFingerprint(double inkCoverage) {
+        this.inkCoverage = inkCoverage;
+    }
+
+    public static PageFingerprint of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = Math.max(1, Math.min(width, height) / SAMPLES_PER_SIDE);
+        int[] histogram = new int[256];
+        int[] row = new int[width];
+        int sample = 0;
+        for (int y = 0; y < height; y += step) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x += step) {
+                int rgb = row[x];
+                int lum = (299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF)) / 1000;
+                histogram[lum]++;
+                sample++;
+            }
+        }
+        int background = 0;
+        for (int i = 1; i < 256; i++) {
+            if (histogram[i] > histogram[background]) background = i;
+        }
+        // Ink straight from the histogram, so no per-sample copy of the page is kept
+        int ink = 0;
+        for (int i = 0; i < 256; i++) {
+            if (Math.abs(i - background) > INK_CONTRAST) ink += histogram[i];
+        }
+        return new PageFingerprint(sample > 0 ? (double) ink / sample : 0);
+    }
+
+    public static PageFingerprint ofInkCoverage(double inkCoverage) {
+        if (Double.isNaN(inkCoverage) || inkCoverage < 0 || inkCoverage > 1) throw new IllegalArgumentException("Bad ink coverage");
+        return new PageFingerprint(inkCoverage);
+    }
+
+    /** Share of pixels that differ clearly from the page background (0-1). */
+    public double getInkCoverage() {
+        return inkCoverage;
+    }
+
+    public boolean isBlank(double maxInkCoverage) {
+        return inkCoverage <= maxInkCoverage;
+    }
+
+    /** Fingerprints stored in a page image folder, by image file name; empty if there are none. */
+    public static Map<String, PageFingerprint> load(File imageDir) {
+        Map<String, PageFingerprint> fingerprints = new HashMap<>();
+        File file = new File(imageDir, FINGERPRINTS_FILE);
+        if (!file.exists()) return fingerprints;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return fingerprints;
+        }
+        // Files written with the dHash still have a .hash key per page next to .ink; it is ignored
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.endsWith(".ink")) continue;
+            String imageName = key.substring(0, key.length() - ".ink".length());
+            try {
+                fingerprints.put(imageName, ofInkCoverage(Double.parseDouble(properties.getProperty(key))));
+            } catch (IllegalArgumentException e) {
+                // Skip damaged entries; the page is fingerprinted again from its image
+            }
+        }
+        return fingerprints;
+    }
+
+    // Add or replace the fingerprints of some pages, keeping the others in the folder
+    public static synchronized void store(File imageDir, Map<String, PageFingerprint> fingerprints) {
+        if (fingerprints.isEmpty()) return;
+        Map<String, PageFingerprint> all = load(imageDir);
+        all.putAll(fingerprints);
+        Properties properties = new Properties();
+        all.forEach((imageName, fingerprint) -> properties.setProperty(imageName + ".ink", String.valueOf(fingerprint.getInkCoverage())));
+        try (OutputStream out = new FileOutputStream(new File(imageDir, FINGERPRINTS_FILE))) {
+            properties.store(out, "Page fingerprints (ink coverage)");
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write page fingerprints to " + imageDir + ": " + e.getMessage());
+        }
+    }
+}
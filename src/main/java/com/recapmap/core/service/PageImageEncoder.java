@@ -0,0 +1,20 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a rendered page bitmap into the image file format sent to the vision model.
+ * Implementations are stateless apart from their settings and are shared by all encode workers.
+ */
+public interface PageImageEncoder {
+
+    /** Format key used in the admin config, e.g. "png", "png-indexed", "jpeg". */
+    String getFormat();
+
+    /** File extension (without dot) of the encoded images. */
+    String getFileExtension();
+
+    void encode(BufferedImage image, OutputStream out) throws IOException;
+}
@@ -0,0 +1,79 @@
+package com.recapmap.core.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Factory for the page image encoders selectable through the admin config, plus per-format
+ * encode statistics (pages, encode time, output bytes) so CPU, disk and upload size can be traded.
+ */
+public final class PageImageEncoders {
+
+    private static class FormatStats {
+        final AtomicLong pages = new AtomicLong(0);
+        final AtomicLong encodeNanos = new AtomicLong(0);
+        final AtomicLong outputBytes = new AtomicLong(0);
+        final AtomicLong pixels = new AtomicLong(0);
+    }
+
+    private static final Map<String, FormatStats> statsByFormat = new ConcurrentHashMap<>();
+
+    private PageImageEncoders() {}
+
+    public static List<String> availableFormats() {
+        List<String> formats = new ArrayList<>(List.of("png", "png-indexed", "jpeg"));
+        if (WebpPageImageEncoder.isAvailable()) formats.add("webp");
+        return formats;
+    }
+
+    public static PageImageEncoder create(String format, float jpegQuality, int pngCompressionLevel) {
+        switch (format) {
+            case "png":
+                return new PngPageImageEncoder(pngCompressionLevel);
+            case "png-indexed":
+                return new IndexedPngPageImageEncoder(pngCompressionLevel);
+            case "jpeg":
+                return new JpegPageImageEncoder(jpegQuality);
+            case "webp":
+                if (!WebpPageImageEncoder.isAvailable()) {
+                    throw new IllegalArgumentException("WebP requires an ImageIO WebP plugin on the classpath");
+                }
+                return new WebpPageImageEncoder(jpegQuality);
+            default:
+                throw new IllegalArgumentException("Unknown image format: " + format);
+        }
+    }
+
+    // True for any page image file the encoders can produce
+    public static boolean isPageImageFile(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".webp");
+    }
+
+    public static void recordEncode(String format, long nanos, long bytes, long pixels) {
+        FormatStats stats = statsByFormat.computeIfAbsent(format, k -> new FormatStats());
+        stats.pages.incrementAndGet();
+        stats.encodeNanos.addAndGet(nanos);
+        stats.outputBytes.addAndGet(bytes);
+        stats.pixels.addAndGet(pixels);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        statsByFormat.forEach((format, stats) -> {
+            long pages = stats.pages.get();
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("pages", pages);
+            s.put("avgEncodeMillis", pages > 0 ? stats.encodeNanos.get() / 1_000_000.0 / pages : 0.0);
+            s.put("avgBytesPerPage", pages > 0 ? stats.outputBytes.get() / pages : 0);
+            s.put("bitsPerPixel", stats.pixels.get() > 0 ? stats.outputBytes.get() * 8.0 / stats.pixels.get() : 0.0);
+            s.put("totalBytes", stats.outputBytes.get());
+            result.put(format, s);
+        });
+        return result;
+    }
+}
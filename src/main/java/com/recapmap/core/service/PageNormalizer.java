@@ -0,0 +1,382 @@
+package com.recapmap.core.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Normalises a rendered page before it is saved: deskews scans and trims the white margins to the
+ * content box plus a little padding, so the vision model gets fewer pixels (and tokens) and straight
+ * text lines.
+ * Skew is found with a projection profile: ink samples are projected onto the vertical axis for
+ * angles up to MAX_SKEW_DEGREES, and text lines give the sharpest profile (largest sum of squared
+ * bin counts) at the angle they are tilted by. The content box is taken after rotation, ignoring
+ * rows and columns with only a speck of dust on them.
+ * Every page gets a Transform from rendered-bitmap pixels to saved-image pixels; those that change
+ * the page are kept next to the page images in TRANSFORMS_FILE, so coordinates on the page (figure
+ * regions of the text layer, for instance) can still be found on the saved image.
+ */
+public class PageNormalizer {
+
+    public static final String TRANSFORMS_FILE = "page-transforms.properties";
+    private static final int INK_CONTRAST = 48; // Luminance levels from the background that count as ink, as in PageFingerprint
+    private static final int SAMPLES_PER_SIDE = 1000; // Pixels sampled along the longer side
+    private static final int MIN_INK_SAMPLES = 2; // Rows and columns with less ink are specks, not content
+    private static final double PADDING_PT = 9; // Kept around the content box, 1/8 inch
+    private static final double MIN_CROP_SAVING = 0.05; // Smaller savings leave an unskewed page as rendered
+    private static final double MAX_SKEW_DEGREES = 5;
+    private static final double MIN_SKEW_DEGREES = 0.2; // Below this a scan is left as it is
+    private static final double MIN_SKEW_GAIN = 1.05; // Profile score the angle must beat the unrotated page by
+    private static final int MAX_SKEW_SAMPLES = 200_000; // Ink samples used for the skew search
+
+    private static final AtomicLong pages = new AtomicLong();
+    private static final AtomicLong cropped = new AtomicLong();
+    private static final AtomicLong deskewed = new AtomicLong();
+    private static final AtomicLong pixelsBefore = new AtomicLong();
+    private static final AtomicLong pixelsAfter = new AtomicLong();
+    private static final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * Rendered bitmap to saved image: rotate by -angle degrees about the bitmap's centre (undoing a skew
+     * of angle, clockwise on screen), then cut out width x height pixels at cropX, cropY. The crop may
+     * reach past the bitmap where the rotation moved a corner out.
+     */
+    public static class Transform {
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final double angle;
+        private final int cropX;
+        private final int cropY;
+        private final int width;
+        private final int height;
+        private int fill = 255; // Gray level for corners the rotation uncovers; not stored
+
+        Transform(int sourceWidth, int sourceHeight, double angle, int cropX, int cropY, int width, int height) {
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.angle = angle;
+            this.cropX = cropX;
+            this.cropY = cropY;
+            this.width = width;
+            this.height = height;
+        }
+
+        public static Transform identity(int width, int height) {
+            return new Transform(width, height, 0, 0, 0, width, height);
+        }
+
+        public int getSourceWidth() { return sourceWidth; }
+        public int getSourceHeight() { return sourceHeight; }
+        public double getAngle() { return angle; }
+        public int getCropX() { return cropX; }
+        public int getCropY() { return cropY; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+
+        public boolean isIdentity() {
+            return angle == 0 && cropX == 0 && cropY == 0 && width == sourceWidth && height == sourceHeight;
+        }
+
+        public AffineTransform toAffineTransform() {
+            AffineTransform t = AffineTransform.getTranslateInstance(-cropX, -cropY);
+            if (angle != 0) t.rotate(Math.toRadians(-angle), sourceWidth / 2.0, sourceHeight / 2.0);
+            return t;
+        }
+
+        /** Where a point of the rendered bitmap is on the saved image. */
+        public Point2D toImage(Point2D sourcePoint) {
+            return toAffineTransform().transform(sourcePoint, null);
+        }
+
+        /** Where a point of the saved image was on the rendered bitmap. */
+        public Point2D toSource(Point2D imagePoint) {
+            try {
+                return toAffineTransform().inverseTransform(imagePoint, null);
+            } catch (NoninvertibleTransformException e) {
+                throw new IllegalStateException(e); // A rotation and a translation always invert
+            }
+        }
+
+        /** Bounds on the saved image of a rectangle on the rendered bitmap, clipped to the image. */
+        public Rectangle2D toImage(Rectangle2D sourceRegion) {
+            Rectangle2D bounds = toAffineTransform().createTransformedShape(sourceRegion).getBounds2D();
+            return bounds.createIntersection(new Rectangle2D.Double(0, 0, width, height));
+        }
+
+        // As kept in TRANSFORMS_FILE: angle,cropX,cropY,width,height,sourceWidth,sourceHeight
+        String format() {
+            return String.format(Locale.ROOT, "%.3f,%d,%d,%d,%d,%d,%d", angle, cropX, cropY, width, height, sourceWidth, sourceHeight);
+        }
+
+        static Transform parse(String value) {
+            String[] t = value.split(",");
+            return new Transform(Integer.parseInt(t[5]), Integer.parseInt(t[6]), Double.parseDouble(t[0]),
+                    Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]), Integer.parseInt(t[4]));
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("sourceWidth", sourceWidth);
+            map.put("sourceHeight", sourceHeight);
+            map.put("angle", angle);
+            map.put("cropX", cropX);
+            map.put("cropY", cropY);
+            map.put("width", width);
+            map.put("height", height);
+            return map;
+        }
+    }
+
+    /**
+     * Find the transform for a rendered page.
+     * @param dpi Render DPI, for the padding around the content box
+     * @param deskew Look for skew too (scans); otherwise only the margins are trimmed
+     */
+    public static Transform analyze(BufferedImage image, int dpi, boolean deskew, RasterBufferPool pool) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = Math.max(1, (Math.max(width, height) + SAMPLES_PER_SIDE - 1) / SAMPLES_PER_SIDE);
+        int cols = (width + step - 1) / step;
+        int rows = (height + step - 1) / step;
+        byte[] luminance = pool.acquireBytes(cols * rows);
+        try {
+            int[] histogram = sampleLuminance(image, step, cols, rows, luminance);
+            int background = 0;
+            for (int i = 1; i < 256; i++) {
+                if (histogram[i] > histogram[background]) background = i;
+            }
+            int inkSamples = 0;
+            for (int i = 0; i < 256; i++) {
+                if (Math.abs(i - background) > INK_CONTRAST) inkSamples += histogram[i];
+            }
+            if (inkSamples == 0) return Transform.identity(width, height); // Blank page: nothing to find
+            double angle = deskew ? findSkew(luminance, cols, rows, background, inkSamples) : 0;
+            Transform transform = contentBox(luminance, cols, rows, step, background, angle, width, height, (int) Math.round(PADDING_PT * dpi / 72.0));
+            transform.fill = background;
+            return transform;
+        } finally {
+            pool.release(luminance);
+        }
+    }
+
+    // Luminance of every step-th pixel into a cols x rows grid; returns its histogram
+    private static int[] sampleLuminance(BufferedImage image, int step, int cols, int rows, byte[] luminance) {
+        int width = image.getWidth();
+        int[] histogram = new int[256];
+        int[] row = new int[width];
+        boolean gray = image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        Raster raster = image.getRaster();
+        for (int r = 0; r < rows; r++) {
+            int y = r * step;
+            // Gray samples straight from the raster: getRGB would convert them through linear gray
+            if (gray) raster.getSamples(0, y, width, 1, 0, row);
+            else image.getRGB(0, y, width, 1, row, 0, width);
+            for (int c = 0; c < cols; c++) {
+                int v = row[c * step];
+                int lum = gray ? v : (299 * ((v >> 16) & 0xFF) + 587 * ((v >> 8) & 0xFF) + 114 * (v & 0xFF)) / 1000;
+                luminance[r * cols + c] = (byte) lum;
+                histogram[lum]++;
+            }
+        }
+        return histogram;
+    }
+
+    // Skew in degrees (clockwise on screen), 0 if the page has no clear text lines or is straight enough
+    private static double findSkew(byte[] luminance, int cols, int rows, int background, int inkSamples) {
+        int stride = Math.max(1, (inkSamples + MAX_SKEW_SAMPLES - 1) / MAX_SKEW_SAMPLES);
+        int[] xs = new int[inkSamples / stride + 1];
+        int[] ys = new int[xs.length];
+        int n = 0;
+        int seen = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (Math.abs((luminance[r * cols + c] & 0xFF) - background) <= INK_CONTRAST) continue;
+                if (seen++ % stride != 0 || n == xs.length) continue;
+                xs[n] = c;
+                ys[n] = r;
+                n++;
+            }
+        }
+        int[] bins = new int[rows + 2 * cols + 2];
+        double straight = profileScore(xs, ys, n, 0, cols, bins);
+        // Coarse to fine: half-degree steps over the whole range, then tenths and fortieths around the best
+        double best = 0;
+        double bestScore = straight;
+        double[][] passes = {{MAX_SKEW_DEGREES, 0.5}, {0.5, 0.1}, {0.1, 0.025}};
+        for (double[] pass : passes) {
+            double center = best;
+            for (double a = center - pass[0]; a <= center + pass[0] + 1e-9; a += pass[1]) {
+                if (Math.abs(a) > MAX_SKEW_DEGREES) continue;
+                double score = profileScore(xs, ys, n, a, cols, bins);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = a;
+                }
+            }
+        }
+        if (Math.abs(best) < MIN_SKEW_DEGREES || bestScore < straight * MIN_SKEW_GAIN) return 0;
+        return Math.round(best * 1000) / 1000.0;
+    }
+
+    // Sum of squared counts of the samples projected across lines tilted by angle; text lines at that tilt make it peak
+    private static double profileScore(int[] xs, int[] ys, int n, double angle, int cols, int[] bins) {
+        double radians = Math.toRadians(angle);
+        double cos = Math.cos(radians);
+        double sin = Math.sin(radians);
+        Arrays.fill(bins, 0);
+        for (int i = 0; i < n; i++) {
+            int bin = (int) Math.round(ys[i] * cos - xs[i] * sin) + cols;
+            if (bin >= 0 && bin < bins.length) bins[bin]++;
+        }
+        double score = 0;
+        for (int count : bins) score += (double) count * count;
+        return score;
+    }
+
+    // Crop to the ink after rotating by -angle, with padding; the identity if that saves too little
+    private static Transform contentBox(byte[] luminance, int cols, int rows, int step, int background, double angle,
+                                        int width, int height, int padding) {
+        Transform rotation = new Transform(width, height, angle, 0, 0, width, height);
+        AffineTransform t = rotation.toAffineTransform();
+        Rectangle2D rotated = t.createTransformedShape(new Rectangle2D.Double(0, 0, width, height)).getBounds2D();
+        int minX = (int) Math.floor(rotated.getMinX());
+        int minY = (int) Math.floor(rotated.getMinY());
+        int[] colInk = new int[(int) Math.ceil(rotated.getWidth() / step) + 2];
+        int[] rowInk = new int[(int) Math.ceil(rotated.getHeight() / step) + 2];
+        double[] point = new double[2];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (Math.abs((luminance[r * cols + c] & 0xFF) - background) <= INK_CONTRAST) continue;
+                point[0] = c * step + step / 2.0;
+                point[1] = r * step + step / 2.0;
+                if (angle != 0) t.transform(point, 0, point, 0, 1);
+                colInk[Math.min(colInk.length - 1, Math.max(0, (int) ((point[0] - minX) / step)))]++;
+                rowInk[Math.min(rowInk.length - 1, Math.max(0, (int) ((point[1] - minY) / step)))]++;
+            }
+        }
+        int[] xRange = inkRange(colInk);
+        int[] yRange = inkRange(rowInk);
+        if (xRange == null || yRange == null) return Transform.identity(width, height);
+        // Without rotation the crop stays on the bitmap; rotated, it may take in the corners the rotation moved out
+        int left = angle != 0 ? minX : 0;
+        int top = angle != 0 ? minY : 0;
+        int right = angle != 0 ? (int) Math.ceil(rotated.getMaxX()) : width;
+        int bottom = angle != 0 ? (int) Math.ceil(rotated.getMaxY()) : height;
+        int x0 = Math.max(left, minX + xRange[0] * step - padding);
+        int y0 = Math.max(top, minY + yRange[0] * step - padding);
+        int x1 = Math.min(right, minX + (xRange[1] + 1) * step + padding);
+        int y1 = Math.min(bottom, minY + (yRange[1] + 1) * step + padding);
+        if (angle == 0 && (double) (x1 - x0) * (y1 - y0) > (1 - MIN_CROP_SAVING) * width * height) return Transform.identity(width, height);
+        return new Transform(width, height, angle, x0, y0, x1 - x0, y1 - y0);
+    }
+
+    // First and last index with content, or null if there is none
+    private static int[] inkRange(int[] counts) {
+        int first = 0;
+        while (first < counts.length && counts[first] < MIN_INK_SAMPLES) first++;
+        if (first == counts.length) return null;
+        int last = counts.length - 1;
+        while (counts[last] < MIN_INK_SAMPLES) last--;
+        return new int[] {first, last};
+    }
+
+    /** The normalised page in a pooled bitmap of the source's type; the source is left as it is. */
+    public static BufferedImage apply(BufferedImage image, Transform transform, RasterBufferPool pool) {
+        int type = image.getType() != BufferedImage.TYPE_CUSTOM ? image.getType() : BufferedImage.TYPE_INT_RGB;
+        BufferedImage normalized = pool.acquireImage(transform.width, transform.height, type);
+        Graphics2D g = normalized.createGraphics();
+        try {
+            g.setBackground(new Color(transform.fill, transform.fill, transform.fill));
+            g.clearRect(0, 0, transform.width, transform.height);
+            if (transform.angle != 0) {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+            g.drawImage(image, transform.toAffineTransform(), null);
+        } finally {
+            g.dispose();
+        }
+        return normalized;
+    }
+
+    public static void recordPage(Transform transform, long elapsedNanos) {
+        pages.incrementAndGet();
+        if (transform.width != transform.sourceWidth || transform.height != transform.sourceHeight) cropped.incrementAndGet();
+        if (transform.angle != 0) deskewed.incrementAndGet();
+        pixelsBefore.addAndGet((long) transform.sourceWidth * transform.sourceHeight);
+        pixelsAfter.addAndGet((long) transform.width * transform.height);
+        nanos.addAndGet(elapsedNanos);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long pageCount = pages.get();
+        stats.put("pages", pageCount);
+        stats.put("cropped", cropped.get());
+        stats.put("deskewed", deskewed.get());
+        stats.put("pixelRatio", pixelsBefore.get() > 0 ? (double) pixelsAfter.get() / pixelsBefore.get() : 1.0);
+        stats.put("avgMillis", pageCount > 0 ? nanos.get() / 1_000_000.0 / pageCount : 0.0);
+        return stats;
+    }
+
+    /** Transforms stored in a page image folder, by page image name; pages without one were saved as rendered. */
+    public static Map<String, Transform> load(File imageDir) {
+        Map<String, Transform> transforms = new HashMap<>();
+        File file = new File(imageDir, TRANSFORMS_FILE);
+        if (!file.exists()) return transforms;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return transforms;
+        }
+        for (String imageName : properties.stringPropertyNames()) {
+            try {
+                transforms.put(imageName, Transform.parse(properties.getProperty(imageName)));
+            } catch (RuntimeException e) {
+                // Skip damaged entries; the page is then taken as saved as rendered
+            }
+        }
+        return transforms;
+    }
+
+    // Add or replace the transforms of some pages, keeping the others in the folder; identity transforms remove a page's entry
+    public static synchronized void store(File imageDir, Map<String, Transform> transforms) {
+        if (transforms.isEmpty()) return;
+        Map<String, Transform> all = load(imageDir);
+        transforms.forEach((imageName, transform) -> {
+            if (transform.isIdentity()) all.remove(imageName);
+            else all.put(imageName, transform);
+        });
+        File file = new File(imageDir, TRANSFORMS_FILE);
+        if (all.isEmpty()) {
+            file.delete();
+            return;
+        }
+        Properties properties = new Properties();
+        all.forEach((imageName, t) -> properties.setProperty(imageName, t.format()));
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "Rendered page to saved image (angle,cropX,cropY,width,height,sourceWidth,sourceHeight)");
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write page transforms to " + imageDir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.recapmap.core.service;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Smaller copies of a page image for previews in the browser: THUMB and PREVIEW, next to FULL (the
+ * page image itself). They are downscaled from the page bitmap, never rendered again: in "eager" mode
+ * by the encode stage while the bitmap is still in memory, in "lazy" mode (and for pages rendered
+ * before) from the page image file on first request. Copies are JPEG, whatever the page image
+ * format, and kept in PYRAMID_FOLDER as &lt;page image name&gt;_&lt;level&gt;.jpg. A page image no
+ * bigger than a level is served for that level as it is.
+ */
+public class PagePyramid {
+
+    public static final String PYRAMID_FOLDER = "pyramid";
+    public static volatile String MODE = "eager"; // "eager" (built with the page) or "lazy" (built on first request)
+    private static final float JPEG_QUALITY = 0.8f;
+    private static final PageImageEncoder encoder = new JpegPageImageEncoder(JPEG_QUALITY);
+
+    public enum Level {
+        THUMB(256), PREVIEW(1024), FULL(0);
+
+        private final int maxSide; // Longer side in px; 0 = as rendered
+
+        Level(int maxSide) {
+            this.maxSide = maxSide;
+        }
+
+        public int getMaxSide() { return maxSide; }
+
+        public static Level parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unsupported page image level: " + value);
+            }
+        }
+    }
+
+    private static final AtomicLong eagerPages = new AtomicLong();
+    private static final AtomicLong lazyImages = new AtomicLong();
+    private static final AtomicLong nanos = new AtomicLong();
+    private static final AtomicLong bytes = new AtomicLong();
+
+    /** JPEG bytes of every level the bitmap is bigger than, each downscaled from the one above it. */
+    public static Map<Level, byte[]> build(BufferedImage image) throws IOException {
+        long start = System.nanoTime();
+        Map<Level, byte[]> levels = new EnumMap<>(Level.class);
+        BufferedImage source = image;
+        for (Level level : new Level[] {Level.PREVIEW, Level.THUMB}) {
+            BufferedImage scaled = downscale(source, level.maxSide);
+            if (scaled == null) continue;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(scaled, out);
+            levels.put(level, out.toByteArray());
+            bytes.addAndGet(out.size());
+            source = scaled;
+        }
+        eagerPages.incrementAndGet();
+        nanos.addAndGet(System.nanoTime() - start);
+        return levels;
+    }
+
+    /** Where a level of a page image is kept (FULL: the page image). */
+    public static File levelFile(File pageImage, Level level) {
+        if (level == Level.FULL) return pageImage;
+        String name = pageImage.getName();
+        int dot = name.lastIndexOf('.');
+        File dir = new File(pageImage.getAbsoluteFile().getParentFile(), PYRAMID_FOLDER);
+        return new File(dir, (dot > 0 ? name.substring(0, dot) : name) + "_" + level.name().toLowerCase() + "." + encoder.getFileExtension());
+    }
+
+    // Keep the levels built for a page image next to it
+    public static void write(File pageImage, Map<Level, byte[]> levels) throws IOException {
+        for (Map.Entry<Level, byte[]> entry : levels.entrySet()) writeAtomically(levelFile(pageImage, entry.getKey()), entry.getValue());
+    }
+
+    /**
+     * The file to serve for a level of a page image: its copy, made now if it is missing or older than the
+     * page image, or the page image itself when that is no bigger than the level.
+     */
+    public static File resolve(File pageImage, Level level) throws IOException {
+        File file = levelFile(pageImage, level);
+        if (level == Level.FULL || (file.isFile() && file.lastModified() >= pageImage.lastModified())) return file;
+        if (longerSide(pageImage) <= level.maxSide) return pageImage;
+        long start = System.nanoTime();
+        // Downscale from the next bigger level when it is at hand
+        File preview = levelFile(pageImage, Level.PREVIEW);
+        boolean fromPreview = level == Level.THUMB && preview.isFile() && preview.lastModified() >= pageImage.lastModified();
+        BufferedImage image = ImageIO.read(fromPreview ? preview : pageImage);
+        if (image == null) throw new IOException("Unreadable page image " + pageImage.getName());
+        BufferedImage scaled = downscale(image, level.maxSide);
+        if (scaled == null) return pageImage;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(scaled, out);
+        writeAtomically(file, out.toByteArray());
+        lazyImages.incrementAndGet();
+        bytes.addAndGet(out.size());
+        nanos.addAndGet(System.nanoTime() - start);
+        return file;
+    }
+
+    // From the image header, without decoding the pixels
+    private static int longerSide(File image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : Collections.emptyIterator();
+            if (!readers.hasNext()) throw new IOException("Unreadable page image " + image.getName());
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return Math.max(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Halve with bilinear filtering while more than twice too big, then one bicubic step; null if the image fits already
+    private static BufferedImage downscale(BufferedImage image, int maxSide) {
+        int longer = Math.max(image.getWidth(), image.getHeight());
+        if (longer <= maxSide) return null;
+        double scale = (double) maxSide / longer;
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        int type = image.getType() == BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2, type, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        if (current.getWidth() == targetWidth && current.getHeight() == targetHeight) return current;
+        return draw(current, targetWidth, targetHeight, type, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height, int type, Object interpolation) {
+        BufferedImage out = new BufferedImage(width, height, type);
+        Graphics2D g = out.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(source, 0, 0, width, height, null);
+        g.dispose();
+        return out;
+    }
+
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        writeAtomically(file, data, data.length);
+    }
+
+    // Readers never see half a file, two requests making the same copy don't clash, and a file
+    // hard-linked from another document (see PageCarryForward) is replaced, never overwritten in place
+    static void writeAtomically(File file, byte[] data, int length) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists()) dir.mkdirs();
+        File tmp = File.createTempFile(file.getName(), ".part", dir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(data, 0, length);
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long images = eagerPages.get() + lazyImages.get();
+        stats.put("mode", MODE);
+        stats.put("eagerPages", eagerPages.get());
+        stats.put("lazyImages", lazyImages.get());
+        stats.put("bytes", bytes.get());
+        stats.put("avgMillis", images > 0 ? nanos.get() / 1_000_000.0 / images : 0.0);
+        return stats;
+    }
+}
@@ -0,0 +1,162 @@
+package com.recapmap.core.service;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.contentstream.PDFGraphicsStreamEngine;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImage;
+import org.apache.pdfbox.util.Matrix;
+import org.apache.pdfbox.util.Vector;
+
+/**
+ * Finds figure and table regions on a page from its graphics: embedded images, painted vector paths
+ * and shadings. Every painted element contributes its bounding box; boxes closer than MERGE_GAP are
+ * merged into one region, and regions too small to be a figure (rules, underlines, bullets) or
+ * covering most of the page (backgrounds, frames) are dropped.
+ * Coordinates are in points with the origin at the top-left of the crop box, like TextPosition's
+ * XDirAdj/YDirAdj, so they can be compared with text line bounds directly.
+ * Not thread-safe: use one instance per page.
+ */
+public class PageRegionAnalyzer extends PDFGraphicsStreamEngine {
+
+    private static final double MERGE_GAP = 12; // Points between elements of the same figure
+    private static final double MIN_REGION_AREA_RATIO = 0.015; // Smaller clusters are decoration
+    private static final double MIN_REGION_SIDE = 24; // Points; thinner clusters are rules
+    private static final double BACKGROUND_AREA_RATIO = 0.6; // Single paths this large are backgrounds/frames
+
+    private final PDRectangle cropBox;
+    private final double pageArea;
+    private final List<Rectangle2D> elements = new ArrayList<>();
+    private Rectangle2D currentPath;
+
+    public PageRegionAnalyzer(PDPage page) {
+        super(page);
+        this.cropBox = page.getCropBox();
+        this.pageArea = Math.max(1.0, (double) cropBox.getWidth() * cropBox.getHeight());
+    }
+
+    /** Figure/table regions of the page, top-down coordinates, unordered. */
+    public static List<Rectangle2D> findRegions(PDPage page) throws IOException {
+        PageRegionAnalyzer analyzer = new PageRegionAnalyzer(page);
+        analyzer.processPage(page);
+        return analyzer.mergeRegions();
+    }
+
+    List<Rectangle2D> mergeRegions() {
+        List<Rectangle2D> regions = new ArrayList<>();
+        for (Rectangle2D element : elements) regions.add((Rectangle2D) element.clone());
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < regions.size() && !merged; i++) {
+                Rectangle2D a = regions.get(i);
+                Rectangle2D grown = new Rectangle2D.Double(a.getX() - MERGE_GAP, a.getY() - MERGE_GAP,
+                        a.getWidth() + 2 * MERGE_GAP, a.getHeight() + 2 * MERGE_GAP);
+                for (int j = i + 1; j < regions.size(); j++) {
+                    if (grown.intersects(regions.get(j))) {
+                        a.add(regions.remove(j));
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+        }
+        regions.removeIf(r -> r.getWidth() * r.getHeight() < pageArea * MIN_REGION_AREA_RATIO
+                || r.getWidth() < MIN_REGION_SIDE || r.getHeight() < MIN_REGION_SIDE);
+        return regions;
+    }
+
+    // Device point (PDF user space after CTM) to top-down crop box coordinates
+    private Point2D toTopDown(double x, double y) {
+        return new Point2D.Double(x - cropBox.getLowerLeftX(), cropBox.getUpperRightY() - y);
+    }
+
+    private void addElement(Rectangle2D bounds) {
+        if (bounds == null) return;
+        // Half a point of padding so hairlines (zero-height rules, table grids) still touch their neighbours
+        Rectangle2D padded = new Rectangle2D.Double(bounds.getX() - 0.5, bounds.getY() - 0.5, bounds.getWidth() + 1, bounds.getHeight() + 1);
+        Rectangle2D clipped = padded.createIntersection(new Rectangle2D.Double(0, 0, cropBox.getWidth(), cropBox.getHeight()));
+        if (clipped.getWidth() <= 0 || clipped.getHeight() <= 0) return;
+        elements.add(clipped);
+    }
+
+    private void extendPath(double x, double y) {
+        Point2D p = toTopDown(x, y);
+        if (currentPath == null) currentPath = new Rectangle2D.Double(p.getX(), p.getY(), 0, 0);
+        else currentPath.add(p);
+    }
+
+    private void paintPath() {
+        if (currentPath != null && currentPath.getWidth() * currentPath.getHeight() < pageArea * BACKGROUND_AREA_RATIO) {
+            addElement(currentPath);
+        }
+        currentPath = null;
+    }
+
+    @Override
+    public void drawImage(PDImage pdImage) throws IOException {
+        // The image fills the unit square transformed by the CTM
+        Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+        Rectangle2D bounds = null;
+        for (double[] corner : new double[][] {{0, 0}, {1, 0}, {0, 1}, {1, 1}}) {
+            Point2D.Float device = ctm.transformPoint((float) corner[0], (float) corner[1]);
+            Point2D p = toTopDown(device.x, device.y);
+            if (bounds == null) bounds = new Rectangle2D.Double(p.getX(), p.getY(), 0, 0);
+            else bounds.add(p);
+        }
+        addElement(bounds);
+    }
+
+    @Override
+    public void shadingFill(COSName shadingName) throws IOException {
+        // Shadings fill the current clip
+        Rectangle2D clip = getGraphicsState().getCurrentClippingPath().getBounds2D();
+        Point2D a = toTopDown(clip.getMinX(), clip.getMinY());
+        Point2D b = toTopDown(clip.getMaxX(), clip.getMaxY());
+        Rectangle2D bounds = new Rectangle2D.Double(a.getX(), a.getY(), 0, 0);
+        bounds.add(b);
+        if (bounds.getWidth() * bounds.getHeight() < pageArea * BACKGROUND_AREA_RATIO) addElement(bounds);
+    }
+
+    @Override
+    public void appendRectangle(Point2D p0, Point2D p1, Point2D p2, Point2D p3) {
+        extendPath(p0.getX(), p0.getY());
+        extendPath(p1.getX(), p1.getY());
+        extendPath(p2.getX(), p2.getY());
+        extendPath(p3.getX(), p3.getY());
+    }
+
+    @Override public void moveTo(float x, float y) { extendPath(x, y); }
+    @Override public void lineTo(float x, float y) { extendPath(x, y); }
+
+    @Override
+    public void curveTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+        extendPath(x1, y1);
+        extendPath(x2, y2);
+        extendPath(x3, y3);
+    }
+
+    @Override public void strokePath() { paintPath(); }
+    @Override public void fillPath(int windingRule) { paintPath(); }
+    @Override public void fillAndStrokePath(int windingRule) { paintPath(); }
+    @Override public void endPath() { currentPath = null; }
+    @Override public void clip(int windingRule) {}
+    @Override public void closePath() {}
+
+    @Override
+    public Point2D getCurrentPoint() {
+        return new Point2D.Float(0, 0);
+    }
+
+    @Override
+    protected void showGlyph(Matrix textRenderingMatrix, PDFont font, int code, Vector displacement) {
+        // Text comes from the text layer; no glyph outlines needed
+    }
+}
@@ -0,0 +1,42 @@
+package com.recapmap.core.service;
+
+import org.apache.pdfbox.rendering.ImageType;
+
+/**
+ * Render settings chosen per page from its content (see PageContentAnalyzer).
+ * DPIs come from the conversion's ConversionSettings so they stay admin-configurable.
+ */
+public enum PageRenderProfile {
+    /** Black/gray text and simple rules: low DPI, 8-bit gray. */
+    TEXT(ImageType.GRAY),
+    /** Anything in between: the configured DPI in colour, i.e. the classic behaviour. */
+    MIXED(ImageType.RGB),
+    /** Embedded images, shadings or dense vector graphics: high DPI in colour. */
+    FIGURE(ImageType.RGB);
+
+    private final ImageType imageType;
+
+    PageRenderProfile(ImageType imageType) {
+        this.imageType = imageType;
+    }
+
+    public ImageType getImageType() {
+        return imageType;
+    }
+
+    // TYPE_BYTE_GRAY vs TYPE_INT_RGB rasters
+    public int getBytesPerPixel() {
+        return imageType == ImageType.GRAY ? 1 : 4;
+    }
+
+    public int getDpi(ConversionSettings settings) {
+        switch (this) {
+            case TEXT:
+                return settings.getTextProfileDpi();
+            case FIGURE:
+                return settings.getFigureProfileDpi();
+            default:
+                return settings.getDpi();
+        }
+    }
+}
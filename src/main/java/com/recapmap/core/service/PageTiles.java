@@ -0,0 +1,190 @@
+package com.recapmap.core.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Tile layout of an oversized page (engineering drawings, posters, A0 sheets).
+ * Instead of one huge bitmap such a page is rendered as a grid of overlapping tiles at the full DPI,
+ * so small text stays readable while only one tile is in memory at a time; the page image itself
+ * is a reduced overview. Tile positions are in pixels of the whole page at the tile DPI, top-left
+ * origin, so results per tile can be placed back on the page.
+ * Layouts are kept next to the page images in TILES_FILE, the tile images in TILES_FOLDER.
+ */
+public class PageTiles {
+
+    public static final String TILES_FILE = "page-tiles.properties";
+    public static final String TILES_FOLDER = "tiles";
+
+    public static class Tile {
+        private final int row;
+        private final int col;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private String imageName;
+
+        Tile(int row, int col, int x, int y, int width, int height, String imageName) {
+            this.row = row;
+            this.col = col;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.imageName = imageName;
+        }
+
+        public int getRow() { return row; }
+        public int getCol() { return col; }
+        public int getX() { return x; }
+        public int getY() { return y; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public String getImageName() { return imageName; }
+        public void setImageName(String imageName) { this.imageName = imageName; }
+    }
+
+    private final int pageWidth;
+    private final int pageHeight;
+    private final int dpi;
+    private final List<Tile> tiles;
+
+    private PageTiles(int pageWidth, int pageHeight, int dpi, List<Tile> tiles) {
+        this.pageWidth = pageWidth;
+        this.pageHeight = pageHeight;
+        this.dpi = dpi;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Cover a page of pageWidth x pageHeight pixels with tiles of at most tileSize pixels a side,
+     * neighbours overlapping by at least overlap pixels so a line of text cut by one tile edge is
+     * whole in the other tile. Tiles are spread evenly, row by row.
+     */
+    public static PageTiles layout(int pageWidth, int pageHeight, int dpi, int tileSize, int overlap) {
+        int[] xs = positions(pageWidth, tileSize, overlap);
+        int[] ys = positions(pageHeight, tileSize, overlap);
+        List<Tile> tiles = new ArrayList<>();
+        for (int row = 0; row < ys.length; row++) {
+            for (int col = 0; col < xs.length; col++) {
+                tiles.add(new Tile(row, col, xs[col], ys[row], Math.min(tileSize, pageWidth), Math.min(tileSize, pageHeight), null));
+            }
+        }
+        return new PageTiles(pageWidth, pageHeight, dpi, tiles);
+    }
+
+    private static int[] positions(int length, int tileSize, int overlap) {
+        if (length <= tileSize) return new int[] {0};
+        int stride = Math.max(1, tileSize - overlap);
+        int count = (int) Math.ceil((double) (length - overlap) / stride);
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) positions[i] = (int) Math.round((double) i * (length - tileSize) / (count - 1));
+        return positions;
+    }
+
+    public int getPageWidth() { return pageWidth; }
+    public int getPageHeight() { return pageHeight; }
+    public int getDpi() { return dpi; }
+    public List<Tile> getTiles() { return tiles; }
+
+    /** Tile image files, in tile order; null if any of them is missing. */
+    public List<File> getTileFiles(File imageDir) {
+        List<File> files = new ArrayList<>();
+        for (Tile tile : tiles) {
+            File file = new File(new File(imageDir, TILES_FOLDER), String.valueOf(tile.imageName));
+            if (tile.imageName == null || !file.exists()) return null;
+            files.add(file);
+        }
+        return files;
+    }
+
+    // Layout as plain maps, e.g. for writing next to an extraction result
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("pageWidth", pageWidth);
+        map.put("pageHeight", pageHeight);
+        map.put("dpi", dpi);
+        List<Map<String, Object>> tileMaps = new ArrayList<>();
+        for (Tile tile : tiles) {
+            Map<String, Object> t = new LinkedHashMap<>();
+            t.put("image", tile.imageName);
+            t.put("row", tile.row);
+            t.put("col", tile.col);
+            t.put("x", tile.x);
+            t.put("y", tile.y);
+            t.put("width", tile.width);
+            t.put("height", tile.height);
+            tileMaps.add(t);
+        }
+        map.put("tiles", tileMaps);
+        return map;
+    }
+
+    /** Layouts stored in a page image folder, by page image name; empty if there are none. */
+    public static Map<String, PageTiles> load(File imageDir) {
+        Map<String, PageTiles> layouts = new HashMap<>();
+        File file = new File(imageDir, TILES_FILE);
+        if (!file.exists()) return layouts;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return layouts;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.endsWith(".page")) continue;
+            String imageName = key.substring(0, key.length() - ".page".length());
+            try {
+                layouts.put(imageName, read(properties, imageName));
+            } catch (RuntimeException e) {
+                // Skip damaged entries; the page is then treated as untiled
+            }
+        }
+        return layouts;
+    }
+
+    // The layout as "<prefix>.page" and "<prefix>.tile.<i>" entries, the form TILES_FILE keeps it in
+    void write(Properties properties, String prefix) {
+        properties.setProperty(prefix + ".page", pageWidth + "," + pageHeight + "," + dpi);
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile t = tiles.get(i);
+            properties.setProperty(prefix + ".tile." + i, t.imageName + "," + t.row + "," + t.col + "," + t.x + "," + t.y + "," + t.width + "," + t.height);
+        }
+    }
+
+    static PageTiles read(Properties properties, String prefix) {
+        String[] page = properties.getProperty(prefix + ".page").split(",");
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; properties.containsKey(prefix + ".tile." + i); i++) {
+            String[] t = properties.getProperty(prefix + ".tile." + i).split(",");
+            tiles.add(new Tile(Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]), Integer.parseInt(t[4]),
+                    Integer.parseInt(t[5]), Integer.parseInt(t[6]), t[0]));
+        }
+        return new PageTiles(Integer.parseInt(page[0]), Integer.parseInt(page[1]), Integer.parseInt(page[2]), tiles);
+    }
+
+    // Add or replace the layouts of some pages, keeping the others in the folder
+    public static synchronized void store(File imageDir, Map<String, PageTiles> layouts) {
+        if (layouts.isEmpty()) return;
+        Map<String, PageTiles> all = load(imageDir);
+        all.putAll(layouts);
+        Properties properties = new Properties();
+        all.forEach((imageName, layout) -> layout.write(properties, imageName));
+        try (OutputStream out = new FileOutputStream(new File(imageDir, TILES_FILE))) {
+            properties.store(out, "Tile layouts of oversized pages (page: width,height,dpi; tile: image,row,col,x,y,width,height)");
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write page tile layouts to " + imageDir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.recapmap.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.DefaultResourceCache;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+/**
+ * Bounded pool of independent PDDocument/PDFRenderer handles opened on the same PDF file.
+ * PDFBox documents are not thread-safe, so every rendering worker borrows a handle of its own
+ * for the duration of a page and gives it back afterwards. Handles are opened lazily, up to
+ * maxHandles, and reused across pages of the same conversion.
+ * In low-memory mode (a MemoryUsageSetting is given) stream data parsed from the file is kept per
+ * that setting, typically in temp files, page images are not cached between pages, and a handle is
+ * closed after maxPagesPerHandle pages so the objects it parsed on the way don't pile up.
+ */
+public class PdfDocumentPool implements AutoCloseable {
+
+    /** One parsed copy of the document plus the renderer bound to it. */
+    public static class Handle {
+        private final PDDocument document;
+        private final PDFRenderer renderer;
+        private int pagesServed = 0;
+
+        Handle(PDDocument document) {
+            this.document = document;
+            this.renderer = new PDFRenderer(document);
+        }
+
+        public PDDocument getDocument() { return document; }
+        public PDFRenderer getRenderer() { return renderer; }
+    }
+
+    // Keeps fonts and colour spaces across pages but no images: in a scan every page image is used once,
+    // and the default cache would hold each decoded image until the heap runs short
+    private static class NoImageResourceCache extends DefaultResourceCache {
+        @Override
+        public void put(COSObject indirect, PDXObject xobject) {
+        }
+    }
+
+    private final File pdfFile;
+    private final int maxHandles;
+    private final MemoryUsageSetting memoryUsage;
+    private final int maxPagesPerHandle;
+    private final int pageCount;
+    private int handlesOpened = 0;
+    private final BlockingQueue<Handle> idle = new LinkedBlockingQueue<>();
+    private final List<Handle> allHandles = new ArrayList<>();
+    private boolean closed = false;
+
+    public PdfDocumentPool(File pdfFile, int maxHandles) throws IOException {
+        this(pdfFile, maxHandles, null, 0);
+    }
+
+    /**
+     * @param memoryUsage Where parsed stream data is kept; null for PDFBox's default (heap only)
+     * @param maxPagesPerHandle Pages after which a handle is closed and reopened when needed (0 = never)
+     */
+    public PdfDocumentPool(File pdfFile, int maxHandles, MemoryUsageSetting memoryUsage, int maxPagesPerHandle) throws IOException {
+        this.pdfFile = pdfFile;
+        this.maxHandles = Math.max(1, maxHandles);
+        this.memoryUsage = memoryUsage;
+        this.maxPagesPerHandle = Math.max(0, maxPagesPerHandle);
+        // Open the first handle eagerly: it validates the file and gives us the page count
+        Handle first = open();
+        this.pageCount = first.getDocument().getNumberOfPages();
+        allHandles.add(first);
+        idle.add(first);
+    }
+
+    public File getPdfFile() {
+        return pdfFile;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    // Handles opened over the pool's life, including ones closed and reopened in low-memory mode
+    public synchronized int getOpenedHandles() {
+        return handlesOpened;
+    }
+
+    public int getMaxHandles() {
+        return maxHandles;
+    }
+
+    public boolean isLowMemory() {
+        return memoryUsage != null;
+    }
+
+    private Handle open() throws IOException {
+        PDDocument document = memoryUsage != null ? PDDocument.load(pdfFile, memoryUsage) : PDDocument.load(pdfFile);
+        if (memoryUsage != null) document.setResourceCache(new NoImageResourceCache());
+        synchronized (this) {
+            handlesOpened++;
+        }
+        return new Handle(document);
+    }
+
+    /**
+     * Borrow a handle for exclusive use. Opens a new one while under the limit,
+     * otherwise waits for another worker to release theirs (or retire it, freeing its slot).
+     */
+    public Handle borrow() throws IOException, InterruptedException {
+        while (true) {
+            Handle handle = idle.poll();
+            if (handle != null) return served(handle);
+            boolean openNew;
+            synchronized (this) {
+                if (closed) throw new IllegalStateException("Document pool is closed for " + pdfFile.getName());
+                openNew = allHandles.size() < maxHandles;
+                if (openNew) allHandles.add(null); // reserve the slot while loading outside the lock
+            }
+            if (openNew) {
+                try {
+                    handle = open();
+                } catch (IOException | RuntimeException e) {
+                    synchronized (this) { allHandles.remove(null); }
+                    throw e;
+                }
+                synchronized (this) {
+                    allHandles.set(allHandles.indexOf(null), handle);
+                    if (closed) {
+                        closeQuietly(handle);
+                        throw new IllegalStateException("Document pool is closed for " + pdfFile.getName());
+                    }
+                }
+                return served(handle);
+            }
+            handle = idle.poll(100, TimeUnit.MILLISECONDS);
+            if (handle != null) return served(handle);
+        }
+    }
+
+    private static Handle served(Handle handle) {
+        handle.pagesServed++;
+        return handle;
+    }
+
+    public void release(Handle handle) {
+        if (handle == null) return;
+        synchronized (this) {
+            boolean retire = maxPagesPerHandle > 0 && handle.pagesServed >= maxPagesPerHandle;
+            if (closed || retire) {
+                // A retired handle frees its slot; the next borrow opens a fresh one
+                allHandles.remove(handle);
+                closeQuietly(handle);
+                return;
+            }
+        }
+        idle.offer(handle);
+    }
+
+    @Override
+    public void close() {
+        List<Handle> toClose;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            toClose = new ArrayList<>();
+            idle.drainTo(toClose);
+        }
+        for (Handle handle : toClose) closeQuietly(handle);
+    }
+
+    private static void closeQuietly(Handle handle) {
+        try { handle.getDocument().close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,80 @@
+package com.recapmap.core.service;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+
+/**
+ * PDFBox's cache of the system fonts it can substitute for fonts a PDF doesn't embed. Without it,
+ * the first page needing such a font waits while PDFBox reads every font file on the machine;
+ * with it, only the cache file is read and fonts added or changed since are scanned.
+ * The cache is kept in CACHE_FILE inside the folder named by the pdfbox.fontcache system property
+ * (the user's home folder when it isn't set), so a deployment can ship one built ahead of time:
+ * <pre>java -cp core.jar com.recapmap.core.service.PdfFontCache &lt;folder&gt;</pre>
+ * The property must be set before PDFBox maps its first font; render processes are given the same one.
+ */
+public class PdfFontCache {
+
+    public static final String FOLDER_PROPERTY = "pdfbox.fontcache";
+    public static final String CACHE_FILE = ".pdfbox.cache";
+
+    private static volatile boolean loaded;
+    private static volatile boolean cacheHit;
+    private static volatile long loadMillis = -1;
+
+    // Use the cache in this folder unless one was given on the command line
+    public static void configure(String folder) {
+        if (folder == null || folder.isBlank() || System.getProperty(FOLDER_PROPERTY) != null) return;
+        File dir = new File(folder).getAbsoluteFile();
+        if (!dir.exists()) dir.mkdirs();
+        System.setProperty(FOLDER_PROPERTY, dir.getPath());
+    }
+
+    public static File cacheFile() {
+        String folder = System.getProperty(FOLDER_PROPERTY);
+        return new File(folder != null ? folder : System.getProperty("user.home"), CACHE_FILE);
+    }
+
+    /** Have PDFBox read (or build) its font list now rather than on the first page that needs it. */
+    public static synchronized long load() {
+        if (loaded) return loadMillis;
+        cacheHit = cacheFile().isFile();
+        long start = System.currentTimeMillis();
+        // The first lookup makes PDFBox load its font list; Helvetica is mapped to a system font on nearly every page
+        FontMappers.instance().getFontBoxFont("Helvetica", null);
+        loadMillis = System.currentTimeMillis() - start;
+        loaded = true;
+        System.out.println("[PdfFontCache] " + (cacheHit ? "Loaded font cache " : "Built font cache ") + cacheFile() + " in " + loadMillis + " ms");
+        return loadMillis;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        File file = cacheFile();
+        stats.put("file", file.getPath());
+        stats.put("bytes", file.isFile() ? file.length() : 0);
+        stats.put("loaded", loaded);
+        stats.put("cacheHit", cacheHit);
+        stats.put("loadMillis", loadMillis);
+        return stats;
+    }
+
+    // Build step of a deployment: write the cache into the folder given, to ship with the application
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java -cp core.jar " + PdfFontCache.class.getName() + " <folder>");
+            System.exit(2);
+        }
+        System.setProperty(FOLDER_PROPERTY, new File(args[0]).getAbsolutePath());
+        new File(args[0]).mkdirs();
+        load();
+        File file = cacheFile();
+        if (!file.isFile()) {
+            System.err.println("No font cache was written to " + file);
+            System.exit(1);
+        }
+        System.out.println("Font cache " + file + " (" + file.length() + " bytes)");
+    }
+}
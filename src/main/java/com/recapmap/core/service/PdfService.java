@@ -1,26 +1,45 @@
 package com.recapmap.core.service;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
-import javax.imageio.ImageIO;
-
-import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.blend.BlendMode;
+import org.apache.pdfbox.pdmodel.graphics.state.PDExtendedGraphicsState;
 import org.apache.pdfbox.rendering.ImageType;
-import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.rendering.RenderDestination;
 import org.springframework.stereotype.Service;
 
 import com.recapmap.core.data.PdfSourceDataSource;
@@ -29,13 +48,76 @@ import com.recapmap.core.data.PdfSourceDataSource;
 public class PdfService {
     // Configurable global variables
     public static String ROOT_FOLDER = "D:/workspace_recapmap/core-suite-server-files"; // Windows path
-    public static int MAX_UPLOAD_SIZE_MB = 200; // Max upload size in MB
-    public static int PDF_TO_IMAGE_DPI = 150; // Possible values: 72, 150, 200, 300, etc.
-    public static int MAX_CONVERT_THREADS = 20; // Configurable max threads for conversion
-    private static ExecutorService convertThreadPool = Executors.newFixedThreadPool(MAX_CONVERT_THREADS);
+    public static volatile int MAX_UPLOAD_SIZE_MB = 200; // Max upload size in MB
+    // Worker counts; the pipeline applies them live, these fields only report what was asked for last
+    public static volatile int MAX_CONVERT_THREADS = 20; // Render stage threads (the ceiling in auto mode)
+    public static volatile String CONVERT_THREADS_MODE = "fixed"; // "fixed" (MAX_CONVERT_THREADS) or "auto" (see ConvertThreadTuner)
+    public static volatile int NORMALIZE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static volatile int SHARPEN_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static volatile int ENCODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static volatile int WRITE_THREADS = 4;
+    public static volatile String RENDER_WORKERS = "threads"; // "threads" (render in this JVM) or "processes" (child JVMs, see RenderProcessPool)
+    public static volatile int RENDER_PROCESSES = Math.max(1, Runtime.getRuntime().availableProcessors()); // Pages rendering at once in processes mode
+    public static volatile int RENDER_PROCESS_HEAP_MB = 1024; // Max heap of a render process
+    public static volatile int RENDER_PROCESS_MAX_PAGES = 200; // Pages after which a render process is replaced (0 = never)
+    public static int PIPELINE_QUEUE_CAPACITY = 8; // Pages buffered between two pipeline stages
+    private static final int RENDER_QUEUE_CAPACITY = 256; // Pending page tasks per document (no bitmaps yet)
+    public static volatile int RENDER_MEMORY_BUDGET_MB = (int) Math.max(64, Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)); // Heap for page bitmaps in flight
+    public static volatile int RASTER_POOL_MB = (int) Math.max(16, Runtime.getRuntime().maxMemory() / 8 / (1024 * 1024)); // Idle page bitmaps kept for reuse (0 = off)
+    private static final int TILED_OVERVIEW_MAX_SIDE_PX = 2048; // The page image of a tiled page is an overview at most this big
+    public static volatile int LARGE_DOCUMENT_THRESHOLD_MB = 50; // PDFs at least this big are opened in low-memory mode (0 = never)
+    public static volatile int LARGE_DOCUMENT_MAX_HANDLES = 2; // Document handles (and pages rendering at once) for a large PDF
+    private static final int LARGE_DOCUMENT_HEAP_MB = 16; // Parsed stream data kept on the heap per handle; the rest goes to temp files
+    private static final int LARGE_DOCUMENT_PAGES_PER_HANDLE = 32; // A large PDF's handle is reopened after this many pages
+
+    // DPI, profiles, sharpening, normalising, tiling and image format: swapped whole, taken once per conversion
+    private static final AtomicReference<ConversionSettings> settings = new AtomicReference<>(ConversionSettings.defaults());
+
+    // Bitmaps are reserved against RENDER_MEMORY_BUDGET_MB from render until encode
+    private static final RenderMemoryBudget renderMemoryBudget = new RenderMemoryBudget(RENDER_MEMORY_BUDGET_MB * 1024L * 1024L);
+
+    // Pixel arrays of page bitmaps and encoded images, reused from page to page instead of allocated per page
+    private static final RasterBufferPool rasterBufferPool = new RasterBufferPool(RASTER_POOL_MB * 1024L * 1024L);
+
+    // Render scheduler tenants are a salted hash of the session ID (see tenantId), never the ID itself
+    private static final byte[] TENANT_SALT = new byte[16];
+    static {
+        new SecureRandom().nextBytes(TENANT_SALT);
+    }
+
+    // Decides which session's (and which document's) page is rendered next
+    private static final FairShareScheduler renderScheduler = new FairShareScheduler(RENDER_QUEUE_CAPACITY);
+
+    // Staged conversion pipeline: render -> normalize -> sharpen -> encode -> write, each with its own workers
+    private static final PageConversionPipeline conversionPipeline = new PageConversionPipeline()
+            .withRenderMemoryBudget(renderMemoryBudget)
+            .addStage("render", MAX_CONVERT_THREADS, renderScheduler, PdfService::renderStage)
+            .addStage("normalize", NORMALIZE_THREADS, PIPELINE_QUEUE_CAPACITY, PdfService::normalizeStage)
+            .addStage("sharpen", SHARPEN_THREADS, PIPELINE_QUEUE_CAPACITY, PdfService::sharpenStage)
+            .addStage("encode", ENCODE_THREADS, PIPELINE_QUEUE_CAPACITY, PdfService::encodeStage)
+            .addStage("write", WRITE_THREADS, PIPELINE_QUEUE_CAPACITY, PdfService::writeStage);
+
+    // Render processes, used while RENDER_WORKERS is "processes"; none are started before the first page
+    private static final RenderProcessPool renderProcessPool = new RenderProcessPool(RENDER_PROCESSES, RENDER_PROCESS_HEAP_MB, RENDER_PROCESS_MAX_PAGES);
+
+    // Sizes the render stage from CPU load, heap headroom and queue latency while CONVERT_THREADS_MODE is "auto"
+    private static final ConvertThreadTuner convertThreadTuner = new ConvertThreadTuner(conversionPipeline, "render", renderMemoryBudget);
+
+    // Written next to the page images after a conversion without errors, so identical re-conversions can be skipped
+    static final String CONVERSION_MARKER = "conversion.properties";
+    // Render settings of pages rendered one range at a time (renderPages), keyed by page number
+    static final String PAGE_RENDERS_FILE = "page-renders.properties";
+
+    private final DocumentStoreService documentStore;
+    private final ProgressEventService progressEvents;
+
+    public PdfService(DocumentStoreService documentStore, ProgressEventService progressEvents) {
+        this.documentStore = documentStore;
+        this.progressEvents = progressEvents;
+    }
 
     // In-memory session-based multi-tenancy
-    private final Map<String, PdfSourceDataSource> sessionDataSources = new HashMap<>();
+    private final Map<String, PdfSourceDataSource> sessionDataSources = new ConcurrentHashMap<>();
 
     public PdfSourceDataSource getDataSourceForSession(String sessionId) {
         return sessionDataSources.computeIfAbsent(sessionId, k -> new PdfSourceDataSource());
@@ -43,10 +125,13 @@ public class PdfService {
 
     public void clearSession(String sessionId) {
         sessionDataSources.remove(sessionId);
+        renderScheduler.forgetTenant(tenantId(sessionId));
+        progressEvents.clearSession(sessionId);
     }
 
     public void clearAllSessions() {
         sessionDataSources.clear();
+        progressEvents.clearAllSessions();
     }
 
     // Utility: get session directory
@@ -54,23 +139,228 @@ public class PdfService {
         return new File(ROOT_FOLDER, sessionId);
     }
 
-    // Progress log per session (sessionId -> List of log lines)
-    private final Map<String, List<String>> progressLogs = new ConcurrentHashMap<>();
+    // Per-document lock objects: conversions sharing a document folder must not render into it at once.
+    // Different documents convert concurrently, also within one session; the render scheduler shares the workers.
+    private final Map<String, Object> documentLocks = new ConcurrentHashMap<>();
+
+    // Resolve the stored PDF of an upload: the document store for hashed uploads, else the session folder
+    public File findStoredPdf(String sessionId, String uuid) {
+        String contentHash = getDataSourceForSession(sessionId).getContentHash(uuid);
+        if (contentHash != null) return documentStore.getSourceFile(contentHash);
+        File[] files = getSessionDir(sessionId).listFiles((dir, name) -> name.startsWith(uuid + "."));
+        return files == null || files.length == 0 ? null : files[0];
+    }
+
+    // Output folder (page images, json_result) of an upload
+    public File getDocumentOutputDir(String sessionId, String uuid) {
+        String contentHash = getDataSourceForSession(sessionId).getContentHash(uuid);
+        if (contentHash != null) return documentStore.getDocumentDir(contentHash);
+        return new File(getSessionDir(sessionId), uuid);
+    }
+
+    // Convert an upload (by UUID) into its output folder. Stored documents that were already
+    // converted with the current render settings are reused instead of rendered again, and pages
+    // unchanged from an earlier version of the document (same content hash) take its page images.
+    public void convertDocument(String sessionId, String uuid) {
+        File pdfFile = findStoredPdf(sessionId, uuid);
+        File outputDir = getDocumentOutputDir(sessionId, uuid);
+        if (!outputDir.exists()) outputDir.mkdirs();
+        RetentionService.touch(outputDir);
+        String contentHash = getDataSourceForSession(sessionId).getContentHash(uuid);
+        convertPdfFile(sessionId, uuid, pdfFile, outputDir, getImageBaseName(sessionId, uuid), contentHash != null);
+    }
+
+    // Conversions started without a request waiting for them (e.g. once an upload completes), a few at a time
+    private static final int QUEUED_CONVERSION_THREADS = 4;
+    private static final ExecutorService queuedConversions = Executors.newFixedThreadPool(QUEUED_CONVERSION_THREADS, r -> {
+        Thread thread = new Thread(r, "pdf-queued-conversion");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Run convertDocument in the background; progress is reported through the session's progress events
+    public void queueConversion(String sessionId, String uuid) {
+        queuedConversions.execute(() -> convertDocument(sessionId, uuid));
+    }
 
-    // Per-session lock objects for conversion
-    private final Map<String, Object> sessionLocks = new ConcurrentHashMap<>();
+    // Page images are named <base>_page<N>.<ext>: the content hash for stored documents, else the UUID
+    private String getImageBaseName(String sessionId, String uuid) {
+        String contentHash = getDataSourceForSession(sessionId).getContentHash(uuid);
+        return contentHash != null ? contentHash : uuid;
+    }
 
-    // Utility: Sharpen a BufferedImage using a mild kernel (less pixelation)
-    public static BufferedImage sharpenImage(BufferedImage image) {
-        // Gentler sharpen kernel to avoid pixelation
-        float[] kernel = {
-            0f,   -0.25f,  0f,
-           -0.25f, 2f,   -0.25f,
-            0f,   -0.25f,  0f
-        };
-        Kernel sharpKernel = new Kernel(3, 3, kernel);
-        ConvolveOp op = new ConvolveOp(sharpKernel, ConvolveOp.EDGE_NO_OP, null);
-        return op.filter(image, null);
+    /**
+     * Render only pages fromPage..toPage (1-based, inclusive) of an upload, without converting the rest.
+     * Pages already rendered with the current settings (by an earlier range or a full conversion)
+     * are reused, so repeated or overlapping requests only render what is missing.
+     * Missing pages of a stored document that are unchanged from an earlier version take its images (PageCarryForward).
+     * @return "pages" (page, image, reused), "renderedPages", "reusedPages", "carriedForwardPages", "pageCount", "largeDocument",
+     *         "peakHeapMb" (heap in use while the missing pages rendered, 0 if none were) and "millis"
+     */
+    public Map<String, Object> renderPages(String sessionId, String uuid, int fromPage, int toPage) throws IOException, InterruptedException {
+        File pdfFile = findStoredPdf(sessionId, uuid);
+        if (pdfFile == null) throw new IOException("Stored file not found for " + uuid);
+        File outputDir = getDocumentOutputDir(sessionId, uuid);
+        if (!outputDir.exists()) outputDir.mkdirs();
+        RetentionService.touch(outputDir);
+        String imageBaseName = getImageBaseName(sessionId, uuid);
+        long start = System.currentTimeMillis();
+        Object documentLock = documentLocks.computeIfAbsent(outputDir.getAbsolutePath(), k -> new Object());
+        synchronized (documentLock) {
+            ConversionSettings conversionSettings = getSettings();
+            String renderSignature = conversionSettings.getSignature();
+            Properties pageRenders = loadProperties(new File(outputDir, PAGE_RENDERS_FILE));
+            Properties marker = loadProperties(new File(outputDir, CONVERSION_MARKER));
+            try (PdfDocumentPool documentPool = openDocumentPool(pdfFile)) {
+                int pageCount = documentPool.getPageCount();
+                if (fromPage < 1 || toPage < fromPage || toPage > pageCount) {
+                    throw new IllegalArgumentException("Page range " + fromPage + "-" + toPage + " outside 1-" + pageCount);
+                }
+                Map<Integer, String> images = new TreeMap<>();
+                List<Integer> missing = new ArrayList<>();
+                for (int page = fromPage; page <= toPage; page++) {
+                    String imageName = currentPageImage(outputDir, imageBaseName, page, renderSignature, marker, pageRenders);
+                    if (imageName != null) {
+                        images.put(page, imageName);
+                    } else {
+                        missing.add(page);
+                    }
+                }
+                Set<Integer> reused = new HashSet<>(images.keySet());
+                // Missing pages unchanged from an earlier version of a stored document take its images
+                int carriedForward = 0;
+                if (!missing.isEmpty() && getDataSourceForSession(sessionId).getContentHash(uuid) != null) {
+                    PageCarryForward carryForward = new PageCarryForward(outputDir, imageBaseName, renderSignature);
+                    Map<Integer, String> pageHashes = pageContentHashes(documentPool, outputDir);
+                    for (java.util.Iterator<Integer> it = missing.iterator(); it.hasNext(); ) {
+                        int page = it.next();
+                        String imageName = carryForward.carry(page - 1, pageHashes.get(page - 1));
+                        if (imageName == null) continue;
+                        images.put(page, imageName);
+                        pageRenders.setProperty("page." + page + ".image", imageName);
+                        pageRenders.setProperty("page." + page + ".signature", renderSignature);
+                        it.remove();
+                        carriedForward++;
+                    }
+                    if (carriedForward > 0) {
+                        storeProperties(new File(outputDir, PAGE_RENDERS_FILE), pageRenders, "Pages rendered on demand");
+                        PageFingerprint.store(outputDir, carryForward.getFingerprints());
+                        PageNormalizer.store(outputDir, carryForward.getTransforms());
+                    }
+                }
+                long peakHeapMb = 0;
+                if (!missing.isEmpty()) {
+                    Map<String, PageFingerprint> fingerprints = new HashMap<>();
+                    Map<String, PageTiles> tiles = new HashMap<>();
+                    Map<String, PageNormalizer.Transform> transforms = new HashMap<>();
+                    progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.STARTED, "Rendering pages " + fromPage + "-" + toPage
+                            + " of " + pdfFile.getName() + " (" + missing.size() + " not rendered yet)", 0, missing.size());
+                    AtomicInteger rendered = new AtomicInteger();
+                    PageConversionPipeline.Job job = new PageConversionPipeline.Job(tenantId(sessionId), imageBaseName, documentPool, outputDir, conversionSettings, missing.size(),
+                            new PageConversionPipeline.JobListener() {
+                        @Override
+                        public void pageCompleted(PageConversionPipeline.PageTask task) {
+                            StartupWarmupService.pageRendered(start);
+                            synchronized (images) {
+                                images.put(task.getPageIndex() + 1, task.getImageName());
+                                fingerprints.put(task.getImageName(), task.getFingerprint());
+                                if (task.getTiles() != null) tiles.put(task.getImageName(), task.getTiles());
+                                if (task.getTransform() != null) transforms.put(task.getImageName(), task.getTransform());
+                            }
+                            progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.PAGE, "Rendered page " + (task.getPageIndex() + 1),
+                                    rendered.incrementAndGet(), missing.size());
+                        }
+
+                        @Override
+                        public void pageFailed(PageConversionPipeline.PageTask task, Throwable error) {
+                            progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.PAGE_FAILED,
+                                    "Error converting page " + (task.getPageIndex() + 1) + ": " + error.getMessage(), rendered.incrementAndGet(), missing.size());
+                        }
+                    });
+                    for (int page : missing) {
+                        conversionPipeline.submit(new PageConversionPipeline.PageTask(job, page - 1));
+                    }
+                    job.await();
+                    for (int page : missing) {
+                        String imageName = images.get(page);
+                        if (imageName == null) continue;
+                        pageRenders.setProperty("page." + page + ".image", imageName);
+                        pageRenders.setProperty("page." + page + ".signature", renderSignature);
+                    }
+                    storeProperties(new File(outputDir, PAGE_RENDERS_FILE), pageRenders, "Pages rendered on demand");
+                    PageFingerprint.store(outputDir, fingerprints);
+                    PageTiles.store(outputDir, tiles);
+                    PageNormalizer.store(outputDir, transforms);
+                    recordDocumentStats(pdfFile, missing.size(), documentPool, job, start);
+                    progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.COMPLETED, "Rendered pages " + fromPage + "-" + toPage
+                            + " of " + pdfFile.getName() + " (peak heap " + toMb(job.getPeakHeapBytes()) + " MB)", rendered.get(), missing.size());
+                    peakHeapMb = toMb(job.getPeakHeapBytes());
+                }
+                List<Map<String, Object>> pages = new ArrayList<>();
+                images.forEach((page, imageName) -> pages.add(Map.of("page", page, "image", imageName, "reused", reused.contains(page))));
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("pages", pages);
+                result.put("renderedPages", images.size() - reused.size() - carriedForward);
+                result.put("reusedPages", reused.size());
+                result.put("carriedForwardPages", carriedForward);
+                result.put("pageCount", pageCount);
+                result.put("largeDocument", documentPool.isLowMemory());
+                result.put("peakHeapMb", peakHeapMb);
+                result.put("millis", System.currentTimeMillis() - start);
+                return result;
+            }
+        }
+    }
+
+    // Page image files of pages fromPage..toPage, rendering the ones that are missing
+    public List<File> getPageImages(String sessionId, String uuid, int fromPage, int toPage) throws IOException, InterruptedException {
+        File outputDir = getDocumentOutputDir(sessionId, uuid);
+        List<File> files = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> pages = (List<Map<String, Object>>) renderPages(sessionId, uuid, fromPage, toPage).get("pages");
+        for (Map<String, Object> page : pages) files.add(new File(outputDir, (String) page.get("image")));
+        return files;
+    }
+
+    // Image name of a page (1-based) rendered with the current settings, by a full conversion or a page range; null if it must be rendered
+    private static String currentPageImage(File outputDir, String imageBaseName, int page, String renderSignature, Properties marker, Properties pageRenders) {
+        String imageName = null;
+        if (renderSignature.equals(pageRenders.getProperty("page." + page + ".signature"))) {
+            imageName = pageRenders.getProperty("page." + page + ".image");
+        } else if (renderSignature.equals(marker.getProperty("renderSignature")) && imageBaseName.equals(marker.getProperty("imageBaseName"))) {
+            imageName = imageBaseName + "_page" + page + "." + marker.getProperty("imageExtension");
+        }
+        return imageName != null && new File(outputDir, imageName).exists() ? imageName : null;
+    }
+
+    /**
+     * File of a page (1-based) at a pyramid level, for previews. A page rendered with the current settings is
+     * found without opening the PDF; a missing one is rendered first (renderPages), a missing level downscaled.
+     */
+    public File getPageImageFile(String sessionId, String uuid, int page, PagePyramid.Level level) throws IOException, InterruptedException {
+        File outputDir = getDocumentOutputDir(sessionId, uuid);
+        RetentionService.touch(outputDir);
+        String imageName = currentPageImage(outputDir, getImageBaseName(sessionId, uuid), page, getSettings().getSignature(),
+                loadProperties(new File(outputDir, CONVERSION_MARKER)), loadProperties(new File(outputDir, PAGE_RENDERS_FILE)));
+        if (imageName == null) {
+            List<File> rendered = getPageImages(sessionId, uuid, page, page);
+            if (rendered.isEmpty()) throw new IOException("Page " + page + " could not be rendered");
+            return PagePyramid.resolve(rendered.get(0), level);
+        }
+        return PagePyramid.resolve(new File(outputDir, imageName), level);
+    }
+
+    // Utility: Sharpen a BufferedImage using a mild kernel (less pixelation).
+    // Works in place on the pixel raster; see SharpenFilter for the kernel and the auto-skip rule.
+    public static BufferedImage sharpenImage(BufferedImage image, ConversionSettings settings) {
+        switch (settings.getSharpenMode()) {
+            case "off":
+                return image;
+            case "always":
+                return SharpenFilter.sharpen(image, 0);
+            default:
+                return SharpenFilter.sharpen(image, settings.getSharpenMinGain());
+        }
     }
 
     // Utility: Downscale a BufferedImage to target width/height using high-quality scaling
@@ -85,163 +375,674 @@ public class PdfService {
         return out;
     }
 
-    // Convert a PDF file to PNG images (one per page), log progress
+    // Convert a PDF file to page images (one per page) in the session folder, log progress
     public void convertPdfToImages(String sessionId, String uuid, String storedFilename) {
-        Object lock = sessionLocks.computeIfAbsent(sessionId, k -> new Object());
-        synchronized (lock) {
-            File sessionDir = getSessionDir(sessionId);
-            File pdfFile = new File(sessionDir, storedFilename);
-            List<String> log = progressLogs.computeIfAbsent(sessionId, k -> new ArrayList<>());
-            log.add("Starting conversion for " + storedFilename);
-            try (PDDocument document = PDDocument.load(pdfFile)) {
-                int pageCount = document.getNumberOfPages();
+        convertPdfToImages(sessionId, uuid, storedFilename, getSessionDir(sessionId));
+    }
+
+    // Convert a PDF file to page images (one per page, in the settings' image format), log progress.
+    // Pages flow through the staged conversion pipeline; the render stage borrows its own PDDocument
+    // from a bounded pool, since PDFBox documents must not be shared between threads.
+    public void convertPdfToImages(String sessionId, String uuid, String storedFilename, File outputDir) {
+        convertPdfFile(sessionId, uuid, new File(getSessionDir(sessionId), storedFilename), outputDir, uuid, false);
+    }
+
+    private void convertPdfFile(String sessionId, String uuid, File pdfFile, File outputDir, String imageBaseName, boolean reuseExisting) {
+        Object documentLock = documentLocks.computeIfAbsent(outputDir.getAbsolutePath(), k -> new Object());
+        synchronized (documentLock) {
+            String storedFilename = pdfFile.getName();
+            boolean nestedOutput = !outputDir.equals(getSessionDir(sessionId));
+            progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.STARTED, "Starting conversion for " + storedFilename);
+            ConversionSettings conversionSettings = getSettings();
+            String renderSignature = conversionSettings.getSignature();
+            if (reuseExisting) {
+                String[] reused = findReusableImages(outputDir, imageBaseName, renderSignature);
+                if (reused != null) {
+                    getDataSourceForSession(sessionId).addOutputImages(uuid, reused);
+                    progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.REUSED, "Reusing " + reused.length
+                            + " pages rendered earlier with the same settings for " + storedFilename, reused.length, reused.length);
+                    return;
+                }
+            }
+            new File(outputDir, CONVERSION_MARKER).delete();
+            new File(outputDir, PAGE_RENDERS_FILE).delete();
+            new File(outputDir, PageFingerprint.FINGERPRINTS_FILE).delete();
+            new File(outputDir, PageTiles.TILES_FILE).delete();
+            new File(outputDir, PageNormalizer.TRANSFORMS_FILE).delete();
+            long start = System.currentTimeMillis();
+            try (PdfDocumentPool documentPool = openDocumentPool(pdfFile)) {
+                int pageCount = documentPool.getPageCount();
                 String[] imageFilenames = new String[pageCount];
-                List<Future<Void>> futures = new ArrayList<>();
-                AtomicInteger completed = new AtomicInteger(0);
-                // Track per-page status
-                Map<Integer, String> pageStatus = new ConcurrentHashMap<>();
+                Map<String, PageFingerprint> fingerprints = new ConcurrentHashMap<>();
+                Map<String, PageTiles> tiles = new ConcurrentHashMap<>();
+                Map<String, PageNormalizer.Transform> transforms = new ConcurrentHashMap<>();
+                AtomicInteger finished = new AtomicInteger();
+                deletePageImages(outputDir, imageBaseName);
+                // Pages unchanged from an earlier version of a stored document take its images; only the others are rendered
+                List<Integer> toRender = new ArrayList<>();
+                PageCarryForward carryForward = new PageCarryForward(outputDir, imageBaseName, renderSignature);
+                Map<Integer, String> pageHashes = reuseExisting ? pageContentHashes(documentPool, outputDir) : Map.of();
                 for (int page = 0; page < pageCount; ++page) {
-                    final int pageIndex = page;
-                    futures.add(convertThreadPool.submit(new Callable<Void>() {
-                        @Override
-                        public Void call() {
-                            try {
-                                PDFRenderer threadRenderer = new PDFRenderer(document);
-                                BufferedImage bim = threadRenderer.renderImageWithDPI(pageIndex, PDF_TO_IMAGE_DPI, ImageType.RGB);
-                                bim = sharpenImage(bim);
-                                String imageName = uuid + "_page" + (pageIndex + 1) + ".png";
-                                File imageFile = new File(sessionDir, imageName);
-                                ImageIO.write(bim, "png", imageFile);
-                                imageFilenames[pageIndex] = imageName;
-                                pageStatus.put(pageIndex, "done");
-                                synchronized (log) {
-                                    log.add("Converted page " + (pageIndex + 1) + "/" + pageCount + " to " + imageName);
-                                }
-                            } catch (Exception e) {
-                                pageStatus.put(pageIndex, "error: " + e.getMessage());
-                                synchronized (log) {
-                                    log.add("Error converting page " + (pageIndex + 1) + ": " + e.getMessage());
-                                }
-                            }
-                            completed.incrementAndGet();
-                            return null;
-                        }
-                    }));
+                    String imageName = carryForward.carry(page, pageHashes.get(page));
+                    if (imageName == null) {
+                        toRender.add(page);
+                        continue;
+                    }
+                    imageFilenames[page] = nestedOutput ? new File(outputDir.getName(), imageName).getPath() : imageName;
+                    progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.PAGE, "Carried forward page " + (page + 1) + "/" + pageCount
+                            + " (unchanged from an earlier version)", finished.incrementAndGet(), pageCount);
                 }
-                // Polling thread for real-time progress
-                Thread progressThread = new Thread(() -> {
-                    while (completed.get() < pageCount) {
-                        int done = completed.get();
-                        synchronized (log) {
-                            log.add("Progress: " + done + "/" + pageCount + " pages finished");
-                        }
-                        try { Thread.sleep(700); } catch (InterruptedException ignored) {}
+                fingerprints.putAll(carryForward.getFingerprints());
+                transforms.putAll(carryForward.getTransforms());
+                int carriedForward = pageCount - toRender.size();
+                if (carriedForward > 0) {
+                    System.out.println("[PdfService] Carried forward " + carriedForward + " of " + pageCount + " unchanged pages of " + storedFilename
+                            + ", rendering " + toRender.size());
+                }
+                PageConversionPipeline.Job job = new PageConversionPipeline.Job(tenantId(sessionId), imageBaseName, documentPool, outputDir, conversionSettings, toRender.size(),
+                        new PageConversionPipeline.JobListener() {
+                    @Override
+                    public void pageCompleted(PageConversionPipeline.PageTask task) {
+                        StartupWarmupService.pageRendered(start);
+                        int pageIndex = task.getPageIndex();
+                        String imageName = task.getImageName();
+                        imageFilenames[pageIndex] = nestedOutput ? new File(outputDir.getName(), imageName).getPath() : imageName;
+                        fingerprints.put(imageName, task.getFingerprint());
+                        if (task.getTiles() != null) tiles.put(imageName, task.getTiles());
+                        if (task.getTransform() != null) transforms.put(imageName, task.getTransform());
+                        progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.PAGE, "Converted page " + (pageIndex + 1) + "/" + pageCount
+                                + " (" + task.getRenderProfile().name().toLowerCase() + ", " + task.getRenderProfile().getDpi(conversionSettings) + " DPI) to "
+                                + task.getOutputFile().getPath(), finished.incrementAndGet(), pageCount);
                     }
-                });
-                progressThread.start();
-                // Wait for all pages to finish
-                for (Future<Void> f : futures) {
-                    try { f.get(); } catch (Exception e) {
-                        synchronized (log) {
-                            log.add("Error converting page: " + e.getMessage());
-                        }
+
+                    @Override
+                    public void pageFailed(PageConversionPipeline.PageTask task, Throwable error) {
+                        progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.PAGE_FAILED, "Error converting page "
+                                + (task.getPageIndex() + 1) + ": " + error.getMessage(), finished.incrementAndGet(), pageCount);
                     }
+                });
+                for (int page : toRender) {
+                    conversionPipeline.submit(new PageConversionPipeline.PageTask(job, page));
                 }
-                progressThread.join();
+                // Wait for all pages to finish
+                job.await();
                 getDataSourceForSession(sessionId).addOutputImages(uuid, imageFilenames);
-                log.add("Conversion complete for " + storedFilename);
+                PageFingerprint.store(outputDir, fingerprints);
+                PageTiles.store(outputDir, tiles);
+                PageNormalizer.store(outputDir, transforms);
+                if (job.getFailed() == 0) writeConversionMarker(outputDir, imageBaseName, pageCount, conversionSettings, job.getPeakHeapBytes());
+                recordDocumentStats(pdfFile, toRender.size(), documentPool, job, start);
+                progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.COMPLETED, "Conversion complete for " + storedFilename
+                        + " (" + (carriedForward > 0 ? carriedForward + " unchanged pages carried forward, " : "")
+                        + documentPool.getOpenedHandles() + " document handles" + (documentPool.isLowMemory() ? ", low-memory mode" : "")
+                        + ", peak heap " + toMb(job.getPeakHeapBytes()) + " MB)", finished.get(), pageCount);
             } catch (Exception e) {
-                log.add("Error during conversion: " + e.getMessage());
+                progressEvents.publish(sessionId, uuid, ProgressEventBuffer.Type.FAILED, "Error during conversion: " + e.getMessage());
             }
         }
     }
 
-    // Convert a PDF file to PNG images (one per page), log progress
-    public void convertPdfToImages(String sessionId, String uuid, String storedFilename, File outputDir) {
-        Object lock = sessionLocks.computeIfAbsent(sessionId, k -> new Object());
-        synchronized (lock) {
-            File sessionDir = getSessionDir(sessionId);
-            File pdfFile = new File(sessionDir, storedFilename);
-            List<String> log = progressLogs.computeIfAbsent(sessionId, k -> new ArrayList<>());
-            log.add("Starting conversion for " + storedFilename);
-            try (PDDocument document = PDDocument.load(pdfFile)) {
-                int pageCount = document.getNumberOfPages();
-                String[] imageFilenames = new String[pageCount];
-                List<Future<Void>> futures = new ArrayList<>();
-                AtomicInteger completed = new AtomicInteger(0);
-                Map<Integer, String> pageStatus = new ConcurrentHashMap<>();
-                for (int page = 0; page < pageCount; ++page) {
-                    final int pageIndex = page;
-                    futures.add(convertThreadPool.submit(new Callable<Void>() {
-                        @Override
-                        public Void call() {
-                            try {
-                                PDFRenderer threadRenderer = new PDFRenderer(document);
-                                BufferedImage bim = threadRenderer.renderImageWithDPI(pageIndex, PDF_TO_IMAGE_DPI, ImageType.RGB);
-                                bim = sharpenImage(bim);
-                                String imageName = uuid + "_page" + (pageIndex + 1) + ".png";
-                                File imageFile = new File(outputDir, imageName);
-                                ImageIO.write(bim, "png", imageFile);
-                                imageFilenames[pageIndex] = new File(outputDir.getName(), imageName).getPath();
-                                pageStatus.put(pageIndex, "done");
-                                synchronized (log) {
-                                    log.add("Converted page " + (pageIndex + 1) + "/" + pageCount + " to " + imageFile.getPath());
-                                }
-                            } catch (Exception e) {
-                                pageStatus.put(pageIndex, "error: " + e.getMessage());
-                                synchronized (log) {
-                                    log.add("Error converting page " + (pageIndex + 1) + ": " + e.getMessage());
-                                }
-                            }
-                            completed.incrementAndGet();
-                            return null;
-                        }
-                    }));
-                }
-                // Polling thread for real-time progress
-                Thread progressThread = new Thread(() -> {
-                    while (completed.get() < pageCount) {
-                        int done = completed.get();
-                        synchronized (log) {
-                            log.add("Progress: " + done + "/" + pageCount + " pages finished");
-                        }
-                        try { Thread.sleep(700); } catch (InterruptedException ignored) {}
-                    }
-                });
-                progressThread.start();
-                // Wait for all pages to finish
-                for (Future<Void> f : futures) {
-                    try { f.get(); } catch (Exception e) {
-                        synchronized (log) {
-                            log.add("Error converting page: " + e.getMessage());
-                        }
-                    }
+    // Content hashes of a stored document's pages: kept with it, or computed once and stored; empty if the PDF can't be hashed
+    private static Map<Integer, String> pageContentHashes(PdfDocumentPool documentPool, File outputDir) throws InterruptedException {
+        Map<Integer, String> hashes = PageContentHashes.load(outputDir);
+        if (hashes.size() == documentPool.getPageCount()) return hashes;
+        PdfDocumentPool.Handle handle = null;
+        try {
+            handle = documentPool.borrow();
+            hashes = PageContentHashes.compute(handle.getDocument());
+            PageContentHashes.store(outputDir, hashes);
+            return hashes;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[WARN] Could not hash the pages of " + documentPool.getPdfFile() + ", rendering all of them: " + e.getMessage());
+            return Map.of();
+        } finally {
+            if (handle != null) documentPool.release(handle);
+        }
+    }
+
+    private static void writeConversionMarker(File outputDir, String imageBaseName, int pageCount, ConversionSettings conversionSettings, long peakHeapBytes) {
+        Properties marker = new Properties();
+        marker.setProperty("imageBaseName", imageBaseName);
+        marker.setProperty("pageCount", String.valueOf(pageCount));
+        marker.setProperty("imageExtension", conversionSettings.getEncoder().getFileExtension());
+        marker.setProperty("renderSignature", conversionSettings.getSignature());
+        marker.setProperty("peakHeapMb", String.valueOf(toMb(peakHeapBytes)));
+        storeProperties(new File(outputDir, CONVERSION_MARKER), marker, "Page conversion");
+    }
+
+    // Missing or unreadable files give empty properties
+    static Properties loadProperties(File file) {
+        Properties properties = new Properties();
+        if (!file.exists()) return properties;
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            properties.clear();
+        }
+        return properties;
+    }
+
+    private static void storeProperties(File file, Properties properties, String comment) {
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, comment);
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Image names from an earlier conversion with the same settings, or null if the pages must be rendered
+    private static String[] findReusableImages(File outputDir, String imageBaseName, String renderSignature) {
+        Properties marker = loadProperties(new File(outputDir, CONVERSION_MARKER));
+        if (!renderSignature.equals(marker.getProperty("renderSignature"))
+                || !imageBaseName.equals(marker.getProperty("imageBaseName"))) return null;
+        int pageCount = Integer.parseInt(marker.getProperty("pageCount", "0"));
+        String[] imageFilenames = new String[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            String imageName = imageBaseName + "_page" + (i + 1) + "." + marker.getProperty("imageExtension");
+            if (!new File(outputDir, imageName).exists()) return null;
+            imageFilenames[i] = new File(outputDir.getName(), imageName).getPath();
+        }
+        return imageFilenames;
+    }
+
+    // Pipeline stage: render the page with a document handle borrowed from the job's pool.
+    // In auto profile mode the page content is analysed first to pick its DPI and colour depth,
+    // in auto normalize mode to tell scans (which get deskewed) from born-digital pages.
+    // The bitmap's size is reserved from the render memory budget first; the page waits while it doesn't fit.
+    // The page's fingerprint (ink coverage) is taken here, while the bitmap is at hand.
+    // Heap in use is sampled once the bitmap exists, the point where a page costs the most.
+    private static void renderStage(PageConversionPipeline.PageTask task) throws Exception {
+        try {
+            if ("processes".equals(RENDER_WORKERS)) {
+                renderPageInProcess(task);
+            } else {
+                renderPage(task);
+            }
+        } finally {
+            renderScheduler.renderFinished(task);
+        }
+    }
+
+    private static void renderPage(PageConversionPipeline.PageTask task) throws Exception {
+        PdfDocumentPool documentPool = task.getJob().getDocumentPool();
+        PdfDocumentPool.Handle handle = documentPool.borrow();
+        try {
+            PDPage page = handle.getDocument().getPage(task.getPageIndex());
+            ConversionSettings settings = task.getJob().getSettings();
+            PageRenderProfile profile = PageRenderProfile.MIXED;
+            if (settings.isAutoRenderProfile() || "auto".equals(settings.getNormalizeMode())) {
+                try {
+                    PageContentAnalyzer analyzer = new PageContentAnalyzer(page);
+                    analyzer.processPage(page);
+                    if (settings.isAutoRenderProfile()) profile = analyzer.getProfile();
+                    task.setScan(analyzer.isScan());
+                } catch (IOException | RuntimeException e) {
+                    // Unparseable content: render with the default profile and let the renderer report problems
                 }
-                progressThread.join();
-                getDataSourceForSession(sessionId).addOutputImages(uuid, imageFilenames);
-                log.add("Conversion complete for " + storedFilename);
-            } catch (Exception e) {
-                log.add("Error during conversion: " + e.getMessage());
             }
+            task.setRenderProfile(profile);
+            int dpi = profile.getDpi(settings);
+            if (isTiledPage(page, dpi, settings)) {
+                renderTiledPage(task, handle, page, profile);
+                return;
+            }
+            task.setReservedBytes(renderMemoryBudget.reserve(RenderMemoryBudget.estimateBytes(page, dpi, profile)));
+            long start = System.nanoTime();
+            BufferedImage image = renderImage(handle, page, task.getPageIndex(), dpi, profile.getImageType());
+            recordRenderProfile(profile, System.nanoTime() - start);
+            // Fingerprint the unsharpened bitmap so extraction can skip blank and repeated pages
+            task.setFingerprint(PageFingerprint.of(image));
+            task.setImage(image);
+            Runtime runtime = Runtime.getRuntime();
+            task.getJob().recordHeapUsed(runtime.totalMemory() - runtime.freeMemory());
+        } finally {
+            documentPool.release(handle);
         }
     }
 
-    // Get progress log for a session
-    public List<String> getProgressLog(String sessionId) {
-        return progressLogs.getOrDefault(sessionId, new ArrayList<>());
+    // A render process takes the page through all stages and writes its image (and tiles) to the output folder.
+    // No bitmap enters this JVM, so there is no render memory to reserve; the page skips the remaining stages.
+    private static void renderPageInProcess(PageConversionPipeline.PageTask task) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Properties result = renderProcessPool.render(RenderWorkerProcess.request(task));
+        RenderWorkerProcess.applyResult(result, task);
+        recordRenderProfile(task.getRenderProfile(), System.nanoTime() - start);
+        Runtime runtime = Runtime.getRuntime();
+        task.getJob().recordHeapUsed(runtime.totalMemory() - runtime.freeMemory());
+        task.finish();
     }
 
-    // Clear progress log for a session
-    public void clearProgressLog(String sessionId) {
-        progressLogs.remove(sessionId);
+    /**
+     * Run one page through this JVM's pipeline and wait for it; what a render process does with each
+     * page request (see RenderWorkerProcess).
+     */
+    static PageConversionPipeline.PageTask convertPage(PdfDocumentPool documentPool, int pageIndex, File outputDir, String imageBaseName,
+            ConversionSettings conversionSettings) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        PageConversionPipeline.Job job = new PageConversionPipeline.Job("render-process", imageBaseName, documentPool, outputDir, conversionSettings, 1,
+                new PageConversionPipeline.JobListener() {
+            @Override
+            public void pageCompleted(PageConversionPipeline.PageTask task) {
+            }
+
+            @Override
+            public void pageFailed(PageConversionPipeline.PageTask task, Throwable error) {
+                failure.set(error);
+            }
+        });
+        PageConversionPipeline.PageTask task = new PageConversionPipeline.PageTask(job, pageIndex);
+        conversionPipeline.submit(task);
+        job.await();
+        Throwable error = failure.get();
+        if (error instanceof Exception) throw (Exception) error;
+        if (error != null) throw new IOException(error);
+        return task;
     }
 
+    // Same bitmap as PDFRenderer.renderImageWithDPI, drawn into pooled ones: like PDFBox, pages with blend modes
+    // are composited on a transparent bitmap first and then drawn onto white in the requested type
+    private static BufferedImage renderImage(PdfDocumentPool.Handle handle, PDPage page, int pageIndex, int dpi, ImageType imageType) throws IOException {
+        float scale = dpi / 72f;
+        PDRectangle cropBox = page.getCropBox();
+        int width = (int) Math.max(Math.floor(cropBox.getWidth() * scale), 1);
+        int height = (int) Math.max(Math.floor(cropBox.getHeight() * scale), 1);
+        if (page.getRotation() % 180 != 0) {
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+        return renderRegion(handle, page, pageIndex, scale, 0, 0, width, height, imageType);
+    }
+
+    // The width x height part of the page bitmap at scale whose top-left corner is (x, y); see renderImage
+    private static BufferedImage renderRegion(PdfDocumentPool.Handle handle, PDPage page, int pageIndex, float scale,
+            int x, int y, int width, int height, ImageType imageType) throws IOException {
+        int type = bufferedImageType(imageType);
+        int renderType = imageType == ImageType.ARGB || hasBlendMode(page) ? BufferedImage.TYPE_INT_ARGB : type;
+        BufferedImage image = rasterBufferPool.acquireImage(width, height, renderType);
+        Graphics2D g = image.createGraphics();
+        try {
+            // The pooled array still holds an earlier page
+            g.setBackground(renderType == BufferedImage.TYPE_INT_ARGB ? new Color(0, 0, 0, 0) : Color.WHITE);
+            g.clearRect(0, 0, width, height);
+            g.translate(-x, -y);
+            handle.getRenderer().renderPageToGraphics(pageIndex, g, scale, scale, RenderDestination.EXPORT);
+        } finally {
+            g.dispose();
+        }
+        if (renderType == type) return image;
+        BufferedImage converted = rasterBufferPool.acquireImage(width, height, type);
+        g = converted.createGraphics();
+        try {
+            g.setBackground(Color.WHITE);
+            g.clearRect(0, 0, width, height);
+            g.drawImage(image, null, 0, 0);
+        } finally {
+            g.dispose();
+        }
+        rasterBufferPool.release(image);
+        return converted;
+    }
+
+    private static boolean hasBlendMode(PDPage page) {
+        PDResources resources = page.getResources();
+        if (resources == null) return false;
+        for (COSName name : resources.getExtGStateNames()) {
+            PDExtendedGraphicsState state = resources.getExtGState(name);
+            if (state != null && state.getBlendMode() != BlendMode.NORMAL) return true;
+        }
+        return false;
+    }
+
+    // Oversized sheets whose bitmap at the render DPI would not fit a single tile
+    private static boolean isTiledPage(PDPage page, int dpi, ConversionSettings settings) {
+        if (settings.getTiledPageMinSidePt() <= 0) return false;
+        PDRectangle cropBox = page.getCropBox();
+        float longerSide = Math.max(cropBox.getWidth(), cropBox.getHeight());
+        return longerSide >= settings.getTiledPageMinSidePt() && longerSide * dpi / 72f > settings.getTileSizePx();
+    }
+
+    // Render an oversized page as overlapping tiles at its DPI, one tile bitmap at a time: every tile is
+    // sharpened, encoded and written to the tiles folder right away. The page image that continues down
+    // the pipeline is a reduced overview, so the page's memory stays at one tile plus the overview.
+    private static void renderTiledPage(PageConversionPipeline.PageTask task, PdfDocumentPool.Handle handle, PDPage page,
+            PageRenderProfile profile) throws IOException, InterruptedException {
+        ConversionSettings settings = task.getJob().getSettings();
+        int tileSize = settings.getTileSizePx();
+        int dpi = profile.getDpi(settings);
+        PDRectangle cropBox = page.getCropBox();
+        boolean rotated = page.getRotation() % 180 != 0;
+        float scale = dpi / 72f;
+        int pageWidth = (int) Math.ceil((rotated ? cropBox.getHeight() : cropBox.getWidth()) * scale);
+        int pageHeight = (int) Math.ceil((rotated ? cropBox.getWidth() : cropBox.getHeight()) * scale);
+        int overviewDpi = Math.max(1, (int) (dpi * Math.min(1.0, (double) TILED_OVERVIEW_MAX_SIDE_PX / Math.max(pageWidth, pageHeight))));
+        long tileBytes = (long) tileSize * tileSize * profile.getBytesPerPixel();
+        long overviewBytes = RenderMemoryBudget.estimateBytes(page, overviewDpi, profile);
+        task.setReservedBytes(renderMemoryBudget.reserve(tileBytes + overviewBytes));
+        PageConversionPipeline.Job job = task.getJob();
+        PageImageEncoder encoder = job.getEncoder();
+        File tilesDir = new File(job.getOutputDir(), PageTiles.TILES_FOLDER);
+        if (!tilesDir.exists()) tilesDir.mkdirs();
+        PageTiles layout = PageTiles.layout(pageWidth, pageHeight, dpi, tileSize, settings.getTileOverlapPx());
+        long start = System.nanoTime();
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < layout.getTiles().size(); i++) {
+            PageTiles.Tile tile = layout.getTiles().get(i);
+            // Same destination and blend-mode compositing as whole pages, so tiles match the overview
+            BufferedImage image = renderRegion(handle, page, task.getPageIndex(), scale, tile.getX(), tile.getY(),
+                    tile.getWidth(), tile.getHeight(), profile.getImageType());
+            job.recordHeapUsed(runtime.totalMemory() - runtime.freeMemory());
+            image = sharpenImage(image, settings);
+            RasterBufferPool.Output out = rasterBufferPool.newOutput();
+            encoder.encode(image, out);
+            rasterBufferPool.release(image);
+            tile.setImageName(job.getImageBaseName() + "_page" + (task.getPageIndex() + 1) + "_tile" + (i + 1) + "." + encoder.getFileExtension());
+            try (OutputStream file = new FileOutputStream(new File(tilesDir, tile.getImageName()))) {
+                file.write(out.getBuffer(), 0, out.size());
+            }
+            rasterBufferPool.release(out.getBuffer());
+        }
+        // The tile bitmaps are gone; only the overview stays reserved until it is encoded
+        renderMemoryBudget.release(tileBytes);
+        task.setReservedBytes(overviewBytes);
+        BufferedImage overview = renderImage(handle, page, task.getPageIndex(), overviewDpi, profile.getImageType());
+        recordRenderProfile(profile, System.nanoTime() - start);
+        tiledPages.incrementAndGet();
+        renderedTiles.addAndGet(layout.getTiles().size());
+        task.setTiles(layout);
+        task.setFingerprint(PageFingerprint.of(overview));
+        task.setImage(overview);
+        job.recordHeapUsed(runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    private static final AtomicLong tiledPages = new AtomicLong();
+    private static final AtomicLong renderedTiles = new AtomicLong();
+
+    private static int bufferedImageType(ImageType imageType) {
+        switch (imageType) {
+            case GRAY:
+                return BufferedImage.TYPE_BYTE_GRAY;
+            case BINARY:
+                return BufferedImage.TYPE_BYTE_BINARY;
+            case ARGB:
+                return BufferedImage.TYPE_INT_ARGB;
+            default:
+                return BufferedImage.TYPE_INT_RGB;
+        }
+    }
+
+    // PDFs from LARGE_DOCUMENT_THRESHOLD_MB up are opened in low-memory mode
+    public static boolean isLargeDocument(File pdfFile) {
+        return LARGE_DOCUMENT_THRESHOLD_MB > 0 && pdfFile.length() >= LARGE_DOCUMENT_THRESHOLD_MB * 1024L * 1024L;
+    }
+
+    // How PDFBox should keep a PDF's parsed stream data: mostly in temp files for large PDFs, on the heap otherwise
+    public static MemoryUsageSetting documentMemoryUsage(File pdfFile) {
+        if (!isLargeDocument(pdfFile)) return MemoryUsageSetting.setupMainMemoryOnly();
+        return MemoryUsageSetting.setupMixed(LARGE_DOCUMENT_HEAP_MB * 1024L * 1024L);
+    }
+
+    // A large PDF gets a few recycled handles instead of one per render worker
+    static PdfDocumentPool openDocumentPool(File pdfFile) throws IOException {
+        if (!isLargeDocument(pdfFile)) return new PdfDocumentPool(pdfFile, MAX_CONVERT_THREADS);
+        return new PdfDocumentPool(pdfFile, Math.min(MAX_CONVERT_THREADS, LARGE_DOCUMENT_MAX_HANDLES),
+                documentMemoryUsage(pdfFile), LARGE_DOCUMENT_PAGES_PER_HANDLE);
+    }
+
+    // Memory use of the latest documents rendered, newest last
+    private static final int DOCUMENT_STATS_CAPACITY = 32;
+    private static final Map<String, Map<String, Object>> documentStats = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, Object>> eldest) {
+            return size() > DOCUMENT_STATS_CAPACITY;
+        }
+    };
+
+    private static void recordDocumentStats(File pdfFile, int pages, PdfDocumentPool documentPool, PageConversionPipeline.Job job, long start) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("document", pdfFile.getName());
+        stats.put("sizeMb", toMb(pdfFile.length()));
+        stats.put("pages", pages);
+        stats.put("largeDocument", documentPool.isLowMemory());
+        stats.put("documentHandles", documentPool.getOpenedHandles());
+        stats.put("peakHeapMb", toMb(job.getPeakHeapBytes()));
+        stats.put("millis", System.currentTimeMillis() - start);
+        synchronized (documentStats) {
+            documentStats.remove(pdfFile.getAbsolutePath());
+            documentStats.put(pdfFile.getAbsolutePath(), stats);
+        }
+    }
+
+    private static long toMb(long bytes) {
+        return (bytes + 512 * 1024) / (1024 * 1024);
+    }
+
+    // Pages rendered and render time per profile
+    private static final Map<PageRenderProfile, long[]> renderProfileStats = new EnumMap<>(PageRenderProfile.class);
+
+    private static void recordRenderProfile(PageRenderProfile profile, long nanos) {
+        synchronized (renderProfileStats) {
+            long[] counters = renderProfileStats.computeIfAbsent(profile, k -> new long[2]);
+            counters[0]++;
+            counters[1] += nanos;
+        }
+    }
+
+    private static Map<String, Object> getRenderProfileStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (renderProfileStats) {
+            renderProfileStats.forEach((profile, counters) -> stats.put(profile.name().toLowerCase(), Map.of(
+                    "pages", counters[0],
+                    "avgRenderMillis", counters[0] > 0 ? counters[1] / 1_000_000.0 / counters[0] : 0.0)));
+        }
+        return stats;
+    }
+
+    // Pipeline stage: trim the margins (and deskew scans) of the rendered bitmap. The result is never much
+    // bigger than the bitmap it replaces, which goes back to the pool right away, so the page's render
+    // memory reservation still covers it. Tiled pages keep their overview as rendered: tile positions
+    // refer to the whole sheet.
+    private static void normalizeStage(PageConversionPipeline.PageTask task) {
+        BufferedImage image = task.getImage();
+        ConversionSettings settings = task.getJob().getSettings();
+        if ("off".equals(settings.getNormalizeMode()) || task.getTiles() != null) {
+            task.setTransform(PageNormalizer.Transform.identity(image.getWidth(), image.getHeight()));
+            return;
+        }
+        long start = System.nanoTime();
+        boolean deskew = "auto".equals(settings.getNormalizeMode()) && task.isScan();
+        PageNormalizer.Transform transform = PageNormalizer.analyze(image, task.getRenderProfile().getDpi(settings), deskew, rasterBufferPool);
+        if (!transform.isIdentity()) {
+            BufferedImage normalized = PageNormalizer.apply(image, transform, rasterBufferPool);
+            rasterBufferPool.release(image);
+            task.setImage(normalized);
+        }
+        PageNormalizer.recordPage(transform, System.nanoTime() - start);
+        task.setTransform(transform);
+    }
+
+    // Pipeline stage: sharpen the rendered bitmap
+    private static void sharpenStage(PageConversionPipeline.PageTask task) {
+        BufferedImage image = task.getImage();
+        BufferedImage sharpened = sharpenImage(image, task.getJob().getSettings());
+        if (sharpened != image) rasterBufferPool.release(image);
+        task.setImage(sharpened);
+    }
+
+    // Pipeline stage: encode with the job's page image encoder into a pooled buffer and give the bitmap back.
+    // In eager pyramid mode the preview and thumbnail are downscaled from the bitmap first (PagePyramid).
+    private static void encodeStage(PageConversionPipeline.PageTask task) throws IOException {
+        PageImageEncoder encoder = task.getJob().getEncoder();
+        BufferedImage image = task.getImage();
+        if ("eager".equals(PagePyramid.MODE)) task.setPyramid(PagePyramid.build(image));
+        RasterBufferPool.Output out = rasterBufferPool.newOutput();
+        long start = System.nanoTime();
+        encoder.encode(image, out);
+        PageImageEncoders.recordEncode(encoder.getFormat(), System.nanoTime() - start, out.size(), (long) image.getWidth() * image.getHeight());
+        task.setEncoded(out.getBuffer(), out.size());
+        task.setImage(null);
+        rasterBufferPool.release(image);
+        releaseRenderMemory(task);
+        task.setImageName(task.getJob().getImageBaseName() + "_page" + (task.getPageIndex() + 1) + "." + encoder.getFileExtension());
+    }
+
+    // Relative render page rate of a tenant (as listed in pipeline-stats) under load (default 1)
+    public static void setTenantWeight(String tenantId, int weight) {
+        renderScheduler.setWeight(tenantId, weight);
+    }
+
+    /**
+     * Opaque render tenant of a session: a hash of the session ID with a salt picked at startup.
+     * Stable for the session's lifetime, but stats and admin calls never see or need the session ID.
+     */
+    static String tenantId(String sessionId) {
+        MessageDigest digest = DocumentStoreService.newDigest();
+        digest.update(TENANT_SALT);
+        digest.update(sessionId.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest(), 0, 8);
+    }
+
+    // Give a page's bitmap reservation back once it is encoded (the pipeline releases it for failed pages)
+    private static void releaseRenderMemory(PageConversionPipeline.PageTask task) {
+        renderMemoryBudget.release(task.getReservedBytes());
+        task.setReservedBytes(0);
+    }
+
+    // Change how many idle bitmap bytes are kept for reuse; the pool shrinks right away
+    public static void updateRasterPool(int poolMb) {
+        RASTER_POOL_MB = poolMb;
+        rasterBufferPool.setMaxPooledBytes(poolMb * 1024L * 1024L);
+    }
+
+    // Shared with encoders that need scratch bitmaps
+    static RasterBufferPool rasterBufferPool() {
+        return rasterBufferPool;
+    }
+
+    // Change the render memory budget; waiting pages are re-checked right away
+    public static void updateRenderMemoryBudget(int budgetMb) {
+        RENDER_MEMORY_BUDGET_MB = budgetMb;
+        renderMemoryBudget.setBudgetBytes(budgetMb * 1024L * 1024L);
+    }
+
+    // Remove page images from an earlier conversion so a format change leaves no stale pages behind
+    private static void deletePageImages(File outputDir, String imageBaseName) {
+        File[] previous = outputDir.listFiles((dir, name) -> name.startsWith(imageBaseName + "_page") && PageImageEncoders.isPageImageFile(name));
+        if (previous != null) {
+            for (File f : previous) f.delete();
+        }
+        // Tiles, the resized copies sent to the vision model and the previews
+        File tilesDir = new File(outputDir, PageTiles.TILES_FOLDER);
+        for (File dir : new File[] {tilesDir, new File(outputDir, VisionImageSizer.VISION_FOLDER), new File(tilesDir, VisionImageSizer.VISION_FOLDER),
+                new File(outputDir, PagePyramid.PYRAMID_FOLDER)}) {
+            File[] files = dir.listFiles((d, name) -> name.startsWith(imageBaseName + "_page"));
+            if (files == null) continue;
+            for (File f : files) {
+                if (f.isFile()) f.delete();
+            }
+        }
+    }
+
+    // Pipeline stage: write the encoded bytes to the output folder
+    private static void writeStage(PageConversionPipeline.PageTask task) throws IOException {
+        File imageFile = new File(task.getJob().getOutputDir(), task.getImageName());
+        // The old file may be a hard link shared with another document: replace it, don't truncate it
+        PagePyramid.writeAtomically(imageFile, task.getEncoded(), task.getEncodedLength());
+        RetentionService.recordWritten(task.getEncodedLength());
+        rasterBufferPool.release(task.getEncoded());
+        task.setEncoded(null);
+        task.setOutputFile(imageFile);
+        // After the page image, so its preview and thumbnail are never older than it
+        if (task.getPyramid() != null) {
+            PagePyramid.write(imageFile, task.getPyramid());
+            task.setPyramid(null);
+        }
+    }
+
+    private static Map<String, Object> pageNormalizerStats() {
+        Map<String, Object> stats = PageNormalizer.getStats();
+        stats.put("mode", getSettings().getNormalizeMode());
+        return stats;
+    }
+
+    // Per-stage queue depth and throughput of the conversion pipeline
+    public Map<String, Object> getPipelineStats() {
+        Map<String, Object> stats = conversionPipeline.getStats();
+        stats.put("sharpenFilter", SharpenFilter.getStats());
+        stats.put("renderProfiles", getRenderProfileStats());
+        stats.put("renderMemory", renderMemoryBudget.getStats());
+        stats.put("rasterPool", rasterBufferPool.getStats());
+        stats.put("pageNormalizer", pageNormalizerStats());
+        stats.put("tiledPages", Map.of("pages", tiledPages.get(), "tiles", renderedTiles.get()));
+        stats.put("visionImages", VisionImageSizer.getStats());
+        stats.put("pagePyramid", PagePyramid.getStats());
+        stats.put("renderScheduler", renderScheduler.getStats());
+        stats.put("convertThreadTuner", convertThreadTuner.getStats());
+        Map<String, Object> renderProcesses = renderProcessPool.getStats();
+        renderProcesses.put("mode", RENDER_WORKERS);
+        stats.put("renderProcesses", renderProcesses);
+        stats.put("progressEvents", progressEvents.getStats());
+        stats.put("startup", StartupWarmupService.getStats());
+        synchronized (documentStats) {
+            stats.put("documents", new ArrayList<>(documentStats.values()));
+        }
+        return stats;
+    }
+
+    /** The conversion settings new conversions start with. */
+    public static ConversionSettings getSettings() {
+        return settings.get();
+    }
+
+    // Swap in new conversion settings made from the current ones; conversions already running keep the settings they started with
+    public static ConversionSettings updateSettings(UnaryOperator<ConversionSettings> update) {
+        return settings.updateAndGet(update);
+    }
+
+    // Encode time and output size per image format
+    public Map<String, Object> getEncoderStats() {
+        return PageImageEncoders.getStats();
+    }
+
+    // Resize the render stage in place: new workers start right away, surplus ones retire after their
+    // current page, and queued pages stay queued. In auto mode the count is the tuner's ceiling.
     public static synchronized void updateConvertThreadPool(int newThreadCount) {
-        if (newThreadCount != MAX_CONVERT_THREADS) {
-            convertThreadPool.shutdown();
-            try { convertThreadPool.awaitTermination(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
-            MAX_CONVERT_THREADS = newThreadCount;
-            convertThreadPool = Executors.newFixedThreadPool(MAX_CONVERT_THREADS);
+        MAX_CONVERT_THREADS = newThreadCount;
+        if ("auto".equals(CONVERT_THREADS_MODE)) {
+            convertThreadTuner.setMaxWorkers(newThreadCount);
+        } else {
+            conversionPipeline.setWorkerCount("render", newThreadCount);
+        }
+    }
+
+    // "auto" hands the render worker count to the tuner (starting from the current count), "fixed" goes back to MAX_CONVERT_THREADS
+    public static synchronized void updateConvertThreadsMode(String mode) {
+        CONVERT_THREADS_MODE = mode;
+        if ("auto".equals(mode)) {
+            convertThreadTuner.start(MAX_CONVERT_THREADS);
+        } else {
+            convertThreadTuner.stop();
+            conversionPipeline.setWorkerCount("render", MAX_CONVERT_THREADS);
         }
     }
+
+    // "processes" renders in child JVMs from the next page on, "threads" in this JVM; the pool's limits apply either way
+    public static synchronized void updateRenderWorkers(String mode, int processes, int heapMb, int maxPagesPerProcess) {
+        RENDER_WORKERS = mode;
+        RENDER_PROCESSES = processes;
+        RENDER_PROCESS_HEAP_MB = heapMb;
+        RENDER_PROCESS_MAX_PAGES = maxPagesPerProcess;
+        renderProcessPool.configure(processes, heapMb, maxPagesPerProcess);
+    }
+
+    public static synchronized void updatePipelineWorkers(int normalizeThreads, int sharpenThreads, int encodeThreads, int writeThreads) {
+        NORMALIZE_THREADS = normalizeThreads;
+        SHARPEN_THREADS = sharpenThreads;
+        ENCODE_THREADS = encodeThreads;
+        WRITE_THREADS = writeThreads;
+        conversionPipeline.setWorkerCount("normalize", NORMALIZE_THREADS);
+        conversionPipeline.setWorkerCount("sharpen", SHARPEN_THREADS);
+        conversionPipeline.setWorkerCount("encode", ENCODE_THREADS);
+        conversionPipeline.setWorkerCount("write", WRITE_THREADS);
+    }
 }
@@ -0,0 +1,60 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Full-colour PNG with an explicit deflate level (0 = fastest/largest, 9 = slowest/smallest).
+ * The JDK writer's default level is 4.
+ */
+public class PngPageImageEncoder implements PageImageEncoder {
+    private final int compressionLevel;
+
+    public PngPageImageEncoder(int compressionLevel) {
+        this.compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+    }
+
+    @Override
+    public String getFormat() {
+        return "png";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "png";
+    }
+
+    @Override
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        writePng(image, out, compressionLevel);
+    }
+
+    // Shared with the indexed encoder: write any image as PNG at the given deflate level
+    static void writePng(RenderedImage image, OutputStream out, int compressionLevel) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()) throw new IOException("No PNG writer available");
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                // The JDK PNG writer maps quality q to deflate level (int) (9 * (1 - q));
+                // aim at the middle of the interval so float rounding cannot drop a level
+                param.setCompressionQuality(Math.max(0f, 1f - (compressionLevel + 0.5f) / 9f));
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
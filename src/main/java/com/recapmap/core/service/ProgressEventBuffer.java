@@ -0,0 +1,120 @@
+package com.recapmap.core.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size ring of the latest progress events of one job (a document's conversion).
+ * Writers claim a sequence number with one atomic increment and store the event in its slot, so
+ * pipeline workers never block on progress reporting; the oldest events are overwritten once the
+ * ring is full. Readers ask for the events after the last sequence they saw and are told how many
+ * they missed if they fell more than a ring behind. Page events carry completed/total counts,
+ * so the latest one is enough to show where a job stands.
+ */
+public class ProgressEventBuffer {
+
+    public enum Type { STARTED, PAGE, PAGE_FAILED, REUSED, COMPLETED, FAILED }
+
+    public static class Event {
+        private final long sequence;
+        private final Type type;
+        private final String job;
+        private final long time;
+        private final String message;
+        private final int completed;
+        private final int total;
+
+        Event(long sequence, Type type, String job, String message, int completed, int total) {
+            this.sequence = sequence;
+            this.type = type;
+            this.job = job;
+            this.time = System.currentTimeMillis();
+            this.message = message;
+            this.completed = completed;
+            this.total = total;
+        }
+
+        public long getSequence() { return sequence; }
+        public String getType() { return type.name().toLowerCase(); }
+        public String getJob() { return job; }
+        public long getTime() { return time; }
+        public String getMessage() { return message; }
+        public int getCompleted() { return completed; }
+        public int getTotal() { return total; }
+    }
+
+    /** Events after a given sequence number, and how many of the ones asked for were already overwritten. */
+    public static class Slice {
+        private final List<Event> events;
+        private final long lastSequence;
+        private final long dropped;
+
+        Slice(List<Event> events, long lastSequence, long dropped) {
+            this.events = events;
+            this.lastSequence = lastSequence;
+            this.dropped = dropped;
+        }
+
+        public List<Event> getEvents() { return events; }
+        public long getLastSequence() { return lastSequence; }
+        public long getDropped() { return dropped; }
+    }
+
+    private final String job;
+    private final AtomicReferenceArray<Event> slots;
+    private final AtomicLong nextSequence = new AtomicLong(1); // Sequence 0 means "nothing seen yet"
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    public ProgressEventBuffer(String job, int capacity) {
+        this.job = job;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    // completed/total are -1 where they don't apply
+    public Event publish(Type type, String message, int completed, int total) {
+        long sequence = nextSequence.getAndIncrement();
+        Event event = new Event(sequence, type, job, message, completed, total);
+        slots.set(slot(sequence), event);
+        lastActivity = event.getTime();
+        return event;
+    }
+
+    public Slice eventsAfter(long lastSeen) {
+        long next = nextSequence.get();
+        long from = Math.max(lastSeen + 1, Math.max(1, next - slots.length()));
+        long dropped = Math.max(0, from - (lastSeen + 1));
+        List<Event> events = new ArrayList<>();
+        long last = Math.max(lastSeen, from - 1);
+        for (long sequence = from; sequence < next; sequence++) {
+            Event event = slots.get(slot(sequence));
+            if (event == null || event.sequence < sequence) break; // Claimed but not stored yet: pick it up next time
+            if (event.sequence > sequence) { // Overwritten while reading
+                dropped++;
+                last = sequence;
+                continue;
+            }
+            events.add(event);
+            last = sequence;
+        }
+        return new Slice(events, last, dropped);
+    }
+
+    // Sequence number of the newest event (0 if there is none)
+    public long getLastSequence() {
+        return nextSequence.get() - 1;
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % slots.length());
+    }
+}
@@ -0,0 +1,258 @@
+package com.recapmap.core.service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Progress events of every session's jobs (one ring buffer per document) and the Server-Sent Events
+ * streams that push them. A single dispatcher thread, woken when an event is published and otherwise
+ * only for keep-alive comments, moves new events into each stream's bounded outbox; it never writes to
+ * a connection. Each outbox is drained by a sender thread, one at a time per stream, so a client that
+ * stops reading only blocks its own sender. A stream whose outbox fills up is closed as stalled (an
+ * EventSource reconnects and resumes from Last-Event-ID), and conversion workers never wait for either.
+ */
+@Service
+public class ProgressEventService {
+
+    private static final int EVENTS_PER_JOB = 128; // Ring size; older events of a job are overwritten
+    private static final int MAX_JOBS_PER_SESSION = 32; // The least recently active job is forgotten beyond this
+    private static final long STREAM_TIMEOUT_MILLIS = 30 * 60 * 1000L; // EventSource clients reconnect after this
+    private static final long KEEPALIVE_NANOS = TimeUnit.SECONDS.toNanos(15);
+    private static final long IDLE_WAKE_NANOS = TimeUnit.SECONDS.toNanos(5); // Dispatcher check for keep-alives when no events arrive
+    private static final int OUTBOX_CAPACITY = 256; // Events waiting to be written to one stream; a client further behind is dropped
+
+    private final Map<String, Map<String, ProgressEventBuffer>> sessionJobs = new ConcurrentHashMap<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Thread dispatcher;
+    private final AtomicInteger senderSeq = new AtomicInteger();
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "progress-sse-send-" + senderSeq.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong stalledStreams = new AtomicLong();
+    private volatile boolean running = true;
+
+    private static class Subscription {
+        private final SseEmitter emitter;
+        private final String sessionId;
+        private final String job; // Null follows every job of the session
+        private final Map<String, Long> lastSeen = new HashMap<>(); // Jobs not in here are sent from the start of their ring
+        private final Deque<SseEmitter.SseEventBuilder> outbox = new ArrayDeque<>(); // Guarded by the subscription
+        private boolean sending; // A sender is draining the outbox; guarded by the subscription
+        private volatile long lastSend = System.nanoTime();
+
+        Subscription(SseEmitter emitter, String sessionId, String job) {
+            this.emitter = emitter;
+            this.sessionId = sessionId;
+            this.job = job;
+        }
+    }
+
+    public ProgressEventService() {
+        dispatcher = new Thread(this::dispatchLoop, "progress-sse");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public void publish(String sessionId, String job, ProgressEventBuffer.Type type, String message) {
+        publish(sessionId, job, type, message, -1, -1);
+    }
+
+    public void publish(String sessionId, String job, ProgressEventBuffer.Type type, String message, int completed, int total) {
+        getBuffer(sessionId, job).publish(type, message, completed, total);
+        if (!subscriptions.isEmpty()) LockSupport.unpark(dispatcher);
+    }
+
+    private ProgressEventBuffer getBuffer(String sessionId, String job) {
+        Map<String, ProgressEventBuffer> jobs = sessionJobs.computeIfAbsent(sessionId, k -> new ConcurrentHashMap<>());
+        ProgressEventBuffer buffer = jobs.get(job);
+        if (buffer != null) return buffer;
+        buffer = jobs.computeIfAbsent(job, k -> new ProgressEventBuffer(k, EVENTS_PER_JOB));
+        while (jobs.size() > MAX_JOBS_PER_SESSION) {
+            jobs.values().stream()
+                    .filter(b -> !b.getJob().equals(job))
+                    .min(Comparator.comparingLong(ProgressEventBuffer::getLastActivity))
+                    .ifPresent(b -> jobs.remove(b.getJob()));
+        }
+        return buffer;
+    }
+
+    /** Events of one job after a sequence number (0 for everything still in its ring). */
+    public ProgressEventBuffer.Slice getEvents(String sessionId, String job, long lastSeen) {
+        Map<String, ProgressEventBuffer> jobs = sessionJobs.get(sessionId);
+        ProgressEventBuffer buffer = jobs != null ? jobs.get(job) : null;
+        if (buffer == null) return new ProgressEventBuffer.Slice(List.of(), lastSeen, 0);
+        return buffer.eventsAfter(lastSeen);
+    }
+
+    /** Buffered events of every job of the session, by job. */
+    public Map<String, ProgressEventBuffer.Slice> getAllEvents(String sessionId) {
+        Map<String, ProgressEventBuffer.Slice> all = new LinkedHashMap<>();
+        Map<String, ProgressEventBuffer> jobs = sessionJobs.get(sessionId);
+        if (jobs != null) jobs.forEach((job, buffer) -> all.put(job, buffer.eventsAfter(0)));
+        return all;
+    }
+
+    /**
+     * Open an event stream for one job, or for all jobs of the session when job is null.
+     * Event ids are "<job>:<sequence>"; a client reconnecting with Last-Event-ID resumes that job after
+     * the given event and receives only new events of the session's other jobs.
+     */
+    public SseEmitter subscribe(String sessionId, String job, String lastEventId) {
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MILLIS);
+        Subscription subscription = new Subscription(emitter, sessionId, job);
+        if (lastEventId != null) {
+            // Jobs that already have events continue with new ones; jobs started later are sent in full
+            Map<String, ProgressEventBuffer> jobs = sessionJobs.getOrDefault(sessionId, Map.of());
+            jobs.forEach((j, buffer) -> subscription.lastSeen.put(j, buffer.getLastSequence()));
+            int colon = lastEventId.lastIndexOf(':');
+            try {
+                String lastJob = colon > 0 ? lastEventId.substring(0, colon) : job;
+                long sequence = Long.parseLong(lastEventId.substring(colon + 1));
+                if (lastJob != null) subscription.lastSeen.put(lastJob, sequence);
+            } catch (NumberFormatException e) {
+                // Unknown id format: continue with new events only
+            }
+        }
+        emitter.onCompletion(() -> subscriptions.remove(subscription));
+        emitter.onTimeout(() -> subscriptions.remove(subscription));
+        emitter.onError(e -> subscriptions.remove(subscription));
+        subscriptions.add(subscription);
+        LockSupport.unpark(dispatcher);
+        return emitter;
+    }
+
+    public void clearSession(String sessionId) {
+        sessionJobs.remove(sessionId);
+        for (Subscription subscription : subscriptions) {
+            if (subscription.sessionId.equals(sessionId)) close(subscription, null);
+        }
+    }
+
+    public void clearAllSessions() {
+        sessionJobs.clear();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessionJobs.size());
+        stats.put("jobs", sessionJobs.values().stream().mapToInt(Map::size).sum());
+        stats.put("eventsPerJob", EVENTS_PER_JOB);
+        stats.put("streams", subscriptions.size());
+        stats.put("stalledStreams", stalledStreams.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        for (Subscription subscription : subscriptions) close(subscription, null);
+        senders.shutdown();
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            LockSupport.parkNanos(IDLE_WAKE_NANOS);
+            for (Subscription subscription : subscriptions) {
+                if (!dispatch(subscription)) {
+                    stalledStreams.incrementAndGet();
+                    close(subscription, new IOException("Progress stream stalled: client is not reading"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the subscription's new events, or a keep-alive comment if it has been quiet for a while,
+     * and start a sender if none is draining its outbox. Never blocks on the connection.
+     * @return false if the outbox has no room left, i.e. the client stopped reading
+     */
+    private boolean dispatch(Subscription subscription) {
+        Map<String, ProgressEventBuffer> jobs = sessionJobs.getOrDefault(subscription.sessionId, Map.of());
+        List<ProgressEventBuffer> buffers = new ArrayList<>();
+        if (subscription.job == null) buffers.addAll(jobs.values());
+        else if (jobs.containsKey(subscription.job)) buffers.add(jobs.get(subscription.job));
+        List<SseEmitter.SseEventBuilder> events = new ArrayList<>();
+        for (ProgressEventBuffer buffer : buffers) {
+            ProgressEventBuffer.Slice slice = buffer.eventsAfter(subscription.lastSeen.getOrDefault(buffer.getJob(), 0L));
+            for (ProgressEventBuffer.Event event : slice.getEvents()) {
+                events.add(SseEmitter.event()
+                        .id(event.getJob() + ":" + event.getSequence())
+                        .name(event.getType())
+                        .data(event));
+            }
+            subscription.lastSeen.put(buffer.getJob(), slice.getLastSequence());
+        }
+        synchronized (subscription) {
+            if (subscription.outbox.size() + events.size() > OUTBOX_CAPACITY) return false;
+            subscription.outbox.addAll(events);
+            if (subscription.outbox.isEmpty() && !subscription.sending && System.nanoTime() - subscription.lastSend >= KEEPALIVE_NANOS) {
+                subscription.outbox.add(SseEmitter.event().comment("keep-alive"));
+            }
+            if (subscription.sending || subscription.outbox.isEmpty()) return true;
+            subscription.sending = true;
+        }
+        senders.execute(() -> drain(subscription));
+        return true;
+    }
+
+    // Sender thread: write the outbox to the client until it is empty; the only place that sends on the emitter
+    private void drain(Subscription subscription) {
+        while (true) {
+            SseEmitter.SseEventBuilder event;
+            synchronized (subscription) {
+                event = subscription.outbox.poll();
+                if (event == null) {
+                    subscription.sending = false;
+                    return;
+                }
+            }
+            try {
+                subscription.emitter.send(event);
+                subscription.lastSend = System.nanoTime();
+            } catch (IOException | IllegalStateException e) {
+                // Client went away; the emitter callbacks may not fire for a broken connection
+                close(subscription, e);
+                return;
+            }
+        }
+    }
+
+    // Stop dispatching to a stream and complete it on a sender thread: completing waits for a send in progress
+    private void close(Subscription subscription, Throwable error) {
+        subscriptions.remove(subscription);
+        synchronized (subscription) {
+            subscription.outbox.clear();
+        }
+        if (senders.isShutdown()) {
+            subscription.emitter.complete();
+            return;
+        }
+        senders.execute(() -> {
+            if (error != null) subscription.emitter.completeWithError(error);
+            else subscription.emitter.complete();
+        });
+    }
+}
@@ -0,0 +1,271 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable pixel arrays for page bitmaps and encoded page images.
+ * A page bitmap at 150-200 DPI is several MB, which G1 allocates as a humongous object; with 20
+ * render threads those allocations (and their reclamation) dominate GC pauses. Here arrays are kept
+ * by size class (four classes per doubling, so an array is at most about 19% larger than asked for)
+ * and handed out again: pages of one document share a size, so after the first few pages a
+ * conversion renders, sharpens and encodes without allocating new bitmaps.
+ * Borrowed arrays are not tracked; one that is never released is simply left to the GC. Idle arrays
+ * are kept up to a byte limit, the least recently used size classes are dropped first.
+ * Arrays below MIN_POOLED_BYTES are not pooled: they are cheap thread-local allocations.
+ */
+public class RasterBufferPool {
+
+    private static final int CLASSES_PER_DOUBLING = 4;
+    private static final int MIN_POOLED_BYTES = 256 * 1024;
+    private static final int INITIAL_OUTPUT_BYTES = 512 * 1024; // Typical encoded page, grown through the pool as needed
+
+    private static final Map<Integer, ColorModel> colorModels = new ConcurrentHashMap<>();
+
+    private final Map<Integer, SizeClass> intClasses = new ConcurrentHashMap<>();
+    private final Map<Integer, SizeClass> byteClasses = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private volatile long maxPooledBytes;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Idle arrays of one size class; newest first, so recently used (cache-warm) arrays go out first
+    private static class SizeClass {
+        private final ConcurrentLinkedDeque<Object> arrays = new ConcurrentLinkedDeque<>();
+        private final long bytesPerArray;
+        private volatile long lastUsed = System.nanoTime();
+
+        SizeClass(long bytesPerArray) {
+            this.bytesPerArray = bytesPerArray;
+        }
+    }
+
+    public RasterBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = Math.max(0, maxPooledBytes);
+    }
+
+    // Smallest size class holding n elements, and the number of elements of a class
+    static int sizeClass(int n) {
+        int c = (int) Math.ceil(CLASSES_PER_DOUBLING * (Math.log(Math.max(1, n)) / Math.log(2)));
+        while (c > 0 && classLength(c - 1) >= n) c--;
+        while (classLength(c) < n) c++;
+        return c;
+    }
+
+    static int classLength(int sizeClass) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, Math.ceil(Math.pow(2, (double) sizeClass / CLASSES_PER_DOUBLING)));
+    }
+
+    public int[] acquireInts(int length) {
+        if ((long) length * 4 < MIN_POOLED_BYTES) return new int[length];
+        int c = sizeClass(length);
+        Object array = take(intClasses, c);
+        return array != null ? (int[]) array : allocated(new int[classLength(c)], 4L * classLength(c));
+    }
+
+    public byte[] acquireBytes(int length) {
+        if (length < MIN_POOLED_BYTES) return new byte[length];
+        int c = sizeClass(length);
+        Object array = take(byteClasses, c);
+        return array != null ? (byte[]) array : allocated(new byte[classLength(c)], classLength(c));
+    }
+
+    private <T> T allocated(T array, long bytes) {
+        allocatedBytes.addAndGet(bytes);
+        return array;
+    }
+
+    private Object take(Map<Integer, SizeClass> classes, int c) {
+        acquired.incrementAndGet();
+        SizeClass sizeClass = classes.get(c);
+        Object array = sizeClass != null ? sizeClass.arrays.pollFirst() : null;
+        if (array == null) return null;
+        sizeClass.lastUsed = System.nanoTime();
+        pooledBytes.addAndGet(-sizeClass.bytesPerArray);
+        hits.incrementAndGet();
+        reusedBytes.addAndGet(sizeClass.bytesPerArray);
+        return array;
+    }
+
+    // Arrays of other lengths (not from the pool) are ignored
+    public void release(int[] array) {
+        if (array != null) put(intClasses, array, array.length, 4L * array.length);
+    }
+
+    public void release(byte[] array) {
+        if (array != null) put(byteClasses, array, array.length, array.length);
+    }
+
+    private void put(Map<Integer, SizeClass> classes, Object array, int length, long bytes) {
+        if (bytes < MIN_POOLED_BYTES) return;
+        int c = sizeClass(length);
+        if (classLength(c) != length) return;
+        if (!makeRoom(bytes)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        SizeClass sizeClass = classes.computeIfAbsent(c, k -> new SizeClass(bytes));
+        sizeClass.lastUsed = System.nanoTime();
+        sizeClass.arrays.offerFirst(array);
+        released.incrementAndGet();
+    }
+
+    // Reserve room for bytes more, dropping arrays of the least recently used size classes if needed
+    private boolean makeRoom(long bytes) {
+        if (bytes > maxPooledBytes) return false;
+        while (true) {
+            long pooled = pooledBytes.get();
+            if (pooled + bytes <= maxPooledBytes) {
+                if (pooledBytes.compareAndSet(pooled, pooled + bytes)) return true;
+                continue;
+            }
+            if (!evictLeastRecentlyUsed()) return false;
+        }
+    }
+
+    private boolean evictLeastRecentlyUsed() {
+        SizeClass oldest = null;
+        for (Map<Integer, SizeClass> classes : Arrays.asList(intClasses, byteClasses)) {
+            for (SizeClass sizeClass : classes.values()) {
+                if (!sizeClass.arrays.isEmpty() && (oldest == null || sizeClass.lastUsed < oldest.lastUsed)) oldest = sizeClass;
+            }
+        }
+        if (oldest == null) return false;
+        if (oldest.arrays.pollLast() != null) {
+            pooledBytes.addAndGet(-oldest.bytesPerArray);
+            dropped.incrementAndGet();
+        }
+        return true;
+    }
+
+    /** Drop idle arrays until the pool holds at most maxPooledBytes (0 turns pooling off). */
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = Math.max(0, maxPooledBytes);
+        while (pooledBytes.get() > this.maxPooledBytes && evictLeastRecentlyUsed()) {
+            // Evicting one array at a time
+        }
+    }
+
+    /**
+     * A width x height image of the given type backed by a pooled array; its pixels are whatever the
+     * array held before. Types without a single-array raster (packed binary, 3-byte BGR) are allocated.
+     */
+    public BufferedImage acquireImage(int width, int height, int imageType) {
+        ColorModel colorModel = colorModels.computeIfAbsent(imageType, t -> new BufferedImage(1, 1, t).getColorModel());
+        BufferedImage image = acquireImage(width, height, colorModel);
+        return image != null ? image : new BufferedImage(width, height, imageType);
+    }
+
+    /** Like acquireImage(width, height, type) for a given colour model, e.g. a page's own palette; null if it can't be pooled. */
+    public BufferedImage acquireImage(int width, int height, ColorModel colorModel) {
+        SampleModel sampleModel = colorModel.createCompatibleSampleModel(width, height);
+        int length = width * height;
+        DataBuffer dataBuffer;
+        if (sampleModel instanceof SinglePixelPackedSampleModel && sampleModel.getDataType() == DataBuffer.TYPE_INT) {
+            dataBuffer = new DataBufferInt(acquireInts(length), length);
+        } else if (sampleModel instanceof ComponentSampleModel && sampleModel.getDataType() == DataBuffer.TYPE_BYTE
+                && sampleModel.getNumBands() == 1 && ((ComponentSampleModel) sampleModel).getPixelStride() == 1) {
+            // IndexColorModel asks for a plain ComponentSampleModel, which would make a TYPE_CUSTOM image
+            // that Java2D and the sharpen filter only handle through slow generic paths
+            sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, 1, width, new int[] {0});
+            dataBuffer = new DataBufferByte(acquireBytes(length), length);
+        } else {
+            return null;
+        }
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /** Give an image's pixel array back once nothing uses the image any more. */
+    public void release(BufferedImage image) {
+        if (image == null) return;
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null) return; // A sub-image shares its parent's array
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (dataBuffer.getNumBanks() != 1) return;
+        if (dataBuffer instanceof DataBufferInt) {
+            release(((DataBufferInt) dataBuffer).getData());
+        } else if (dataBuffer instanceof DataBufferByte) {
+            release(((DataBufferByte) dataBuffer).getData());
+        }
+    }
+
+    /** An output stream writing into pooled arrays, e.g. for an encoded page image. */
+    public Output newOutput() {
+        return new Output(this);
+    }
+
+    /**
+     * Growing byte output backed by pooled arrays. The bytes are getBuffer()[0..size()), the buffer is
+     * usually longer; hand it back with release(byte[]) once written.
+     */
+    public static class Output extends OutputStream {
+        private final RasterBufferPool pool;
+        private byte[] buffer;
+        private int size = 0;
+
+        Output(RasterBufferPool pool) {
+            this.pool = pool;
+            this.buffer = pool.acquireBytes(INITIAL_OUTPUT_BYTES);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= buffer.length) return;
+            byte[] bigger = pool.acquireBytes(Math.max(capacity, buffer.length * 2));
+            System.arraycopy(buffer, 0, bigger, 0, size);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+
+        public byte[] getBuffer() { return buffer; }
+        public int size() { return size; }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long acquiredCount = acquired.get();
+        stats.put("maxMb", maxPooledBytes / (1024 * 1024));
+        stats.put("pooledMb", pooledBytes.get() / (1024.0 * 1024.0));
+        stats.put("acquired", acquiredCount);
+        stats.put("hits", hits.get());
+        stats.put("hitRate", acquiredCount > 0 ? (double) hits.get() / acquiredCount : 0.0);
+        stats.put("reusedMb", reusedBytes.get() / (1024 * 1024)); // Allocation saved by reuse
+        stats.put("allocatedMb", allocatedBytes.get() / (1024 * 1024));
+        stats.put("released", released.get());
+        stats.put("dropped", dropped.get());
+        return stats;
+    }
+}
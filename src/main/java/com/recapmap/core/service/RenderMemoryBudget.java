@@ -0,0 +1,142 @@
+package com.recapmap.core.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * Admission control for page rendering.
+ * Every page reserves the size of its bitmap (crop box x DPI x bytes per pixel) from a heap budget
+ * before it is rendered and gives it back once the bitmap has been encoded. Pages that don't fit
+ * wait until enough earlier pages have been released, so raising thread counts or DPI through the
+ * admin API can't push the renderers past the budget. A page larger than the whole budget is
+ * admitted alone, when nothing else is reserved.
+ */
+public class RenderMemoryBudget {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long budgetBytes;
+    private long reservedBytes = 0;
+    private long peakReservedBytes = 0;
+    private long admitted = 0;
+    private long waited = 0;
+    private long waitNanos = 0;
+    private long oversize = 0;
+
+    public RenderMemoryBudget(long budgetBytes) {
+        this.budgetBytes = Math.max(1, budgetBytes);
+    }
+
+    /** Bytes of the bitmap renderImageWithDPI will allocate for the page. */
+    public static long estimateBytes(PDPage page, int dpi, PageRenderProfile profile) {
+        PDRectangle cropBox = page.getCropBox();
+        double scale = dpi / 72.0;
+        long width = (long) Math.ceil(cropBox.getWidth() * scale);
+        long height = (long) Math.ceil(cropBox.getHeight() * scale);
+        return width * height * profile.getBytesPerPixel();
+    }
+
+    /**
+     * Reserve memory for one page bitmap, waiting while the budget is exhausted.
+     * @return the number of bytes actually reserved, to be passed to release()
+     */
+    public long reserve(long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            boolean blocked = false;
+            while (!fits(bytes)) {
+                blocked = true;
+                released.await(500, TimeUnit.MILLISECONDS);
+            }
+            if (blocked) {
+                waited++;
+                waitNanos += System.nanoTime() - start;
+            }
+            if (bytes > budgetBytes) oversize++;
+            reservedBytes += bytes;
+            peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+            admitted++;
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        if (bytes <= 0) return;
+        lock.lock();
+        try {
+            reservedBytes = Math.max(0, reservedBytes - bytes);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A budget change takes effect for pages still waiting; pages already rendering keep their share
+    public void setBudgetBytes(long budgetBytes) {
+        lock.lock();
+        try {
+            this.budgetBytes = Math.max(1, budgetBytes);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBudgetBytes() {
+        lock.lock();
+        try {
+            return budgetBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getReservedBytes() {
+        lock.lock();
+        try {
+            return reservedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Pages that had to wait for room so far
+    public long getWaitedPages() {
+        lock.lock();
+        try {
+            return waited;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        lock.lock();
+        try {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("budgetMb", budgetBytes / (1024 * 1024));
+            stats.put("reservedMb", reservedBytes / (1024.0 * 1024.0));
+            stats.put("peakReservedMb", peakReservedBytes / (1024.0 * 1024.0));
+            stats.put("admittedPages", admitted);
+            stats.put("waitedPages", waited);
+            stats.put("waitMillis", waitNanos / 1_000_000);
+            stats.put("oversizePages", oversize);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return reservedBytes + bytes <= budgetBytes || reservedBytes == 0;
+    }
+}
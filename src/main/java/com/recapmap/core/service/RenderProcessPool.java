@@ -0,0 +1,260 @@
+package com.recapmap.core.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Child JVMs that render pages for the web application (see RenderWorkerProcess), so a malformed
+ * PDF or a giant page costs a render process its heap, or its life, instead of stalling every
+ * request on GC pauses or taking the application down with an OutOfMemoryError.
+ * Processes are started on demand up to the configured count, talk over their stdin/stdout and are
+ * reused page after page. A process is replaced after maxPagesPerProcess pages, when its live heap
+ * after a page is above HEAP_RECYCLE_SHARE, after a heap size change, and when it dies or hangs:
+ * a page taking longer than PAGE_TIMEOUT_MILLIS gets its process killed. A page whose process died
+ * fails; the pages after it get a fresh process.
+ * Only page work moves out: the application still opens the PDF itself to count its pages and
+ * compute PageContentHashes, so a document that is costly just to parse (a corrupt cross-reference
+ * table, a huge page tree) can still cost this JVM memory and time.
+ * Large documents are parsed with a capped heap share (see PdfService.documentMemoryUsage).
+ */
+public class RenderProcessPool {
+
+    private static final long PAGE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final double HEAP_RECYCLE_SHARE = 0.75; // Live heap after a page above which the process is replaced
+    private static final long EXIT_GRACE_MILLIS = 5000; // Time a retired process gets to exit before it is killed
+    private static final String BOOT_LAUNCHER = "org.springframework.boot.loader.launch.PropertiesLauncher";
+
+    private volatile int maxProcesses;
+    private volatile int heapMb;
+    private volatile int maxPagesPerProcess;
+    private int liveProcesses = 0;
+    private final BlockingQueue<RenderProcess> idle = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pdf-render-process-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong failedPages = new AtomicLong();
+    private final AtomicLong pageNanos = new AtomicLong();
+    private final AtomicLong recycledAfterPages = new AtomicLong();
+    private final AtomicLong recycledForMemory = new AtomicLong();
+    private final AtomicLong crashed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private static class RenderProcess {
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final int heapMb;
+        private int pages = 0;
+        private volatile boolean killed = false;
+
+        RenderProcess(Process process, int heapMb) {
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            this.heapMb = heapMb;
+        }
+    }
+
+    public RenderProcessPool(int maxProcesses, int heapMb, int maxPagesPerProcess) {
+        configure(maxProcesses, heapMb, maxPagesPerProcess);
+    }
+
+    /**
+     * Change the pool's limits. Idle processes stop right away and new ones start on demand; busy
+     * ones finish their page first, and stop then if they are surplus or have another heap size.
+     */
+    public void configure(int maxProcesses, int heapMb, int maxPagesPerProcess) {
+        this.maxProcesses = Math.max(1, maxProcesses);
+        this.heapMb = heapMb;
+        this.maxPagesPerProcess = Math.max(0, maxPagesPerProcess);
+        List<RenderProcess> drained = new ArrayList<>();
+        idle.drainTo(drained);
+        for (RenderProcess process : drained) release(process, true);
+    }
+
+    /** Send a page request (see RenderWorkerProcess.request) to a render process and wait for its reply. */
+    public Properties render(Properties request) throws IOException, InterruptedException {
+        RenderProcess process = borrow();
+        boolean reusable = false;
+        long start = System.nanoTime();
+        ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+            process.killed = true;
+            process.process.destroyForcibly();
+        }, PAGE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            RenderWorkerProcess.writeMessage(process.out, request);
+            Properties reply = RenderWorkerProcess.readMessage(process.in);
+            process.pages++;
+            pages.incrementAndGet();
+            pageNanos.addAndGet(System.nanoTime() - start);
+            if (reply.containsKey("error")) failedPages.incrementAndGet();
+            reusable = keep(process, reply);
+            return reply;
+        } catch (IOException e) {
+            failedPages.incrementAndGet();
+            if (process.killed) {
+                timedOut.incrementAndGet();
+                throw new IOException("Render process took longer than " + PAGE_TIMEOUT_MILLIS / 1000 + " s and was stopped");
+            }
+            crashed.incrementAndGet();
+            throw new IOException("Render process exited while rendering (" + exitDescription(process) + ")", e);
+        } finally {
+            timeout.cancel(false);
+            release(process, !reusable);
+        }
+    }
+
+    // Whether a process that just finished a page takes the next one
+    private boolean keep(RenderProcess process, Properties reply) {
+        if (maxPagesPerProcess > 0 && process.pages >= maxPagesPerProcess) {
+            recycledAfterPages.incrementAndGet();
+            return false;
+        }
+        if (Double.parseDouble(reply.getProperty("liveHeapShare", "0")) > HEAP_RECYCLE_SHARE) {
+            recycledForMemory.incrementAndGet();
+            return false;
+        }
+        return process.heapMb == heapMb;
+    }
+
+    // An idle process, a new one while under the limit, or the next one another page gives back
+    private RenderProcess borrow() throws IOException, InterruptedException {
+        while (true) {
+            RenderProcess process = idle.poll();
+            if (process == null) {
+                synchronized (this) {
+                    if (liveProcesses < maxProcesses) {
+                        liveProcesses++;
+                        break;
+                    }
+                }
+                process = idle.poll(500, TimeUnit.MILLISECONDS);
+                if (process == null) continue;
+            }
+            if (process.process.isAlive()) return process;
+            release(process, true);
+        }
+        try {
+            return start();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                liveProcesses--;
+            }
+            throw e;
+        }
+    }
+
+    private void release(RenderProcess process, boolean retire) {
+        synchronized (this) {
+            if (!retire && liveProcesses <= maxProcesses && process.process.isAlive()) {
+                idle.add(process);
+                return;
+            }
+            liveProcesses--;
+        }
+        // Closing stdin ends the process; one that doesn't is killed after a grace period
+        try {
+            process.out.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        watchdog.schedule(() -> {
+            process.process.destroyForcibly();
+        }, EXIT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private RenderProcess start() throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command(heapMb));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        RenderProcess process = new RenderProcess(builder.start(), heapMb);
+        try {
+            // The process says it is ready once its pipeline runs; a bad class path ends it first
+            Properties ready = RenderWorkerProcess.readMessage(process.in);
+            started.incrementAndGet();
+            System.out.println("[RenderProcessPool] Started render process " + ready.getProperty("pid") + " (" + heapMb + " MB heap)");
+            return process;
+        } catch (IOException e) {
+            process.process.destroyForcibly();
+            throw new IOException("Render process failed to start (" + exitDescription(process) + ")", e);
+        }
+    }
+
+    // The same Java and class path as this JVM; from a Spring Boot jar the main class is found through its launcher
+    static List<String> command(int heapMb) {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Xmx" + heapMb + "m");
+        command.add("-XX:+ExitOnOutOfMemoryError");
+        command.add("-Djava.awt.headless=true");
+        // Same font cache and class data sharing archive, so a new process starts as quickly as this one did
+        String fontCache = System.getProperty(PdfFontCache.FOLDER_PROPERTY);
+        if (fontCache != null) command.add("-D" + PdfFontCache.FOLDER_PROPERTY + "=" + fontCache);
+        String sharedArchive = StartupWarmupService.sharedArchiveFile();
+        if (sharedArchive != null) command.add("-XX:SharedArchiveFile=" + sharedArchive);
+        String classPath = System.getProperty("java.class.path");
+        String codeSource = String.valueOf(RenderWorkerProcess.class.getProtectionDomain().getCodeSource().getLocation());
+        if (codeSource.contains("BOOT-INF")) {
+            command.add("-Dloader.main=" + RenderWorkerProcess.class.getName());
+            command.add("-cp");
+            command.add(classPath);
+            command.add(BOOT_LAUNCHER);
+        } else {
+            command.add("-cp");
+            command.add(classPath);
+            command.add(RenderWorkerProcess.class.getName());
+        }
+        return command;
+    }
+
+    private static String exitDescription(RenderProcess process) {
+        try {
+            if (!process.process.waitFor(1, TimeUnit.SECONDS)) return "still running";
+            return "exit code " + process.process.exitValue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "exit code unknown";
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long pageCount = pages.get();
+        synchronized (this) {
+            stats.put("processes", liveProcesses);
+        }
+        stats.put("idle", idle.size());
+        stats.put("maxProcesses", maxProcesses);
+        stats.put("heapMb", heapMb);
+        stats.put("maxPagesPerProcess", maxPagesPerProcess);
+        stats.put("started", started.get());
+        stats.put("pages", pageCount);
+        stats.put("failedPages", failedPages.get());
+        stats.put("avgMillisPerPage", pageCount > 0 ? pageNanos.get() / 1_000_000.0 / pageCount : 0.0);
+        stats.put("recycledAfterPages", recycledAfterPages.get());
+        stats.put("recycledForMemory", recycledForMemory.get());
+        stats.put("crashed", crashed.get());
+        stats.put("timedOut", timedOut.get());
+        return stats;
+    }
+}
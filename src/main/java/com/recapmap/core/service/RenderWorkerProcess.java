@@ -0,0 +1,134 @@
+package com.recapmap.core.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Main class of a render process (see RenderProcessPool). The process reads page requests from stdin,
+ * runs each page through its own conversion pipeline (render, normalize, sharpen, encode, write) and
+ * writes the page image, and any tiles and previews, to the output folder named in the request. The reply on
+ * stdout only describes the page: image name, render profile, fingerprint, transform and tile layout.
+ * Messages are Properties, each framed by its length. The process ends when stdin is closed, which
+ * also happens when the web application dies, so no render process outlives it.
+ * Everything the shared code prints goes to stderr; stdout carries replies only.
+ */
+public class RenderWorkerProcess {
+
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        // One page at a time per process; the web application runs as many processes as it wants pages in parallel
+        PdfService.updateConvertThreadPool(1);
+        PdfService.updatePipelineWorkers(1, 1, 1, 1);
+        Properties ready = new Properties();
+        ready.setProperty("pid", String.valueOf(ProcessHandle.current().pid()));
+        writeMessage(out, ready);
+        PdfDocumentPool documentPool = null;
+        long documentModified = 0;
+        try {
+            while (true) {
+                Properties request;
+                try {
+                    request = readMessage(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                Properties reply;
+                try {
+                    // Pages of one document usually come in a row, so its last document stays open
+                    File pdfFile = new File(request.getProperty("pdf"));
+                    if (documentPool == null || !documentPool.getPdfFile().equals(pdfFile) || documentModified != pdfFile.lastModified()) {
+                        if (documentPool != null) documentPool.close();
+                        documentPool = null;
+                        documentModified = pdfFile.lastModified();
+                        documentPool = PdfService.openDocumentPool(pdfFile);
+                    }
+                    PagePyramid.MODE = request.getProperty("pagePyramid", PagePyramid.MODE);
+                    PageConversionPipeline.PageTask task = PdfService.convertPage(documentPool, Integer.parseInt(request.getProperty("page")),
+                            new File(request.getProperty("outputDir")), request.getProperty("imageBaseName"), ConversionSettings.fromProperties(request));
+                    reply = result(task);
+                } catch (Exception e) {
+                    reply = new Properties();
+                    reply.setProperty("error", e.getClass().getSimpleName() + ": " + e.getMessage());
+                }
+                reply.setProperty("liveHeapShare", String.valueOf(ConvertThreadTuner.liveHeapShare()));
+                writeMessage(out, reply);
+            }
+        } finally {
+            if (documentPool != null) documentPool.close();
+        }
+        System.exit(0);
+    }
+
+    // The page's request: its document, page and output, and the job's conversion settings
+    static Properties request(PageConversionPipeline.PageTask task) {
+        PageConversionPipeline.Job job = task.getJob();
+        Properties request = job.getSettings().toProperties();
+        request.setProperty("pdf", job.getDocumentPool().getPdfFile().getAbsolutePath());
+        request.setProperty("page", String.valueOf(task.getPageIndex()));
+        request.setProperty("outputDir", job.getOutputDir().getAbsolutePath());
+        request.setProperty("imageBaseName", job.getImageBaseName());
+        request.setProperty("pagePyramid", PagePyramid.MODE);
+        return request;
+    }
+
+    // What the web application's listeners read from a finished page
+    static Properties result(PageConversionPipeline.PageTask task) {
+        Properties result = new Properties();
+        result.setProperty("imageName", task.getImageName());
+        result.setProperty("renderProfile", task.getRenderProfile().name());
+        result.setProperty("scan", String.valueOf(task.isScan()));
+        if (task.getFingerprint() != null) {
+            result.setProperty("fingerprint.ink", String.valueOf(task.getFingerprint().getInkCoverage()));
+        }
+        if (task.getTransform() != null) result.setProperty("transform", task.getTransform().format());
+        if (task.getTiles() != null) task.getTiles().write(result, "tiles");
+        return result;
+    }
+
+    // Fill in a page from a render process's reply; a reply with an error fails the page
+    static void applyResult(Properties result, PageConversionPipeline.PageTask task) throws IOException {
+        String error = result.getProperty("error");
+        if (error != null) throw new IOException(error);
+        task.setRenderProfile(PageRenderProfile.valueOf(result.getProperty("renderProfile")));
+        task.setScan(Boolean.parseBoolean(result.getProperty("scan")));
+        if (result.containsKey("fingerprint.ink")) {
+            task.setFingerprint(PageFingerprint.ofInkCoverage(Double.parseDouble(result.getProperty("fingerprint.ink"))));
+        }
+        if (result.containsKey("transform")) task.setTransform(PageNormalizer.Transform.parse(result.getProperty("transform")));
+        if (result.containsKey("tiles.page")) task.setTiles(PageTiles.read(result, "tiles"));
+        task.setImageName(result.getProperty("imageName"));
+        task.setOutputFile(new File(task.getJob().getOutputDir(), task.getImageName()));
+    }
+
+    static void writeMessage(DataOutputStream out, Properties message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.store(bytes, null);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.flush();
+    }
+
+    static Properties readMessage(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_BYTES) throw new IOException("Bad message length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        Properties message = new Properties();
+        message.load(new ByteArrayInputStream(bytes));
+        return message;
+    }
+}
@@ -0,0 +1,573 @@
+package com.recapmap.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Retention and disk quota for ROOT_FOLDER, kept in the background so no request ever waits for a cleanup.
+ * One thread walks the document folders a batch at a time (the store's store/&lt;hash&gt;/, and the older
+ * &lt;session&gt;/&lt;uuid&gt;/ with &lt;uuid&gt;.&lt;ext&gt; next to it) and applies a TTL per kind of artifact,
+ * counted from the document's last use: the newest modification time of its folders, which conversions,
+ * extractions and page requests keep fresh (see touch).
+ * <ul>
+ * <li>SOURCE_TTL_DAYS: the upload, and with it everything made from it</li>
+ * <li>PAGE_IMAGE_TTL_DAYS: page images, tiles, vision copies and previews (rendered again on request)</li>
+ * <li>JSON_RESULT_TTL_DAYS: extraction results and figure crops</li>
+ * </ul>
+ * Above HIGH_WATERMARK of the disk quota, or with less than MIN_FREE_DISK_MB left on the disk, the
+ * least recently used documents lose what can be made again: page images first, then extraction results
+ * (which cost vision calls to make again), never uploads. The limits are checked every few seconds and page
+ * images written since the last walk are counted, so conversions keep room to write.
+ * A page image hard-linked into several documents (see PageCarryForward) is counted once, split between
+ * them, and only frees space with its last link.
+ */
+@Service
+public class RetentionService {
+    public static volatile int SOURCE_TTL_DAYS = 30; // 0 keeps uploads forever
+    public static volatile int PAGE_IMAGE_TTL_DAYS = 7; // 0 keeps page images until the quota needs the space
+    public static volatile int JSON_RESULT_TTL_DAYS = 90; // 0 keeps extraction results until the quota needs the space
+    public static volatile int DISK_QUOTA_MB = 0; // Size ROOT_FOLDER is kept under; 0 = no quota, the free space check still applies
+    public static volatile int MIN_FREE_DISK_MB = 1024; // Free space kept on the disk; 0 = not checked
+
+    private static final long TICK_MILLIS = 10_000; // Limits are checked and a batch of folders scanned this often
+    private static final long INITIAL_DELAY_MILLIS = 60_000; // Not while the application is starting
+    private static final int SCAN_BATCH = 200; // Document folders per tick once every folder has been seen
+    private static final long PASS_INTERVAL_MILLIS = 10 * 60 * 1000L; // Pause between walks
+    private static final long TEMP_TTL_MILLIS = 24 * 60 * 60 * 1000L; // Upload parts; ChunkedUploadService drops idle uploads after 6 h
+    private static final long EVICTION_MIN_IDLE_MILLIS = 30 * 60 * 1000L; // Documents used more recently are never touched
+    private static final long TOUCH_INTERVAL_MILLIS = 60_000;
+    private static final double HIGH_WATERMARK = 0.9; // Share of the quota at which eviction starts...
+    private static final double LOW_WATERMARK = 0.8; // ...and the share it evicts down to
+    private static final double FREE_SPACE_TARGET = 1.25; // Evict until the disk has this much more than MIN_FREE_DISK_MB
+    private static final long MB = 1024L * 1024L;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final String TRASH_PREFIX = ".trash-";
+    private static final String JSON_RESULT_FOLDER = "json_result";
+    private static final String REGIONS_FOLDER = "regions";
+    private static final String SOURCE_NAME = "source.";
+    // Files describing a document's page images, useless without them
+    private static final Set<String> PAGE_IMAGE_FILES = Set.of(PdfService.CONVERSION_MARKER, PdfService.PAGE_RENDERS_FILE,
+            PageFingerprint.FINGERPRINTS_FILE, PageTiles.TILES_FILE, PageNormalizer.TRANSFORMS_FILE);
+    private static final Set<String> PAGE_IMAGE_FOLDERS = Set.of(PageTiles.TILES_FOLDER, VisionImageSizer.VISION_FOLDER, PagePyramid.PYRAMID_FOLDER);
+    private static final Set<String> JSON_RESULT_FOLDERS = Set.of(JSON_RESULT_FOLDER, REGIONS_FOLDER);
+    private static final boolean UNIX_ATTRIBUTES = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    // Page image bytes written since the current walk started, not yet in the document sizes
+    private static final AtomicLong writtenSincePass = new AtomicLong();
+
+    /** What a document folder holds, as of its last scan. */
+    private static class Document {
+        private final File dir; // Output folder
+        private final File source; // The upload; inside dir for stored documents
+        private long signature; // Modification times the sizes belong to
+        private long lastUsed;
+        private long sourceBytes;
+        private long pageImageBytes;
+        private long jsonResultBytes;
+        private long otherBytes;
+        private boolean hasPageImages;
+        private boolean hasJsonResults;
+
+        Document(File dir, File source) {
+            this.dir = dir;
+            this.source = source;
+        }
+
+        long bytes() {
+            return sourceBytes + pageImageBytes + jsonResultBytes + otherBytes;
+        }
+    }
+
+    private enum Artifact { PAGE_IMAGES, JSON_RESULTS }
+
+    // Only the retention thread changes these; the map is concurrent so stats can be read from requests
+    private final Map<File, Document> documents = new ConcurrentHashMap<>();
+    private final Deque<Document> pending = new ArrayDeque<>();
+    private boolean firstPass = true;
+    private boolean passRunning;
+    private volatile long tempBytes;
+    private volatile long lastPassStart;
+    private volatile long lastPassMillis = -1;
+    private volatile boolean underPressure;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong scannedFolders = new AtomicLong();
+    private final AtomicLong deletedFiles = new AtomicLong();
+    private final AtomicLong pressureEvents = new AtomicLong();
+    private final Map<String, AtomicLong> reclaimedBytes = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "root-folder-retention");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    public RetentionService() {
+        for (String reason : List.of("sourceTtl", "pageImageTtl", "jsonResultTtl", "temp", "quota", "cleanup")) {
+            reclaimedBytes.put(reason, new AtomicLong());
+        }
+        worker.scheduleWithFixedDelay(this::tick, INITIAL_DELAY_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // A document is in use: keep its folder's modification time recent so retention leaves it alone
+    public static void touch(File documentDir) {
+        long now = System.currentTimeMillis();
+        if (now - documentDir.lastModified() > TOUCH_INTERVAL_MILLIS) documentDir.setLastModified(now);
+    }
+
+    // Page image bytes just written, counted against the quota until the next walk measures them
+    public static void recordWritten(long bytes) {
+        writtenSincePass.addAndGet(bytes);
+    }
+
+    /** Start a walk now (after the current one), without waiting for it. */
+    public void sweepNow() {
+        worker.execute(() -> {
+            if (pending.isEmpty()) startPass();
+            while (!pending.isEmpty()) scan(pending.poll());
+            finishPass();
+            enforceLimits();
+        });
+    }
+
+    /**
+     * Remove everything under ROOT_FOLDER. Its entries are moved into a trash folder right away, so new
+     * uploads start from an empty folder, and deleted in the background.
+     * @return the number of entries moved
+     */
+    public int cleanupAll() {
+        File root = new File(PdfService.ROOT_FOLDER).getAbsoluteFile();
+        File[] children = root.listFiles((dir, name) -> !name.startsWith(TRASH_PREFIX));
+        if (children == null || children.length == 0) return 0;
+        File trash = new File(root, TRASH_PREFIX + System.currentTimeMillis());
+        trash.mkdirs();
+        int moved = 0;
+        for (File child : children) {
+            try {
+                Files.move(child.toPath(), new File(trash, child.getName()).toPath());
+                moved++;
+            } catch (IOException e) {
+                // Open files (Windows) can't be moved; the next walk takes care of what they belong to
+                System.out.println("[WARN] Could not move " + child + " aside for cleanup: " + e.getMessage());
+            }
+        }
+        worker.execute(() -> {
+            documents.clear();
+            pending.clear();
+            reclaimedBytes.get("cleanup").addAndGet(deleteTree(trash.toPath()));
+        });
+        return moved;
+    }
+
+    private void tick() {
+        try {
+            if (pending.isEmpty() && System.currentTimeMillis() - lastPassStart >= PASS_INTERVAL_MILLIS) startPass();
+            // The first walk runs through, so the quota is checked against every folder from then on
+            int scanned = 0;
+            while (!pending.isEmpty() && (firstPass || scanned++ < SCAN_BATCH)) scan(pending.poll());
+            if (pending.isEmpty()) finishPass();
+            enforceLimits();
+        } catch (Exception e) {
+            // An exception would cancel the schedule; try again next tick
+            System.out.println("[WARN] Retention tick failed: " + e.getMessage());
+        }
+    }
+
+    // List the document folders to scan, and deal with the temp folder and left-over trash on the way
+    private void startPass() {
+        lastPassStart = System.currentTimeMillis();
+        writtenSincePass.set(0);
+        File root = new File(PdfService.ROOT_FOLDER).getAbsoluteFile();
+        File[] children = root.listFiles();
+        if (children == null) return;
+        passRunning = true;
+        Set<File> listed = new HashSet<>();
+        for (File child : children) {
+            if (!child.isDirectory()) continue;
+            if (child.getName().startsWith(TRASH_PREFIX)) {
+                reclaimedBytes.get("cleanup").addAndGet(deleteTree(child.toPath()));
+            } else if (child.getName().equals(DocumentStoreService.STORE_FOLDER)) {
+                File[] stored = child.listFiles();
+                if (stored == null) continue;
+                for (File dir : stored) {
+                    if (!dir.isDirectory()) continue;
+                    if (dir.getName().equals(DocumentStoreService.TMP_FOLDER)) {
+                        expireTemp(dir);
+                        continue;
+                    }
+                    File[] sources = dir.listFiles((d, name) -> name.startsWith(SOURCE_NAME));
+                    queue(dir, sources != null && sources.length > 0 ? sources[0] : null, listed);
+                }
+            } else {
+                queueSessionFolder(child, listed);
+            }
+        }
+        documents.keySet().retainAll(listed);
+    }
+
+    // An upload outside the store: <session>/<uuid>.<ext> with its outputs in <session>/<uuid>/
+    private void queueSessionFolder(File sessionDir, Set<File> listed) {
+        File[] entries = sessionDir.listFiles();
+        if (entries == null) return;
+        if (entries.length == 0) {
+            if (System.currentTimeMillis() - sessionDir.lastModified() > EVICTION_MIN_IDLE_MILLIS) sessionDir.delete();
+            return;
+        }
+        Map<String, File> sources = new HashMap<>();
+        for (File entry : entries) {
+            int dot = entry.getName().indexOf('.');
+            if (entry.isFile() && dot > 0) sources.put(entry.getName().substring(0, dot), entry);
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) queue(entry, sources.remove(entry.getName()), listed);
+        }
+        // Uploads never converted have no output folder yet
+        for (Map.Entry<String, File> source : sources.entrySet()) queue(new File(sessionDir, source.getKey()), source.getValue(), listed);
+    }
+
+    private void queue(File dir, File source, Set<File> listed) {
+        listed.add(dir);
+        Document document = documents.get(dir);
+        pending.add(document != null && sameFile(document.source, source) ? document : new Document(dir, source));
+    }
+
+    private static boolean sameFile(File a, File b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void finishPass() {
+        if (!passRunning) return;
+        passRunning = false;
+        firstPass = false;
+        passes.incrementAndGet();
+        lastPassMillis = System.currentTimeMillis() - lastPassStart;
+    }
+
+    // Measure a document folder if it changed since its last scan, then apply the TTLs
+    private void scan(Document document) {
+        scannedFolders.incrementAndGet();
+        long signature = signature(document);
+        if (signature == 0) {
+            documents.remove(document.dir);
+            return;
+        }
+        if (signature != document.signature) measure(document, signature);
+        documents.put(document.dir, document);
+        long idle = System.currentTimeMillis() - document.lastUsed;
+        if (SOURCE_TTL_DAYS > 0 && idle > SOURCE_TTL_DAYS * DAY_MILLIS) {
+            long reclaimed = deleteTree(document.dir.toPath());
+            if (document.source != null && !document.source.toPath().startsWith(document.dir.toPath())) reclaimed += deleteTree(document.source.toPath());
+            reclaimedBytes.get("sourceTtl").addAndGet(reclaimed);
+            documents.remove(document.dir);
+            return;
+        }
+        if (PAGE_IMAGE_TTL_DAYS > 0 && document.hasPageImages && idle > PAGE_IMAGE_TTL_DAYS * DAY_MILLIS) {
+            reclaimedBytes.get("pageImageTtl").addAndGet(evict(document, Artifact.PAGE_IMAGES));
+        }
+        if (JSON_RESULT_TTL_DAYS > 0 && document.hasJsonResults && idle > JSON_RESULT_TTL_DAYS * DAY_MILLIS) {
+            reclaimedBytes.get("jsonResultTtl").addAndGet(evict(document, Artifact.JSON_RESULTS));
+        }
+    }
+
+    // Modification times of the folders a document's use shows in; 0 once the document is gone
+    private static long signature(Document document) {
+        long signature = 0;
+        boolean exists = false;
+        for (File file : usageFiles(document)) {
+            long modified = file.lastModified();
+            if (modified != 0) exists = true;
+            signature = signature * 31 + modified;
+        }
+        return exists ? (signature == 0 ? 1 : signature) : 0;
+    }
+
+    private static List<File> usageFiles(Document document) {
+        List<File> files = new ArrayList<>();
+        files.add(document.dir);
+        for (String folder : PAGE_IMAGE_FOLDERS) files.add(new File(document.dir, folder));
+        for (String folder : JSON_RESULT_FOLDERS) files.add(new File(document.dir, folder));
+        if (document.source != null) files.add(document.source);
+        return files;
+    }
+
+    private static long lastUsed(Document document) {
+        long lastUsed = 0;
+        for (File file : usageFiles(document)) lastUsed = Math.max(lastUsed, file.lastModified());
+        return lastUsed;
+    }
+
+    private static void measure(Document document, long signature) {
+        document.signature = signature;
+        document.lastUsed = lastUsed(document);
+        document.sourceBytes = 0;
+        document.pageImageBytes = 0;
+        document.jsonResultBytes = 0;
+        document.otherBytes = 0;
+        document.hasPageImages = false;
+        document.hasJsonResults = false;
+        Path dir = document.dir.toPath();
+        if (document.source != null && !document.source.toPath().startsWith(dir)) document.sourceBytes += diskBytes(document.source.toPath());
+        if (!document.dir.isDirectory()) return;
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    long bytes = diskBytes(file);
+                    Path relative = dir.relativize(file);
+                    String top = relative.getName(0).toString();
+                    if (relative.getNameCount() > 1) {
+                        if (PAGE_IMAGE_FOLDERS.contains(top)) {
+                            document.pageImageBytes += bytes;
+                            document.hasPageImages = true;
+                        } else if (JSON_RESULT_FOLDERS.contains(top)) {
+                            document.jsonResultBytes += bytes;
+                            document.hasJsonResults = true;
+                        } else {
+                            document.otherBytes += bytes;
+                        }
+                    } else if (top.startsWith(SOURCE_NAME)) {
+                        document.sourceBytes += bytes;
+                    } else if (isPageImage(top)) {
+                        document.pageImageBytes += bytes;
+                        document.hasPageImages = true;
+                    } else {
+                        document.otherBytes += bytes;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // Measured as far as the walk got
+        }
+    }
+
+    private static boolean isPageImage(String name) {
+        return name.contains("_page") && PageImageEncoders.isPageImageFile(name);
+    }
+
+    // Remove one kind of artifact from a document; the folder keeps its modification time, which is its last use
+    private long evict(Document document, Artifact artifact) {
+        long modified = document.dir.lastModified();
+        long reclaimed = 0;
+        File[] files = document.dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                boolean match = artifact == Artifact.PAGE_IMAGES
+                        ? PAGE_IMAGE_FOLDERS.contains(name) || (file.isFile() && (isPageImage(name) || PAGE_IMAGE_FILES.contains(name)))
+                        : JSON_RESULT_FOLDERS.contains(name);
+                if (match) reclaimed += deleteTree(file.toPath());
+            }
+        }
+        if (modified != 0) document.dir.setLastModified(modified);
+        if (artifact == Artifact.PAGE_IMAGES) {
+            document.pageImageBytes = 0;
+            document.hasPageImages = false;
+        } else {
+            document.jsonResultBytes = 0;
+            document.hasJsonResults = false;
+        }
+        document.signature = signature(document);
+        return reclaimed;
+    }
+
+    // Keep ROOT_FOLDER under the quota and the disk above its free space minimum
+    private void enforceLimits() {
+        long quota = DISK_QUOTA_MB * MB;
+        long minFree = MIN_FREE_DISK_MB * MB;
+        File root = new File(PdfService.ROOT_FOLDER);
+        if (!root.isDirectory()) return;
+        boolean overQuota = quota > 0 && usageBytes() > quota * HIGH_WATERMARK;
+        boolean lowOnDisk = minFree > 0 && root.getUsableSpace() < minFree;
+        if (!overQuota && !lowOnDisk) {
+            underPressure = false;
+            return;
+        }
+        pressureEvents.incrementAndGet();
+        List<Document> leastRecentlyUsed = new ArrayList<>(documents.values());
+        leastRecentlyUsed.sort(Comparator.comparingLong(document -> document.lastUsed));
+        for (Artifact artifact : Artifact.values()) {
+            for (Document document : leastRecentlyUsed) {
+                boolean stillOverQuota = quota > 0 && usageBytes() > quota * LOW_WATERMARK;
+                boolean stillLowOnDisk = minFree > 0 && root.getUsableSpace() < minFree * FREE_SPACE_TARGET;
+                if (!stillOverQuota && !stillLowOnDisk) {
+                    underPressure = false;
+                    return;
+                }
+                boolean has = artifact == Artifact.PAGE_IMAGES ? document.hasPageImages : document.hasJsonResults;
+                if (!has || System.currentTimeMillis() - lastUsed(document) < EVICTION_MIN_IDLE_MILLIS) continue;
+                reclaimedBytes.get("quota").addAndGet(evict(document, artifact));
+            }
+        }
+        // Only uploads and documents in use are left; say so once per episode
+        if (!underPressure) {
+            System.out.println("[WARN] ROOT_FOLDER is over its disk limits with nothing left to evict (usage " + usageBytes() / MB
+                    + " MB, quota " + DISK_QUOTA_MB + " MB, free " + root.getUsableSpace() / MB + " MB)");
+        }
+        underPressure = true;
+    }
+
+    private long usageBytes() {
+        long bytes = tempBytes + writtenSincePass.get();
+        for (Document document : documents.values()) bytes += document.bytes();
+        return bytes;
+    }
+
+    private void expireTemp(File tmpDir) {
+        long bytes = 0;
+        File[] parts = tmpDir.listFiles();
+        if (parts != null) {
+            long now = System.currentTimeMillis();
+            for (File part : parts) {
+                if (now - part.lastModified() > TEMP_TTL_MILLIS) {
+                    reclaimedBytes.get("temp").addAndGet(deleteTree(part.toPath()));
+                } else {
+                    bytes += part.length();
+                }
+            }
+        }
+        tempBytes = bytes;
+    }
+
+    // Delete a file or folder under ROOT_FOLDER without following links; the bytes this freed
+    private long deleteTree(Path path) {
+        Path root = new File(PdfService.ROOT_FOLDER).toPath().toAbsolutePath().normalize();
+        Path target = path.toAbsolutePath().normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            System.out.println("[WARN] Retention refused to delete " + target + " outside " + root);
+            return 0;
+        }
+        long[] freed = {0};
+        try {
+            Files.walkFileTree(target, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    // A hard-linked file only frees its space with its last link
+                    long bytes = links(file) <= 1 ? attributes.size() : 0;
+                    try {
+                        Files.delete(file);
+                        freed[0] += bytes;
+                        deletedFiles.incrementAndGet();
+                    } catch (IOException e) {
+                        // In use or already gone; the next walk sees it again
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    try {
+                        Files.delete(dir);
+                    } catch (IOException notEmpty) {
+                        // Something in it could not be deleted
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // Deleted as far as the walk got
+        }
+        return freed[0];
+    }
+
+    // A file's share of the disk: its size split between its hard links
+    private static long diskBytes(Path file) {
+        try {
+            return Files.size(file) / Math.max(1, links(file));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static int links(Path file) {
+        if (!UNIX_ATTRIBUTES) return 1;
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        File root = new File(PdfService.ROOT_FOLDER);
+        long sources = 0, pageImages = 0, jsonResults = 0, other = 0;
+        for (Document document : documents.values()) {
+            sources += document.sourceBytes;
+            pageImages += document.pageImageBytes;
+            jsonResults += document.jsonResultBytes;
+            other += document.otherBytes;
+        }
+        stats.put("sourceTtlDays", SOURCE_TTL_DAYS);
+        stats.put("pageImageTtlDays", PAGE_IMAGE_TTL_DAYS);
+        stats.put("jsonResultTtlDays", JSON_RESULT_TTL_DAYS);
+        stats.put("diskQuotaMb", DISK_QUOTA_MB);
+        stats.put("minFreeDiskMb", MIN_FREE_DISK_MB);
+        stats.put("documents", documents.size());
+        stats.put("usageBytes", sources + pageImages + jsonResults + other + tempBytes + writtenSincePass.get());
+        stats.put("sourceBytes", sources);
+        stats.put("pageImageBytes", pageImages);
+        stats.put("jsonResultBytes", jsonResults);
+        stats.put("otherBytes", other);
+        stats.put("tempBytes", tempBytes);
+        stats.put("writtenSinceWalkBytes", writtenSincePass.get());
+        stats.put("freeDiskBytes", root.isDirectory() ? root.getUsableSpace() : 0);
+        stats.put("walks", passes.get());
+        stats.put("lastWalkMillis", lastPassMillis);
+        stats.put("scannedFolders", scannedFolders.get());
+        stats.put("deletedFiles", deletedFiles.get());
+        stats.put("pressureEvents", pressureEvents.get());
+        stats.put("underPressure", underPressure);
+        Map<String, Long> reclaimed = new LinkedHashMap<>();
+        long total = 0;
+        for (Map.Entry<String, AtomicLong> entry : reclaimedBytes.entrySet()) {
+            reclaimed.put(entry.getKey(), entry.getValue().get());
+            total += entry.getValue().get();
+        }
+        reclaimed.put("total", total);
+        stats.put("reclaimedBytes", reclaimed);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+}
@@ -0,0 +1,193 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.ConvolveOp;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Kernel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-place 3x3 sharpen working directly on the image's primitive raster.
+ * Kernel (same as the former ConvolveOp version):
+ *      0    -1/4   0
+ *    -1/4    2   -1/4
+ *      0    -1/4   0
+ * i.e. out = c + (4c - n - s - e - w) / 4 per channel, clamped to 0..255; edge pixels are left as-is.
+ * Only two reusable row buffers per thread are needed, so no second full-size image is allocated.
+ * Pages where a sampled pass shows the filter would barely change any pixel (blank pages,
+ * smooth gradients, already saturated line art) are skipped in "auto" mode.
+ */
+public final class SharpenFilter {
+
+    private static final int SAMPLE_STEP = 4; // Gain estimate looks at every 4th row and column
+
+    private static final ThreadLocal<int[][]> rowBuffers = ThreadLocal.withInitial(() -> new int[2][0]);
+    private static final AtomicLong sharpened = new AtomicLong(0);
+    private static final AtomicLong skipped = new AtomicLong(0);
+    private static final AtomicLong fallback = new AtomicLong(0);
+
+    private SharpenFilter() {}
+
+    /**
+     * Sharpen the image in place if it is worth it.
+     * @param minGain Minimum mean per-pixel change (in 0..255 levels) estimated from a sample;
+     *                0 always sharpens.
+     * @return the sharpened image: the same instance for INT_RGB/INT_ARGB/BYTE_GRAY rasters,
+     *         a new one for other image types
+     */
+    public static BufferedImage sharpen(BufferedImage image, double minGain) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width < 3 || height < 3) return image;
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getParent() == null) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset();
+            if (minGain > 0 && estimateGainRgb(data, offset, stride, width, height) < minGain) {
+                skipped.incrementAndGet();
+                return image;
+            }
+            sharpenRgb(data, offset, stride, width, height);
+        } else if (type == BufferedImage.TYPE_BYTE_GRAY
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getParent() == null) {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset();
+            if (minGain > 0 && estimateGainGray(data, offset, stride, width, height) < minGain) {
+                skipped.incrementAndGet();
+                return image;
+            }
+            sharpenGray(data, offset, stride, width, height);
+        } else {
+            fallback.incrementAndGet();
+            return convolve(image);
+        }
+        sharpened.incrementAndGet();
+        return image;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sharpened", sharpened.get());
+        stats.put("skipped", skipped.get());
+        stats.put("convolveFallback", fallback.get());
+        return stats;
+    }
+
+    // Generic path for image types without a directly addressable raster
+    static BufferedImage convolve(BufferedImage image) {
+        float[] kernel = {
+            0f,   -0.25f,  0f,
+           -0.25f, 2f,   -0.25f,
+            0f,   -0.25f,  0f
+        };
+        return new ConvolveOp(new Kernel(3, 3, kernel), ConvolveOp.EDGE_NO_OP, null).filter(image, null);
+    }
+
+    private static int[][] rows(int width) {
+        int[][] buffers = rowBuffers.get();
+        if (buffers[0].length < width) {
+            buffers[0] = new int[width];
+            buffers[1] = new int[width];
+        }
+        return buffers;
+    }
+
+    private static void sharpenRgb(int[] data, int offset, int stride, int width, int height) {
+        int[][] buffers = rows(width);
+        int[] above = buffers[0]; // original values of row y - 1
+        int[] current = buffers[1]; // original values of row y
+        System.arraycopy(data, offset, above, 0, width);
+        for (int y = 1; y < height - 1; y++) {
+            int rowStart = offset + y * stride;
+            int belowStart = rowStart + stride;
+            System.arraycopy(data, rowStart, current, 0, width);
+            for (int x = 1; x < width - 1; x++) {
+                int c = current[x];
+                int n = above[x];
+                int s = data[belowStart + x];
+                int w = current[x - 1];
+                int e = current[x + 1];
+                int r = sharpenChannel((c >> 16) & 0xFF, (n >> 16) & 0xFF, (s >> 16) & 0xFF, (w >> 16) & 0xFF, (e >> 16) & 0xFF);
+                int g = sharpenChannel((c >> 8) & 0xFF, (n >> 8) & 0xFF, (s >> 8) & 0xFF, (w >> 8) & 0xFF, (e >> 8) & 0xFF);
+                int b = sharpenChannel(c & 0xFF, n & 0xFF, s & 0xFF, w & 0xFF, e & 0xFF);
+                data[rowStart + x] = (c & 0xFF000000) | (r << 16) | (g << 8) | b;
+            }
+            int[] swap = above;
+            above = current;
+            current = swap;
+        }
+    }
+
+    private static void sharpenGray(byte[] data, int offset, int stride, int width, int height) {
+        int[][] buffers = rows(width);
+        int[] above = buffers[0];
+        int[] current = buffers[1];
+        for (int x = 0; x < width; x++) above[x] = data[offset + x] & 0xFF;
+        for (int y = 1; y < height - 1; y++) {
+            int rowStart = offset + y * stride;
+            int belowStart = rowStart + stride;
+            for (int x = 0; x < width; x++) current[x] = data[rowStart + x] & 0xFF;
+            for (int x = 1; x < width - 1; x++) {
+                data[rowStart + x] = (byte) sharpenChannel(current[x], above[x], data[belowStart + x] & 0xFF, current[x - 1], current[x + 1]);
+            }
+            int[] swap = above;
+            above = current;
+            current = swap;
+        }
+    }
+
+    // c + (4c - n - s - w - e) / 4, rounded and clamped
+    private static int sharpenChannel(int c, int n, int s, int w, int e) {
+        int v = (8 * c - n - s - w - e + 2) >> 2;
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    // Mean absolute change (0..255 levels) the filter would make, over a sparse pixel sample
+    private static double estimateGainRgb(int[] data, int offset, int stride, int width, int height) {
+        long total = 0;
+        long samples = 0;
+        for (int y = 1; y < height - 1; y += SAMPLE_STEP) {
+            int rowStart = offset + y * stride;
+            for (int x = 1; x < width - 1; x += SAMPLE_STEP) {
+                int i = rowStart + x;
+                int c = data[i];
+                int n = data[i - stride];
+                int s = data[i + stride];
+                int w = data[i - 1];
+                int e = data[i + 1];
+                // Green carries most of the luminance; one channel is enough for the estimate
+                int g = (c >> 8) & 0xFF;
+                total += Math.abs(sharpenChannel(g, (n >> 8) & 0xFF, (s >> 8) & 0xFF, (w >> 8) & 0xFF, (e >> 8) & 0xFF) - g);
+                samples++;
+            }
+        }
+        return samples > 0 ? (double) total / samples : 0.0;
+    }
+
+    private static double estimateGainGray(byte[] data, int offset, int stride, int width, int height) {
+        long total = 0;
+        long samples = 0;
+        for (int y = 1; y < height - 1; y += SAMPLE_STEP) {
+            int rowStart = offset + y * stride;
+            for (int x = 1; x < width - 1; x += SAMPLE_STEP) {
+                int i = rowStart + x;
+                int c = data[i] & 0xFF;
+                total += Math.abs(sharpenChannel(c, data[i - stride] & 0xFF, data[i + stride] & 0xFF, data[i - 1] & 0xFF, data[i + 1] & 0xFF) - c);
+                samples++;
+            }
+        }
+        return samples > 0 ? (double) total / samples : 0.0;
+    }
+}
@@ -0,0 +1,159 @@
+package com.recapmap.core.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.springframework.aot.AotDetector;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * Startup time and first-page latency, and the fast-startup mode (profile "fast-startup"): PDFBox
+ * uses the font cache in startup.font-cache (see PdfFontCache), and with startup.prewarm the render
+ * path is warmed in the background once the application is ready, by converting a generated page
+ * (text in a substituted font, vector art and an image) through this JVM's conversion pipeline.
+ * Fonts, image codecs and the pipeline's code are then loaded before the first upload. Render
+ * processes are not started by the warm-up; each one warms itself from the same font cache and
+ * CDS archive (see RenderProcessPool).
+ */
+@Service
+public class StartupWarmupService {
+
+    private static final String WARMUP_BASE_NAME = "warmup";
+
+    private static volatile long readyUptimeMillis = -1;
+    private static volatile long springStartupMillis = -1;
+    private static volatile String warmupState = "off"; // "off", "running", "done" or "failed"
+    private static volatile long warmupMillis = -1;
+    private static final AtomicLong firstPageLatencyMillis = new AtomicLong(-1);
+    private static volatile long firstPageUptimeMillis = -1;
+
+    private final boolean prewarm;
+
+    public StartupWarmupService(@Value("${startup.font-cache:}") String fontCacheFolder, @Value("${startup.prewarm:false}") boolean prewarm) {
+        // Before anything renders, so PDFBox reads its font list from here
+        PdfFontCache.configure(fontCacheFolder);
+        this.prewarm = prewarm;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady(ApplicationReadyEvent event) {
+        readyUptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        springStartupMillis = event.getTimeTaken() != null ? event.getTimeTaken().toMillis() : -1;
+        String archive = sharedArchiveFile();
+        System.out.println("[Startup] Ready " + readyUptimeMillis + " ms after JVM start (Spring " + springStartupMillis + " ms"
+                + (AotDetector.useGeneratedArtifacts() ? ", AOT" : "") + (archive != null ? ", CDS archive " + archive : "") + ")");
+        if (!prewarm) return;
+        warmupState = "running";
+        Thread thread = new Thread(this::warmUp, "startup-warmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        File dir = null;
+        try {
+            PdfFontCache.load();
+            dir = Files.createTempDirectory("startup-warmup").toFile();
+            File pdfFile = new File(dir, WARMUP_BASE_NAME + ".pdf");
+            writeWarmupPdf(pdfFile);
+            try (PdfDocumentPool documentPool = PdfService.openDocumentPool(pdfFile)) {
+                PdfService.convertPage(documentPool, 0, dir, WARMUP_BASE_NAME, PdfService.getSettings());
+            }
+            warmupMillis = System.currentTimeMillis() - start;
+            warmupState = "done";
+            System.out.println("[Startup] Render path warmed up in " + warmupMillis + " ms");
+        } catch (Exception e) {
+            warmupMillis = System.currentTimeMillis() - start;
+            warmupState = "failed";
+            System.out.println("[WARN] Render warm-up failed: " + e.getMessage());
+        } finally {
+            if (dir != null) deleteRecursively(dir);
+        }
+    }
+
+    // One Letter page with what most pages have: text in a standard font (mapped to a system font), vector art and an image
+    private static void writeWarmupPdf(File pdfFile) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage(PDRectangle.LETTER);
+            document.addPage(page);
+            BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, 64, 64);
+            g.setColor(Color.BLUE);
+            g.fillOval(8, 8, 48, 48);
+            g.dispose();
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.beginText();
+                content.setFont(PDType1Font.HELVETICA, 12);
+                content.newLineAtOffset(72, 700);
+                content.showText("Render warm-up page");
+                content.endText();
+                content.setStrokingColor(Color.DARK_GRAY);
+                content.addRect(72, 400, 300, 200);
+                content.stroke();
+                content.drawImage(LosslessFactory.createFromImage(document, image), 400, 400, 128, 128);
+            }
+            document.save(pdfFile);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    // A conversion's first page done; only the first one after startup is kept
+    public static void pageRendered(long conversionStartMillis) {
+        if (firstPageLatencyMillis.get() >= 0) return;
+        if (firstPageLatencyMillis.compareAndSet(-1, System.currentTimeMillis() - conversionStartMillis)) {
+            firstPageUptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+            System.out.println("[Startup] First page " + firstPageLatencyMillis.get() + " ms after its conversion started ("
+                    + firstPageUptimeMillis + " ms after JVM start)");
+        }
+    }
+
+    // The class data sharing archive this JVM was started with, if any; render processes are started with it too
+    static String sharedArchiveFile() {
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-XX:SharedArchiveFile=")) return argument.substring("-XX:SharedArchiveFile=".length());
+        }
+        return null;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("readyMillis", readyUptimeMillis);
+        stats.put("springStartupMillis", springStartupMillis);
+        stats.put("aot", AotDetector.useGeneratedArtifacts());
+        stats.put("cdsArchive", sharedArchiveFile());
+        stats.put("fontCache", PdfFontCache.getStats());
+        stats.put("warmup", warmupState);
+        stats.put("warmupMillis", warmupMillis);
+        stats.put("firstPageLatencyMillis", firstPageLatencyMillis.get());
+        stats.put("firstPageUptimeMillis", firstPageUptimeMillis);
+        return stats;
+    }
+}
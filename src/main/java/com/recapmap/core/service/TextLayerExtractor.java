@@ -0,0 +1,349 @@
+package com.recapmap.core.service;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.pdfbox.text.TextPosition;
+
+/**
+ * Local extraction of born-digital pages from the PDF text layer.
+ * A page qualifies when PageContentAnalyzer finds real text and no figures (no images beyond logos,
+ * no shadings, no dense vector drawings) and the extracted text looks trustworthy: most glyphs map
+ * to Unicode and the result is mostly letters and digits. Qualifying pages are turned into Markdown
+ * (headings by font size, bullet lists, paragraphs) with the same "## Extracted Keywords" section the
+ * vision prompt asks for, so combining and saving work unchanged. Everything else returns null and
+ * goes to the vision model.
+ * analyzeLayout() handles the in-between case of text plus a few figures: text blocks come from the
+ * text layer and only the figure regions need the vision model.
+ * Not thread-safe: use one instance per document handle.
+ */
+public class TextLayerExtractor {
+
+    private static final int MIN_GLYPHS = 40; // Fewer glyphs: cover pages, scans with a page number
+    private static final double MAX_IMAGE_AREA_RATIO = 0.01; // Same as PageContentAnalyzer's logo threshold
+    private static final double MIN_MAPPED_RATIO = 0.7; // Extracted characters per drawn glyph
+    private static final double MIN_ALNUM_RATIO = 0.6; // Letters/digits among non-space characters
+    private static final double MAX_UNMAPPED_RATIO = 0.02; // U+FFFD and control characters
+    private static final double H1_SIZE_RATIO = 1.5;
+    private static final double H2_SIZE_RATIO = 1.2;
+    private static final int MAX_HEADING_LENGTH = 120;
+    private static final int MAX_KEYWORDS = 40;
+    private static final double MAX_FIGURE_AREA_RATIO = 0.6; // Mostly-figure pages go to the vision model whole
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "the", "and", "for", "with", "that", "this", "from", "are", "was", "were", "will", "have", "has",
+            "had", "not", "but", "you", "your", "our", "their", "they", "them", "its", "into", "than", "then",
+            "there", "which", "when", "where", "what", "who", "also", "can", "may", "must", "should", "would",
+            "could", "been", "being", "such", "these", "those", "each", "other", "more", "most", "some", "any",
+            "all", "only", "over", "under", "between", "about", "after", "before", "page", "use", "used"));
+
+    private final PDDocument document;
+
+    public TextLayerExtractor(PDDocument document) {
+        this.document = document;
+    }
+
+    /**
+     * Markdown for the page (0-based index) including the keywords section,
+     * or null if the page should go to the vision model.
+     */
+    public String extractMarkdown(int pageIndex) throws IOException {
+        PDPage page = document.getPage(pageIndex);
+        PageContentAnalyzer analyzer = new PageContentAnalyzer(page);
+        analyzer.processPage(page);
+        if (analyzer.getGlyphs() < MIN_GLYPHS
+                || analyzer.getImageAreaRatio() >= MAX_IMAGE_AREA_RATIO
+                || analyzer.getProfile() == PageRenderProfile.FIGURE) {
+            return null;
+        }
+        LineCollector collector = new LineCollector();
+        collector.setStartPage(pageIndex + 1);
+        collector.setEndPage(pageIndex + 1);
+        collector.setSortByPosition(true);
+        collector.writeText(document, new StringWriter());
+        collector.endLine();
+        if (!isTrustworthy(collector.lines, analyzer.getGlyphs())) return null;
+        return withKeywords(toMarkdown(collector.lines, bodyFontSize(collector.lines)));
+    }
+
+    /**
+     * Split a page into text blocks (Markdown from the text layer) and figure/table regions, in
+     * reading order, for pages that mix trustworthy text with figures (see PageRegionAnalyzer).
+     * Text lines inside a region (labels, table cells) belong to the region.
+     * @return null if the page has no figures, is mostly figure, is rotated, or lacks a usable text layer
+     */
+    public PageLayout analyzeLayout(int pageIndex) throws IOException {
+        PDPage page = document.getPage(pageIndex);
+        // Regions are in unrotated crop box space but the page image is rendered rotated: send the page whole
+        if (page.getRotation() % 360 != 0) return null;
+        List<Rectangle2D> regions = PageRegionAnalyzer.findRegions(page);
+        if (regions.isEmpty()) return null;
+        PDRectangle cropBox = page.getCropBox();
+        double pageArea = (double) cropBox.getWidth() * cropBox.getHeight();
+        double regionArea = 0;
+        for (Rectangle2D region : regions) regionArea += region.getWidth() * region.getHeight();
+        if (regionArea > pageArea * MAX_FIGURE_AREA_RATIO) return null;
+        PageContentAnalyzer analyzer = new PageContentAnalyzer(page);
+        analyzer.processPage(page);
+        LineCollector collector = new LineCollector();
+        collector.setStartPage(pageIndex + 1);
+        collector.setEndPage(pageIndex + 1);
+        collector.setSortByPosition(true);
+        collector.writeText(document, new StringWriter());
+        collector.endLine();
+        if (!isTrustworthy(collector.lines, analyzer.getGlyphs())) return null;
+        // Lines inside a region are labels of that figure: the region grows to cover them
+        List<Line> textLines = new ArrayList<>();
+        int textChars = 0;
+        for (Line line : collector.lines) {
+            Rectangle2D owner = null;
+            for (Rectangle2D region : line.bounds != null ? regions : List.<Rectangle2D>of()) {
+                if (region.contains(line.bounds.getCenterX(), line.bounds.getCenterY())) owner = region;
+            }
+            if (owner != null) {
+                owner.add(line.bounds);
+            } else {
+                textLines.add(line);
+                textChars += line.text.length();
+            }
+        }
+        if (textChars < MIN_GLYPHS) return null;
+        regions.sort((x, y) -> Double.compare(x.getMinY(), y.getMinY()));
+        float bodySize = bodyFontSize(collector.lines);
+        List<LayoutBlock> blocks = new ArrayList<>();
+        List<Line> pending = new ArrayList<>();
+        int nextRegion = 0;
+        for (Line line : textLines) {
+            while (nextRegion < regions.size() && regions.get(nextRegion).getMinY() <= line.bounds.getMinY()) {
+                if (!pending.isEmpty()) blocks.add(new LayoutBlock(toMarkdown(pending, bodySize), null));
+                pending = new ArrayList<>();
+                blocks.add(new LayoutBlock(null, regions.get(nextRegion++)));
+            }
+            pending.add(line);
+        }
+        if (!pending.isEmpty()) blocks.add(new LayoutBlock(toMarkdown(pending, bodySize), null));
+        while (nextRegion < regions.size()) blocks.add(new LayoutBlock(null, regions.get(nextRegion++)));
+        return new PageLayout(blocks, cropBox.getWidth(), cropBox.getHeight());
+    }
+
+    /** Text blocks and figure regions of a page in reading order. */
+    public static class PageLayout {
+        private final List<LayoutBlock> blocks;
+        private final float pageWidth;
+        private final float pageHeight;
+
+        PageLayout(List<LayoutBlock> blocks, float pageWidth, float pageHeight) {
+            this.blocks = blocks;
+            this.pageWidth = pageWidth;
+            this.pageHeight = pageHeight;
+        }
+
+        public List<LayoutBlock> getBlocks() { return blocks; }
+        public int getFigureCount() { return (int) blocks.stream().filter(LayoutBlock::isFigure).count(); }
+        public float getPageWidth() { return pageWidth; }
+        public float getPageHeight() { return pageHeight; }
+    }
+
+    /** Either Markdown from the text layer or a figure region (points, top-left origin) for the vision model. */
+    public static class LayoutBlock {
+        private final String markdown;
+        private final Rectangle2D region;
+
+        LayoutBlock(String markdown, Rectangle2D region) {
+            this.markdown = markdown;
+            this.region = region;
+        }
+
+        public boolean isFigure() { return region != null; }
+        public String getMarkdown() { return markdown; }
+        public Rectangle2D getRegion() { return region; }
+    }
+
+    // One visual line of text with its dominant font size and bounds; paragraphStart marks a new paragraph
+    private static class Line {
+        private final StringBuilder text = new StringBuilder();
+        private Rectangle2D bounds;
+        private float maxFontSize = 0;
+        private boolean paragraphStart;
+    }
+
+    // PDFTextStripper hooks give us lines and paragraph boundaries in reading order
+    private static class LineCollector extends PDFTextStripper {
+        private final List<Line> lines = new ArrayList<>();
+        private Line current = new Line();
+        private boolean nextStartsParagraph = true;
+
+        LineCollector() throws IOException {
+            super();
+        }
+
+        @Override
+        protected void writeString(String text, List<TextPosition> textPositions) {
+            if (current.text.length() == 0) current.paragraphStart = nextStartsParagraph;
+            current.text.append(text);
+            for (TextPosition position : textPositions) {
+                current.maxFontSize = Math.max(current.maxFontSize, position.getFontSizeInPt());
+                Rectangle2D box = new Rectangle2D.Double(position.getXDirAdj(), position.getYDirAdj() - position.getHeightDir(),
+                        position.getWidthDirAdj(), position.getHeightDir());
+                if (current.bounds == null) current.bounds = box;
+                else current.bounds.add(box);
+            }
+        }
+
+        @Override
+        protected void writeWordSeparator() {
+            current.text.append(' ');
+        }
+
+        @Override
+        protected void writeLineSeparator() {
+            endLine();
+        }
+
+        @Override
+        protected void writeParagraphEnd() {
+            endLine();
+            nextStartsParagraph = true;
+        }
+
+        void endLine() {
+            if (current.text.toString().isBlank()) return;
+            lines.add(current);
+            current = new Line();
+            nextStartsParagraph = false;
+        }
+    }
+
+    private static boolean isTrustworthy(List<Line> lines, int glyphs) {
+        int nonSpace = 0;
+        int alnum = 0;
+        int unmapped = 0;
+        for (Line line : lines) {
+            for (int i = 0; i < line.text.length(); i++) {
+                char c = line.text.charAt(i);
+                if (Character.isWhitespace(c)) continue;
+                nonSpace++;
+                if (Character.isLetterOrDigit(c)) alnum++;
+                if (c == '\uFFFD' || Character.isISOControl(c)) unmapped++;
+            }
+        }
+        return nonSpace >= glyphs * MIN_MAPPED_RATIO
+                && alnum >= nonSpace * MIN_ALNUM_RATIO
+                && unmapped <= nonSpace * MAX_UNMAPPED_RATIO;
+    }
+
+    private static String toMarkdown(List<Line> lines, float bodySize) {
+        StringBuilder md = new StringBuilder();
+        StringBuilder paragraph = new StringBuilder();
+        boolean inList = false;
+        for (Line line : lines) {
+            String text = line.text.toString().trim();
+            String heading = null;
+            if (bodySize > 0 && text.length() <= MAX_HEADING_LENGTH) {
+                if (line.maxFontSize >= bodySize * H1_SIZE_RATIO) heading = "# ";
+                else if (line.maxFontSize >= bodySize * H2_SIZE_RATIO) heading = "## ";
+            }
+            String bullet = bulletText(text);
+            if (heading != null || bullet != null || line.paragraphStart) flushParagraph(md, paragraph);
+            if (bullet == null && inList) {
+                // A list ends where a heading or paragraph starts
+                md.append('\n');
+                inList = false;
+            }
+            if (heading != null) {
+                md.append(heading).append(text).append("\n\n");
+            } else if (bullet != null) {
+                md.append("- ").append(bullet).append('\n');
+                inList = true;
+            } else if (paragraph.length() > 0 && paragraph.charAt(paragraph.length() - 1) == '-'
+                    && Character.isLowerCase(text.charAt(0))) {
+                // Word hyphenated across the line break
+                paragraph.setLength(paragraph.length() - 1);
+                paragraph.append(text);
+            } else {
+                if (paragraph.length() > 0) paragraph.append(' ');
+                paragraph.append(text);
+            }
+        }
+        flushParagraph(md, paragraph);
+        return md.toString().trim();
+    }
+
+    private static void flushParagraph(StringBuilder md, StringBuilder paragraph) {
+        if (paragraph.length() == 0) return;
+        md.append(paragraph).append("\n\n");
+        paragraph.setLength(0);
+    }
+
+    // Item text of a bulleted or dashed list line (bullet, white bullet, small square, en dash, -, *), or null
+    private static String bulletText(String text) {
+        if (text.length() < 2) return null;
+        char first = text.charAt(0);
+        if ((first == '\u2022' || first == '\u25E6' || first == '\u25AA' || first == '\u2013' || first == '-' || first == '*')
+                && Character.isWhitespace(text.charAt(1))) {
+            return text.substring(2).trim();
+        }
+        return null;
+    }
+
+    // Font size covering the most characters
+    private static float bodyFontSize(List<Line> lines) {
+        Map<Float, Integer> chars = new LinkedHashMap<>();
+        for (Line line : lines) {
+            chars.merge(Math.round(line.maxFontSize * 2) / 2f, line.text.length(), Integer::sum);
+        }
+        float best = 0;
+        int bestCount = -1;
+        for (Map.Entry<Float, Integer> e : chars.entrySet()) {
+            if (e.getValue() > bestCount) {
+                best = e.getKey();
+                bestCount = e.getValue();
+            }
+        }
+        return best;
+    }
+
+    /** Append the "## Extracted Keywords" section (most frequent content words, headings counted extra) to Markdown. */
+    public static String withKeywords(String markdown) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        Map<String, String> firstForm = new LinkedHashMap<>();
+        for (String line : markdown.split("\n")) {
+            int weight = line.startsWith("#") ? 3 : 1;
+            for (String token : line.split("[^\\p{L}\\p{N}+#-]+")) {
+                String word = token.replaceAll("^[-#]+|-+$", "");
+                String key = word.toLowerCase(Locale.ROOT);
+                if (word.length() < 4 || STOP_WORDS.contains(key) || word.chars().allMatch(Character::isDigit)) continue;
+                counts.merge(key, weight, Integer::sum);
+                firstForm.putIfAbsent(key, word);
+            }
+        }
+        List<String> keywords = counts.entrySet().stream()
+                .sorted((x, y) -> Integer.compare(y.getValue(), x.getValue()))
+                .limit(MAX_KEYWORDS)
+                .map(e -> firstForm.get(e.getKey()))
+                .toList();
+        return markdown + "\n\n## Extracted Keywords\n" + toJsonArray(keywords);
+    }
+
+    private static String toJsonArray(List<String> values) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) json.append(", ");
+            json.append('"').append(values.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return json.append(']').toString();
+    }
+}
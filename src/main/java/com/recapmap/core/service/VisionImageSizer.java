@@ -0,0 +1,150 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Sizes images for the vision model by its image token rules (OpenAI high detail): the image is
+ * scaled to fit 2048 x 2048, then so that its shorter side is at most 768 px, and costs a base
+ * amount plus a fixed amount per 512 px tile it touches. An A4 page rendered at 150 DPI arrives as
+ * 768 x 1086, six tiles, while 724 x 1024 shows the same page in four.
+ * For every image the cheapest size is chosen that keeps it at MIN_DPI or more, never larger than
+ * the model would use anyway; resized copies are cached in VISION_FOLDER next to the source image.
+ */
+public class VisionImageSizer {
+
+    public static final String VISION_FOLDER = "vision";
+    public static volatile String MODE = "auto"; // "auto" (token-optimal size) or "off" (send images as rendered)
+    public static volatile int MIN_DPI = 85; // Legibility floor: 9-10 pt body text stays about 8 px high
+    private static final int MAX_SIDE = 2048;
+    private static final int MAX_SHORT_SIDE = 768;
+    private static final int TILE = 512;
+    private static final int BASE_TOKENS = 85;
+    private static final int TILE_TOKENS = 170;
+    private static final int MAX_TILES_PER_SIDE = MAX_SIDE / TILE;
+
+    private static final AtomicLong images = new AtomicLong();
+    private static final AtomicLong resized = new AtomicLong();
+    private static final AtomicLong tokensBefore = new AtomicLong();
+    private static final AtomicLong tokensAfter = new AtomicLong();
+
+    /** An image as it will be sent, with its estimated token cost before and after sizing. */
+    public static class SizedImage {
+        private final File file;
+        private final int width;
+        private final int height;
+        private final int tokensBefore;
+        private final int tokensAfter;
+
+        SizedImage(File file, int width, int height, int tokensBefore, int tokensAfter) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.tokensBefore = tokensBefore;
+            this.tokensAfter = tokensAfter;
+        }
+
+        public File getFile() { return file; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public int getTokensBefore() { return tokensBefore; }
+        public int getTokensAfter() { return tokensAfter; }
+    }
+
+    // Size the model scales an image to before tiling it
+    static int[] modelSize(int width, int height) {
+        double scale = Math.min(1.0, (double) MAX_SIDE / Math.max(width, height));
+        scale = Math.min(scale, (double) MAX_SHORT_SIDE / Math.min(width, height));
+        return new int[] {Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale))};
+    }
+
+    /** Estimated image tokens of a width x height image. */
+    public static int estimateTokens(int width, int height) {
+        int[] size = modelSize(width, height);
+        int tiles = ((size[0] + TILE - 1) / TILE) * ((size[1] + TILE - 1) / TILE);
+        return BASE_TOKENS + TILE_TOKENS * tiles;
+    }
+
+    /**
+     * Cheapest size for a width x height image showing its content at dpi: the largest size with the same
+     * aspect ratio inside each grid of 512 px tiles, no larger than the model's own scaling and no smaller
+     * than MIN_DPI allows; with dpi 0 (unknown) that is the model's size. Among sizes of equal cost the
+     * larger one wins.
+     */
+    public static int[] optimalSize(int width, int height, double dpi) {
+        int[] best = modelSize(width, height);
+        int bestTokens = estimateTokens(best[0], best[1]);
+        double maxScale = (double) best[0] / width;
+        double minScale = dpi > 0 ? Math.min(maxScale, MIN_DPI / dpi) : maxScale;
+        for (int cols = 1; cols <= MAX_TILES_PER_SIDE; cols++) {
+            for (int rows = 1; rows <= MAX_TILES_PER_SIDE; rows++) {
+                double scale = Math.min(maxScale, Math.min((double) cols * TILE / width, (double) rows * TILE / height));
+                if (scale < minScale) continue;
+                int w = Math.max(1, (int) Math.floor(width * scale));
+                int h = Math.max(1, (int) Math.floor(height * scale));
+                int tokens = estimateTokens(w, h);
+                if (tokens < bestTokens || (tokens == bestTokens && (long) w * h > (long) best[0] * best[1])) {
+                    best = new int[] {w, h};
+                    bestTokens = tokens;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The image to send for imageFile: a resized copy when that is smaller than the original, else the original.
+     * @param dpi Resolution the image shows its page (or page part) at; 0 if unknown (then only the model's own scaling applies)
+     */
+    public static SizedImage prepare(File imageFile, double dpi) throws IOException {
+        BufferedImage image = ImageIO.read(imageFile);
+        if (image == null) throw new IOException("Unreadable image " + imageFile);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int before = estimateTokens(width, height);
+        images.incrementAndGet();
+        tokensBefore.addAndGet(before);
+        int[] size = "off".equals(MODE) ? new int[] {width, height} : optimalSize(width, height, dpi);
+        if (size[0] >= width && size[1] >= height) {
+            tokensAfter.addAndGet(before);
+            return new SizedImage(imageFile, width, height, before, before);
+        }
+        String name = imageFile.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot > 0 ? name.substring(dot + 1).toLowerCase() : "png";
+        String format = extension.equals("jpg") ? "jpeg" : extension;
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            format = "png";
+            extension = "png";
+        }
+        File dir = new File(imageFile.getAbsoluteFile().getParentFile(), VISION_FOLDER);
+        if (!dir.exists()) dir.mkdirs();
+        File sizedFile = new File(dir, (dot > 0 ? name.substring(0, dot) : name) + "_" + size[0] + "x" + size[1] + "." + extension);
+        // Reuse a copy made from the current image; a re-rendered page is resized again
+        if (!sizedFile.exists() || sizedFile.lastModified() < imageFile.lastModified()) {
+            BufferedImage scaled = PdfService.downscaleImage(image, size[0], size[1]);
+            if (!ImageIO.write(scaled, format, sizedFile)) throw new IOException("No " + format + " writer for " + sizedFile);
+        }
+        int after = estimateTokens(size[0], size[1]);
+        resized.incrementAndGet();
+        tokensAfter.addAndGet(after);
+        return new SizedImage(sizedFile, size[0], size[1], before, after);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", MODE);
+        stats.put("minDpi", MIN_DPI);
+        stats.put("images", images.get());
+        stats.put("resized", resized.get());
+        stats.put("estimatedTokensBefore", tokensBefore.get());
+        stats.put("estimatedTokensAfter", tokensAfter.get());
+        return stats;
+    }
+}
@@ -0,0 +1,58 @@
+package com.recapmap.core.service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Lossy WebP through whatever ImageIO WebP writer plugin is on the classpath.
+ * The JDK has none built in, so this format is only offered when isAvailable() is true.
+ */
+public class WebpPageImageEncoder implements PageImageEncoder {
+    private final float quality;
+
+    public WebpPageImageEncoder(float quality) {
+        this.quality = Math.max(0.05f, Math.min(1f, quality));
+    }
+
+    public static boolean isAvailable() {
+        return ImageIO.getImageWritersByFormatName("webp").hasNext();
+    }
+
+    @Override
+    public String getFormat() {
+        return "webp";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "webp";
+    }
+
+    @Override
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("webp");
+        if (!writers.hasNext()) throw new IOException("No WebP ImageIO writer installed");
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                String[] types = param.getCompressionTypes();
+                if (types != null && types.length > 0) param.setCompressionType(types[0]);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
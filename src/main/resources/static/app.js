@@ -371,6 +371,16 @@ window.addEventListener('DOMContentLoaded', function() {
                         return;
                     }
                     let completed = 0;
+                    // Page counts pushed by the server while the conversions run
+                    const progressStream = new EventSource('/file/progress/stream');
+                    const showPages = function(e) {
+                        const ev = JSON.parse(e.data);
+                        const idx = uuids.indexOf(ev.job);
+                        if (idx < 0 || !uploadFiles[idx] || uploadFiles[idx].convertStatus !== 'Converting...' || ev.total < 0) return;
+                        document.getElementById(`convert-status-${idx}`).textContent = `Converting... ${ev.completed}/${ev.total}`;
+                    };
+                    progressStream.addEventListener('page', showPages);
+                    progressStream.addEventListener('page_failed', showPages);
                     uuids.forEach((uuid, idx) => {
                         uploadFiles[idx].convertStatus = 'Converting...';
                         document.getElementById(`convert-status-${idx}`).textContent = uploadFiles[idx].convertStatus;
@@ -378,6 +388,9 @@ window.addEventListener('DOMContentLoaded', function() {
                             url: '/file/convert',
                             method: 'POST',
                             data: { uuid: uuid },
+                            complete: function() {
+                                if (completed === uuids.length) progressStream.close();
+                            },
                             success: function(msg) {
                                 completed++;
                                 uploadFiles[idx].convertStatus = 'Done';
@@ -483,7 +496,8 @@ window.addEventListener('DOMContentLoaded', function() {
                             f.extracted = true;
                             f.extractStatus = 'Extracted (Simple)';
                             document.getElementById(`extract-status-${i}`).textContent = f.extractStatus;
-                            uploadProgress.push('Simple extraction completed for ' + (f.name || f.uuid));
+                            uploadProgress.push('Simple extraction completed for ' + (f.name || f.uuid)
+                                + (res && res.visionCallsSaved ? ' (' + res.blankPages + ' blank, ' + res.duplicatePages + ' duplicate pages skipped, ' + res.visionCallsSaved + ' vision calls saved)' : ''));
                             updateUploadProgressLog();
                         },
                         error: function(xhr) {
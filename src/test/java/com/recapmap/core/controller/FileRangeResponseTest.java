@@ -0,0 +1,160 @@
+package com.recapmap.core.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+class FileRangeResponseTest {
+
+    private static final String CACHE_CONTROL = "private, max-age=60";
+
+    @TempDir
+    Path tempDir;
+
+    private File file;
+    private final byte[] content = new byte[1000];
+
+    @BeforeEach
+    void setUp() throws IOException {
+        for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+        file = tempDir.resolve("page.png").toFile();
+        Files.write(file.toPath(), content);
+        file.setLastModified(1_700_000_000_000L);
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        FileRangeResponse.send(file, "image/png", CACHE_CONTROL, request, response);
+        return response;
+    }
+
+    private MockHttpServletRequest rangeRequest(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file/page-image");
+        request.addHeader("Range", range);
+        return request;
+    }
+
+    private String etag() throws IOException {
+        return send(new MockHttpServletRequest("GET", "/file/page-image")).getHeader("ETag");
+    }
+
+    @Test
+    void parseRangeReadsSingleRanges() {
+        assertArrayEquals(new long[] {0, 100}, FileRangeResponse.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {500, 1000}, FileRangeResponse.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] {900, 1000}, FileRangeResponse.parseRange("bytes=-100", 1000));
+        // Clipped to the file
+        assertArrayEquals(new long[] {900, 1000}, FileRangeResponse.parseRange("bytes=900-5000", 1000));
+        assertArrayEquals(new long[] {0, 1000}, FileRangeResponse.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    void parseRangeFallsBackToWholeFile() {
+        assertArrayEquals(new long[0], FileRangeResponse.parseRange("bytes=0-1,5-9", 1000));
+        assertArrayEquals(new long[0], FileRangeResponse.parseRange("items=0-1", 1000));
+        assertArrayEquals(new long[0], FileRangeResponse.parseRange("bytes=abc", 1000));
+        assertArrayEquals(new long[0], FileRangeResponse.parseRange("bytes=x-5", 1000));
+        // Last byte before the first: invalid, so ignored
+        assertArrayEquals(new long[0], FileRangeResponse.parseRange("bytes=500-100", 1000));
+    }
+
+    @Test
+    void parseRangeRejectsRangesOutsideTheFile() {
+        assertNull(FileRangeResponse.parseRange("bytes=1000-", 1000));
+        assertNull(FileRangeResponse.parseRange("bytes=2000-3000", 1000));
+        assertNull(FileRangeResponse.parseRange("bytes=-0", 1000));
+        assertNull(FileRangeResponse.parseRange("bytes=0-", 0));
+    }
+
+    @Test
+    void wholeFileWithValidators() throws IOException {
+        MockHttpServletResponse response = send(new MockHttpServletRequest("GET", "/file/page-image"));
+        assertEquals(200, response.getStatus());
+        assertEquals(1000, response.getContentLengthLong());
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        assertEquals(CACHE_CONTROL, response.getHeader("Cache-Control"));
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void rangeGivesPartialContent() throws IOException {
+        MockHttpServletResponse response = send(rangeRequest("bytes=100-199"));
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeader("Content-Range"));
+        assertEquals(100, response.getContentLengthLong());
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.getContentAsByteArray());
+    }
+
+    @Test
+    void unsatisfiableRangeIs416() throws IOException {
+        MockHttpServletResponse response = send(rangeRequest("bytes=5000-"));
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */1000", response.getHeader("Content-Range"));
+    }
+
+    @Test
+    void ifRangeWithCurrentEtagAppliesTheRange() throws IOException {
+        MockHttpServletRequest request = rangeRequest("bytes=0-9");
+        request.addHeader("If-Range", etag());
+        MockHttpServletResponse response = send(request);
+        assertEquals(206, response.getStatus());
+        assertEquals(10, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void ifRangeWithOldEtagSendsWholeFile() throws IOException {
+        MockHttpServletRequest request = rangeRequest("bytes=0-9");
+        request.addHeader("If-Range", "\"0-0\"");
+        MockHttpServletResponse response = send(request);
+        assertEquals(200, response.getStatus());
+        assertNull(response.getHeader("Content-Range"));
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void ifRangeWithDateMatchesLastModified() throws IOException {
+        MockHttpServletRequest current = rangeRequest("bytes=0-9");
+        current.addHeader("If-Range", file.lastModified());
+        assertEquals(206, send(current).getStatus());
+
+        MockHttpServletRequest older = rangeRequest("bytes=0-9");
+        older.addHeader("If-Range", file.lastModified() - 60_000);
+        assertEquals(200, send(older).getStatus());
+    }
+
+    @Test
+    void matchingEtagIsNotModified() throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file/page-image");
+        request.addHeader("If-None-Match", "W/" + etag());
+        MockHttpServletResponse response = send(request);
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void ifModifiedSinceIsNotModifiedForUnchangedFile() throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file/page-image");
+        request.addHeader("If-Modified-Since", file.lastModified());
+        assertEquals(304, send(request).getStatus());
+    }
+
+    @Test
+    void headSendsHeadersOnly() throws IOException {
+        MockHttpServletResponse response = send(new MockHttpServletRequest("HEAD", "/file/page-image"));
+        assertEquals(200, response.getStatus());
+        assertEquals(1000, response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+}
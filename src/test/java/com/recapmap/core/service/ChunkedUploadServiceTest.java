@@ -0,0 +1,141 @@
+package com.recapmap.core.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.recapmap.core.data.PdfSourceDataSource;
+
+class ChunkedUploadServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ChunkedUploadService service;
+    private final byte[] content = new byte[1000];
+    private File storedFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+        DocumentStoreService documentStore = mock(DocumentStoreService.class);
+        when(documentStore.newTempFile()).thenAnswer(inv -> Files.createTempFile(tempDir, "upload-", ".part").toFile());
+        when(documentStore.adopt(any(File.class), anyString(), any())).thenAnswer(inv -> {
+            storedFile = inv.getArgument(0);
+            return new DocumentStoreService.StoredDocument(inv.getArgument(1), storedFile, false);
+        });
+        PdfService pdfService = mock(PdfService.class);
+        when(pdfService.getDataSourceForSession(anyString())).thenReturn(new PdfSourceDataSource());
+        service = new ChunkedUploadService(documentStore, pdfService);
+    }
+
+    private ChunkedUploadService.Upload append(ChunkedUploadService.Upload upload, int from, int to, long length) throws IOException {
+        byte[] chunk = Arrays.copyOfRange(content, from, to);
+        return service.append(upload, from, length, new ByteArrayInputStream(chunk));
+    }
+
+    private void assertStoredContent() throws IOException {
+        assertArrayEquals(content, Files.readAllBytes(storedFile.toPath()));
+    }
+
+    @Test
+    void chunksInOrderCompleteWithContentHash() throws IOException {
+        ChunkedUploadService.Upload upload = service.start("session", "doc.pdf", content.length, false);
+        append(upload, 0, 400, 400);
+        assertEquals(400, upload.getReceived());
+        assertFalse(upload.isComplete());
+        append(upload, 400, 1000, 600);
+        assertTrue(upload.isComplete());
+        assertStoredContent();
+        String expectedHash = HexFormat.of().formatHex(DocumentStoreService.newDigest().digest(content));
+        assertEquals(expectedHash, upload.getStatus().get("contentHash"));
+    }
+
+    @Test
+    void resentChunkSkipsBytesAlreadyReceived() throws IOException {
+        ChunkedUploadService.Upload upload = service.start("session", "doc.pdf", content.length, false);
+        append(upload, 0, 400, 400);
+        // Response of the next chunk lost after 200 of its bytes arrived: the client sends it again
+        service.append(upload, 400, -1, new ByteArrayInputStream(Arrays.copyOfRange(content, 400, 600)));
+        assertEquals(600, upload.getReceived());
+        append(upload, 400, 1000, 600);
+        assertTrue(upload.isComplete());
+        assertStoredContent();
+    }
+
+    @Test
+    void chunkEndingBeforeReceivedOffsetIsAConflict() throws IOException {
+        ChunkedUploadService.Upload upload = service.start("session", "doc.pdf", content.length, false);
+        append(upload, 0, 600, 600);
+        ChunkedUploadService.OffsetMismatchException known = assertThrows(ChunkedUploadService.OffsetMismatchException.class,
+                () -> append(upload, 0, 300, 300));
+        assertEquals(600, known.getReceived());
+        // Unknown length: the short stream is found while skipping
+        ChunkedUploadService.OffsetMismatchException unknown = assertThrows(ChunkedUploadService.OffsetMismatchException.class,
+                () -> append(upload, 200, 500, -1));
+        assertEquals(600, unknown.getReceived());
+        assertEquals(600, upload.getReceived());
+    }
+
+    @Test
+    void chunkAfterReceivedOffsetIsAConflict() throws IOException {
+        ChunkedUploadService.Upload upload = service.start("session", "doc.pdf", content.length, false);
+        append(upload, 0, 300, 300);
+        ChunkedUploadService.OffsetMismatchException e = assertThrows(ChunkedUploadService.OffsetMismatchException.class,
+                () -> append(upload, 500, 800, 300));
+        assertEquals(300, e.getReceived());
+        assertEquals(300, upload.getReceived());
+    }
+
+    @Test
+    void chunkOfKnownLengthPastTheSizeIsRefusedBeforeWriting() throws IOException {
+        ChunkedUploadService.Upload upload = service.start("session", "doc.pdf", content.length, false);
+        append(upload, 0, 500, 500);
+        byte[] tooLong = Arrays.copyOf(Arrays.copyOfRange(content, 500, 1000), 510);
+        assertThrows(IllegalArgumentException.class, () -> service.append(upload, 500, tooLong.length, new ByteArrayInputStream(tooLong)));
+        assertEquals(500, upload.getReceived());
+        assertFalse(upload.isComplete());
+        append(upload, 500, 1000, 500);
+        assertTrue(upload.isComplete());
+        assertStoredContent();
+    }
+
+    @Test
+    void chunkOfUnknownLengthPastTheSizeCompletesAndReportsOverflow() throws IOException {
+        ChunkedUploadService.Upload upload = service.start("session", "doc.pdf", content.length, false);
+        byte[] tooLong = Arrays.copyOf(content, 1010);
+        service.append(upload, 0, -1, new ByteArrayInputStream(tooLong));
+        assertTrue(upload.isComplete());
+        assertEquals(true, upload.getStatus().get("overflow"));
+        assertStoredContent();
+    }
+
+    @Test
+    void brokenOffChunkKeepsWhatArrived() throws IOException {
+        ChunkedUploadService.Upload upload = service.start("session", "doc.pdf", content.length, false);
+        // Declared 600 bytes, connection dropped after 250
+        service.append(upload, 0, 600, new ByteArrayInputStream(Arrays.copyOfRange(content, 0, 250)));
+        assertEquals(250, upload.getReceived());
+        append(upload, 250, 1000, 750);
+        assertTrue(upload.isComplete());
+        assertStoredContent();
+    }
+}
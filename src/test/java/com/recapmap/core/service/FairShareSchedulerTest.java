@@ -0,0 +1,86 @@
+package com.recapmap.core.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class FairShareSchedulerTest {
+
+    private static PageConversionPipeline.Job job(String tenantId, int pageCount) {
+        return new PageConversionPipeline.Job(tenantId, "page", null, null, null, pageCount, null);
+    }
+
+    private static void submit(FairShareScheduler scheduler, PageConversionPipeline.Job job, int pages) throws InterruptedException {
+        for (int i = 0; i < pages; i++) scheduler.put(new PageConversionPipeline.PageTask(job, i));
+    }
+
+    private static List<String> drain(FairShareScheduler scheduler, int count) throws InterruptedException {
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            PageConversionPipeline.PageTask task = scheduler.poll(1, TimeUnit.SECONDS);
+            order.add(task.getJob().getTenantId());
+            scheduler.renderFinished(task);
+        }
+        return order;
+    }
+
+    @Test
+    void smallUploadInterleavesWithLargeBatch() throws InterruptedException {
+        FairShareScheduler scheduler = new FairShareScheduler(1000);
+        submit(scheduler, job("batch", 200), 200);
+        submit(scheduler, job("small", 5), 5);
+        List<String> order = drain(scheduler, 10);
+        assertEquals(5, order.stream().filter("small"::equals).count());
+        assertEquals(195, scheduler.size());
+    }
+
+    @Test
+    void documentsOfOneTenantShareItsSlots() throws InterruptedException {
+        FairShareScheduler scheduler = new FairShareScheduler(1000);
+        PageConversionPipeline.Job first = job("tenant", 50);
+        PageConversionPipeline.Job second = job("tenant", 50);
+        submit(scheduler, first, 50);
+        submit(scheduler, second, 50);
+        PageConversionPipeline.Job previous = null;
+        for (int i = 0; i < 10; i++) {
+            PageConversionPipeline.PageTask task = scheduler.poll(1, TimeUnit.SECONDS);
+            assertNotEquals(previous, task.getJob());
+            previous = task.getJob();
+            scheduler.renderFinished(task);
+        }
+    }
+
+    @Test
+    void weightScalesPageRate() throws InterruptedException {
+        FairShareScheduler scheduler = new FairShareScheduler(1000);
+        scheduler.setWeight("heavy", 3);
+        submit(scheduler, job("heavy", 100), 100);
+        submit(scheduler, job("light", 100), 100);
+        List<String> order = drain(scheduler, 40);
+        assertEquals(30, order.stream().filter("heavy"::equals).count());
+        assertEquals(10, order.stream().filter("light"::equals).count());
+    }
+
+    @Test
+    void idleTenantDoesNotBankCredit() throws InterruptedException {
+        FairShareScheduler scheduler = new FairShareScheduler(1000);
+        submit(scheduler, job("busy", 100), 100);
+        drain(scheduler, 50);
+        // A tenant arriving late starts at the current virtual time instead of owning the next 50 slots
+        submit(scheduler, job("late", 50), 50);
+        List<String> order = drain(scheduler, 20);
+        assertEquals(10, order.stream().filter("late"::equals).count());
+    }
+
+    @Test
+    void pollTimesOutWhenEmpty() throws InterruptedException {
+        FairShareScheduler scheduler = new FairShareScheduler(10);
+        assertNull(scheduler.poll(10, TimeUnit.MILLISECONDS));
+    }
+}
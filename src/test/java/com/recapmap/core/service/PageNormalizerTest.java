@@ -0,0 +1,101 @@
+package com.recapmap.core.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Test;
+
+class PageNormalizerTest {
+
+    private static final int DPI = 150;
+    private static final int WIDTH = 1240; // A4 at 150 DPI
+    private static final int HEIGHT = 1754;
+    private static final Rectangle2D TEXT_BLOCK = new Rectangle2D.Double(200, 300, 840, 1100);
+
+    private final RasterBufferPool pool = new RasterBufferPool(64L * 1024 * 1024);
+
+    // White page with lines of "text" (dark bars) in TEXT_BLOCK, turned clockwise by skewDegrees about the centre
+    private static BufferedImage page(double skewDegrees) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, WIDTH, HEIGHT);
+            g.rotate(Math.toRadians(skewDegrees), WIDTH / 2.0, HEIGHT / 2.0);
+            g.setColor(Color.BLACK);
+            for (int y = (int) TEXT_BLOCK.getMinY(); y + 12 <= TEXT_BLOCK.getMaxY(); y += 36) {
+                g.fillRect((int) TEXT_BLOCK.getMinX(), y, (int) TEXT_BLOCK.getWidth(), 12);
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static void assertRoundTrip(PageNormalizer.Transform transform) {
+        for (Point2D p : new Point2D[] {new Point2D.Double(0, 0), new Point2D.Double(123.5, 456.25),
+                new Point2D.Double(transform.getWidth(), transform.getHeight())}) {
+            Point2D back = transform.toImage(transform.toSource(p));
+            assertEquals(p.getX(), back.getX(), 1e-6);
+            assertEquals(p.getY(), back.getY(), 1e-6);
+        }
+    }
+
+    @Test
+    void straightPageIsCroppedToItsContentPlusPadding() {
+        PageNormalizer.Transform transform = PageNormalizer.analyze(page(0), DPI, true, pool);
+        int padding = (int) Math.round(9 * DPI / 72.0);
+        assertEquals(0, transform.getAngle());
+        assertTrue(Math.abs(transform.getCropX() - (TEXT_BLOCK.getMinX() - padding)) <= 4, "cropX " + transform.getCropX());
+        assertTrue(Math.abs(transform.getCropY() - (TEXT_BLOCK.getMinY() - padding)) <= 4, "cropY " + transform.getCropY());
+        assertTrue(Math.abs(transform.getWidth() - (TEXT_BLOCK.getWidth() + 2 * padding)) <= 8, "width " + transform.getWidth());
+        assertRoundTrip(transform);
+    }
+
+    @Test
+    void skewedPageIsStraightenedAndCropped() {
+        PageNormalizer.Transform transform = PageNormalizer.analyze(page(2), DPI, true, pool);
+        assertEquals(2, transform.getAngle(), 0.25);
+        assertTrue(transform.getWidth() < WIDTH * 0.8 && transform.getHeight() < HEIGHT * 0.8,
+                transform.getWidth() + " x " + transform.getHeight());
+        assertRoundTrip(transform);
+        // The text block's corners, skewed on the bitmap, land upright inside the saved image
+        AffineTransform skew = AffineTransform.getRotateInstance(Math.toRadians(2), WIDTH / 2.0, HEIGHT / 2.0);
+        Point2D topLeft = transform.toImage(skew.transform(new Point2D.Double(TEXT_BLOCK.getMinX(), TEXT_BLOCK.getMinY()), null));
+        Point2D topRight = transform.toImage(skew.transform(new Point2D.Double(TEXT_BLOCK.getMaxX(), TEXT_BLOCK.getMinY()), null));
+        assertEquals(topLeft.getY(), topRight.getY(), TEXT_BLOCK.getWidth() * Math.tan(Math.toRadians(0.25)));
+        assertTrue(topLeft.getX() >= 0 && topRight.getX() <= transform.getWidth());
+    }
+
+    @Test
+    void skewSearchIsSkippedForBornDigitalPages() {
+        PageNormalizer.Transform transform = PageNormalizer.analyze(page(2), DPI, false, pool);
+        assertEquals(0, transform.getAngle());
+    }
+
+    @Test
+    void blankPageIsLeftAsRendered() {
+        BufferedImage blank = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = blank.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.dispose();
+        assertTrue(PageNormalizer.analyze(blank, DPI, true, pool).isIdentity());
+    }
+
+    @Test
+    void appliedImageHasTheTransformSize() {
+        BufferedImage source = page(2);
+        PageNormalizer.Transform transform = PageNormalizer.analyze(source, DPI, true, pool);
+        BufferedImage normalized = PageNormalizer.apply(source, transform, pool);
+        assertEquals(transform.getWidth(), normalized.getWidth());
+        assertEquals(transform.getHeight(), normalized.getHeight());
+    }
+}
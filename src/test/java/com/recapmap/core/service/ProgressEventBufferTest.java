@@ -0,0 +1,80 @@
+package com.recapmap.core.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ProgressEventBufferTest {
+
+    private static ProgressEventBuffer buffer(int capacity, int events) {
+        ProgressEventBuffer buffer = new ProgressEventBuffer("job", capacity);
+        for (int i = 1; i <= events; i++) buffer.publish(ProgressEventBuffer.Type.PAGE, "Page " + i, i, events);
+        return buffer;
+    }
+
+    private static List<Long> sequences(ProgressEventBuffer.Slice slice) {
+        return slice.getEvents().stream().map(ProgressEventBuffer.Event::getSequence).toList();
+    }
+
+    @Test
+    void emptyBufferHasNothingAfterZero() {
+        ProgressEventBuffer.Slice slice = new ProgressEventBuffer("job", 4).eventsAfter(0);
+        assertEquals(List.of(), slice.getEvents());
+        assertEquals(0, slice.getLastSequence());
+        assertEquals(0, slice.getDropped());
+    }
+
+    @Test
+    void returnsEventsAfterLastSeen() {
+        ProgressEventBuffer buffer = buffer(8, 5);
+        ProgressEventBuffer.Slice slice = buffer.eventsAfter(2);
+        assertEquals(List.of(3L, 4L, 5L), sequences(slice));
+        assertEquals(5, slice.getLastSequence());
+        assertEquals(0, slice.getDropped());
+        assertEquals("page", slice.getEvents().get(0).getType());
+        assertEquals(3, slice.getEvents().get(0).getCompleted());
+    }
+
+    @Test
+    void caughtUpReaderGetsNothingAndKeepsItsPosition() {
+        ProgressEventBuffer.Slice slice = buffer(8, 5).eventsAfter(5);
+        assertEquals(List.of(), slice.getEvents());
+        assertEquals(5, slice.getLastSequence());
+        assertEquals(0, slice.getDropped());
+    }
+
+    @Test
+    void wrapAroundKeepsNewestEventsAndCountsOverwritten() {
+        // 10 events through a ring of 4: 7-10 are left, 1-6 were overwritten
+        ProgressEventBuffer buffer = buffer(4, 10);
+        ProgressEventBuffer.Slice fromStart = buffer.eventsAfter(0);
+        assertEquals(List.of(7L, 8L, 9L, 10L), sequences(fromStart));
+        assertEquals(10, fromStart.getLastSequence());
+        assertEquals(6, fromStart.getDropped());
+
+        ProgressEventBuffer.Slice behind = buffer.eventsAfter(3);
+        assertEquals(List.of(7L, 8L, 9L, 10L), sequences(behind));
+        assertEquals(3, behind.getDropped());
+
+        ProgressEventBuffer.Slice inRing = buffer.eventsAfter(8);
+        assertEquals(List.of(9L, 10L), sequences(inRing));
+        assertEquals(0, inRing.getDropped());
+    }
+
+    @Test
+    void readerFollowsAcrossWrapAround() {
+        ProgressEventBuffer buffer = new ProgressEventBuffer("job", 3);
+        long lastSeen = 0;
+        for (int round = 0; round < 5; round++) {
+            buffer.publish(ProgressEventBuffer.Type.PAGE, "a", -1, -1);
+            buffer.publish(ProgressEventBuffer.Type.PAGE, "b", -1, -1);
+            ProgressEventBuffer.Slice slice = buffer.eventsAfter(lastSeen);
+            assertEquals(List.of(lastSeen + 1, lastSeen + 2), sequences(slice));
+            assertEquals(0, slice.getDropped());
+            lastSeen = slice.getLastSequence();
+        }
+        assertEquals(10, buffer.getLastSequence());
+    }
+}
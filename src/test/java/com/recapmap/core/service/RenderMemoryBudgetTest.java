@@ -0,0 +1,104 @@
+package com.recapmap.core.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class RenderMemoryBudgetTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    private static PageConversionPipeline.Job job(int pageCount, AtomicInteger failed) {
+        return new PageConversionPipeline.Job("tenant", "page", null, null, null, pageCount, new PageConversionPipeline.JobListener() {
+            @Override
+            public void pageCompleted(PageConversionPipeline.PageTask task) {
+            }
+
+            @Override
+            public void pageFailed(PageConversionPipeline.PageTask task, Throwable error) {
+                failed.incrementAndGet();
+            }
+        });
+    }
+
+    @Test
+    void releaseGivesReservedBytesBack() throws InterruptedException {
+        RenderMemoryBudget budget = new RenderMemoryBudget(10 * MB);
+        long reserved = budget.reserve(4 * MB);
+        assertEquals(4 * MB, budget.getReservedBytes());
+        budget.release(reserved);
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    void oversizePageIsAdmittedAloneAndOthersWait() throws InterruptedException {
+        RenderMemoryBudget budget = new RenderMemoryBudget(10 * MB);
+        long big = budget.reserve(25 * MB);
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                budget.reserve(MB);
+                admitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        budget.release(big);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(MB, budget.getReservedBytes());
+    }
+
+    @Test
+    void pageFailingInRenderStageReleasesItsReservation() throws InterruptedException {
+        RenderMemoryBudget budget = new RenderMemoryBudget(10 * MB);
+        PageConversionPipeline pipeline = new PageConversionPipeline()
+                .withRenderMemoryBudget(budget)
+                .addStage("render", 2, 4, task -> {
+                    task.setReservedBytes(budget.reserve(3 * MB));
+                    throw new IOException("Malformed page " + task.getPageIndex());
+                });
+        AtomicInteger failed = new AtomicInteger();
+        PageConversionPipeline.Job job = job(8, failed);
+        for (int i = 0; i < 8; i++) pipeline.submit(new PageConversionPipeline.PageTask(job, i));
+        job.await();
+        assertEquals(8, failed.get());
+        assertEquals(8, job.getFailed());
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    void pageFailingInLaterStageReleasesWhatItStillHolds() throws InterruptedException {
+        RenderMemoryBudget budget = new RenderMemoryBudget(10 * MB);
+        PageConversionPipeline pipeline = new PageConversionPipeline()
+                .withRenderMemoryBudget(budget)
+                .addStage("render", 1, 4, task -> {
+                    // Like a tiled page: reserve tiles + overview, give the tiles back, keep the overview
+                    long tiles = 2 * MB;
+                    long overview = MB;
+                    budget.reserve(tiles + overview);
+                    budget.release(tiles);
+                    task.setReservedBytes(overview);
+                })
+                .addStage("encode", 1, 4, task -> {
+                    if (task.getPageIndex() % 2 == 0) throw new IllegalStateException("Encoder error");
+                    budget.release(task.getReservedBytes());
+                    task.setReservedBytes(0);
+                });
+        AtomicInteger failed = new AtomicInteger();
+        PageConversionPipeline.Job job = job(6, failed);
+        for (int i = 0; i < 6; i++) pipeline.submit(new PageConversionPipeline.PageTask(job, i));
+        job.await();
+        assertEquals(3, failed.get());
+        assertEquals(6, job.getCompleted());
+        assertEquals(0, budget.getReservedBytes());
+    }
+}
@@ -0,0 +1,73 @@
+package com.recapmap.core.service;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Micro-benchmark: ns/pixel of SharpenFilter against the former per-page ConvolveOp sharpen.
+ * Not a unit test; run manually, e.g.
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.recapmap.core.service.SharpenBenchmark
+ */
+public class SharpenBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 20;
+
+    public static void main(String[] args) {
+        // A4 at 150 DPI, with text so the auto mode does not skip the page
+        BufferedImage page = textPage(1240, 1754);
+        BufferedImage blank = blankPage(1240, 1754);
+        long pixels = (long) page.getWidth() * page.getHeight();
+
+        double convolveNs = measure(() -> SharpenFilter.convolve(copy(page)), page);
+        double filterNs = measure(() -> SharpenFilter.sharpen(copy(page), 0), page);
+        double autoNs = measure(() -> SharpenFilter.sharpen(copy(page), PdfService.getSettings().getSharpenMinGain()), page);
+        double blankNs = measure(() -> SharpenFilter.sharpen(copy(blank), PdfService.getSettings().getSharpenMinGain()), page);
+        double copyNs = measure(() -> copy(page), page);
+
+        System.out.printf("Page: %dx%d (%d pixels), copy overhead subtracted%n", page.getWidth(), page.getHeight(), pixels);
+        System.out.printf("ConvolveOp (old)        : %6.2f ns/pixel%n", convolveNs - copyNs);
+        System.out.printf("SharpenFilter (always)  : %6.2f ns/pixel%n", filterNs - copyNs);
+        System.out.printf("SharpenFilter (auto)    : %6.2f ns/pixel%n", autoNs - copyNs);
+        System.out.printf("SharpenFilter (auto, blank page skipped): %6.2f ns/pixel%n", blankNs - copyNs);
+    }
+
+    private static double measure(Runnable run, BufferedImage page) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) run.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) run.run();
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / MEASURED_ROUNDS / ((long) page.getWidth() * page.getHeight());
+    }
+
+    private static BufferedImage copy(BufferedImage src) {
+        BufferedImage out = new BufferedImage(src.getWidth(), src.getHeight(), src.getType());
+        src.copyData(out.getRaster());
+        return out;
+    }
+
+    private static BufferedImage blankPage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage textPage(int width, int height) {
+        BufferedImage image = blankPage(width, height);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 18));
+        for (int y = 80; y < height - 80; y += 26) {
+            g.drawString("The quick brown fox jumps over the lazy dog 0123456789 lorem ipsum dolor", 80, y);
+        }
+        g.dispose();
+        return image;
+    }
+}
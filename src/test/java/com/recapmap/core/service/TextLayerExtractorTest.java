@@ -0,0 +1,67 @@
+package com.recapmap.core.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.jupiter.api.Test;
+
+class TextLayerExtractorTest {
+
+    // A4 page with two paragraphs of text around a filled box large enough to count as a figure
+    private static PDDocument mixedPage(int rotation) throws IOException {
+        PDDocument document = new PDDocument();
+        PDPage page = new PDPage(PDRectangle.A4);
+        page.setRotation(rotation);
+        document.addPage(page);
+        try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+            content.beginText();
+            content.setFont(PDType1Font.HELVETICA, 11);
+            content.setLeading(14);
+            content.newLineAtOffset(60, 780);
+            for (int i = 0; i < 6; i++) {
+                content.showText("Quarterly results improved across every region this year " + i);
+                content.newLine();
+            }
+            content.endText();
+            content.addRect(100, 400, 300, 200);
+            content.fill();
+            content.beginText();
+            content.setFont(PDType1Font.HELVETICA, 11);
+            content.setLeading(14);
+            content.newLineAtOffset(60, 300);
+            for (int i = 0; i < 6; i++) {
+                content.showText("Operating costs fell while revenue kept growing steadily " + i);
+                content.newLine();
+            }
+            content.endText();
+        }
+        return document;
+    }
+
+    @Test
+    void uprightPageSplitsIntoTextAndFigure() throws IOException {
+        try (PDDocument document = mixedPage(0)) {
+            TextLayerExtractor.PageLayout layout = new TextLayerExtractor(document).analyzeLayout(0);
+            assertNotNull(layout);
+            assertEquals(1, layout.getFigureCount());
+            assertEquals(3, layout.getBlocks().size());
+        }
+    }
+
+    @Test
+    void rotatedPageGoesToVisionWhole() throws IOException {
+        for (int rotation : new int[] {90, 180, 270}) {
+            try (PDDocument document = mixedPage(rotation)) {
+                assertNull(new TextLayerExtractor(document).analyzeLayout(0), "rotation " + rotation);
+            }
+        }
+    }
+}
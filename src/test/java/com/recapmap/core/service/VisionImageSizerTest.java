@@ -0,0 +1,49 @@
+package com.recapmap.core.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class VisionImageSizerTest {
+
+    // An A4 page is 8.27 inches wide
+    private static final double A4_WIDTH_INCHES = 8.27;
+
+    @Test
+    void a4At150DpiArrivesAs768By1086() {
+        assertArrayEquals(new int[] {768, 1086}, VisionImageSizer.modelSize(1240, 1754));
+    }
+
+    @Test
+    void tokensCountTilesOfTheModelSize() {
+        assertEquals(85 + 6 * 170, VisionImageSizer.estimateTokens(768, 1086));
+        assertEquals(85 + 4 * 170, VisionImageSizer.estimateTokens(724, 1024));
+        // Scaled down to 768 x 1086 by the model first
+        assertEquals(85 + 6 * 170, VisionImageSizer.estimateTokens(1240, 1754));
+    }
+
+    @Test
+    void a4PageFitsFourTilesInsteadOfSix() {
+        int[] size = VisionImageSizer.optimalSize(768, 1086, 768 / A4_WIDTH_INCHES);
+        assertArrayEquals(new int[] {724, 1024}, size);
+        assertEquals(85 + 4 * 170, VisionImageSizer.estimateTokens(size[0], size[1]));
+    }
+
+    @Test
+    void dpiFloorKeepsTheImageLegible() {
+        // 724 px wide would show the page below MIN_DPI
+        double dpi = VisionImageSizer.MIN_DPI * 1.02;
+        assertArrayEquals(new int[] {768, 1086}, VisionImageSizer.optimalSize(768, 1086, dpi));
+        // Without a known resolution nothing is taken away beyond the model's own scaling
+        assertArrayEquals(new int[] {768, 1086}, VisionImageSizer.optimalSize(768, 1086, 0));
+    }
+
+    @Test
+    void neverLargerThanTheModelWouldUse() {
+        int[] size = VisionImageSizer.optimalSize(3000, 4000, 400);
+        int[] model = VisionImageSizer.modelSize(3000, 4000);
+        assertTrue(size[0] <= model[0] && size[1] <= model[1]);
+    }
+}